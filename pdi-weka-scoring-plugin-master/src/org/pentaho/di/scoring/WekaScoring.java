@@ -20,9 +20,9 @@ package org.pentaho.di.scoring;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
@@ -90,7 +90,37 @@ public class WekaScoring extends BaseStep implements StepInterface {
    * Armazena para modelos que sao carregados dos arquivos especificos nas 
    * linhas de entrada.
    */
-  private Map<String, WekaScoringModel> m_modelCache;
+  private WekaScoringModelCache m_modelCache;
+
+  /**
+   * key of the cache shared by the copies of this step
+   * 
+   * PT-BR
+   * 
+   * chave do cache compartilhado pelas copias deste step
+   */
+  private String m_modelCacheKey;
+
+  /**
+   * loads models named in the look-ahead rows in the background (null if
+   * prefetching is turned off)
+   * 
+   * PT-BR
+   * 
+   * Carrega em segundo plano os modelos informados nas linhas antecipadas
+   * (null se a antecipacao estiver desligada)
+   */
+  private WekaScoringModelPrefetcher m_prefetcher;
+
+  /** rows read from the input but not yet scored when prefetching models
+   * 
+   * PT-BR
+   * 
+   * Linhas lidas da entrada mas ainda nao processadas ao antecipar modelos
+   */
+  private final LinkedList<Object[]> m_lookAhead = new LinkedList<Object[]>();
+  private int m_prefetchRows;
+  private boolean m_inputDone;
 
   /**
    * model filename from the last row processed (if reading model filenames from
@@ -111,7 +141,28 @@ public class WekaScoring extends BaseStep implements StepInterface {
    * 
    */
   private int m_batchScoringSize = WekaScoringMeta.DEFAULT_BATCH_SCORING_SIZE;
-  private List<Object[]> m_batch;
+
+  /**
+   * keys of the models acquired from the shared model registry. These are
+   * released when the step is disposed
+   * 
+   * PT-BR
+   * 
+   * Chaves dos modelos obtidos do registro compartilhado de modelos. Elas sao
+   * liberadas quando o step (passo) e descartado.
+   */
+  private final List<String> m_sharedModelKeys = new ArrayList<String>();
+
+  /**
+   * recall target for approximate neighbour search (0 = exact), set on each
+   * model when it is loaded
+   * 
+   * PT-BR
+   * 
+   * Meta de revocacao para a busca aproximada de vizinhos (0 = exata),
+   * definida em cada modelo quando ele e carregado
+   */
+  private double m_neighbourSearchRecall;
 
   /**
    * Creates a new <code>WekaScoring</code> instance
@@ -180,8 +231,13 @@ public class WekaScoring extends BaseStep implements StepInterface {
       return;
     }
 
-    if (m_meta.getCacheLoadedModels()) {
-      WekaScoringModel modelToUse = m_modelCache.get(resolvedName);
+    if (m_modelCache != null) {
+      WekaScoringModel modelToUse;
+      try {
+        modelToUse = m_modelCache.get(resolvedName);
+      } catch (Exception ex) {
+        throw new KettleException(ex);
+      }
       if (modelToUse != null) {
         logDebug(BaseMessages.getString(WekaScoringMeta.PKG,
             "WekaScoring.Debug.FoundModelInCache") //$NON-NLS-1$
@@ -199,11 +255,211 @@ public class WekaScoring extends BaseStep implements StepInterface {
         "WekaScoring.Debug.LoadingModelUsingFieldValue") //$NON-NLS-1$
         + " " //$NON-NLS-1$
         + environmentSubstitute(modelFileName));
-    WekaScoringModel modelToUse = setModel(modelFileName);
+    long start = System.currentTimeMillis();
+    WekaScoringModel modelToUse = null;
+    if (m_prefetcher != null) {
+      modelToUse = m_prefetcher.take(resolvedName);
+      if (modelToUse != null) {
+        modelToUse.setNeighbourSearchRecall(m_neighbourSearchRecall);
+        m_data.setModel(modelToUse);
+        m_lastRowModelFile = resolvedName;
+      }
+    }
+    if (modelToUse == null) {
+      modelToUse = setModel(modelFileName);
+    }
+    long loadTime = System.currentTimeMillis() - start;
+
+    if (m_modelCache != null) {
+      long evictedBefore = m_modelCache.getEvictions();
+      long size = 0;
+      boolean cached;
+      try {
+        size = WekaScoringModelCache.estimateHeapSize(modelToUse);
+        cached = m_modelCache.put(resolvedName, modelToUse, size, loadTime);
+      } catch (Exception ex) {
+        throw new KettleException(ex);
+      }
+      if (!cached) {
+        logDetailed(BaseMessages.getString(WekaScoringMeta.PKG,
+            "WekaScoring.Message.ModelTooLargeToCache", resolvedName, //$NON-NLS-1$
+            String.valueOf(size)));
+      } else if (log.isDetailed()
+          && m_modelCache.getEvictions() > evictedBefore) {
+        logDetailed(BaseMessages.getString(WekaScoringMeta.PKG,
+            "WekaScoring.Message.EvictedModelsFromCache", //$NON-NLS-1$
+            String.valueOf(m_modelCache.getEvictions() - evictedBefore)));
+      }
+    }
+  }
+
+  /**
+   * Gets the cache for models loaded from files named in the incoming rows.
+   * The cache is shared by all copies of this step and is created with the
+   * limits configured in the step meta data.
+   * 
+   * PT-BR
+   * 
+   * Retorna o cache para os modelos carregados de arquivos informados nas
+   * linhas de entrada. O cache e compartilhado por todas as copias deste step
+   * e e criado com os limites configurados nos metadados do step.
+   * 
+   * @return the model cache
+   *         o cache de modelos
+   */
+  private WekaScoringModelCache createModelCache() {
+    long maxEntries = parseNonNegativeSetting(m_meta.getModelCacheMaxEntries(),
+        0);
+    long maxMemory = parseNonNegativeSetting(m_meta.getModelCacheMaxMemory(),
+        -1);
+    long idleTimeout = parseNonNegativeSetting(
+        m_meta.getModelCacheIdleTimeout(), 0);
+
+    // default to a quarter of the heap, shared with every other cache in the
+    // JVM that has no limit of its own
+    // por padrao usa um quarto do heap, compartilhado com todos os outros
+    // caches da JVM que nao possuem limite proprio
+    long maxBytes = (maxMemory < 0) ? WekaScoringModelCache.DEFAULT_BUDGET
+        : maxMemory * 1024L * 1024L;
+
+    logDetailed(BaseMessages.getString(WekaScoringMeta.PKG,
+        "WekaScoring.Message.ModelCacheLimits", String.valueOf(maxEntries), //$NON-NLS-1$
+        String.valueOf(((maxBytes < 0) ? WekaScoringModelCache.DEFAULT_BUDGET_BYTES
+            : maxBytes) / (1024L * 1024L)), String.valueOf(idleTimeout)));
+
+    m_modelCacheKey = getTrans().getLogChannelId() + "/" + getStepname(); //$NON-NLS-1$
+    return WekaScoringModelCache.acquire(m_modelCacheKey, (int) Math.min(
+        maxEntries, Integer.MAX_VALUE), maxBytes, idleTimeout * 1000L);
+  }
+
+  private void releaseModelCache() {
+    if (m_modelCache == null) {
+      return;
+    }
+
+    // the last copy of the step reports the statistics of the shared cache
+    // a ultima copia do step informa as estatisticas do cache compartilhado
+    if (WekaScoringModelCache.release(m_modelCacheKey)) {
+      logModelCacheStatistics();
+    }
+    m_modelCache = null;
+  }
+
+  private long parseNonNegativeSetting(String setting, long defaultValue) {
+    if (Const.isEmpty(setting)) {
+      return defaultValue;
+    }
+
+    String resolved = environmentSubstitute(setting);
+    try {
+      long value = Long.parseLong(resolved.trim());
+      if (value >= 0) {
+        return value;
+      }
+    } catch (NumberFormatException ex) {
+    }
+
+    logBasic(BaseMessages.getString(WekaScoringMeta.PKG,
+        "WekaScoring.Message.UnableToParseSetting", resolved)); //$NON-NLS-1$
+    return defaultValue;
+  }
+
+  private double parseRecallSetting(String setting) {
+    if (Const.isEmpty(setting)) {
+      return 0;
+    }
+
+    String resolved = environmentSubstitute(setting);
+    try {
+      double value = Double.parseDouble(resolved.trim());
+      if (value > 0 && value <= 1) {
+        return value;
+      }
+    } catch (NumberFormatException ex) {
+    }
+
+    logBasic(BaseMessages.getString(WekaScoringMeta.PKG,
+        "WekaScoring.Message.UnableToParseSetting", resolved)); //$NON-NLS-1$
+    return 0;
+  }
+
+  /**
+   * Get the next row to score. When models are prefetched, up to the
+   * configured number of rows are read ahead of the row being scored and the
+   * models they name are loaded in the background.
+   * 
+   * PT-BR
+   * 
+   * Retorna a proxima linha a processar. Quando os modelos sao antecipados,
+   * ate o numero configurado de linhas e lido antes da linha sendo processada
+   * e os modelos informados nelas sao carregados em segundo plano.
+   * 
+   * @return the next row or null if there are no more rows
+   *         a proxima linha ou null se nao houver mais linhas
+   * @throws KettleException if a row can't be read
+   */
+  private Object[] nextRow() throws KettleException {
+    if (m_prefetcher == null) {
+      return m_lookAhead.isEmpty() ? getRow() : m_lookAhead.removeFirst();
+    }
+
+    while (!m_inputDone && m_lookAhead.size() <= m_prefetchRows) {
+      Object[] row = getRow();
+      if (row == null) {
+        m_inputDone = true;
+      } else {
+        m_lookAhead.add(row);
+        prefetchModelFor(row);
+      }
+    }
+
+    return m_lookAhead.isEmpty() ? null : m_lookAhead.removeFirst();
+  }
+
+  private void prefetchModelFor(Object[] row) throws KettleException {
+    String modelFileName = getInputRowMeta().getString(row,
+        m_indexOfFieldToLoadFrom);
+    if (Const.isEmpty(modelFileName)) {
+      return;
+    }
+
+    String resolvedName = environmentSubstitute(modelFileName);
+    if (resolvedName.equals(m_lastRowModelFile)
+        || m_prefetcher.isPending(resolvedName)
+        || (m_modelCache != null && m_modelCache.contains(resolvedName))) {
+      return;
+    }
+
+    m_prefetcher.prefetch(resolvedName);
+  }
 
-    if (m_meta.getCacheLoadedModels()) {
-      m_modelCache.put(resolvedName, modelToUse);
+  private void stopPrefetching() {
+    if (m_prefetcher == null) {
+      return;
     }
+
+    logBasic(BaseMessages.getString(WekaScoringMeta.PKG,
+        "WekaScoring.Message.ModelPrefetchStatistics", //$NON-NLS-1$
+        String.valueOf(m_prefetcher.getStarted()),
+        String.valueOf(m_prefetcher.getUsed()),
+        String.valueOf(m_prefetcher.getWaitTime())));
+    m_prefetcher.shutdown();
+    m_prefetcher = null;
+  }
+
+  private void logModelCacheStatistics() {
+    if (m_modelCache == null) {
+      return;
+    }
+
+    logBasic(BaseMessages.getString(WekaScoringMeta.PKG,
+        "WekaScoring.Message.ModelCacheStatistics", //$NON-NLS-1$
+        String.valueOf(m_modelCache.getHits()),
+        String.valueOf(m_modelCache.getMisses()),
+        String.valueOf(m_modelCache.getEvictions()),
+        String.valueOf(m_modelCache.getExpirations()),
+        String.valueOf(m_modelCache.getLoads()),
+        String.valueOf(m_modelCache.getLoadTime())));
   }
 
   private WekaScoringModel setModel(String modelFileName)
@@ -227,6 +483,62 @@ public class WekaScoring extends BaseStep implements StepInterface {
     try {
       model = WekaScoringData.loadSerializedModel(modelFileName,
           getLogChannel(), this);
+      model.setNeighbourSearchRecall(m_neighbourSearchRecall);
+      m_data.setModel(model);
+
+      if (m_meta.getFileNameFromField()) {
+        m_lastRowModelFile = environmentSubstitute(modelFileName);
+      }
+    } catch (Exception ex) {
+      throw new KettleException(BaseMessages.getString(WekaScoringMeta.PKG,
+          "WekaScoring.Error.ProblemDeserializingModel"), ex); //$NON-NLS-1$
+    }
+    return model;
+  }
+
+  /**
+   * Sets the model to use from the supplied file, sharing a single load with
+   * every other step copy that uses a file with the same content (see
+   * WekaScoringModelRegistry). Falls back to loading a private copy if the
+   * model is to be updated incrementally.
+   * 
+   * PT-BR
+   * 
+   * Seta o modelo para usar a partir do arquivo fornecido, compartilhando uma
+   * unica carga com todas as outras copias do step que usam um arquivo com o
+   * mesmo conteudo (veja WekaScoringModelRegistry). Carrega uma copia
+   * privada se o modelo for atualizado incrementalmente.
+   * 
+   * @param modelFileName the path to the model file
+   *                      o caminho do arquivo de modelo
+   * @return the model
+   *         o modelo
+   * @throws KettleException if the model can't be loaded
+   */
+  private WekaScoringModel setSharedModel(final String modelFileName)
+      throws KettleException {
+    if (m_meta.getUpdateIncrementalModel()) {
+      return setModel(modelFileName);
+    }
+
+    WekaScoringModel model = null;
+    try {
+      String key = WekaScoringModelRegistry.keyWithRecall(
+          WekaScoringModelRegistry.keyForModelFile(modelFileName, this),
+          m_neighbourSearchRecall);
+      model = WekaScoringModelRegistry.acquire(key,
+          new Callable<WekaScoringModel>() {
+            public WekaScoringModel call() throws Exception {
+              WekaScoringModel loaded = WekaScoringData.loadSerializedModel(
+                  modelFileName, getLogChannel(), WekaScoring.this);
+              loaded.setNeighbourSearchRecall(m_neighbourSearchRecall);
+              return loaded;
+            }
+          });
+      m_sharedModelKeys.add(key);
+      logDetailed(BaseMessages.getString(WekaScoringMeta.PKG,
+          "WekaScoring.Message.UsingSharedModel", key, //$NON-NLS-1$
+          String.valueOf(WekaScoringModelRegistry.getReferenceCount(key))));
       m_data.setModel(model);
 
       if (m_meta.getFileNameFromField()) {
@@ -258,11 +570,10 @@ public class WekaScoring extends BaseStep implements StepInterface {
     m_meta = (WekaScoringMeta) smi;
     m_data = (WekaScoringData) sdi;
 
-    Object[] r = getRow();
+    Object[] r = nextRow();
 
     if (r == null) {
-      if (m_data.getModel().isBatchPredictor()
-          && !m_meta.getFileNameFromField() && m_batch.size() > 0) {
+      if (m_data.isBatchScoring(m_meta) && m_data.getBufferedRows() > 0) {
         try {
           outputBatchRows();
         } catch (Exception ex) {
@@ -303,11 +614,23 @@ public class WekaScoring extends BaseStep implements StepInterface {
         }
       }
 
+      logDetailed(BaseMessages.getString(WekaScoringMeta.PKG,
+          "WekaScoring.Message.OutputRowStatistics", //$NON-NLS-1$
+          String.valueOf(m_data.getRowsExtendedInPlace()),
+          String.valueOf(m_data.getRowsCopied())));
+
       if (m_meta.getFileNameFromField()) {
         // clear the main model
         // Limpar o modelo principal
         m_data.setModel(null);
-      } else {
+        stopPrefetching();
+        releaseModelCache();
+      } else if (m_sharedModelKeys.isEmpty()
+          || !WekaScoringModelRegistry.isShared(m_sharedModelKeys.get(0))) {
+        // shared models are told that scoring is done when the last
+        // step copy releases them, private copies are told here
+        // modelos compartilhados sao avisados que o scoring terminou quando
+        // a ultima copia do step os libera, copias privadas sao avisadas aqui
         m_data.getModel().done();
       }
 
@@ -321,6 +644,8 @@ public class WekaScoring extends BaseStep implements StepInterface {
       first = false;
 
       m_data.setOutputRowMeta(getInputRowMeta().clone());
+      m_neighbourSearchRecall = parseRecallSetting(m_meta
+          .getNeighbourSearchRecall());
       if (m_meta.getFileNameFromField()) {
         RowMetaInterface inputRowMeta = getInputRowMeta();
 
@@ -339,25 +664,28 @@ public class WekaScoring extends BaseStep implements StepInterface {
         }
 
         if (m_meta.getCacheLoadedModels()) {
-          m_modelCache = new HashMap<String, WekaScoringModel>();
+          m_modelCache = createModelCache();
+        }
+
+        m_prefetchRows = (int) Math.min(
+            parseNonNegativeSetting(m_meta.getModelPrefetchRows(), 0),
+            Integer.MAX_VALUE);
+        if (m_prefetchRows > 0) {
+          m_prefetcher = new WekaScoringModelPrefetcher(getLogChannel(), this);
+          logDetailed(BaseMessages.getString(WekaScoringMeta.PKG,
+              "WekaScoring.Message.PrefetchingModels", //$NON-NLS-1$
+              String.valueOf(m_prefetchRows)));
         }
 
         // set the default model
         // Seta o modelo padrao
         if (!Const.isEmpty(m_meta.getSerializedModelFileName())) {
-          WekaScoringModel defaultModel = setModel(m_meta
+          WekaScoringModel defaultModel = setSharedModel(m_meta
               .getSerializedModelFileName());
 
           m_data.setDefaultModel(defaultModel);
         } else if (m_meta.getModel() != null) {
-          try {
-            SerializedObject so = new SerializedObject(m_meta.getModel());
-            WekaScoringModel defaultModel = (WekaScoringModel) so.getObject();
-
-            m_data.setDefaultModel(defaultModel);
-          } catch (Exception ex) {
-            throw new KettleException(ex);
-          }
+          m_data.setDefaultModel(getModelFromMeta());
         }
 
         // set the main model from this row
@@ -378,18 +706,11 @@ public class WekaScoring extends BaseStep implements StepInterface {
               "WekaScoring.Error.NoFilenameToLoadModelFrom")); //$NON-NLS-1$
         }
 
-        setModel(m_meta.getSerializedModelFileName());
+        setSharedModel(m_meta.getSerializedModelFileName());
       } else if (m_meta.getModel() != null) {
         // copy the primary model over to the data class
         // Copia o primeiro modelo sobre a classe de dados
-        try {
-          SerializedObject so = new SerializedObject(m_meta.getModel());
-          WekaScoringModel defaultModel = (WekaScoringModel) so.getObject();
-
-          m_data.setModel(defaultModel);
-        } catch (Exception ex) {
-          throw new KettleException(ex);
-        }
+        m_data.setModel(getModelFromMeta());
       }
 
       // Check the input row meta data against the instances
@@ -439,10 +760,7 @@ public class WekaScoring extends BaseStep implements StepInterface {
           }
         }
       }
-
-      if (m_data.getModel().isBatchPredictor()) {
-        m_batch = new ArrayList<Object[]>();
-      }
+      m_data.setBatchScoringSize(m_batchScoringSize);
     } // end (if first)
 
     // Make prediction for row using model
@@ -452,14 +770,16 @@ public class WekaScoring extends BaseStep implements StepInterface {
         setModelFromField(r);
       }
 
-      if (m_data.getModel().isBatchPredictor()
-          && !m_meta.getFileNameFromField()) {
+      // incrementally updated models are scored (and updated) row by row
+      // modelos atualizados incrementalmente sao pontuados (e atualizados)
+      // linha a linha
+      if (m_data.isBatchScoring(m_meta)) {
         try {
-          // add current row to batch
-          // Adicionar atual linha no lote
-          m_batch.add(r);
+          // add current row to batch, converting it now
+          // Adicionar atual linha no lote, convertendo-a agora
+          m_data.bufferRow(getInputRowMeta(), r);
 
-          if (m_batch.size() == m_batchScoringSize) {
+          if (m_data.getBufferedRows() == m_batchScoringSize) {
             outputBatchRows();
           }
         } catch (Exception ex) {
@@ -486,11 +806,87 @@ public class WekaScoring extends BaseStep implements StepInterface {
     return true;
   }
 
+  /**
+   * Get a copy of the model stored in the step meta data. A single copy is
+   * made for every step copy that uses the same model and is handed out by
+   * WekaScoringModelRegistry, unless the model is to be updated
+   * incrementally, in which case a private deep copy is made.
+   * 
+   * PT-BR
+   * 
+   * Retorna uma copia do modelo armazenado nos metadados do step. Uma unica
+   * copia e feita para todas as copias do step que usam o mesmo modelo e e
+   * entregue pelo WekaScoringModelRegistry, a menos que o modelo seja
+   * atualizado incrementalmente; neste caso uma copia privada e feita.
+   * 
+   * @return the model
+   *         o modelo
+   * @throws KettleException if the model can't be copied
+   */
+  private WekaScoringModel getModelFromMeta() throws KettleException {
+    final WekaScoringModel metaModel = m_meta.getModel();
+    try {
+      if (m_meta.getUpdateIncrementalModel()) {
+        WekaScoringModel model = copyModel(metaModel);
+        model.setNeighbourSearchRecall(m_neighbourSearchRecall);
+        return model;
+      }
+
+      String key = WekaScoringModelRegistry.keyWithRecall(
+          WekaScoringModelRegistry.keyForModel(metaModel),
+          m_neighbourSearchRecall);
+      WekaScoringModel model = WekaScoringModelRegistry.acquire(key,
+          new Callable<WekaScoringModel>() {
+            public WekaScoringModel call() throws Exception {
+              // the registry owns its own copy: the meta model is the one
+              // edited by Spoon, and must not be recompiled or told that
+              // scoring is done
+              // o registro possui a sua propria copia: o modelo dos
+              // metadados e o editado pelo Spoon, e nao deve ser recompilado
+              // nem avisado que o scoring terminou
+              WekaScoringModel copy = copyModel(metaModel);
+              copy.setNeighbourSearchRecall(m_neighbourSearchRecall);
+              return copy;
+            }
+          });
+      m_sharedModelKeys.add(key);
+      return model;
+    } catch (Exception ex) {
+      throw new KettleException(ex);
+    }
+  }
+
+  /**
+   * Make a deep copy of the supplied model.
+   *
+   * PT-BR
+   *
+   * Faz uma copia profunda do modelo fornecido.
+   *
+   * @param model the model to copy
+   *              o modelo a ser copiado
+   * @return the copy
+   *         a copia
+   * @throws Exception if the model can't be copied
+   *                   se o modelo nao puder ser copiado
+   */
+  private static WekaScoringModel copyModel(WekaScoringModel model)
+      throws Exception {
+    WekaScoringModel copy = (WekaScoringModel) new SerializedObject(model)
+        .getObject();
+    if (copy == null) {
+      // SerializedObject reports problems by returning null
+      // SerializedObject informa problemas retornando null
+      throw new Exception("Unable to copy the model!"); //$NON-NLS-1$
+    }
+    return copy;
+  }
+
   protected void outputBatchRows() throws Exception {
     // get predictions for the batch
     // Busca as previsaos para o lote
     Object[][] outputRows = m_data.generatePredictions(getInputRowMeta(),
-        m_data.getOutputRowMeta(), m_batch, m_meta);
+        m_data.getOutputRowMeta(), m_meta);
 
     if (log.isDetailed()) {
       logDetailed(BaseMessages.getString(WekaScoringMeta.PKG,
@@ -502,10 +898,6 @@ public class WekaScoring extends BaseStep implements StepInterface {
     for (Object[] row : outputRows) {
       putRow(m_data.getOutputRowMeta(), row);
     }
-
-    // reset batch
-    // Limpa o lote
-    m_batch.clear();
   }
 
   /**
@@ -529,4 +921,29 @@ public class WekaScoring extends BaseStep implements StepInterface {
     }
     return false;
   }
+
+  /**
+   * Clean up after the step has finished. Releases any models acquired from the
+   * shared model registry, and the model cache shared by the step copies.
+   * 
+   * PT-BR
+   * 
+   * Limpa apos o step (passo) terminar. Libera os modelos obtidos do registro
+   * compartilhado de modelos, e o cache de modelos compartilhado pelas copias
+   * do step.
+   * 
+   * @param smi a <code>StepMetaInterface</code> value
+   * @param sdi a <code>StepDataInterface</code> value
+   */
+  @Override
+  public void dispose(StepMetaInterface smi, StepDataInterface sdi) {
+    for (String key : m_sharedModelKeys) {
+      WekaScoringModelRegistry.release(key);
+    }
+    m_sharedModelKeys.clear();
+    stopPrefetching();
+    releaseModelCache();
+
+    super.dispose(smi, sdi);
+  }
 }
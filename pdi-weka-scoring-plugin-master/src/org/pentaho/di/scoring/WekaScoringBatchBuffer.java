@@ -0,0 +1,237 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.util.Arrays;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Holds the rows of a batch, converted into instances as they arrive rather
+ * than when the batch is scored. Each slot of the buffer keeps its array of
+ * values and the DenseInstance over it from one batch to the next, and the
+ * instances are held, uncopied, by one Instances that is handed to the model
+ * (and to its compiled engine) and emptied again once the batch is scored.
+ * Sparse and word vector instances are made per row and held as they are.
+ *
+ * PT-BR
+ *
+ * Contem as linhas de um lote, convertidas em instancias a medida que
+ * chegam em vez de quando o lote e pontuado. Cada posicao do buffer mantem a
+ * sua matriz de valores e a DenseInstance sobre ela de um lote para o
+ * proximo, e as instancias sao mantidas, sem copia, por uma Instances que e
+ * entregue ao modelo (e ao seu motor compilado) e esvaziada novamente assim
+ * que o lote e pontuado. Instancias esparsas e vetores de palavras sao
+ * criados por linha e mantidos como estao.
+ */
+class WekaScoringBatchBuffer {
+
+  // the incoming rows, and the values of each slot with their instance
+  // as linhas de entrada, e os valores de cada posicao com a sua instancia
+  private Object[][] m_rows;
+  private double[][] m_values;
+  private Instance[] m_dense;
+  private int m_size;
+
+  /** the header or compiled filter the arrays of values were made for
+   *  o cabecalho ou filtro compilado para o qual as matrizes de valores foram
+   *  criadas
+   */
+  private Object m_valuesOwner;
+
+  /** the instances of the batch, and the header and compiled filter they
+   *  were made for
+   *  as instancias do lote, e o cabecalho e o filtro compilado para os quais
+   *  foram criadas
+   */
+  private WekaScoringPreprocessor.Transformed m_batch;
+  private Instances m_format;
+  private Object m_marker;
+
+  WekaScoringBatchBuffer(int capacity) {
+    capacity = Math.max(capacity, 1);
+    m_rows = new Object[capacity][];
+    m_values = new double[capacity][];
+    m_dense = new Instance[capacity];
+  }
+
+  /**
+   * Get the array of values for the next row, reused from earlier batches
+   * if it was made for the same header or compiled filter and has the right
+   * length. The values of a reused array are those of an earlier row, so
+   * every value has to be set.
+   *
+   * PT-BR
+   *
+   * Retorna a matriz de valores para a proxima linha, reutilizada de lotes
+   * anteriores se foi criada para o mesmo cabecalho ou filtro compilado e
+   * tem o tamanho certo. Os valores de uma matriz reutilizada sao os de uma
+   * linha anterior, entao todos os valores precisam ser definidos.
+   *
+   * @param numValues the number of values
+   *                  o numero de valores
+   * @param owner the header or compiled filter the values are for
+   *              o cabecalho ou filtro compilado ao qual os valores se
+   *              destinam
+   * @return the array of values
+   *         a matriz de valores
+   */
+  double[] values(int numValues, Object owner) {
+    if (m_size == m_values.length) {
+      grow();
+    }
+    if (owner != m_valuesOwner) {
+      Arrays.fill(m_values, null);
+      Arrays.fill(m_dense, null);
+      m_valuesOwner = owner;
+    }
+    double[] values = m_values[m_size];
+    if (values == null || values.length != numValues) {
+      values = new double[numValues];
+      m_values[m_size] = values;
+      m_dense[m_size] = new DenseInstance(1.0, values);
+    }
+    return values;
+  }
+
+  /**
+   * Get the instance over the array returned by values().
+   *
+   * PT-BR
+   *
+   * Retorna a instancia sobre a matriz retornada por values().
+   *
+   * @return the dense instance of the next row
+   *         a instancia densa da proxima linha
+   */
+  Instance denseInstance() {
+    return m_dense[m_size];
+  }
+
+  /**
+   * Add a converted row.
+   *
+   * PT-BR
+   *
+   * Adiciona uma linha convertida.
+   *
+   * @param row the incoming row
+   *            a linha de entrada
+   * @param inst its instance
+   *             a sua instancia
+   * @param format the header of the instance
+   *               o cabecalho da instancia
+   * @param marker the compiled filter that made its values, or null
+   *               o filtro compilado que produziu os seus valores, ou null
+   */
+  void add(Object[] row, Instance inst, Instances format, Object marker) {
+    if (m_size == m_rows.length) {
+      grow();
+    }
+    if (m_batch == null || m_format != format || m_marker != marker) {
+      WekaScoringPreprocessor.Transformed batch =
+          new WekaScoringPreprocessor.Transformed(format, m_rows.length,
+              marker);
+      for (int i = 0; i < m_size; i++) {
+        batch.addShared(m_batch.instance(i));
+      }
+      m_batch = batch;
+      m_format = format;
+      m_marker = marker;
+    }
+    m_batch.addShared(inst);
+    m_rows[m_size++] = row;
+  }
+
+  /**
+   * Get the number of buffered rows.
+   *
+   * PT-BR
+   *
+   * Retorna o numero de linhas no buffer.
+   *
+   * @return the number of rows
+   *         o numero de linhas
+   */
+  int size() {
+    return m_size;
+  }
+
+  /**
+   * Get a buffered row.
+   *
+   * PT-BR
+   *
+   * Retorna uma linha do buffer.
+   *
+   * @param index the index of the row
+   *              o indice da linha
+   * @return the incoming row
+   *         a linha de entrada
+   */
+  Object[] row(int index) {
+    return m_rows[index];
+  }
+
+  /**
+   * Get the instances of the buffered rows.
+   *
+   * PT-BR
+   *
+   * Retorna as instancias das linhas do buffer.
+   *
+   * @return the batch of instances
+   *         o lote de instancias
+   */
+  Instances instances() {
+    return m_batch;
+  }
+
+  /**
+   * Empty the buffer for the next batch, keeping its arrays.
+   *
+   * PT-BR
+   *
+   * Esvazia o buffer para o proximo lote, mantendo as suas matrizes.
+   */
+  void clear() {
+    for (int i = 0; i < m_size; i++) {
+      m_rows[i] = null;
+    }
+    m_size = 0;
+    if (m_batch != null) {
+      m_batch.clearShared();
+    }
+  }
+
+  private void grow() {
+    int capacity = m_rows.length * 2;
+    Object[][] rows = new Object[capacity][];
+    double[][] values = new double[capacity][];
+    Instance[] dense = new Instance[capacity];
+    System.arraycopy(m_rows, 0, rows, 0, m_size);
+    System.arraycopy(m_values, 0, values, 0, m_values.length);
+    System.arraycopy(m_dense, 0, dense, 0, m_dense.length);
+    m_rows = rows;
+    m_values = values;
+    m_dense = dense;
+  }
+}
@@ -0,0 +1,687 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.classifiers.bayes.BayesNet;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.bayes.net.ParentSet;
+import weka.classifiers.bayes.net.estimate.SimpleEstimator;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Statistics;
+import weka.core.Utils;
+import weka.estimators.DiscreteEstimator;
+import weka.estimators.Estimator;
+import weka.estimators.KernelEstimator;
+import weka.estimators.NormalEstimator;
+import weka.filters.Filter;
+
+/**
+ * Compiled engine for NaiveBayes and BayesNet. When the model is compiled the
+ * class prior, the nominal conditionals and the conditional probability
+ * tables are turned into dense tables of log probabilities, laid out so that
+ * the entries for all the classes are next to each other, and the normal and
+ * kernel estimators are copied into primitive parameter arrays. A row is
+ * scored with one loop that adds up the log probabilities for every class,
+ * which replaces the products and rescaling (NaiveBayes) or the estimator
+ * lookups and logarithms (BayesNet) done by Weka. The distributions match
+ * the ones from Weka up to rounding.
+ *
+ * PT-BR
+ *
+ * Motor compilado para NaiveBayes e BayesNet. Quando o modelo e compilado a
+ * probabilidade a priori das classes, as condicionais nominais e as tabelas
+ * de probabilidade condicional sao transformadas em tabelas densas de
+ * log-probabilidades, dispostas de modo que as entradas de todas as classes
+ * fiquem lado a lado, e os estimadores normais e de kernel sao copiados para
+ * matrizes primitivas de parametros. Uma linha e pontuada com um unico laco
+ * que soma as log-probabilidades de cada classe, substituindo os produtos e
+ * reescalas (NaiveBayes) ou as consultas aos estimadores e logaritmos
+ * (BayesNet) feitos pelo Weka. As distribuicoes coincidem com as do Weka a
+ * menos de arredondamentos.
+ */
+class WekaScoringBayesEngine extends WekaScoringEngine {
+
+  /** factor types / tipos de fator */
+  static final byte TABLE = 0;
+  /** NaiveBayes normal estimator / estimador normal do NaiveBayes */
+  static final byte NORMAL = 1;
+  /** NaiveBayes kernel estimator / estimador de kernel do NaiveBayes */
+  static final byte KERNEL = 2;
+
+  /** NaiveBayes never lets a conditional probability fall below this */
+  private static final double MIN_PROB = 1e-75;
+
+  /** KernelEstimator.MAX_ERROR */
+  private static final double KERNEL_MAX_ERROR = 0.01;
+
+  private final int m_numClasses;
+
+  // per factor arrays. A factor is one term of the sum of log probabilities:
+  // the class prior, or the conditional of one attribute
+  // matrizes por fator. Um fator e um termo da soma de log-probabilidades:
+  // a probabilidade a priori da classe, ou a condicional de um atributo
+  private final byte[] m_type;
+  // attribute whose value is looked up (-1 for the class node)
+  // atributo cujo valor e consultado (-1 para o no da classe)
+  private final int[] m_attribute;
+  private final int[] m_numValues;
+  // TABLE: start of the factor in m_table. NORMAL and KERNEL: index of the
+  // first class in the estimator parameter arrays
+  // TABLE: inicio do fator em m_table. NORMAL e KERNEL: indice da primeira
+  // classe nas matrizes de parametros dos estimadores
+  private final int[] m_offset;
+  private final int[] m_valueStep;
+  private final int[] m_parentStep;
+  private final int[] m_classStep;
+  // parents of a BayesNet node other than the class, with the number of
+  // values of each
+  // pais de um no do BayesNet que nao sao a classe, com o numero de valores
+  // de cada um
+  private final int[][] m_parents;
+  private final int[][] m_parentValues;
+  // NaiveBayes attribute weights
+  // pesos dos atributos do NaiveBayes
+  private final double[] m_weight;
+
+  private final double[] m_table;
+
+  // estimator parameters, one entry per factor and class
+  // parametros dos estimadores, uma entrada por fator e classe
+  private final double[] m_mean;
+  private final double[] m_stdDev;
+  private final double[] m_precision;
+  private final double[] m_sumOfWeights;
+  private final int[] m_kernelStart;
+  private final int[] m_kernelCount;
+  private final double[] m_kernelValues;
+  private final double[] m_kernelWeights;
+
+  // preprocessing done by the model (stateful, so used under a lock)
+  // pre-processamento feito pelo modelo (com estado, entao usado com
+  // bloqueio)
+  private final Filter m_discretize;
+  private final BayesNet m_bayesNet;
+  private final Method m_normalize;
+
+  /**
+   * A factor while the model is being flattened
+   *
+   * Um fator enquanto o modelo esta sendo achatado
+   */
+  private static class FactorSpec {
+    byte m_type = TABLE;
+    int m_attribute = -1;
+    int m_numValues;
+    int m_valueStep;
+    int m_parentStep;
+    int m_classStep;
+    int[] m_parents = new int[0];
+    int[] m_parentValues = new int[0];
+    double m_weight = 1;
+    double[] m_table;
+    Estimator[] m_estimators;
+  }
+
+  private WekaScoringBayesEngine(int numClasses, List<FactorSpec> factors,
+      Filter discretize, BayesNet bayesNet, Method normalize) throws Exception {
+    m_numClasses = numClasses;
+    m_discretize = discretize;
+    m_bayesNet = bayesNet;
+    m_normalize = normalize;
+
+    int n = factors.size();
+    m_type = new byte[n];
+    m_attribute = new int[n];
+    m_numValues = new int[n];
+    m_offset = new int[n];
+    m_valueStep = new int[n];
+    m_parentStep = new int[n];
+    m_classStep = new int[n];
+    m_parents = new int[n][];
+    m_parentValues = new int[n][];
+    m_weight = new double[n];
+
+    int tableSize = 0;
+    int numEstimators = 0;
+    int numKernelValues = 0;
+    for (FactorSpec f : factors) {
+      if (f.m_type == TABLE) {
+        tableSize += f.m_table.length;
+      } else {
+        numEstimators += numClasses;
+        if (f.m_type == KERNEL) {
+          for (Estimator e : f.m_estimators) {
+            numKernelValues += ((Integer) getField(e, "m_NumValues")) //$NON-NLS-1$
+                .intValue();
+          }
+        }
+      }
+    }
+
+    m_table = new double[tableSize];
+    m_mean = new double[numEstimators];
+    m_stdDev = new double[numEstimators];
+    m_precision = new double[numEstimators];
+    m_sumOfWeights = new double[numEstimators];
+    m_kernelStart = new int[numEstimators];
+    m_kernelCount = new int[numEstimators];
+    m_kernelValues = new double[numKernelValues];
+    m_kernelWeights = new double[numKernelValues];
+
+    tableSize = 0;
+    numEstimators = 0;
+    numKernelValues = 0;
+    for (int i = 0; i < n; i++) {
+      FactorSpec f = factors.get(i);
+      m_type[i] = f.m_type;
+      m_attribute[i] = f.m_attribute;
+      m_numValues[i] = f.m_numValues;
+      m_valueStep[i] = f.m_valueStep;
+      m_parentStep[i] = f.m_parentStep;
+      m_classStep[i] = f.m_classStep;
+      m_parents[i] = f.m_parents;
+      m_parentValues[i] = f.m_parentValues;
+      m_weight[i] = f.m_weight;
+
+      if (f.m_type == TABLE) {
+        m_offset[i] = tableSize;
+        System.arraycopy(f.m_table, 0, m_table, tableSize, f.m_table.length);
+        tableSize += f.m_table.length;
+        continue;
+      }
+
+      m_offset[i] = numEstimators;
+      for (Estimator e : f.m_estimators) {
+        m_stdDev[numEstimators] = ((Double) getField(e, "m_StandardDev")) //$NON-NLS-1$
+            .doubleValue();
+        m_precision[numEstimators] = ((Double) getField(e, "m_Precision")) //$NON-NLS-1$
+            .doubleValue();
+        if (f.m_type == NORMAL) {
+          m_mean[numEstimators] = ((Double) getField(e, "m_Mean")) //$NON-NLS-1$
+              .doubleValue();
+        } else {
+          int count = ((Integer) getField(e, "m_NumValues")).intValue(); //$NON-NLS-1$
+          m_sumOfWeights[numEstimators] = ((Double) getField(e,
+              "m_SumOfWeights")).doubleValue(); //$NON-NLS-1$
+          m_kernelStart[numEstimators] = numKernelValues;
+          m_kernelCount[numEstimators] = count;
+          System.arraycopy(getField(e, "m_Values"), 0, m_kernelValues, //$NON-NLS-1$
+              numKernelValues, count);
+          System.arraycopy(getField(e, "m_Weights"), 0, m_kernelWeights, //$NON-NLS-1$
+              numKernelValues, count);
+          numKernelValues += count;
+        }
+        numEstimators++;
+      }
+    }
+  }
+
+  /**
+   * Compile a NaiveBayes or BayesNet model. Returns null for other models, for
+   * subclasses that change how the distribution is computed and for
+   * estimators that have no compiled form.
+   *
+   * PT-BR
+   *
+   * Compila um modelo NaiveBayes ou BayesNet. Retorna null para outros
+   * modelos, para subclasses que mudam o calculo da distribuicao e para
+   * estimadores que nao tem forma compilada.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the model can't be read
+   *                   se a estrutura do modelo nao puder ser lida
+   */
+  static WekaScoringBayesEngine compile(Object model, Instances header)
+      throws Exception {
+    if (model instanceof NaiveBayes
+        && declaringClass(model, "distributionForInstance", //$NON-NLS-1$
+            Instance.class) == NaiveBayes.class) {
+      return compileNaiveBayes((NaiveBayes) model, header);
+    }
+    if (model instanceof BayesNet
+        && declaringClass(model, "distributionForInstance", //$NON-NLS-1$
+            Instance.class) == BayesNet.class) {
+      return compileBayesNet((BayesNet) model);
+    }
+    return null;
+  }
+
+  private static WekaScoringBayesEngine compileNaiveBayes(NaiveBayes nb,
+      Instances header) throws Exception {
+    Estimator[][] dists = (Estimator[][]) getField(nb, "m_Distributions"); //$NON-NLS-1$
+    Estimator prior = (Estimator) getField(nb, "m_ClassDistribution"); //$NON-NLS-1$
+    Instances trained = (Instances) getField(nb, "m_Instances"); //$NON-NLS-1$
+    if (dists == null || prior == null) {
+      return null;
+    }
+    int numClasses = ((Integer) getField(nb, "m_NumClasses")).intValue(); //$NON-NLS-1$
+
+    // headers serialized by older versions of Weka may have lost their
+    // attributes, but the one the step was given has them
+    // cabecalhos serializados por versoes antigas do Weka podem ter perdido
+    // os seus atributos, mas o que o step (passo) recebeu os tem
+    Instances positions = (trained != null && trained.numAttributes() > 0) ? trained
+        : header;
+    if (positions == null || positions.classIndex() < 0) {
+      return null;
+    }
+    int classIndex = positions.classIndex();
+
+    Filter discretize = null;
+    if (((Boolean) getField(nb, "m_UseDiscretization")).booleanValue()) { //$NON-NLS-1$
+      discretize = (Filter) getField(nb, "m_Disc"); //$NON-NLS-1$
+    }
+
+    List<FactorSpec> factors = new ArrayList<FactorSpec>();
+    FactorSpec priorFactor = new FactorSpec();
+    priorFactor.m_numValues = numClasses;
+    priorFactor.m_classStep = 1;
+    priorFactor.m_table = new double[numClasses];
+    for (int c = 0; c < numClasses; c++) {
+      priorFactor.m_table[c] = Math.log(prior.getProbability(c));
+    }
+    factors.add(priorFactor);
+
+    int attIndex = 0;
+    for (int j = 0; j < dists.length; j++, attIndex++) {
+      if (attIndex == classIndex) {
+        attIndex++;
+      }
+      if (dists[j].length != numClasses) {
+        return null;
+      }
+      FactorSpec f = new FactorSpec();
+      f.m_attribute = attIndex;
+      // Weka looks the weight up by the position among the non class
+      // attributes
+      // o Weka busca o peso pela posicao entre os atributos que nao sao a
+      // classe
+      f.m_weight = attributeWeight(trained, j);
+      Class<?> type = dists[j][0].getClass();
+      for (Estimator e : dists[j]) {
+        if (e.getClass() != type) {
+          return null;
+        }
+      }
+
+      if (type == DiscreteEstimator.class) {
+        int numValues = ((DiscreteEstimator) dists[j][0]).getNumSymbols();
+        f.m_numValues = numValues;
+        f.m_valueStep = numClasses;
+        f.m_classStep = 1;
+        f.m_table = new double[numValues * numClasses];
+        for (int v = 0; v < numValues; v++) {
+          for (int c = 0; c < numClasses; c++) {
+            f.m_table[v * numClasses + c] = Math.log(Math.max(MIN_PROB,
+                Math.pow(dists[j][c].getProbability(v), f.m_weight)));
+          }
+        }
+      } else if (type == NormalEstimator.class || type == KernelEstimator.class) {
+        f.m_type = (type == NormalEstimator.class) ? NORMAL : KERNEL;
+        f.m_estimators = dists[j];
+      } else {
+        return null;
+      }
+      factors.add(f);
+    }
+
+    return new WekaScoringBayesEngine(numClasses, factors, discretize, null,
+        null);
+  }
+
+  private static WekaScoringBayesEngine compileBayesNet(BayesNet net)
+      throws Exception {
+    if (declaringClass(net.getEstimator(), "distributionForInstance", //$NON-NLS-1$
+        BayesNet.class, Instance.class) != SimpleEstimator.class) {
+      return null;
+    }
+    Instances trained = net.m_Instances;
+    if (trained == null || trained.classIndex() < 0
+        || net.m_Distributions == null) {
+      return null;
+    }
+    int classIndex = trained.classIndex();
+    int numClasses = trained.numClasses();
+
+    List<FactorSpec> factors = new ArrayList<FactorSpec>();
+    for (int a = 0; a < trained.numAttributes(); a++) {
+      ParentSet parentSet = net.getParentSet(a);
+      int numParents = parentSet.getNrOfParents();
+
+      // Weka numbers the rows of the table by the values of the parents in
+      // order, the first parent varying slowest
+      // o Weka numera as linhas da tabela pelos valores dos pais em ordem, o
+      // primeiro pai variando mais lentamente
+      int[] cardinality = new int[numParents];
+      int[] stride = new int[numParents];
+      int numRows = 1;
+      int classParent = -1;
+      int numOthers = 0;
+      for (int p = numParents - 1; p >= 0; p--) {
+        int parent = parentSet.getParent(p);
+        cardinality[p] = (parent == classIndex) ? numClasses : trained
+            .attribute(parent).numValues();
+        stride[p] = numRows;
+        numRows *= cardinality[p];
+        if (parent == classIndex) {
+          classParent = p;
+        } else {
+          numOthers++;
+        }
+      }
+
+      if (a != classIndex && classParent < 0) {
+        // does not depend on the class, so adds the same amount to every
+        // class and cancels out when the distribution is normalized
+        // nao depende da classe, entao soma o mesmo valor a todas as classes
+        // e se cancela quando a distribuicao e normalizada
+        continue;
+      }
+
+      FactorSpec f = new FactorSpec();
+      f.m_attribute = (a == classIndex) ? -1 : a;
+      f.m_numValues = (a == classIndex) ? numClasses : trained.attribute(a)
+          .numValues();
+      f.m_parents = new int[numOthers];
+      f.m_parentValues = new int[numOthers];
+      int numConfigs = 1;
+      for (int p = 0, k = 0; p < numParents; p++) {
+        if (p != classParent) {
+          f.m_parents[k] = parentSet.getParent(p);
+          f.m_parentValues[k++] = cardinality[p];
+          numConfigs *= cardinality[p];
+        }
+      }
+
+      // layout: value, then configuration of the other parents, then class
+      // disposicao: valor, depois configuracao dos outros pais, depois classe
+      f.m_classStep = 1;
+      f.m_parentStep = numClasses;
+      f.m_valueStep = numConfigs * numClasses;
+      f.m_table = new double[(a == classIndex) ? numConfigs * numClasses
+          : f.m_numValues * numConfigs * numClasses];
+      for (int row = 0; row < numRows; row++) {
+        int config = 0;
+        int c = 0;
+        for (int p = 0; p < numParents; p++) {
+          int value = (row / stride[p]) % cardinality[p];
+          if (p == classParent) {
+            c = value;
+          } else {
+            config = config * cardinality[p] + value;
+          }
+        }
+        Estimator e = net.m_Distributions[a][row];
+        if (a == classIndex) {
+          for (c = 0; c < numClasses; c++) {
+            f.m_table[config * numClasses + c] = Math.log(e.getProbability(c));
+          }
+        } else {
+          for (int v = 0; v < f.m_numValues; v++) {
+            f.m_table[v * f.m_valueStep + config * numClasses + c] = Math
+                .log(e.getProbability(v));
+          }
+        }
+      }
+      factors.add(f);
+    }
+
+    Method normalize = BayesNet.class.getDeclaredMethod("normalizeInstance", //$NON-NLS-1$
+        Instance.class);
+    normalize.setAccessible(true);
+    return new WekaScoringBayesEngine(numClasses, factors, null, net,
+        normalize);
+  }
+
+  /**
+   * Number of factors (terms of the sum of log probabilities).
+   *
+   * PT-BR
+   *
+   * Numero de fatores (termos da soma de log-probabilidades).
+   *
+   * @return the number of factors
+   *         o numero de fatores
+   */
+  int numFactors() {
+    return m_type.length;
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    inst = preprocess(inst);
+
+    double[] logProbs = new double[m_numClasses];
+    for (int f = 0; f < m_type.length; f++) {
+      int att = m_attribute[f];
+      double value = 0;
+      if (att >= 0) {
+        if (inst.isMissing(att)) {
+          // NaiveBayes skips attributes that are missing (BayesNet has
+          // already filled them in)
+          // o NaiveBayes ignora atributos ausentes (o BayesNet ja os
+          // preencheu)
+          continue;
+        }
+        value = inst.value(att);
+      }
+
+      if (m_type[f] == TABLE) {
+        int start = m_offset[f];
+        if (att >= 0) {
+          start += checkedValue(value, m_numValues[f]) * m_valueStep[f];
+        }
+        int[] parents = m_parents[f];
+        if (parents.length > 0) {
+          int config = 0;
+          for (int p = 0; p < parents.length; p++) {
+            config = config * m_parentValues[f][p]
+                + checkedValue(inst.value(parents[p]), m_parentValues[f][p]);
+          }
+          start += config * m_parentStep[f];
+        }
+        int step = m_classStep[f];
+        for (int c = 0; c < m_numClasses; c++) {
+          logProbs[c] += m_table[start + c * step];
+        }
+      } else {
+        double weight = m_weight[f];
+        for (int c = 0, e = m_offset[f]; c < m_numClasses; c++, e++) {
+          double p = (m_type[f] == NORMAL) ? normalProbability(e, value)
+              : kernelProbability(e, value);
+          if (weight != 1) {
+            p = Math.pow(p, weight);
+          }
+          logProbs[c] += Math.log(Math.max(MIN_PROB, p));
+        }
+      }
+    }
+
+    double max = logProbs[0];
+    for (int c = 1; c < m_numClasses; c++) {
+      if (logProbs[c] > max) {
+        max = logProbs[c];
+      }
+    }
+    for (int c = 0; c < m_numClasses; c++) {
+      logProbs[c] = Math.exp(logProbs[c] - max);
+    }
+    Utils.normalize(logProbs);
+    return logProbs;
+  }
+
+  /**
+   * Apply the preprocessing of the model: supervised discretization for
+   * NaiveBayes, discretization and missing value replacement for BayesNet.
+   *
+   * PT-BR
+   *
+   * Aplica o pre-processamento do modelo: discretizacao supervisionada para
+   * o NaiveBayes, discretizacao e substituicao de valores ausentes para o
+   * BayesNet.
+   */
+  private Instance preprocess(Instance inst) throws Exception {
+    if (m_discretize != null) {
+      synchronized (m_discretize) {
+        m_discretize.input(inst);
+        return m_discretize.output();
+      }
+    }
+    if (m_bayesNet != null) {
+      synchronized (m_bayesNet) {
+        try {
+          return (Instance) m_normalize.invoke(m_bayesNet, inst);
+        } catch (InvocationTargetException ex) {
+          if (ex.getCause() instanceof Exception) {
+            throw (Exception) ex.getCause();
+          }
+          throw ex;
+        }
+      }
+    }
+    return inst;
+  }
+
+  /**
+   * NormalEstimator.getProbability
+   */
+  private double normalProbability(int e, double data) {
+    double precision = m_precision[e];
+    data = Math.rint(data / precision) * precision;
+    double zLower = (data - m_mean[e] - precision / 2) / m_stdDev[e];
+    double zUpper = (data - m_mean[e] + precision / 2) / m_stdDev[e];
+    return Statistics.normalProbability(zUpper)
+        - Statistics.normalProbability(zLower);
+  }
+
+  /**
+   * KernelEstimator.getProbability
+   */
+  private double kernelProbability(int e, double data) {
+    double precision = m_precision[e];
+    double stdDev = m_stdDev[e];
+    int start = m_kernelStart[e];
+    int count = m_kernelCount[e];
+    if (count == 0) {
+      double zLower = (data - precision / 2) / stdDev;
+      double zUpper = (data + precision / 2) / stdDev;
+      return Statistics.normalProbability(zUpper)
+          - Statistics.normalProbability(zLower);
+    }
+
+    double sumOfWeights = m_sumOfWeights[e];
+    double weightSum = 0;
+    double sum = 0;
+    int nearest = nearestValue(start, count, data);
+    for (int i = nearest; i < count; i++) {
+      double currentProb = kernel(m_kernelValues[start + i] - data, precision,
+          stdDev);
+      weightSum += m_kernelWeights[start + i];
+      sum += currentProb * m_kernelWeights[start + i];
+      if (currentProb * (sumOfWeights - weightSum) < sum * KERNEL_MAX_ERROR) {
+        break;
+      }
+    }
+    for (int i = nearest - 1; i >= 0; i--) {
+      double currentProb = kernel(m_kernelValues[start + i] - data, precision,
+          stdDev);
+      weightSum += m_kernelWeights[start + i];
+      sum += currentProb * m_kernelWeights[start + i];
+      if (currentProb * (sumOfWeights - weightSum) < sum * KERNEL_MAX_ERROR) {
+        break;
+      }
+    }
+    return sum / sumOfWeights;
+  }
+
+  private static double kernel(double delta, double precision, double stdDev) {
+    double zLower = (delta - precision / 2) / stdDev;
+    double zUpper = (delta + precision / 2) / stdDev;
+    return Statistics.normalProbability(zUpper)
+        - Statistics.normalProbability(zLower);
+  }
+
+  /**
+   * KernelEstimator.findNearestValue
+   */
+  private int nearestValue(int start, int count, double key) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int middle = (low + high) / 2;
+      double current = m_kernelValues[start + middle];
+      if (current == key) {
+        return middle;
+      }
+      if (current > key) {
+        high = middle;
+      } else if (current < key) {
+        low = middle + 1;
+      }
+    }
+    return low;
+  }
+
+  private static int checkedValue(double value, int numValues)
+      throws Exception {
+    int v = (int) value;
+    if (v < 0 || v >= numValues) {
+      throw new Exception("Value " + value + " is out of range"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    return v;
+  }
+
+  /**
+   * Weight of an attribute, or 1 if it is not known (attribute weights only
+   * exist in newer versions of Weka).
+   *
+   * PT-BR
+   *
+   * Peso de um atributo, ou 1 se nao for conhecido (pesos de atributos so
+   * existem em versoes mais novas do Weka).
+   */
+  private static double attributeWeight(Instances data, int index) {
+    if (data == null || index >= data.numAttributes()) {
+      return 1;
+    }
+    try {
+      Method weight = Attribute.class.getMethod("weight"); //$NON-NLS-1$
+      return ((Number) weight.invoke(data.attribute(index))).doubleValue();
+    } catch (Exception ex) {
+      return 1;
+    }
+  }
+
+  private static Class<?> declaringClass(Object obj, String method,
+      Class<?>... params) throws Exception {
+    return obj.getClass().getMethod(method, params).getDeclaringClass();
+  }
+}
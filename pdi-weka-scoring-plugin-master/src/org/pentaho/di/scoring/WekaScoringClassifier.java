@@ -22,7 +22,6 @@ import weka.core.BatchPredictor;
 
 import weka.core.Instance;
 import weka.core.Instances;
-import weka.core.Utils;
 import weka.classifiers.Classifier;
 import weka.classifiers.pmml.consumer.PMMLClassifier;
 import weka.classifiers.UpdateableClassifier;
@@ -38,10 +37,26 @@ import weka.classifiers.UpdateableClassifier;
  * @version 1.0
  */
 class WekaScoringClassifier extends WekaScoringModel {
+
+  /** For serialization (pinned to the original computed value) */
+  private static final long serialVersionUID = -8688835350294718192L;
   
   // The encapsulated classifier
   // O classificador encapsulado.
   private Classifier m_model;
+
+  // Whether the classifier can be used by several threads at once
+  // Se o classificador pode ser usado por varias threads ao mesmo tempo
+  private transient Boolean m_threadSafe;
+
+  // Compiled scoring engine (null if there is none for this classifier)
+  // Motor de pontuacao compilado (null se nao houver um para este
+  // classificador)
+  private transient WekaScoringEngine m_engine;
+
+  // Whether compilation has been attempted
+  // Se a compilacao ja foi tentada
+  private transient volatile boolean m_compiled;
   
   /**
    * Creates a new <code>WekaScoringClassifier</code> instance.
@@ -64,6 +79,8 @@ class WekaScoringClassifier extends WekaScoringModel {
    */
   public void setModel(Object model) {
       m_model = (Classifier)model;
+      m_engine = null;
+      m_compiled = false;
   }
 
   /**
@@ -97,13 +114,25 @@ class WekaScoringClassifier extends WekaScoringModel {
    * 
    * */
   public double classifyInstance(Instance inst) throws Exception {
-    return m_model.classifyInstance(inst);
+    WekaScoringEngine engine = getEngine();
+    if (engine != null) {
+      return engine.classifyInstance(inst);
+    }
+    // decided from the distribution, as in a batch
+    // decidida a partir da distribuicao, como em um lote
+    return WekaScoringEngine.classify(distributionForInstance(inst), inst);
   }
 
   /**
-   * Update (if possible) the model with the supplied instance
+   * Update (if possible) the model with the supplied instance. A compiled
+   * engine is dropped by the update, and the model is not compiled again
+   * unless compile() is called, since an incremental model changes with
+   * every row.
    * 
-   * Atualização (se possivel) o modelo com a instancia fornecida
+   * Atualização (se possivel) o modelo com a instancia fornecida. Um motor
+   * compilado e descartado pela atualizacao, e o modelo nao e compilado
+   * novamente a menos que compile() seja chamado, ja que um modelo
+   * incremental muda a cada linha.
    *
    * @param inst the Instance to update with
    *            a Instancia para atualizar  
@@ -117,6 +146,10 @@ class WekaScoringClassifier extends WekaScoringModel {
       //      System.err.println("In update...");
       ((UpdateableClassifier)m_model).updateClassifier(inst);
       //      System.err.println(m_model);
+
+      // a compiled engine would now be out of date
+      // um motor compilado estaria desatualizado agora
+      m_engine = null;
       return true;
     }
     return false;
@@ -138,7 +171,106 @@ class WekaScoringClassifier extends WekaScoringModel {
    */  
   public double[] distributionForInstance(Instance inst)
     throws Exception {
-    return m_model.distributionForInstance(inst);
+    WekaScoringEngine engine = getEngine();
+    if (engine != null) {
+      return engine.distributionForInstance(inst);
+    }
+    if (isThreadSafe()) {
+      return m_model.distributionForInstance(inst);
+    }
+    synchronized (m_model) {
+      return m_model.distributionForInstance(inst);
+    }
+  }
+
+  /**
+   * Compile the classifier into a scoring engine if one is available for it.
+   * Models loaded from a serialized step are compiled on first use, while
+   * an explicit call always compiles the model again.
+   *
+   * PT-BR
+   *
+   * Compila o classificador em um motor de pontuacao se houver um disponivel
+   * para ele. Modelos carregados de um step (passo) serializado sao
+   * compilados no primeiro uso, enquanto uma chamada explicita sempre
+   * compila o modelo novamente.
+   *
+   * @return true if predictions are made by a compiled engine
+   *              se as previsoes sao feitas por um motor compilado
+   */
+  public synchronized boolean compile() {
+    m_engine = WekaScoringEngine.forModel(m_model, getHeader(),
+        getNeighbourSearchRecall());
+    m_compiled = true;
+    return m_engine != null;
+  }
+
+  private WekaScoringEngine getEngine() {
+    if (!m_compiled) {
+      compileOnce();
+    }
+    return m_engine;
+  }
+
+  // copies of the step that share this model compile it only once
+  // copias do step (passo) que compartilham este modelo o compilam apenas
+  // uma vez
+  private synchronized void compileOnce() {
+    if (!m_compiled) {
+      compile();
+    }
+  }
+
+  @Override
+  boolean searchesNeighbours() {
+    WekaScoringEngine engine = m_engine;
+    return m_compiled && engine != null && engine.searchesNeighbours();
+  }
+
+  @Override
+  boolean isShareable() {
+    return getEngine() != null || isThreadSafe();
+  }
+
+  @Override
+  WekaScoringPreprocessor getPreprocessor() {
+    WekaScoringEngine engine = getEngine();
+    if (engine instanceof WekaScoringFilteredEngine) {
+      return ((WekaScoringFilteredEngine) engine).getPreprocessor();
+    }
+    return null;
+  }
+
+  @Override
+  WekaScoringTextVectorizer getTextVectorizer() {
+    WekaScoringEngine engine = getEngine();
+    if (engine instanceof WekaScoringFilteredEngine) {
+      return ((WekaScoringFilteredEngine) engine).getTextVectorizer();
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the encapsulated classifier can make predictions for
+   * several threads at once. Otherwise each copy of the step scores with a
+   * private copy of the model, unless it has been compiled.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se o classificador encapsulado pode fazer previsoes
+   * para varias threads ao mesmo tempo. Caso contrario cada copia do step
+   * (passo) pontua com uma copia privada do modelo, a menos que ele tenha
+   * sido compilado.
+   *
+   * @return true if the classifier can be used concurrently
+   *              se o classificador pode ser usado concorrentemente
+   */
+  public boolean isThreadSafe() {
+    if (m_threadSafe == null) {
+      m_threadSafe = Boolean.valueOf(WekaScoringModelRegistry
+          .isThreadSafe(m_model));
+    }
+    return m_threadSafe.booleanValue();
   }
 
   /**
@@ -220,17 +352,17 @@ class WekaScoringClassifier extends WekaScoringModel {
    *                   se ocorrer um erro
    */
   public double[] classifyInstances(Instances insts) throws Exception {
+    WekaScoringEngine engine = getEngine();
+    if (engine != null && isBatchPredictor()) {
+      return engine.classifyInstances(insts);
+    }
     double[][] preds = distributionsForInstances(insts);
     
     double[] result = new double[preds.length];
     for (int i = 0; i < preds.length; i++) {
-      double[] p = preds[i];
-      
-      if (Utils.sum(p) <= 0) {
-        result[i] = Utils.missingValue();
-      } else {      
-        result[i] = Utils.maxIndex(p);
-      }
+      // as classifyInstance(), which also covers a numeric class
+      // como classifyInstance(), que tambem cobre uma classe numerica
+      result[i] = WekaScoringEngine.classify(preds[i], insts.instance(i));
     }
     
     return result;
@@ -254,8 +386,67 @@ class WekaScoringClassifier extends WekaScoringModel {
     if (!isBatchPredictor()) {
       throw new Exception("Weka model cannot produce batch predictions!");
     }
-    
-    return ((BatchPredictor)m_model).distributionsForInstances(insts);
+
+    WekaScoringEngine engine = getEngine();
+    if (engine != null) {
+      return engine.distributionsForInstances(insts);
+    }
+    if (isThreadSafe()) {
+      return ((BatchPredictor)m_model).distributionsForInstances(insts);
+    }
+    synchronized (m_model) {
+      return ((BatchPredictor)m_model).distributionsForInstances(insts);
+    }
+  }
+
+  /**
+   * Return a distribution with the same most probable class as
+   * distributionForInstance(). Compiled engines may stop evaluating once the
+   * class is decided.
+   *
+   * PT-BR
+   *
+   * Retorna uma distribuicao com a mesma classe mais provavel de
+   * distributionForInstance(). Motores compilados podem parar a avaliacao
+   * assim que a classe estiver decidida.
+   *
+   * @param inst the Instance to be predicted
+   *             a Instance para ser prevista
+   * @return a distribution with the same most probable class
+   *         uma distribuicao com a mesma classe mais provavel
+   * @exception Exception if an error occurs
+   *                      se ocorrer um erro
+   */
+  public double[] labelDistributionForInstance(Instance inst)
+      throws Exception {
+    WekaScoringEngine engine = getEngine();
+    if (engine != null) {
+      return engine.labelDistributionForInstance(inst);
+    }
+    return distributionForInstance(inst);
+  }
+
+  /**
+   * Batch version of labelDistributionForInstance().
+   *
+   * PT-BR
+   *
+   * Versao em lote de labelDistributionForInstance().
+   *
+   * @param insts the instances to score
+   *              as instancias para pontuar
+   * @return one distribution for each instance
+   *         uma distribuicao para cada instancia
+   * @throws Exception if a problem occurs
+   *                   se ocorrer um problema
+   */
+  public double[][] labelDistributionsForInstances(Instances insts)
+      throws Exception {
+    WekaScoringEngine engine = getEngine();
+    if (engine != null && isBatchPredictor()) {
+      return engine.labelDistributionsForInstances(insts);
+    }
+    return distributionsForInstances(insts);
   }
 
   /**
@@ -274,6 +465,10 @@ class WekaScoringClassifier extends WekaScoringModel {
    * 
    */
   public boolean isBatchPredictor() {
-    return (m_model instanceof BatchPredictor);
+    if (m_model instanceof BatchPredictor) {
+      return true;
+    }
+    WekaScoringEngine engine = getEngine();
+    return engine != null && engine.isBatchPredictor();
   }
 }
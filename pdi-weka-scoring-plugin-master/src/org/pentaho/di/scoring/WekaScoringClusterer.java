@@ -39,6 +39,9 @@ import weka.filters.unsupervised.attribute.Remove;
  * @version 1.0
  */
 class WekaScoringClusterer extends WekaScoringModel {
+
+  /** For serialization (pinned to the original computed value) */
+  private static final long serialVersionUID = -853482454895464623L;
   
   // The encapsulated clusterer
   // O Clusterer encapsulado
@@ -48,7 +51,20 @@ class WekaScoringClusterer extends WekaScoringModel {
   // Alguns atributos sao ignorados
   private Remove m_ignoredAtts;
 
+  // The indexes of the attributes to ignore
+  // Os indices dos atributos ignorados
+  private int[] m_ignoredAttIndexes;
+
   private String m_ignoredString;
+
+  // Compiled scoring engine (null if there is none for this clusterer)
+  // Motor de pontuacao compilado (null se nao houver um para este
+  // clusterer)
+  private transient WekaScoringEngine m_engine;
+
+  // Whether compilation has been attempted
+  // Se a compilacao ja foi tentada
+  private transient volatile boolean m_compiled;
   
   /**
    * Creates a new <code>WekaScoringClusterer</code> instance.
@@ -79,6 +95,7 @@ class WekaScoringClusterer extends WekaScoringModel {
    */
   public void setAttributesToIgnore(int[] attsToIgnore) throws Exception {
     Instances headerI = getHeader();
+    m_ignoredAttIndexes = attsToIgnore;
     m_ignoredAtts = new Remove();
     m_ignoredAtts.setAttributeIndicesArray(attsToIgnore);
     m_ignoredAtts.setInvertSelection(false);
@@ -93,6 +110,20 @@ class WekaScoringClusterer extends WekaScoringModel {
     m_ignoredString = temp.toString();
   }
   
+  /**
+   * Get the attributes that are ignored by the clusterer
+   * 
+   * PT-BR
+   * 
+   * Retorna os atributos que sao ignorados pelo clusterer
+   *
+   * @return the indexes of the ignored attributes (null if none)
+   *         os indices dos atributos ignorados (null se nenhum)
+   */
+  public int[] getAttributesToIgnore() {
+    return m_ignoredAttIndexes;
+  }
+
   /**
    * Set the Clusterer model
    * 
@@ -104,6 +135,8 @@ class WekaScoringClusterer extends WekaScoringModel {
    */
   public void setModel(Object model) {
       m_model = (Clusterer)model;
+      m_engine = null;
+      m_compiled = false;
   }
 
   /**
@@ -140,15 +173,35 @@ class WekaScoringClusterer extends WekaScoringModel {
     if (m_ignoredAtts != null) {
       inst = applyFilter(inst);
     }
-    return (double)m_model.clusterInstance(inst);
+    WekaScoringEngine engine = getEngine();
+    if (engine != null) {
+      return engine.classifyInstance(inst);
+    }
+    // The cluster is decided from the distribution, as in a batch, so an
+    // instance that can't be clustered gets a missing value instead of an
+    // exception
+    // O agrupamento e decidido a partir da distribuicao, como em um lote,
+    // entao uma instancia que nao pode ser agrupada recebe um valor ausente
+    // em vez de uma excecao
+    double[] dist;
+    synchronized (m_model) {
+      dist = m_model.distributionForInstance(inst);
+    }
+    return (Utils.sum(dist) <= 0) ? Utils.missingValue() : Utils.maxIndex(dist);
   }
 
   /**
-   * Update (if possible) the model with the supplied instance
+   * Update (if possible) the model with the supplied instance. A compiled
+   * engine is dropped by the update, and the model is not compiled again
+   * unless compile() is called, since an incremental model changes with
+   * every row.
    * 
    * PT-BR
    * 
-   * Atualiza (se possivel) o modelo fornecido pela instancia.
+   * Atualiza (se possivel) o modelo fornecido pela instancia. Um motor
+   * compilado e descartado pela atualizacao, e o modelo nao e compilado
+   * novamente a menos que compile() seja chamado, ja que um modelo
+   * incremental muda a cada linha.
    *
    * @param inst the Instance to update with
    *             a Istance para atualizar
@@ -167,6 +220,10 @@ class WekaScoringClusterer extends WekaScoringModel {
       //      System.err.println("In update...");
       ((UpdateableClusterer)m_model).updateClusterer(inst);
       //      System.err.println(m_model);
+
+      // a compiled engine would now be out of date
+      // um motor compilado estaria desatualizado agora
+      m_engine = null;
       return true;
     }
     return false;
@@ -191,17 +248,85 @@ class WekaScoringClusterer extends WekaScoringModel {
     if (m_ignoredAtts != null) {
       inst = applyFilter(inst);
     }
-    return m_model.distributionForInstance(inst);
+    WekaScoringEngine engine = getEngine();
+    if (engine != null) {
+      return engine.distributionForInstance(inst);
+    }
+    synchronized (m_model) {
+      return m_model.distributionForInstance(inst);
+    }
+  }
+
+  /**
+   * Compile the clusterer into a scoring engine if one is available for it.
+   * Models loaded from a serialized step are compiled on first use, while
+   * an explicit call always compiles the model again. Engines see instances
+   * after the ignored attributes have been removed, just like the clusterer.
+   *
+   * PT-BR
+   *
+   * Compila o clusterer em um motor de pontuacao se houver um disponivel
+   * para ele. Modelos carregados de um step (passo) serializado sao
+   * compilados no primeiro uso, enquanto uma chamada explicita sempre
+   * compila o modelo novamente. Os motores recebem as instancias depois da
+   * remocao dos atributos ignorados, assim como o clusterer.
+   *
+   * @return true if predictions are made by a compiled engine
+   *              se as previsoes sao feitas por um motor compilado
+   */
+  public synchronized boolean compile() {
+    m_engine = WekaScoringEngine.forModel(m_model, getHeader());
+    m_compiled = true;
+    return m_engine != null;
+  }
+
+  private WekaScoringEngine getEngine() {
+    if (!m_compiled) {
+      compileOnce();
+    }
+    return m_engine;
+  }
+
+  // copies of the step that share this model compile it only once
+  // copias do step (passo) que compartilham este modelo o compilam apenas
+  // uma vez
+  private synchronized void compileOnce() {
+    if (!m_compiled) {
+      compile();
+    }
+  }
+
+  @Override
+  boolean isShareable() {
+    // clusterers keep no thread-safe guarantees
+    // clusterers nao garantem seguranca entre threads
+    return getEngine() != null;
   }
 
   private Instance applyFilter(Instance inputInstance) throws Exception {
-    if (!m_ignoredAtts.input(inputInstance)) {
-      throw new Exception("[WekaScoring] Filter didn't make the test instance"
-                          + " immediately available!");
+    // the filter queues instances, so only one thread may use it at a time
+    // o filtro enfileira instancias, entao apenas uma thread pode usa-lo
+    synchronized (m_ignoredAtts) {
+      if (!m_ignoredAtts.input(inputInstance)) {
+        throw new Exception("[WekaScoring] Filter didn't make the test instance"
+                            + " immediately available!");
+      }
+      m_ignoredAtts.batchFinished();
+      Instance newInstance = m_ignoredAtts.output();
+      return newInstance;
+    }
+  }
+
+  private Instances applyFilter(Instances insts) throws Exception {
+    if (m_ignoredAtts == null) {
+      return insts;
+    }
+    Instances filtered = new Instances(m_ignoredAtts.getOutputFormat(),
+        insts.numInstances());
+    for (int i = 0; i < insts.numInstances(); i++) {
+      filtered.add(applyFilter(insts.instance(i)));
     }
-    m_ignoredAtts.batchFinished();
-    Instance newInstance = m_ignoredAtts.output();
-    return newInstance;
+    return filtered;
   }
 
   /**
@@ -307,6 +432,10 @@ class WekaScoringClusterer extends WekaScoringModel {
    *                   se ocorrer um erro
    */
   public double[] classifyInstances(Instances insts) throws Exception {
+    WekaScoringEngine engine = getEngine();
+    if (engine != null && engine.isBatchPredictor()) {
+      return engine.classifyInstances(applyFilter(insts));
+    }
     double[][] preds = distributionsForInstances(insts);
     
     double[] result = new double[preds.length];
@@ -338,11 +467,22 @@ class WekaScoringClusterer extends WekaScoringModel {
    *                   se ocorrer um erro
    */
   public double[][] distributionsForInstances(Instances insts) throws Exception {
+    WekaScoringEngine engine = getEngine();
+    if (engine != null) {
+      // an engine without a batch method scores row by row, but without
+      // the lock on the clusterer
+      // um motor sem metodo de lote pontua linha a linha, mas sem o lock
+      // no clusterer
+      return engine.distributionsForInstances(applyFilter(insts));
+    }
+
     if (!isBatchPredictor()) {
       throw new Exception("Weka model cannot produce batch predictions!");
     }
     
-    return ((BatchPredictor)m_model).distributionsForInstances(insts);
+    synchronized (m_model) {
+      return ((BatchPredictor)m_model).distributionsForInstances(insts);
+    }
   }
 
   /**
@@ -360,6 +500,10 @@ class WekaScoringClusterer extends WekaScoringModel {
    * previsoes em um lote.
    */
   public boolean isBatchPredictor() {
+    WekaScoringEngine engine = getEngine();
+    if (engine != null && engine.isBatchPredictor()) {
+      return true;
+    }
     return (m_model instanceof BatchPredictor);
   }
 }
@@ -0,0 +1,716 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.nio.charset.Charset;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Converts the value of one incoming Kettle field into the value of one
+ * attribute. The converters of a header are chosen once, when the incoming
+ * fields are first mapped to the attributes, from the type of the attribute
+ * and the type and storage of the field, so converting a row only does the
+ * work that its type pair needs: a field of a native Kettle number, integer
+ * or boolean is unboxed directly, without looking up its meta data or going
+ * through the getters of ValueMetaInterface, and the labels of a nominal
+ * attribute are looked up in a dictionary keyed on the raw value of the
+ * field, a String or, for binary string storage, its bytes. Any value that
+ * can't be converted becomes missing, as before.
+ *
+ * PT-BR
+ *
+ * Converte o valor de um campo Kettle de entrada no valor de um atributo. Os
+ * conversores de um cabecalho sao escolhidos uma vez, quando os campos de
+ * entrada sao mapeados pela primeira vez para os atributos, a partir do tipo
+ * do atributo e do tipo e armazenamento do campo, de modo que converter uma
+ * linha faz apenas o trabalho que o seu par de tipos precisa: um campo
+ * nativo Kettle numero, inteiro ou booleano e convertido diretamente, sem
+ * consultar os seus metadados ou passar pelos metodos de
+ * ValueMetaInterface, e os rotulos de um atributo nominal sao buscados em
+ * um dicionario indexado pelo valor bruto do campo, uma String ou, para
+ * armazenamento binario de String, os seus bytes. Qualquer valor que nao
+ * possa ser convertido se torna ausente, como antes.
+ */
+abstract class WekaScoringConverter {
+
+  /** the index of the field in the incoming rows, or -1 if unmapped
+   *  o indice do campo nas linhas de entrada, ou -1 se nao mapeado
+   */
+  final int m_field;
+
+  /** the meta data of the field, or null if unmapped
+   *  os metadados do campo, ou null se nao mapeado
+   */
+  final ValueMetaInterface m_meta;
+
+  WekaScoringConverter(int field, ValueMetaInterface meta) {
+    m_field = field;
+    m_meta = meta;
+  }
+
+  /**
+   * Create the converters for a header.
+   *
+   * PT-BR
+   *
+   * Cria os conversores para um cabecalho.
+   *
+   * @param header the header instances are constructed against
+   *               o cabecalho com o qual as instancias sao construidas
+   * @param inputMeta the meta data for the incoming rows
+   *                  os metadados para as linhas de entrada
+   * @param mappingIndexes the field of each attribute, or a negative value
+   *                       o campo de cada atributo, ou um valor negativo
+   * @return a converter per attribute
+   *         um conversor por atributo
+   */
+  static WekaScoringConverter[] compile(Instances header,
+      RowMetaInterface inputMeta, int[] mappingIndexes) {
+    WekaScoringConverter[] converters = new WekaScoringConverter[header
+        .numAttributes()];
+    for (int i = 0; i < converters.length; i++) {
+      int field = mappingIndexes[i];
+      converters[i] = (field < 0) ? new Missing() : create(header
+          .attribute(i), field, inputMeta.getValueMeta(field));
+    }
+    return converters;
+  }
+
+  private static WekaScoringConverter create(Attribute att, int field,
+      ValueMetaInterface meta) {
+    switch (att.type()) {
+    case Attribute.NUMERIC:
+      if (meta.isStorageNormal()) {
+        switch (meta.getType()) {
+        case ValueMetaInterface.TYPE_NUMBER:
+          return new NativeNumber(field, meta);
+        case ValueMetaInterface.TYPE_INTEGER:
+          return new NativeInteger(field, meta);
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          return new NativeBoolean(field, meta);
+        default:
+          break;
+        }
+      } else if (meta.getType() == ValueMetaInterface.TYPE_NUMBER
+          || meta.getType() == ValueMetaInterface.TYPE_INTEGER) {
+        char[] symbols = decimalSymbols(meta);
+        if (symbols != null) {
+          return new BinaryNumber(field, meta, symbols[0], symbols[1]);
+        }
+      }
+      return new Numeric(field, meta);
+    case Attribute.NOMINAL:
+      if (meta.getType() == ValueMetaInterface.TYPE_STRING
+          && meta.getTrimType() == ValueMetaInterface.TRIM_TYPE_NONE) {
+        if (meta.isStorageNormal()) {
+          return new NativeNominal(field, meta, new Dictionary(att, null));
+        }
+        Charset charset = binaryCharset(meta);
+        if (charset != null) {
+          return new BinaryNominal(field, meta, new Dictionary(att, charset));
+        }
+      }
+      return new Nominal(field, meta, new Dictionary(att, null));
+    case Attribute.STRING:
+      return new Text(field, meta, att);
+    default:
+      return new Missing();
+    }
+  }
+
+  /**
+   * The charset of a field in binary string storage, if its bytes can be
+   * compared with the encoded labels directly: the charset must encode
+   * every string in only one way, and the text must not be trimmed.
+   *
+   * O charset de um campo em armazenamento binario de String, se os seus
+   * bytes podem ser comparados diretamente com os rotulos codificados: o
+   * charset deve codificar cada String de uma unica forma, e o texto nao deve
+   * ser aparado.
+   */
+  private static Charset binaryCharset(ValueMetaInterface meta) {
+    ValueMetaInterface storage = meta.getStorageMetadata();
+    if (!meta.isStorageBinaryString() || storage == null
+        || storage.getTrimType() != ValueMetaInterface.TRIM_TYPE_NONE) {
+      return null;
+    }
+    return storageCharset(storage);
+  }
+
+  private static Charset storageCharset(ValueMetaInterface storage) {
+    String encoding = storage.getStringEncoding();
+    Charset charset;
+    try {
+      charset = (encoding == null) ? Charset.defaultCharset() : Charset
+          .forName(encoding);
+    } catch (Exception e) {
+      return null;
+    }
+    String name = charset.name();
+    if (name.equals("UTF-8") || name.equals("US-ASCII") //$NON-NLS-1$ //$NON-NLS-2$
+        || name.equals("ISO-8859-1") || name.equals("windows-1252")) { //$NON-NLS-1$ //$NON-NLS-2$
+      return charset;
+    }
+    return null;
+  }
+
+  /**
+   * The decimal separator and minus sign of a number in binary string
+   * storage, if plain decimals in its bytes can be parsed directly: the
+   * charset must encode digits as ASCII, both the field and its storage
+   * must use the same plain conversion mask (digits, grouping and decimal
+   * point only, so no prefix, suffix, percent or exponent) and the same
+   * decimal symbol, and both symbols must be ASCII.
+   *
+   * O separador decimal e o sinal de menos de um numero em armazenamento
+   * binario de String, se decimais simples nos seus bytes podem ser
+   * convertidos diretamente: o charset deve codificar digitos como ASCII, o
+   * campo e o seu armazenamento devem usar a mesma mascara de conversao
+   * simples (apenas digitos, agrupamento e ponto decimal, entao sem
+   * prefixo, sufixo, porcentagem ou expoente) e o mesmo simbolo decimal, e
+   * ambos os simbolos devem ser ASCII.
+   */
+  private static char[] decimalSymbols(ValueMetaInterface meta) {
+    ValueMetaInterface storage = meta.getStorageMetadata();
+    if (!meta.isStorageBinaryString() || storage == null
+        || storageCharset(storage) == null
+        || !isPlainMask(meta.getConversionMask())
+        || !isPlainMask(storage.getConversionMask())) {
+      return null;
+    }
+    String decimal = meta.getDecimalSymbol();
+    String storageDecimal = storage.getDecimalSymbol();
+    if ((decimal == null) ? storageDecimal != null : !decimal
+        .equals(storageDecimal)) {
+      return null;
+    }
+    // as the DecimalFormat of the meta data: its symbol, or the locale's
+    // como o DecimalFormat dos metadados: o seu simbolo, ou o da localidade
+    DecimalFormatSymbols defaults = new DecimalFormatSymbols();
+    char[] symbols = {
+        (decimal == null || decimal.length() == 0) ? defaults
+            .getDecimalSeparator() : decimal.charAt(0),
+        defaults.getMinusSign() };
+    if (symbols[0] >= 128 || symbols[1] >= 128
+        || (symbols[0] >= '0' && symbols[0] <= '9')) {
+      return null;
+    }
+    return symbols;
+  }
+
+  private static boolean isPlainMask(String mask) {
+    if (mask == null) {
+      return true;
+    }
+    for (int i = 0; i < mask.length(); i++) {
+      char c = mask.charAt(i);
+      if (c != '#' && c != '0' && c != ',' && c != '.') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the attribute has an incoming field.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se o atributo possui um campo de entrada.
+   *
+   * @return true if the attribute is mapped
+   *         verdadeiro se o atributo esta mapeado
+   */
+  boolean isMapped() {
+    return m_field >= 0;
+  }
+
+  /**
+   * Get the value of the attribute in an incoming row.
+   *
+   * PT-BR
+   *
+   * Retorna o valor do atributo em uma linha de entrada.
+   *
+   * @param inputRow the incoming row
+   *                 a linha de entrada
+   * @return the value (missing if it can't be converted)
+   *         o valor (ausente se nao puder ser convertido)
+   */
+  double value(Object[] inputRow) {
+    try {
+      return convert(inputRow[m_field]);
+    } catch (Exception e) {
+      return Utils.missingValue();
+    }
+  }
+
+  /**
+   * Get the text of the field in an incoming row.
+   *
+   * PT-BR
+   *
+   * Retorna o texto do campo em uma linha de entrada.
+   *
+   * @param inputRow the incoming row
+   *                 a linha de entrada
+   * @return the text, or null if it is missing or can't be converted
+   *         o texto, ou null se estiver ausente ou nao puder ser convertido
+   */
+  String text(Object[] inputRow) {
+    if (m_field < 0) {
+      return null;
+    }
+    try {
+      Object inputVal = inputRow[m_field];
+      return m_meta.isNull(inputVal) ? null : m_meta.getString(inputVal);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  abstract double convert(Object inputVal) throws Exception;
+
+  /**
+   * An attribute without an incoming field.
+   *
+   * Um atributo sem um campo de entrada.
+   */
+  static class Missing extends WekaScoringConverter {
+    Missing() {
+      super(-1, null);
+    }
+
+    @Override
+    double value(Object[] inputRow) {
+      return Utils.missingValue();
+    }
+
+    @Override
+    double convert(Object inputVal) {
+      return Utils.missingValue();
+    }
+  }
+
+  /**
+   * A Kettle number in normal storage: a Double, or null.
+   *
+   * Um numero Kettle em armazenamento normal: um Double, ou null.
+   */
+  static class NativeNumber extends WekaScoringConverter {
+    NativeNumber(int field, ValueMetaInterface meta) {
+      super(field, meta);
+    }
+
+    @Override
+    double convert(Object inputVal) {
+      return (inputVal == null) ? Utils.missingValue() : ((Double) inputVal)
+          .doubleValue();
+    }
+  }
+
+  /**
+   * A Kettle integer in normal storage: a Long, or null.
+   *
+   * Um inteiro Kettle em armazenamento normal: um Long, ou null.
+   */
+  static class NativeInteger extends WekaScoringConverter {
+    NativeInteger(int field, ValueMetaInterface meta) {
+      super(field, meta);
+    }
+
+    @Override
+    double convert(Object inputVal) {
+      return (inputVal == null) ? Utils.missingValue() : ((Long) inputVal)
+          .longValue();
+    }
+  }
+
+  /**
+   * A Kettle boolean in normal storage: a Boolean, or null.
+   *
+   * Um booleano Kettle em armazenamento normal: um Boolean, ou null.
+   */
+  static class NativeBoolean extends WekaScoringConverter {
+    NativeBoolean(int field, ValueMetaInterface meta) {
+      super(field, meta);
+    }
+
+    @Override
+    double convert(Object inputVal) {
+      if (inputVal == null) {
+        return Utils.missingValue();
+      }
+      return ((Boolean) inputVal).booleanValue() ? 1.0 : 0.0;
+    }
+  }
+
+  /**
+   * Any other field for a numeric attribute, converted by its meta data.
+   *
+   * Qualquer outro campo para um atributo numerico, convertido pelos seus
+   * metadados.
+   */
+  static class Numeric extends WekaScoringConverter {
+    private final int m_type;
+
+    Numeric(int field, ValueMetaInterface meta) {
+      super(field, meta);
+      m_type = meta.getType();
+    }
+
+    @Override
+    double convert(Object inputVal) throws Exception {
+      if (m_meta.isNull(inputVal)) {
+        return Utils.missingValue();
+      }
+      if (m_type == ValueMetaInterface.TYPE_BOOLEAN) {
+        return m_meta.getBoolean(inputVal).booleanValue() ? 1.0 : 0.0;
+      } else if (m_type == ValueMetaInterface.TYPE_INTEGER) {
+        return m_meta.getInteger(inputVal).longValue();
+      }
+      return m_meta.getNumber(inputVal).doubleValue();
+    }
+  }
+
+  /**
+   * A Kettle number or integer in binary string storage (lazy conversion):
+   * a plain decimal is parsed from its bytes straight into a double, without
+   * decoding a String or boxing the result. It is exact when the digits fit
+   * in a double and ten to the scale is itself an exact double, since the
+   * quotient of two exact doubles is correctly rounded; anything else
+   * (grouping, exponents, spaces, signs other than a leading minus, long
+   * mantissas) goes through the meta data, as a field of any other type
+   * does.
+   *
+   * Um numero ou inteiro Kettle em armazenamento binario de String
+   * (conversao preguicosa): um decimal simples e convertido dos seus bytes
+   * diretamente em um double, sem decodificar uma String ou encaixotar o
+   * resultado. E exato quando os digitos cabem em um double e dez elevado a
+   * escala e ele proprio um double exato, ja que o quociente de dois doubles
+   * exatos e corretamente arredondado; qualquer outra coisa (agrupamento,
+   * expoentes, espacos, sinais alem de um menos inicial, mantissas longas)
+   * passa pelos metadados, como um campo de qualquer outro tipo.
+   */
+  static class BinaryNumber extends Numeric {
+    // the largest number of digits a double holds exactly, and the powers
+    // of ten that are exact doubles
+    // o maior numero de digitos que um double representa exatamente, e as
+    // potencias de dez que sao doubles exatos
+    private static final int MAX_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+        1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+        1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private final byte m_decimal;
+    private final byte m_minus;
+    private final boolean m_integer;
+
+    BinaryNumber(int field, ValueMetaInterface meta, char decimal, char minus) {
+      super(field, meta);
+      m_decimal = (byte) decimal;
+      m_minus = (byte) minus;
+      m_integer = meta.getType() == ValueMetaInterface.TYPE_INTEGER;
+    }
+
+    @Override
+    double convert(Object inputVal) throws Exception {
+      if (inputVal instanceof byte[]) {
+        double value = parse((byte[]) inputVal);
+        if (!Double.isNaN(value)) {
+          return value;
+        }
+      }
+      return super.convert(inputVal);
+    }
+
+    /**
+     * The value of a plain decimal, or NaN if the meta data has to parse it.
+     *
+     * O valor de um decimal simples, ou NaN se os metadados precisam
+     * converte-lo.
+     */
+    private double parse(byte[] bytes) {
+      int n = bytes.length;
+      int pos = 0;
+      boolean negative = false;
+      if (n > 0 && bytes[0] == m_minus) {
+        negative = true;
+        pos++;
+      }
+      long mantissa = 0;
+      int digits = 0;
+      int significant = 0;
+      int scale = -1;
+      for (; pos < n; pos++) {
+        byte b = bytes[pos];
+        if (b >= '0' && b <= '9') {
+          digits++;
+          if (mantissa != 0 || b != '0') {
+            if (++significant > MAX_DIGITS) {
+              return Double.NaN;
+            }
+            mantissa = mantissa * 10 + (b - '0');
+          }
+          if (scale >= 0 && ++scale >= POWERS_OF_TEN.length) {
+            return Double.NaN;
+          }
+        } else if (b == m_decimal && scale < 0 && !m_integer) {
+          scale = 0;
+        } else {
+          return Double.NaN;
+        }
+      }
+      if (digits == 0) {
+        return Double.NaN;
+      }
+      if (m_integer) {
+        return negative ? -mantissa : mantissa;
+      }
+      double value = (scale > 0) ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+      return negative ? -value : value;
+    }
+  }
+
+  /**
+   * The labels of a nominal attribute in an open addressing table, keyed on
+   * the label and, if a charset is given, on its encoded bytes.
+   *
+   * Os rotulos de um atributo nominal em uma tabela de enderecamento aberto,
+   * indexada pelo rotulo e, se um charset for fornecido, pelos seus bytes
+   * codificados.
+   */
+  static class Dictionary {
+    private final String[] m_labels;
+    private final byte[][] m_bytes;
+
+    /** label number + 1 per slot, or 0 when empty
+     *  numero do rotulo + 1 por posicao, ou 0 quando vazia
+     */
+    private final int[] m_slots;
+    private final int[] m_byteSlots;
+
+    Dictionary(Attribute att, Charset charset) {
+      int size = 16;
+      while (size < att.numValues() * 2) {
+        size <<= 1;
+      }
+      m_labels = new String[att.numValues()];
+      m_slots = new int[size];
+      m_bytes = (charset == null) ? null : new byte[att.numValues()][];
+      m_byteSlots = (charset == null) ? null : new int[size];
+      for (int i = 0; i < m_labels.length; i++) {
+        m_labels[i] = att.value(i);
+        insert(m_slots, hash(m_labels[i].hashCode()), i);
+        if (charset != null) {
+          m_bytes[i] = m_labels[i].getBytes(charset);
+          insert(m_byteSlots, hash(m_bytes[i]), i);
+        }
+      }
+    }
+
+    private static void insert(int[] slots, int hash, int label) {
+      int mask = slots.length - 1;
+      int slot = hash & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = label + 1;
+    }
+
+    private static int hash(int h) {
+      return h ^ (h >>> 16);
+    }
+
+    private static int hash(byte[] bytes) {
+      int h = 0;
+      for (byte b : bytes) {
+        h = 31 * h + b;
+      }
+      return hash(h);
+    }
+
+    /**
+     * The index of a label, or -1 if the attribute doesn't have it.
+     *
+     * O indice de um rotulo, ou -1 se o atributo nao o possui.
+     */
+    int indexOf(String label) {
+      int mask = m_slots.length - 1;
+      int slot = hash(label.hashCode()) & mask;
+      int l;
+      while ((l = m_slots[slot]) != 0) {
+        if (m_labels[l - 1].equals(label)) {
+          return l - 1;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+
+    /**
+     * The index of an encoded label, or -1 if the attribute doesn't have it.
+     *
+     * O indice de um rotulo codificado, ou -1 se o atributo nao o possui.
+     */
+    int indexOf(byte[] label) {
+      int mask = m_byteSlots.length - 1;
+      int slot = hash(label) & mask;
+      int l;
+      while ((l = m_byteSlots[slot]) != 0) {
+        if (Arrays.equals(m_bytes[l - 1], label)) {
+          return l - 1;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * A field for a nominal attribute: the index of its value among the
+   * attribute's labels. The last value seen is remembered, since a column
+   * often repeats its value from one row to the next.
+   *
+   * Um campo para um atributo nominal: o indice do seu valor entre os
+   * rotulos do atributo. O ultimo valor visto e lembrado, ja que uma coluna
+   * frequentemente repete o seu valor de uma linha para a seguinte.
+   */
+  static class Nominal extends WekaScoringConverter {
+    final Dictionary m_dictionary;
+    private String m_last;
+    private double m_lastValue;
+
+    Nominal(int field, ValueMetaInterface meta, Dictionary dictionary) {
+      super(field, meta);
+      m_dictionary = dictionary;
+    }
+
+    @Override
+    double convert(Object inputVal) throws Exception {
+      if (m_meta.isNull(inputVal)) {
+        return Utils.missingValue();
+      }
+      return lookup(m_meta.getString(inputVal));
+    }
+
+    final double lookup(String label) {
+      if (!label.equals(m_last)) {
+        int index = m_dictionary.indexOf(label);
+        m_lastValue = (index < 0) ? Utils.missingValue() : index;
+        m_last = label;
+      }
+      return m_lastValue;
+    }
+  }
+
+  /**
+   * A Kettle string in normal storage, untrimmed, for a nominal attribute:
+   * the String itself is the key.
+   *
+   * Uma String Kettle em armazenamento normal, sem aparar, para um atributo
+   * nominal: a propria String e a chave.
+   */
+  static class NativeNominal extends Nominal {
+    NativeNominal(int field, ValueMetaInterface meta, Dictionary dictionary) {
+      super(field, meta, dictionary);
+    }
+
+    @Override
+    double convert(Object inputVal) throws Exception {
+      if (inputVal == null) {
+        return Utils.missingValue();
+      }
+      String label = (String) inputVal;
+      if (label.length() == 0 && m_meta.isNull(label)) {
+        return Utils.missingValue();
+      }
+      return lookup(label);
+    }
+  }
+
+  /**
+   * A Kettle string in binary string storage (lazy conversion) for a
+   * nominal attribute: its bytes are the key, so no String is decoded.
+   *
+   * Uma String Kettle em armazenamento binario de String (conversao
+   * preguicosa) para um atributo nominal: os seus bytes sao a chave, entao
+   * nenhuma String e decodificada.
+   */
+  static class BinaryNominal extends Nominal {
+    private byte[] m_lastBytes;
+    private double m_lastBytesValue;
+
+    BinaryNominal(int field, ValueMetaInterface meta, Dictionary dictionary) {
+      super(field, meta, dictionary);
+    }
+
+    @Override
+    double convert(Object inputVal) throws Exception {
+      if (!(inputVal instanceof byte[])) {
+        return super.convert(inputVal);
+      }
+      byte[] label = (byte[]) inputVal;
+      if (label.length == 0 && m_meta.isNull(label)) {
+        return Utils.missingValue();
+      }
+      if (!Arrays.equals(label, m_lastBytes)) {
+        int index = m_dictionary.indexOf(label);
+        m_lastBytesValue = (index < 0) ? Utils.missingValue() : index;
+        // a copy, in case the step before reuses its buffers
+        // uma copia, caso o step (passo) anterior reutilize os seus buffers
+        m_lastBytes = label.clone();
+      }
+      return m_lastBytesValue;
+    }
+  }
+
+  /**
+   * A field for a string attribute, whose single value in the header is set
+   * to the text of the field.
+   *
+   * Um campo para um atributo String, cujo unico valor no cabecalho e
+   * definido como o texto do campo.
+   */
+  static class Text extends WekaScoringConverter {
+    private final Attribute m_attribute;
+
+    Text(int field, ValueMetaInterface meta, Attribute attribute) {
+      super(field, meta);
+      m_attribute = attribute;
+    }
+
+    @Override
+    double convert(Object inputVal) throws Exception {
+      if (m_meta.isNull(inputVal)) {
+        return Utils.missingValue();
+      }
+      m_attribute.setStringValue(m_meta.getString(inputVal));
+      return 0.0;
+    }
+  }
+}
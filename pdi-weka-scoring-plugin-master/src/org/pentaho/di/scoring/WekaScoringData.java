@@ -47,6 +47,7 @@ import weka.core.Attribute;
 import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.SparseInstance;
 import weka.core.Utils;
 import weka.core.pmml.PMMLFactory;
 import weka.core.pmml.PMMLModel;
@@ -73,6 +74,23 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
   public static final int NO_MATCH = -1;
   public static final int TYPE_MISMATCH = -2;
 
+  /**
+   * Models with at least this many attributes have their rows converted into
+   * sparse instances when the measured density of the rows is at most
+   * SPARSE_MAX_DENSITY. The density is measured over blocks of
+   * DENSITY_SAMPLE rows, and each block decides the mode of the next.
+   *
+   * PT-BR
+   *
+   * Modelos com pelo menos esta quantidade de atributos tem as suas linhas
+   * convertidas em instancias esparsas quando a densidade medida das linhas
+   * e no maximo SPARSE_MAX_DENSITY. A densidade e medida sobre blocos de
+   * DENSITY_SAMPLE linhas, e cada bloco decide o modo do proximo.
+   */
+  static final int SPARSE_MIN_ATTRIBUTES = 1000;
+  static final double SPARSE_MAX_DENSITY = 0.25;
+  static final int DENSITY_SAMPLE = 128;
+
   /** the output data format 
    *  o formato de dados de saida
    */
@@ -83,6 +101,44 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
    */
   private double[] m_vals = null;
 
+  /** holds the words of rows scored by a text model, and its vectorizer
+   *  Contem as palavras de linhas pontuadas por um modelo de texto, e o seu
+   *  vetorizador
+   */
+  private WekaScoringTextVectorizer.Document m_document = null;
+  private WekaScoringTextVectorizer m_documentVectorizer = null;
+
+  // the converter of each attribute, the attributes with and without a
+  // field, and the header, row meta data and mapping they were made for
+  // o conversor de cada atributo, os atributos com e sem um campo, e o
+  // cabecalho, metadados de linha e mapeamento para os quais foram criados
+  private WekaScoringConverter[] m_converters;
+  private int[] m_mapped;
+  private int[] m_unmapped;
+  private Instances m_convertHeader;
+  private RowMetaInterface m_convertMeta;
+  private int[] m_convertMapping;
+
+  /** the compiled filters m_vals was filled for
+   *  os filtros compilados para os quais m_vals foi preenchida
+   */
+  private WekaScoringPreprocessor m_valsPreprocessor;
+
+  /** the entries of a sparse row being built
+   *  as entradas de uma linha esparsa em construcao
+   */
+  private int[] m_sparseIndices;
+  private double[] m_sparseValues;
+
+  /** true while rows are converted into sparse instances, and the measured
+   *  density of the current block of rows
+   *  verdadeiro enquanto as linhas sao convertidas em instancias esparsas, e
+   *  a densidade medida do bloco atual de linhas
+   */
+  private boolean m_sparse;
+  private int m_sampledRows;
+  private long m_sampledValues;
+
   /**
    * Holds the actual Weka model (classifier, clusterer or PMML) used by this
    * copy of the step
@@ -119,6 +175,49 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
    */
   protected boolean m_updateIncrementalModel = false;
 
+  /**
+   * The header of the model currently in use and the header that instances
+   * are actually constructed against. These differ when the model has string
+   * attributes: models are shared between copies of the step, so each copy
+   * sets string values on its own copy of those attributes.
+   *
+   * PT-BR
+   *
+   * O cabecalho do modelo em uso e o cabecalho usado para construir as
+   * instancias. Eles diferem quando o modelo possui atributos String: modelos
+   * sao compartilhados entre as copias do step (passo), entao cada copia
+   * define valores String na sua propria copia desses atributos.
+   */
+  private Instances m_modelHeader;
+  private Instances m_scoringHeader;
+
+  /** writes predictions into output rows, and the model and output mode it
+   *  was chosen for
+   *  escreve as previsoes nas linhas de saida, e o modelo e o modo de saida
+   *  para os quais foi escolhido
+   */
+  private WekaScoringOutputWriter m_outputWriter;
+  private WekaScoringModel m_outputWriterModel;
+  private boolean m_outputWriterProbs;
+
+  /** the number of output rows written into the spare capacity of their
+   *  incoming row, and the number that had to be copied
+   *  o numero de linhas de saida escritas na capacidade livre da sua linha
+   *  de entrada, e o numero que precisou ser copiado
+   */
+  private long m_rowsExtendedInPlace;
+  private long m_rowsCopied;
+
+  /** the rows of the current batch, converted as they arrive
+   *  as linhas do lote atual, convertidas a medida que chegam
+   */
+  private WekaScoringBatchBuffer m_batchBuffer;
+
+  /** the number of rows in a batch, resolved by the step
+   *  o numero de linhas em um lote, resolvido pelo step
+   */
+  private int m_batchScoringSize = WekaScoringMeta.DEFAULT_BATCH_SCORING_SIZE;
+
   public WekaScoringData() {
     super();
   }
@@ -209,6 +308,20 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
     m_outputRowMeta = rmi;
   }
 
+  /**
+   * Set the number of rows in a batch, as resolved from the step meta data,
+   * so that the batch buffer is made to hold a whole batch.
+   * 
+   * Configura o numero de linhas em um lote, como resolvido a partir dos
+   * metadados do step, para que o buffer do lote comporte um lote inteiro.
+   * 
+   * @param size the number of rows in a batch
+   *             o numero de linhas em um lote
+   */
+  public void setBatchScoringSize(int size) {
+    m_batchScoringSize = size;
+  }
+
   /**
    * Finds a mapping between the attributes that a Weka model has been trained
    * with and the incoming Kettle row format. Returns an array of indices, where
@@ -242,6 +355,10 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
       LogChannelInterface log) {
     m_mappingIndexes = WekaScoringData.findMappings(header, inputRowMeta);
     m_updateIncrementalModel = updateIncrementalModel;
+    if (m_model != null && m_model.getHeader() == header) {
+      prepareConverters(getScoringHeader(m_model), inputRowMeta,
+          m_mappingIndexes);
+    }
 
     // If updating of incremental models has been selected, then
     // check on the ability to do this
@@ -284,12 +401,14 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
 
   /**
    * Loads a serialized model. Models can either be binary serialized Java
-   * objects, objects deep-serialized to xml, or PMML.
+   * objects, fast binary model containers (.wsmodel), objects
+   * deep-serialized to xml, or PMML.
    * 
    * PT-BR
    * 
    * Carrega o modelo serializado. Modelos podem ser binarios serializados de 
-   * objetos Java, objetos deep-serializados para xml, ou PMML.
+   * objetos Java, conteineres binarios rapidos de modelo (.wsmodel), objetos
+   * deep-serializados para xml, ou PMML.
    * 
    * @param modelFile a <code>File</code> value
    *                  um valor de arquivo 
@@ -305,6 +424,12 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
     Instances header = null;
     int[] ignoredAttsForClustering = null;
 
+    // size of the model, measured while it is read rather than by
+    // serializing it again for the model cache
+    // tamanho do modelo, medido enquanto e lido em vez de serializa-lo
+    // novamente para o cache de modelos
+    long loadedSize = 0;
+
     modelFile = space.environmentSubstitute(modelFile);
     FileObject modelF = KettleVFS.getFileObject(modelFile);
     if (!modelF.exists()) {
@@ -315,20 +440,65 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
                   "WekaScoring.Error.NonExistentModelFile", space.environmentSubstitute(modelFile))); //$NON-NLS-1$
     }
 
-    InputStream is = KettleVFS.getInputStream(modelF);
+    WekaScoringModelCache.CountingInputStream is = new WekaScoringModelCache.CountingInputStream(
+        KettleVFS.getInputStream(modelF));
     BufferedInputStream buff = new BufferedInputStream(is);
 
-    if (modelFile.toLowerCase().endsWith(".xml")) { //$NON-NLS-1$
-      // assume it is PMML
-      // Assume que e PMML
-      model = PMMLFactory.getPMMLModel(buff, null);
+    if (WekaScoringModelContainer.isContainerFile(modelFile)) {
+      // fast binary container - header block then compressed model blocks
+      // conteiner binario rapido - bloco de cabecalho e depois os blocos
+      // comprimidos do modelo
+      try {
+        WekaScoringModelContainer.Header containerHeader = WekaScoringModelContainer
+            .readHeader(buff);
+        model = WekaScoringModelContainer.readModel(buff, containerHeader);
+        header = containerHeader.m_header;
+        loadedSize = containerHeader.m_payloadSize;
+        if (model instanceof weka.clusterers.Clusterer) {
+          ignoredAttsForClustering = containerHeader.m_ignoredAttsForClustering;
+        }
+      } finally {
+        buff.close();
+      }
+    } else if (modelFile.toLowerCase().endsWith(".xml")) { //$NON-NLS-1$
+      // assume it is PMML; compile it if it is a model that the streaming
+      // compiler handles, otherwise let Weka's PMML consumer interpret it
+      // Assume que e PMML; compila-o se for um modelo que o compilador de
+      // fluxo trata, caso contrario deixa o consumidor PMML do Weka
+      // interpreta-lo
+      WekaScoringPMMLClassifier compiled = null;
+      try {
+        compiled = WekaScoringPMMLCompiler.compile(buff);
+      } finally {
+        buff.close();
+      }
 
-      // we will use the mining schema as the instance structure
-      // Usaremos o esquema de mineracao com a estrutura da istancia.
-      header = ((PMMLModel) model).getMiningSchema()
-          .getMiningSchemaAsInstances();
+      if (compiled != null) {
+        model = compiled;
+        header = compiled.getMiningSchema();
+        loadedSize = is.getCount();
+        if (log != null) {
+          log.logDetailed(BaseMessages.getString(WekaScoringMeta.PKG,
+              "WekaScoringData.Log.CompiledPMMLModel")); //$NON-NLS-1$
+        }
+      } else {
+        if (log != null) {
+          log.logDetailed(BaseMessages.getString(WekaScoringMeta.PKG,
+              "WekaScoringData.Log.InterpretedPMMLModel")); //$NON-NLS-1$
+        }
+        is = new WekaScoringModelCache.CountingInputStream(
+            KettleVFS.getInputStream(modelF));
+        buff = new BufferedInputStream(is);
+        model = PMMLFactory.getPMMLModel(buff, null);
+        loadedSize = is.getCount();
 
-      buff.close();
+        // we will use the mining schema as the instance structure
+        // Usaremos o esquema de mineracao com a estrutura da istancia.
+        header = ((PMMLModel) model).getMiningSchema()
+            .getMiningSchemaAsInstances();
+
+        buff.close();
+      }
     } else if (modelFile.toLowerCase().endsWith(".xstreammodel")) { //$NON-NLS-1$
       log.logBasic(BaseMessages.getString(WekaScoringMeta.PKG,
           "WekaScoringData.Log.LoadXMLModel")); //$NON-NLS-1$
@@ -343,6 +513,7 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
           header = (Instances) v.elementAt(1);
         }
         buff.close();
+        loadedSize = is.getCount();
       } else {
         buff.close();
         throw new Exception(BaseMessages.getString(WekaScoringMeta.PKG,
@@ -350,8 +521,13 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
       }
     } else {
       InputStream stream = buff;
+      WekaScoringModelCache.CountingInputStream counted = is;
       if (modelFile.toLowerCase().endsWith(".gz")) { //$NON-NLS-1$
-        stream = new GZIPInputStream(buff);
+        // a compressed model is counted once it is inflated
+        // um modelo comprimido e contado depois de descomprimido
+        counted = new WekaScoringModelCache.CountingInputStream(
+            new GZIPInputStream(buff));
+        stream = counted;
       }
       ObjectInputStream oi = new ObjectInputStream(stream);
 
@@ -371,10 +547,12 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
         }
       }
       oi.close();
+      loadedSize = counted.getCount();
     }
 
     WekaScoringModel wsm = WekaScoringModel.createScorer(model);
     wsm.setHeader(header);
+    wsm.setLoadedSize(loadedSize);
     if (wsm instanceof WekaScoringClusterer && ignoredAttsForClustering != null) {
       ((WekaScoringClusterer) wsm)
           .setAttributesToIgnore(ignoredAttsForClustering);
@@ -391,6 +569,13 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
     Instances header = wsm.getHeader();
     OutputStream os = new FileOutputStream(saveTo);
 
+    if (WekaScoringModelContainer.isContainerFile(saveTo.getName())) {
+      int[] ignored = (wsm instanceof WekaScoringClusterer) ? ((WekaScoringClusterer) wsm)
+          .getAttributesToIgnore() : null;
+      WekaScoringModelContainer.write(model, header, ignored, os);
+      return;
+    }
+
     if (saveTo.getName().toLowerCase().endsWith(".gz")) { //$NON-NLS-1$
       os = new GZIPOutputStream(os);
     }
@@ -524,77 +709,160 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
       RowMetaInterface outputMeta, List<Object[]> inputRows,
       WekaScoringMeta meta) throws Exception {
 
-    int[] mappingIndexes = m_mappingIndexes;
-    WekaScoringModel model = getModel(); // copy of the model for this copy of
-                                         // the step
-                                         // copia do modelo para esta copa do step (passo)
-    boolean outputProbs = meta.getOutputProbabilities();
-    boolean supervised = model.isSupervisedLearningModel();
+    for (Object[] r : inputRows) {
+      bufferRow(inputMeta, r);
+    }
+    return generatePredictions(inputMeta, outputMeta, meta);
+  }
 
-    Attribute classAtt = null;
-    if (supervised) {
-      classAtt = model.getHeader().classAttribute();
+  /**
+   * Returns true if rows should be buffered with bufferRow() and scored in
+   * batches. A model that is updated incrementally is always scored one row
+   * at a time by generatePrediction(), which updates it with each row, even
+   * when a compiled engine could score it in batches.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se as linhas devem ser guardadas com bufferRow() e
+   * pontuadas em lotes. Um modelo que e atualizado incrementalmente e sempre
+   * pontuado uma linha por vez por generatePrediction(), que o atualiza com
+   * cada linha, mesmo quando um motor compilado poderia pontua-lo em lotes.
+   *
+   * @param meta meta data for this step
+   *             metadados para este step (passo)
+   * @return true if rows are scored in batches
+   *         verdadeiro se as linhas sao pontuadas em lotes
+   */
+  public boolean isBatchScoring(WekaScoringMeta meta) {
+    WekaScoringModel model = getModel();
+    if (!model.isBatchPredictor() || meta.getFileNameFromField()) {
+      return false;
     }
+    return !(meta.getUpdateIncrementalModel() && model.isUpdateableModel());
+  }
 
-    Instances batch = new Instances(model.getHeader(), inputRows.size());
-    for (Object[] r : inputRows) {
-      Instance inst = constructInstance(inputMeta, r, mappingIndexes, model,
-          true);
-      batch.add(inst);
+  /**
+   * Convert an incoming row into an instance and add it to the batch that
+   * is scored by the next call to generatePredictions(), so that a batch is
+   * converted as its rows arrive rather than all at once when it is scored.
+   *
+   * PT-BR
+   *
+   * Converte uma linha de entrada em uma instancia e a adiciona ao lote que
+   * e pontuado pela proxima chamada a generatePredictions(), de modo que um
+   * lote e convertido a medida que as suas linhas chegam em vez de todo de
+   * uma vez quando e pontuado.
+   *
+   * @param inputMeta the meta data for the incoming rows
+   *                  os metadados para as linhas de entrada
+   * @param inputRow the values of the incoming row
+   *                 os valores da linha de entrada
+   * @exception Exception if an error occurs
+   *                      se ocorrer um erro
+   */
+  public void bufferRow(RowMetaInterface inputMeta, Object[] inputRow)
+      throws Exception {
+    WekaScoringModel model = getModel();
+    if (m_batchBuffer == null) {
+      m_batchBuffer = new WekaScoringBatchBuffer(m_batchScoringSize);
+    }
+    Instance inst = constructInstance(inputMeta, inputRow, m_mappingIndexes,
+        model, m_batchBuffer);
+
+    WekaScoringPreprocessor preprocessor = model.getPreprocessor();
+    WekaScoringTextVectorizer vectorizer = model.getTextVectorizer();
+    if (vectorizer != null) {
+      m_batchBuffer.add(inputRow, inst, vectorizer.getOutputFormat(),
+          vectorizer);
+    } else if (preprocessor != null) {
+      m_batchBuffer.add(inputRow, inst, preprocessor.getOutputFormat(),
+          preprocessor);
+    } else {
+      m_batchBuffer.add(inputRow, inst, model.getHeader(), null);
     }
+  }
 
-    double[][] preds = model.distributionsForInstances(batch);
+  /**
+   * Get the number of rows added by bufferRow() that are waiting to be
+   * scored.
+   *
+   * PT-BR
+   *
+   * Retorna o numero de linhas adicionadas por bufferRow() que aguardam para
+   * ser pontuadas.
+   *
+   * @return the number of buffered rows
+   *         o numero de linhas no buffer
+   */
+  public int getBufferedRows() {
+    return (m_batchBuffer == null) ? 0 : m_batchBuffer.size();
+  }
 
-    Object[][] result = new Object[preds.length][];
-    for (int i = 0; i < preds.length; i++) {
-      // First copy the input data to the new result...
-      // Primeiro copie os dados de saida para um novo resultado.
-      Object[] resultRow = RowDataUtil.resizeArray(inputRows.get(i),
-          outputMeta.size());
-      int index = inputMeta.size();
+  /**
+   * Generates the predictions for the rows added by bufferRow(), and empties
+   * the buffer for the next batch.
+   *
+   * PT-BR
+   *
+   * Gera as previsoes para as linhas adicionadas por bufferRow(), e esvazia
+   * o buffer para o proximo lote.
+   *
+   * @param inputMeta the meta data for the incoming rows
+   *                  os metadados para as linhas de entrada
+   * @param outputMeta the meta data for the output rows
+   *                   os metadados para as linhas de saida
+   * @param meta meta data for this step
+   *             metadados para este step (passo)
+   * @return the Kettle rows containing all incoming fields along with new
+   *         ones that hold the prediction(s)
+   *         as linhas Kettle com todos os campos de entrada juntamente com os
+   *         novos que contem a(s) previsao(oes)
+   * @exception Exception if an error occurs
+   *                      se ocorrer um erro
+   */
+  public Object[][] generatePredictions(RowMetaInterface inputMeta,
+      RowMetaInterface outputMeta, WekaScoringMeta meta) throws Exception {
+    WekaScoringBatchBuffer buffer = m_batchBuffer;
+    if (buffer == null || buffer.size() == 0) {
+      return new Object[0][];
+    }
 
-      double[] prediction = preds[i];
+    WekaScoringModel model = getModel(); // copy of the model for this copy of
+                                         // the step
+                                         // copia do modelo para esta copa do step (passo)
+    boolean outputProbs = meta.getOutputProbabilities();
+    WekaScoringOutputWriter writer = getOutputWriter(model, outputProbs);
+
+    try {
+      // only the label is predicted unless probabilities are wanted
+      // apenas o rotulo e previsto a menos que probabilidades sejam
+      // desejadas
+      double[][] preds = null;
+      double[] labels = null;
+      if (outputProbs) {
+        preds = model.distributionsForInstances(buffer.instances());
+      } else {
+        labels = model.classifyInstances(buffer.instances());
+      }
 
-      if (prediction.length == 1 || !outputProbs) {
-        if (supervised) {
-          if (classAtt.isNumeric()) {
-            Double newVal = new Double(prediction[0]);
-            resultRow[index++] = newVal;
-          } else {
-            int maxProb = Utils.maxIndex(prediction);
-            if (prediction[maxProb] > 0) {
-              String newVal = classAtt.value(maxProb);
-              resultRow[index++] = newVal;
-            } else {
-              String newVal = BaseMessages.getString(WekaScoringMeta.PKG,
-                  "WekaScoringData.Message.UnableToPredict"); //$NON-NLS-1$
-              resultRow[index++] = newVal;
-            }
-          }
+      Object[][] result = new Object[buffer.size()][];
+      for (int i = 0; i < result.length; i++) {
+        // First copy the input data to the new result...
+        // Primeiro copie os dados de saida para um novo resultado.
+        Object[] resultRow = extendRow(buffer.row(i), outputMeta.size());
+        if (outputProbs) {
+          writer.write(preds[i], resultRow, inputMeta.size());
         } else {
-          int maxProb = Utils.maxIndex(prediction);
-          if (prediction[maxProb] > 0) {
-            Double newVal = new Double(maxProb);
-            resultRow[index++] = newVal;
-          } else {
-            String newVal = BaseMessages.getString(WekaScoringMeta.PKG,
-                "WekaScoringData.Message.UnableToPredictCluster"); //$NON-NLS-1$
-            resultRow[index++] = newVal;
-          }
-        }
-      } else {
-        // output probability distribution
-        // Distribuicao de probabilidade de saida
-        for (int j = 0; j < prediction.length; j++) {
-          Double newVal = new Double(prediction[j]);
-          resultRow[index++] = newVal;
+          writer.writeLabel(labels[i], resultRow, inputMeta.size());
         }
+
+        result[i] = resultRow;
       }
 
-      result[i] = resultRow;
+      return result;
+    } finally {
+      buffer.clear();
     }
-
-    return result;
   }
 
   /**
@@ -631,20 +899,23 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
     int[] mappingIndexes = m_mappingIndexes;
     WekaScoringModel model = getModel();
     boolean outputProbs = meta.getOutputProbabilities();
-    boolean supervised = model.isSupervisedLearningModel();
-
-    Attribute classAtt = null;
-    if (supervised) {
-      classAtt = model.getHeader().classAttribute();
-    }
+    WekaScoringOutputWriter writer = getOutputWriter(model, outputProbs);
 
     // need to construct an Instance to represent this
     // input row
     
     // precisa para construir uma Instace para representar esta linha de entrada
     Instance toScore = constructInstance(inputMeta, inputRow, mappingIndexes,
-        model, false);
-    double[] prediction = model.distributionForInstance(toScore);
+        model, null);
+    // only the label is predicted unless probabilities are wanted
+    // apenas o rotulo e previsto a menos que probabilidades sejam desejadas
+    double[] prediction = null;
+    double label = 0;
+    if (outputProbs) {
+      prediction = model.distributionForInstance(toScore);
+    } else {
+      label = model.classifyInstance(toScore);
+    }
 
     // Update the model??
     // Atualiza o modelo??
@@ -654,50 +925,94 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
     }
     // First copy the input data to the new result...
     // Primeiro copia a entrada de dados para um novo resultado
-    Object[] resultRow = RowDataUtil.resizeArray(inputRow, outputMeta.size());
-    int index = inputMeta.size();
-
-    // output for numeric class or discrete class value
-    // Saida para classe numerica ou  ou classe de valor discreto
-    if (prediction.length == 1 || !outputProbs) {
-      if (supervised) {
-        if (classAtt.isNumeric()) {
-          Double newVal = new Double(prediction[0]);
-          resultRow[index++] = newVal;
-        } else {
-          int maxProb = Utils.maxIndex(prediction);
-          if (prediction[maxProb] > 0) {
-            String newVal = classAtt.value(maxProb);
-            resultRow[index++] = newVal;
-          } else {
-            String newVal = BaseMessages.getString(WekaScoringMeta.PKG,
-                "WekaScoringData.Message.UnableToPredict"); //$NON-NLS-1$
-            resultRow[index++] = newVal;
-          }
-        }
-      } else {
-        int maxProb = Utils.maxIndex(prediction);
-        if (prediction[maxProb] > 0) {
-          Double newVal = new Double(maxProb);
-          resultRow[index++] = newVal;
-        } else {
-          String newVal = BaseMessages.getString(WekaScoringMeta.PKG,
-              "WekaScoringData.Message.UnableToPredictCluster"); //$NON-NLS-1$
-          resultRow[index++] = newVal;
-        }
-      }
+    Object[] resultRow = extendRow(inputRow, outputMeta.size());
+
+    // output for numeric class, discrete class value, cluster or
+    // probability distribution
+    // Saida para classe numerica, classe de valor discreto, agrupamento ou
+    // distribuicao de probabilidade
+    if (outputProbs) {
+      writer.write(prediction, resultRow, inputMeta.size());
     } else {
-      // output probability distribution
-      // Distribuicao de probabilidade de saida
-      for (int i = 0; i < prediction.length; i++) {
-        Double newVal = new Double(prediction[i]);
-        resultRow[index++] = newVal;
-      }
+      writer.writeLabel(label, resultRow, inputMeta.size());
     }
 
     return resultRow;
   }
 
+  /**
+   * Make room for the prediction fields of an output row. Kettle allocates
+   * rows with spare capacity, so the prediction is written straight into the
+   * incoming row when it has room, and the row is only copied into a larger
+   * one when it doesn't.
+   *
+   * PT-BR
+   *
+   * Abre espaco para os campos de previsao de uma linha de saida. O Kettle
+   * aloca linhas com capacidade livre, entao a previsao e escrita
+   * diretamente na linha de entrada quando ela tem espaco, e a linha so e
+   * copiada para uma maior quando nao tem.
+   */
+  private Object[] extendRow(Object[] inputRow, int size) {
+    if (inputRow.length >= size) {
+      m_rowsExtendedInPlace++;
+      return inputRow;
+    }
+    m_rowsCopied++;
+    return RowDataUtil.resizeArray(inputRow, size);
+  }
+
+  /**
+   * Get the number of output rows written into the spare capacity of their
+   * incoming row, i.e. the copies avoided.
+   *
+   * PT-BR
+   *
+   * Retorna o numero de linhas de saida escritas na capacidade livre da sua
+   * linha de entrada, ou seja, as copias evitadas.
+   *
+   * @return the number of rows extended in place
+   *         o numero de linhas estendidas no lugar
+   */
+  public long getRowsExtendedInPlace() {
+    return m_rowsExtendedInPlace;
+  }
+
+  /**
+   * Get the number of output rows that were copied into a larger row.
+   *
+   * PT-BR
+   *
+   * Retorna o numero de linhas de saida que foram copiadas para uma linha
+   * maior.
+   *
+   * @return the number of rows copied
+   *         o numero de linhas copiadas
+   */
+  public long getRowsCopied() {
+    return m_rowsCopied;
+  }
+
+  /**
+   * Get the writer for predictions of a model, choosing it when the model or
+   * the output mode changes.
+   *
+   * PT-BR
+   *
+   * Retorna o escritor para previsoes de um modelo, escolhendo-o quando o
+   * modelo ou o modo de saida muda.
+   */
+  private WekaScoringOutputWriter getOutputWriter(WekaScoringModel model,
+      boolean outputProbs) {
+    if (m_outputWriter == null || m_outputWriterModel != model
+        || m_outputWriterProbs != outputProbs) {
+      m_outputWriter = WekaScoringOutputWriter.create(model, outputProbs);
+      m_outputWriterModel = model;
+      m_outputWriterProbs = outputProbs;
+    }
+    return m_outputWriter;
+  }
+
   /**
    * Helper method that constructs an Instance to input to the Weka model based
    * on incoming Kettle fields and pre-constructed attribute-to-field mapping
@@ -713,97 +1028,269 @@ public class WekaScoringData extends BaseStepData implements StepDataInterface {
    * @param inputRow an <code>Object</code> value
    * @param mappingIndexes an <code>int</code> value
    * @param model a <code>WekaScoringModel</code> value
+   * @param buffer the batch the instance is for, or null for a single row
+   *               o lote ao qual a instancia se destina, ou null para uma
+   *               unica linha
    * @return an <code>Instance</code> value
    */
   private Instance constructInstance(RowMetaInterface inputMeta,
       Object[] inputRow, int[] mappingIndexes, WekaScoringModel model,
-      boolean freshVector) {
+      WekaScoringBatchBuffer buffer) throws Exception {
+
+    Instances header = getScoringHeader(model);
+    prepareConverters(header, inputMeta, mappingIndexes);
+    WekaScoringConverter[] converters = m_converters;
+
+    // text goes straight to the word vectorizer of a text model, and never
+    // into the header
+    // o texto vai direto para o vetorizador de palavras de um modelo de
+    // texto, e nunca para o cabecalho
+    WekaScoringTextVectorizer vectorizer = model.getTextVectorizer();
+    if (vectorizer != null) {
+      if (m_document == null || m_documentVectorizer != vectorizer) {
+        m_document = vectorizer.newDocument();
+        m_documentVectorizer = vectorizer;
+      }
+      for (int i = 0; i < converters.length; i++) {
+        if (vectorizer.isText(i)) {
+          vectorizer.addText(m_document, i, converters[i].text(inputRow));
+        } else {
+          vectorizer.setValue(m_document, i, converters[i].value(inputRow));
+        }
+      }
+      return vectorizer.toInstance(m_document, 1.0);
+    }
 
-    Instances header = model.getHeader();
+    // filters compiled from the model run on each value as it is converted
+    // filtros compilados a partir do modelo sao executados em cada valor a
+    // medida que ele e convertido
+    WekaScoringPreprocessor preprocessor = model.getPreprocessor();
+
+    // wide models choose between dense and sparse rows by their density
+    // modelos largos escolhem entre linhas densas e esparsas pela sua
+    // densidade
+    boolean wide = preprocessor == null
+        && header.numAttributes() >= SPARSE_MIN_ATTRIBUTES;
+    if (wide && m_sparse) {
+      return constructSparseInstance(inputRow, header);
+    }
 
-    // Re-use this array (unless told otherwise) to avoid an object creation
-    // Re-utilizacao desta matriz (a menos que indicado o contrario) para evitar uma
-    // criacao de objeto.
-    if (m_vals == null || freshVector) {
-      m_vals = new double[header.numAttributes()];
+    int numValues = (preprocessor == null) ? header.numAttributes()
+        : preprocessor.numOutputs();
+
+    // Re-use this array to avoid an object creation. Attributes without a
+    // field are always missing, so their values are only filled in when the
+    // array is created. A row of a batch uses the array of its slot in the
+    // buffer, last filled by a row of an earlier batch
+    // Re-utilizacao desta matriz para evitar uma criacao de objeto.
+    // Atributos sem um campo sao sempre ausentes, entao os seus valores so
+    // sao preenchidos quando a matriz e criada. Uma linha de um lote usa a
+    // matriz da sua posicao no buffer, preenchida por ultimo por uma linha de
+    // um lote anterior
+    double[] vals;
+    if (buffer != null) {
+      vals = buffer.values(numValues, (preprocessor == null) ? header
+          : preprocessor);
+      fillUnmapped(vals, preprocessor);
+    } else {
+      if (m_vals == null || m_vals.length != numValues
+          || m_valsPreprocessor != preprocessor) {
+        m_vals = new double[numValues];
+        m_valsPreprocessor = preprocessor;
+        fillUnmapped(m_vals, preprocessor);
+      }
+      vals = m_vals;
     }
 
-    for (int i = 0; i < header.numAttributes(); i++) {
+    int nonZero = m_unmapped.length;
+    for (int i : m_mapped) {
+      double value = converters[i].value(inputRow);
+      if (preprocessor == null) {
+        vals[i] = value;
+        if (value != 0) {
+          nonZero++;
+        }
+      } else {
+        preprocessor.transform(i, value, vals);
+      }
+    }
+    if (wide) {
+      measureDensity(header.numAttributes(), nonZero);
+    }
 
-      if (mappingIndexes[i] >= 0) {
-        try {
-          Object inputVal = inputRow[mappingIndexes[i]];
-
-          Attribute temp = header.attribute(i);
-          ValueMetaInterface tempField = inputMeta
-              .getValueMeta(mappingIndexes[i]);
-          int fieldType = tempField.getType();
-
-          // Check for missing value (null or empty string)
-          // Verifica se falta valor (nulo ou String vazia)
-          if (tempField.isNull(inputVal)) {
-            m_vals[i] = Utils.missingValue();
-            continue;
-          }
+    Instance newInst = (buffer != null) ? buffer.denseInstance()
+        : new DenseInstance(1.0, vals);
+    newInst.setDataset((preprocessor == null) ? header : preprocessor
+        .getOutputFormat());
+    return newInst;
+  }
 
-          switch (temp.type()) {
-          case Attribute.NUMERIC: {
-            if (fieldType == ValueMetaInterface.TYPE_BOOLEAN) {
-              Boolean b = tempField.getBoolean(inputVal);
-              if (b.booleanValue()) {
-                m_vals[i] = 1.0;
-              } else {
-                m_vals[i] = 0.0;
-              }
-            } else if (fieldType == ValueMetaInterface.TYPE_INTEGER) {
-              Long t = tempField.getInteger(inputVal);
-              m_vals[i] = t.longValue();
-            } else {
-              Double n = tempField.getNumber(inputVal);
-              m_vals[i] = n.doubleValue();
-            }
-          }
-            break;
-          case Attribute.NOMINAL: {
-            String s = tempField.getString(inputVal);
-            // now need to look for this value in the attribute
-            // in order to get the correct index
-            
-            // Agora precisamos olhar para valor no atributo
-            // a fim de obter o indice correto
-            int index = temp.indexOfValue(s);
-            if (index < 0) {
-              // set to missing value
-              // Define com falta de valor
-              m_vals[i] = Utils.missingValue();
-            } else {
-              m_vals[i] = index;
-            }
-          }
-            break;
-          case Attribute.STRING: {
-            String s = tempField.getString(inputVal);
-            // Set the attribute in the header to contain just this string value
-            // Define o atributo no cabecalho para conter apenas este valor de String
-            temp.setStringValue(s);
-            m_vals[i] = 0.0;
-            break;
-          }
-          default:
-            m_vals[i] = Utils.missingValue();
-          }
-        } catch (Exception e) {
-          m_vals[i] = Utils.missingValue();
-        }
+  private void fillUnmapped(double[] vals, WekaScoringPreprocessor preprocessor)
+      throws Exception {
+    for (int i : m_unmapped) {
+      if (preprocessor == null) {
+        vals[i] = Utils.missingValue();
       } else {
-        // set to missing value
-        // Define como valor faltante.
-        m_vals[i] = Utils.missingValue();
+        preprocessor.transform(i, Utils.missingValue(), vals);
       }
     }
+  }
 
-    Instance newInst = new DenseInstance(1.0, m_vals);
+  /**
+   * Returns true if rows are currently converted into sparse instances.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se as linhas sao atualmente convertidas em instancias
+   * esparsas.
+   *
+   * @return true for sparse conversion
+   *         verdadeiro para conversao esparsa
+   */
+  boolean isSparseConversion() {
+    return m_sparse;
+  }
+
+  /**
+   * Create the converter of each attribute, and find the attributes that
+   * have an incoming field, unless they are known for the supplied header,
+   * row meta data and mapping already. A new header starts over with dense
+   * rows.
+   *
+   * PT-BR
+   *
+   * Cria o conversor de cada atributo, e encontra os atributos que tem um
+   * campo de entrada, a menos que ja sejam conhecidos para o cabecalho,
+   * metadados de linha e mapeamento fornecidos. Um novo cabecalho recomeca
+   * com linhas densas.
+   */
+  private void prepareConverters(Instances header, RowMetaInterface inputMeta,
+      int[] mappingIndexes) {
+    if (header == m_convertHeader && inputMeta == m_convertMeta
+        && mappingIndexes == m_convertMapping) {
+      return;
+    }
+    m_converters = WekaScoringConverter.compile(header, inputMeta,
+        mappingIndexes);
+    int numMapped = 0;
+    for (WekaScoringConverter c : m_converters) {
+      if (c.isMapped()) {
+        numMapped++;
+      }
+    }
+    m_mapped = new int[numMapped];
+    m_unmapped = new int[m_converters.length - numMapped];
+    int m = 0;
+    int u = 0;
+    for (int i = 0; i < m_converters.length; i++) {
+      if (m_converters[i].isMapped()) {
+        m_mapped[m++] = i;
+      } else {
+        m_unmapped[u++] = i;
+      }
+    }
+    m_convertHeader = header;
+    m_convertMeta = inputMeta;
+    m_convertMapping = mappingIndexes;
+    m_vals = null;
+    m_sparseIndices = null;
+    m_sparseValues = null;
+    m_sparse = false;
+    m_sampledRows = 0;
+    m_sampledValues = 0;
+  }
+
+  /**
+   * Count the non-zero values of a row, and choose the mode for the next
+   * block of rows once a block is complete.
+   *
+   * PT-BR
+   *
+   * Conta os valores diferentes de zero de uma linha, e escolhe o modo para
+   * o proximo bloco de linhas quando um bloco esta completo.
+   */
+  private void measureDensity(int numAttributes, int nonZero) {
+    m_sampledValues += nonZero;
+    if (++m_sampledRows == DENSITY_SAMPLE) {
+      m_sparse = m_sampledValues <= SPARSE_MAX_DENSITY * numAttributes
+          * DENSITY_SAMPLE;
+      m_sampledRows = 0;
+      m_sampledValues = 0;
+    }
+  }
+
+  /**
+   * Construct a sparse instance, converting only the fields that are mapped
+   * to attributes. Attributes without a field are missing, as they are in a
+   * dense instance.
+   *
+   * PT-BR
+   *
+   * Constroi uma instancia esparsa, convertendo apenas os campos que estao
+   * mapeados para atributos. Atributos sem um campo sao ausentes, como sao
+   * em uma instancia densa.
+   */
+  private Instance constructSparseInstance(Object[] inputRow,
+      Instances header) {
+    if (m_sparseIndices == null) {
+      m_sparseIndices = new int[header.numAttributes()];
+      m_sparseValues = new double[header.numAttributes()];
+    }
+    int count = 0;
+    int u = 0;
+    for (int i : m_mapped) {
+      while (u < m_unmapped.length && m_unmapped[u] < i) {
+        m_sparseIndices[count] = m_unmapped[u++];
+        m_sparseValues[count++] = Utils.missingValue();
+      }
+      double value = m_converters[i].value(inputRow);
+      if (value != 0) {
+        m_sparseIndices[count] = i;
+        m_sparseValues[count++] = value;
+      }
+    }
+    while (u < m_unmapped.length) {
+      m_sparseIndices[count] = m_unmapped[u++];
+      m_sparseValues[count++] = Utils.missingValue();
+    }
+    measureDensity(header.numAttributes(), count);
+
+    int[] indices = new int[count];
+    double[] values = new double[count];
+    System.arraycopy(m_sparseIndices, 0, indices, 0, count);
+    System.arraycopy(m_sparseValues, 0, values, 0, count);
+    Instance newInst = new SparseInstance(1.0, values, indices,
+        header.numAttributes());
     newInst.setDataset(header);
     return newInst;
   }
+
+  /**
+   * Get the header to construct instances against for the supplied model. This
+   * is the model's own header unless it contains string attributes, in which
+   * case a private copy is used so that setting string values doesn't disturb
+   * other copies of the step that share the model.
+   *
+   * PT-BR
+   *
+   * Retorna o cabecalho usado para construir instancias para o modelo
+   * fornecido. E o proprio cabecalho do modelo, a menos que ele possua
+   * atributos String; neste caso uma copia privada e usada para que definir
+   * valores String nao afete outras copias do step (passo) que compartilham o
+   * modelo.
+   *
+   * @param model the model in use
+   *              o modelo em uso
+   * @return the header to construct instances against
+   *         o cabecalho para construir instancias
+   */
+  private Instances getScoringHeader(WekaScoringModel model) {
+    Instances header = model.getHeader();
+    if (header != m_modelHeader) {
+      m_modelHeader = header;
+      m_scoringHeader = header.checkForStringAttributes() ? header
+          .stringFreeStructure() : header;
+    }
+    return m_scoringHeader;
+  }
 }
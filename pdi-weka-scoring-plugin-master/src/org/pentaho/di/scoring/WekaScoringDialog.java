@@ -35,6 +35,7 @@ import org.eclipse.swt.layout.FormData;
 import org.eclipse.swt.layout.FormLayout;
 import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.FileDialog;
@@ -148,6 +149,17 @@ public class WekaScoringDialog extends BaseStepDialog implements
   /** TextVar for batch sizes to be pushed to BatchPredictors */
   private TextVar m_batchScoringBatchSizeText;
 
+  /** TextVars for the limits of the cache of models loaded from a field */
+  private TextVar m_modelCacheMaxEntriesText;
+  private TextVar m_modelCacheMaxMemoryText;
+  private TextVar m_modelCacheIdleTimeoutText;
+
+  /** TextVar for the number of rows to read ahead when prefetching models */
+  private TextVar m_modelPrefetchRowsText;
+
+  /** TextVar for the recall target of approximate neighbour search */
+  private TextVar m_neighbourSearchRecallText;
+
   // file extension stuff
 
   /** the text area for the model */
@@ -431,6 +443,7 @@ public class WekaScoringDialog extends BaseStepDialog implements
 
             m_wCacheModelsCheckBox
                 .setEnabled(m_wAcceptFileNameFromFieldCheckBox.getSelection());
+            enableModelFromFieldSettings();
             m_wAcceptFileNameFromFieldText
                 .setEnabled(m_wAcceptFileNameFromFieldCheckBox.getSelection());
             m_wbSaveFilename.setEnabled(!m_wAcceptFileNameFromFieldCheckBox
@@ -522,6 +535,32 @@ public class WekaScoringDialog extends BaseStepDialog implements
     m_batchScoringBatchSizeText.setLayoutData(fdd);
     m_batchScoringBatchSizeText.setEnabled(false);
 
+    // model cache limit lines
+    m_modelCacheMaxEntriesText = addFileTabTextLine(wFileComp,
+        "WekaScoringDialog.ModelCacheMaxEntries.Label", //$NON-NLS-1$
+        m_batchScoringBatchSizeText, lsMod, middle, margin);
+    m_modelCacheMaxMemoryText = addFileTabTextLine(wFileComp,
+        "WekaScoringDialog.ModelCacheMaxMemory.Label", //$NON-NLS-1$
+        m_modelCacheMaxEntriesText, lsMod, middle, margin);
+    m_modelCacheIdleTimeoutText = addFileTabTextLine(wFileComp,
+        "WekaScoringDialog.ModelCacheIdleTimeout.Label", //$NON-NLS-1$
+        m_modelCacheMaxMemoryText, lsMod, middle, margin);
+    m_modelPrefetchRowsText = addFileTabTextLine(wFileComp,
+        "WekaScoringDialog.ModelPrefetchRows.Label", //$NON-NLS-1$
+        m_modelCacheIdleTimeoutText, lsMod, middle, margin);
+    m_neighbourSearchRecallText = addFileTabTextLine(wFileComp,
+        "WekaScoringDialog.NeighbourSearchRecall.Label", //$NON-NLS-1$
+        m_modelPrefetchRowsText, lsMod, middle, margin);
+    m_neighbourSearchRecallText.setEnabled(true);
+
+    m_wCacheModelsCheckBox.addSelectionListener(new SelectionAdapter() {
+      @Override
+      public void widgetSelected(SelectionEvent e) {
+        m_currentMeta.setChanged();
+        enableModelFromFieldSettings();
+      }
+    });
+
     // Fields mapping tab
     m_wFieldsTab = new CTabItem(m_wTabFolder, SWT.NONE);
     m_wFieldsTab.setText(BaseMessages.getString(WekaScoringMeta.PKG,
@@ -687,7 +726,8 @@ public class WekaScoringDialog extends BaseStepDialog implements
         if (XStream.isPresent()) {
           extensions = new String[4];
           filterNames = new String[4];
-          extensions[0] = "*.model"; //$NON-NLS-1$
+          extensions[0] = "*.model;*.model.gz;*" //$NON-NLS-1$
+              + WekaScoringModelContainer.FILE_EXTENSION;
           filterNames[0] = BaseMessages.getString(WekaScoringMeta.PKG,
               "WekaScoringDialog.FileType.ModelFileBinary"); //$NON-NLS-1$
           extensions[1] = "*.xstreammodel"; //$NON-NLS-1$
@@ -702,7 +742,8 @@ public class WekaScoringDialog extends BaseStepDialog implements
         } else {
           extensions = new String[3];
           filterNames = new String[3];
-          extensions[0] = "*.model"; //$NON-NLS-1$
+          extensions[0] = "*.model;*.model.gz;*" //$NON-NLS-1$
+              + WekaScoringModelContainer.FILE_EXTENSION;
           filterNames[0] = BaseMessages.getString(WekaScoringMeta.PKG,
               "WekaScoringDialog.FileType.ModelFileBinary"); //$NON-NLS-1$
           extensions[1] = "*.xml"; //$NON-NLS-1$
@@ -775,7 +816,8 @@ public class WekaScoringDialog extends BaseStepDialog implements
         if (XStream.isPresent()) {
           extensions = new String[3];
           filterNames = new String[3];
-          extensions[0] = "*.model"; //$NON-NLS-1$
+          extensions[0] = "*.model;*.model.gz;*" //$NON-NLS-1$
+              + WekaScoringModelContainer.FILE_EXTENSION;
           filterNames[0] = BaseMessages.getString(WekaScoringMeta.PKG,
               "WekaScoringDialog.FileType.ModelFileBinary"); //$NON-NLS-1$
           extensions[1] = "*.xstreammodel"; //$NON-NLS-1$
@@ -787,7 +829,8 @@ public class WekaScoringDialog extends BaseStepDialog implements
         } else {
           extensions = new String[2];
           filterNames = new String[2];
-          extensions[0] = "*.model"; //$NON-NLS-1$
+          extensions[0] = "*.model;*.model.gz;*" //$NON-NLS-1$
+              + WekaScoringModelContainer.FILE_EXTENSION;
           filterNames[0] = BaseMessages.getString(WekaScoringMeta.PKG,
               "WekaScoringDialog.FileType.ModelFileBinary"); //$NON-NLS-1$
           extensions[1] = "*"; //$NON-NLS-1$
@@ -970,6 +1013,41 @@ public class WekaScoringDialog extends BaseStepDialog implements
     }
   }
 
+  private TextVar addFileTabTextLine(Composite parent, String labelKey,
+      Control above, ModifyListener lsMod, int middle, int margin) {
+    Label lab = new Label(parent, SWT.RIGHT);
+    lab.setText(BaseMessages.getString(WekaScoringMeta.PKG, labelKey));
+    props.setLook(lab);
+    FormData fd = new FormData();
+    fd.left = new FormAttachment(0, 0);
+    fd.top = new FormAttachment(above, margin);
+    fd.right = new FormAttachment(middle, -margin);
+    lab.setLayoutData(fd);
+
+    TextVar text = new TextVar(transMeta, parent, SWT.SINGLE | SWT.LEFT
+        | SWT.BORDER);
+    props.setLook(text);
+    text.addModifyListener(lsMod);
+    fd = new FormData();
+    fd.left = new FormAttachment(middle, 0);
+    fd.top = new FormAttachment(above, margin);
+    fd.right = new FormAttachment(100, 0);
+    text.setLayoutData(fd);
+    text.setEnabled(false);
+
+    return text;
+  }
+
+  private void enableModelFromFieldSettings() {
+    boolean enable = m_wAcceptFileNameFromFieldCheckBox.getSelection()
+        && m_wCacheModelsCheckBox.getSelection();
+    m_modelCacheMaxEntriesText.setEnabled(enable);
+    m_modelCacheMaxMemoryText.setEnabled(enable);
+    m_modelCacheIdleTimeoutText.setEnabled(enable);
+    m_modelPrefetchRowsText.setEnabled(m_wAcceptFileNameFromFieldCheckBox
+        .getSelection());
+  }
+
   /**
    * Grab data out of the step meta object
    */
@@ -989,6 +1067,15 @@ public class WekaScoringDialog extends BaseStepDialog implements
       m_wAcceptFileNameFromFieldText.setEnabled(true);
 
       m_wCacheModelsCheckBox.setSelection(m_currentMeta.getCacheLoadedModels());
+      m_modelCacheMaxEntriesText.setText(Const.NVL(
+          m_currentMeta.getModelCacheMaxEntries(), "")); //$NON-NLS-1$
+      m_modelCacheMaxMemoryText.setText(Const.NVL(
+          m_currentMeta.getModelCacheMaxMemory(), "")); //$NON-NLS-1$
+      m_modelCacheIdleTimeoutText.setText(Const.NVL(
+          m_currentMeta.getModelCacheIdleTimeout(), "")); //$NON-NLS-1$
+      m_modelPrefetchRowsText.setText(Const.NVL(
+          m_currentMeta.getModelPrefetchRows(), "")); //$NON-NLS-1$
+      enableModelFromFieldSettings();
       m_wlFilename.setText(BaseMessages.getString(WekaScoringMeta.PKG,
           "WekaScoringDialog.Default.Label")); //$NON-NLS-1$
     }
@@ -1012,6 +1099,8 @@ public class WekaScoringDialog extends BaseStepDialog implements
     if (!Const.isEmpty(m_currentMeta.getBatchScoringSize())) {
       m_batchScoringBatchSizeText.setText(m_currentMeta.getBatchScoringSize());
     }
+    m_neighbourSearchRecallText.setText(Const.NVL(
+        m_currentMeta.getNeighbourSearchRecall(), "")); //$NON-NLS-1$
 
     m_storeModelInStepMetaData.setSelection(m_currentMeta
         .getStoreModelInStepMetaData());
@@ -1152,6 +1241,13 @@ public class WekaScoringDialog extends BaseStepDialog implements
           .getText());
     }
     m_currentMeta.setCacheLoadedModels(m_wCacheModelsCheckBox.getSelection());
+    m_currentMeta.setModelCacheMaxEntries(m_modelCacheMaxEntriesText.getText());
+    m_currentMeta.setModelCacheMaxMemory(m_modelCacheMaxMemoryText.getText());
+    m_currentMeta.setModelCacheIdleTimeout(m_modelCacheIdleTimeoutText
+        .getText());
+    m_currentMeta.setModelPrefetchRows(m_modelPrefetchRowsText.getText());
+    m_currentMeta.setNeighbourSearchRecall(m_neighbourSearchRecallText
+        .getText());
 
     m_currentMeta.setOutputProbabilities(m_wOutputProbs.getSelection());
     m_currentMeta.setUpdateIncrementalModel(m_wUpdateModel.getSelection());
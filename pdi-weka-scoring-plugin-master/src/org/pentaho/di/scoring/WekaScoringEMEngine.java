@@ -0,0 +1,365 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import weka.clusterers.EM;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.estimators.Estimator;
+import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+
+/**
+ * Compiled engine for EM clusterers. The normal estimators of the numeric
+ * attributes are stored as flat arrays of means and inverse variances with a
+ * row per cluster, the log normalizers and the log priors are summed into one
+ * constant per cluster, the discrete estimators of the nominal attributes
+ * become tables of log probabilities, and the replacement of missing values is
+ * reduced to one value per attribute. A batch is scored by first gathering the
+ * numeric values of all its rows into one matrix and then computing every
+ * (row, cluster) log likelihood with a tight loop over flat arrays, followed
+ * by log-sum-exp per row. The probabilities match the ones from Weka up to
+ * rounding.
+ *
+ * PT-BR
+ *
+ * Motor compilado para agrupadores EM. Os estimadores normais dos atributos
+ * numericos sao armazenados como matrizes planas de medias e inversos das
+ * variancias com uma linha por grupo, os normalizadores logaritmicos e os
+ * logaritmos das probabilidades a priori sao somados em uma constante por
+ * grupo, os estimadores discretos dos atributos nominais se tornam tabelas de
+ * logaritmos de probabilidades, e a substituicao de valores ausentes e
+ * reduzida a um valor por atributo. Um lote e pontuado primeiro juntando os
+ * valores numericos de todas as suas linhas em uma matriz e depois calculando
+ * cada verossimilhanca logaritmica (linha, grupo) com um laco compacto sobre
+ * matrizes planas, seguido de log-soma-exp por linha. As probabilidades
+ * coincidem com as do Weka a menos de arredondamentos.
+ */
+class WekaScoringEMEngine extends WekaScoringEngine {
+
+  /** log(sqrt(2 pi)), as in EM */
+  private static final double NORM_CONST = Math.log(Math.sqrt(Math.PI * 2));
+
+  private final int m_numClusters;
+
+  // numeric attributes: indexes, replacement values (NaN if none), and per
+  // cluster (row-major) means, 1 / (2 variance) and the constant terms that
+  // are dropped when a value is missing
+  // atributos numericos: indices, valores de substituicao (NaN se nenhum), e
+  // por grupo (por linha) medias, 1 / (2 variancia) e os termos constantes
+  // que sao retirados quando falta um valor
+  private final int[] m_numeric;
+  private final double[] m_numericReplace;
+  private final double[] m_mean;
+  private final double[] m_halfPrecision;
+  private final double[] m_logNormalizer;
+
+  // nominal attributes: indexes, replacement values, and offsets into the
+  // table of log probabilities (value-major, clusters adjacent)
+  // atributos nominais: indices, valores de substituicao, e deslocamentos na
+  // tabela de logaritmos de probabilidades (por valor, grupos adjacentes)
+  private final int[] m_nominal;
+  private final double[] m_nominalReplace;
+  private final int[] m_tableOffset;
+  private final double[] m_logProb;
+
+  // log prior plus the log normalizers of all numeric attributes
+  // logaritmo da probabilidade a priori mais os normalizadores
+  // logaritmicos de todos os atributos numericos
+  private final double[] m_constant;
+
+  private WekaScoringEMEngine(int numClusters, int[] numeric,
+      double[] numericReplace, double[] mean, double[] halfPrecision,
+      double[] logNormalizer, int[] nominal, double[] nominalReplace,
+      int[] tableOffset, double[] logProb, double[] constant) {
+    m_numClusters = numClusters;
+    m_numeric = numeric;
+    m_numericReplace = numericReplace;
+    m_mean = mean;
+    m_halfPrecision = halfPrecision;
+    m_logNormalizer = logNormalizer;
+    m_nominal = nominal;
+    m_nominalReplace = nominalReplace;
+    m_tableOffset = tableOffset;
+    m_logProb = logProb;
+    m_constant = constant;
+  }
+
+  /**
+   * Compile an EM clusterer. Returns null for other models and for
+   * clusterers with an empty cluster (Weka refuses to score with those).
+   *
+   * PT-BR
+   *
+   * Compila um agrupador EM. Retorna null para outros modelos e para
+   * agrupadores com um grupo vazio (o Weka se recusa a pontuar com eles).
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the model can't be read
+   *                   se a estrutura do modelo nao puder ser lida
+   */
+  static WekaScoringEMEngine compile(Object model, Instances header)
+      throws Exception {
+    if (model.getClass() != EM.class) {
+      return null;
+    }
+
+    Instances format = (Instances) getField(model, "m_theInstances"); //$NON-NLS-1$
+    Estimator[][] estimators = (Estimator[][]) getField(model, "m_model"); //$NON-NLS-1$
+    double[][][] normal = (double[][][]) getField(model, "m_modelNormal"); //$NON-NLS-1$
+    double[] priors = ((EM) model).clusterPriors();
+    ReplaceMissingValues filter = (ReplaceMissingValues) getField(model,
+        "m_replaceMissing"); //$NON-NLS-1$
+    if (format == null || estimators == null || normal == null
+        || filter == null) {
+      return null;
+    }
+    int k = priors.length;
+    for (double p : priors) {
+      if (!(p > 0)) {
+        return null;
+      }
+    }
+
+    // EM replaces missing values with the means and modes of the training
+    // data; push a row of missing values through its filter to get them
+    // O EM substitui valores ausentes pelas medias e modas dos dados de
+    // treino; passa uma linha de valores ausentes pelo seu filtro para
+    // obte-los
+    int numAtts = format.numAttributes();
+    Instance probe = new DenseInstance(numAtts);
+    probe.setDataset(filter.getOutputFormat());
+    Instance replaced;
+    synchronized (model) {
+      filter.input(probe);
+      replaced = filter.output();
+    }
+
+    int numNumeric = 0;
+    int numNominal = 0;
+    int tableSize = 0;
+    for (int j = 0; j < numAtts; j++) {
+      if (format.attribute(j).isNominal()) {
+        numNominal++;
+        tableSize += format.attribute(j).numValues() * k;
+      } else {
+        numNumeric++;
+      }
+    }
+
+    int[] numeric = new int[numNumeric];
+    double[] numericReplace = new double[numNumeric];
+    double[] mean = new double[k * numNumeric];
+    double[] halfPrecision = new double[k * numNumeric];
+    double[] logNormalizer = new double[k * numNumeric];
+    int[] nominal = new int[numNominal];
+    double[] nominalReplace = new double[numNominal];
+    int[] tableOffset = new int[numNominal];
+    double[] logProb = new double[tableSize];
+    double[] constant = new double[k];
+    for (int c = 0; c < k; c++) {
+      constant[c] = Math.log(priors[c]);
+    }
+
+    int p = 0;
+    int q = 0;
+    int offset = 0;
+    for (int j = 0; j < numAtts; j++) {
+      if (format.attribute(j).isNominal()) {
+        nominal[q] = j;
+        nominalReplace[q] = replaced.value(j);
+        tableOffset[q] = offset;
+        int numValues = format.attribute(j).numValues();
+        for (int c = 0; c < k; c++) {
+          for (int v = 0; v < numValues; v++) {
+            logProb[offset + v * k + c] = Math.log(estimators[c][j]
+                .getProbability(v));
+          }
+        }
+        offset += numValues * k;
+        q++;
+      } else {
+        numeric[p] = j;
+        numericReplace[p] = replaced.value(j);
+        for (int c = 0; c < k; c++) {
+          double stdDev = normal[c][j][1];
+          if (!(stdDev > 0)) {
+            return null;
+          }
+          int cell = c * numNumeric + p;
+          mean[cell] = normal[c][j][0];
+          halfPrecision[cell] = 1.0 / (2.0 * stdDev * stdDev);
+          logNormalizer[cell] = -NORM_CONST - Math.log(stdDev);
+          constant[c] += logNormalizer[cell];
+        }
+        p++;
+      }
+    }
+
+    return new WekaScoringEMEngine(k, numeric, numericReplace, mean,
+        halfPrecision, logNormalizer, nominal, nominalReplace, tableOffset,
+        logProb, constant);
+  }
+
+  @Override
+  boolean isBatchPredictor() {
+    return true;
+  }
+
+  @Override
+  double classifyInstance(Instance inst) throws Exception {
+    // as AbstractClusterer.clusterInstance()
+    // como AbstractClusterer.clusterInstance()
+    double[] dist = distributionForInstance(inst);
+    if (Utils.sum(dist) <= 0) {
+      throw new Exception("Unable to cluster instance"); //$NON-NLS-1$
+    }
+    return Utils.maxIndex(dist);
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    return distributions(new Instance[] { inst })[0];
+  }
+
+  @Override
+  double[] classifyInstances(Instances insts) throws Exception {
+    double[][] dists = distributionsForInstances(insts);
+    double[] result = new double[dists.length];
+    for (int i = 0; i < result.length; i++) {
+      if (Utils.sum(dists[i]) <= 0) {
+        throw new Exception("Unable to cluster instance"); //$NON-NLS-1$
+      }
+      result[i] = Utils.maxIndex(dists[i]);
+    }
+    return result;
+  }
+
+  @Override
+  double[][] distributionsForInstances(Instances insts) throws Exception {
+    Instance[] rows = new Instance[insts.numInstances()];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = insts.instance(i);
+    }
+    return distributions(rows);
+  }
+
+  /**
+   * Score a batch of rows: log likelihoods for every (row, cluster) pair,
+   * then log-sum-exp per row as Utils.logs2probs() does.
+   *
+   * Pontua um lote de linhas: verossimilhancas logaritmicas para cada par
+   * (linha, grupo), e depois log-soma-exp por linha como o
+   * Utils.logs2probs() faz.
+   */
+  private double[][] distributions(Instance[] rows) {
+    int numRows = rows.length;
+    int k = m_numClusters;
+    int numNumeric = m_numeric.length;
+
+    // the numeric values of the batch, row-major (NaN if missing)
+    // os valores numericos do lote, por linha (NaN se ausente)
+    double[] x = new double[numRows * numNumeric];
+    boolean[] missing = new boolean[numRows];
+    for (int r = 0; r < numRows; r++) {
+      Instance inst = rows[r];
+      for (int p = 0; p < numNumeric; p++) {
+        double v = inst.value(m_numeric[p]);
+        if (Utils.isMissingValue(v)) {
+          v = m_numericReplace[p];
+          missing[r] |= Utils.isMissingValue(v);
+        }
+        x[r * numNumeric + p] = v;
+      }
+    }
+
+    // log joint densities: one pass over the batch
+    // densidades conjuntas logaritmicas: uma passada pelo lote
+    double[] logJoint = new double[numRows * k];
+    for (int r = 0; r < numRows; r++) {
+      int row = r * numNumeric;
+      for (int c = 0; c < k; c++) {
+        int cell = c * numNumeric;
+        double sum = 0;
+        if (missing[r]) {
+          // values that are still missing are skipped by EM, normalizer and
+          // all
+          // valores que ainda faltam sao ignorados pelo EM, inclusive o
+          // normalizador
+          for (int p = 0; p < numNumeric; p++) {
+            if (Utils.isMissingValue(x[row + p])) {
+              sum += m_logNormalizer[cell + p];
+            } else {
+              double diff = x[row + p] - m_mean[cell + p];
+              sum += diff * diff * m_halfPrecision[cell + p];
+            }
+          }
+        } else {
+          for (int p = 0; p < numNumeric; p++) {
+            double diff = x[row + p] - m_mean[cell + p];
+            sum += diff * diff * m_halfPrecision[cell + p];
+          }
+        }
+        logJoint[r * k + c] = m_constant[c] - sum;
+      }
+    }
+
+    for (int q = 0; q < m_nominal.length; q++) {
+      int index = m_nominal[q];
+      for (int r = 0; r < numRows; r++) {
+        double v = rows[r].value(index);
+        if (Utils.isMissingValue(v)) {
+          v = m_nominalReplace[q];
+          if (Utils.isMissingValue(v)) {
+            continue;
+          }
+        }
+        int t = m_tableOffset[q] + (int) v * k;
+        for (int c = 0; c < k; c++) {
+          logJoint[r * k + c] += m_logProb[t + c];
+        }
+      }
+    }
+
+    double[][] result = new double[numRows][k];
+    for (int r = 0; r < numRows; r++) {
+      double[] dist = result[r];
+      int base = r * k;
+      double max = logJoint[base];
+      for (int c = 1; c < k; c++) {
+        if (logJoint[base + c] > max) {
+          max = logJoint[base + c];
+        }
+      }
+      double sum = 0;
+      for (int c = 0; c < k; c++) {
+        dist[c] = Math.exp(logJoint[base + c] - max);
+        sum += dist[c];
+      }
+      Utils.normalize(dist, sum);
+    }
+    return result;
+  }
+}
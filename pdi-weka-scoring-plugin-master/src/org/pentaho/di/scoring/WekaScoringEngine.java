@@ -0,0 +1,505 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Base class for compiled scoring engines. An engine is built once from a
+ * trained Weka model and holds the parts of the model needed for prediction in
+ * flat, read only arrays, so it can be used by several threads at once without
+ * locking. Engines must produce the same predictions as the model they were
+ * compiled from (exactly, or up to rounding where the arithmetic has been
+ * reordered); models that no engine supports are scored by Weka as before.
+ *
+ * PT-BR
+ *
+ * Classe base para motores de pontuacao compilados. Um motor e construido uma
+ * vez a partir de um modelo Weka treinado e guarda as partes do modelo
+ * necessarias para a previsao em matrizes planas somente de leitura, de modo
+ * que pode ser usado por varias threads ao mesmo tempo sem bloqueio. Os
+ * motores devem produzir as mesmas previsoes do modelo a partir do qual foram
+ * compilados (exatamente, ou a menos de arredondamentos onde a aritmetica foi
+ * reordenada); modelos nao suportados por nenhum motor continuam sendo
+ * pontuados pelo Weka.
+ */
+abstract class WekaScoringEngine {
+
+  /** shared pool for engines that score in parallel (created on first use)
+   *  pool compartilhado para motores que pontuam em paralelo (criado no
+   *  primeiro uso)
+   */
+  private static ExecutorService s_workers;
+
+  /** rows and columns per block in multiplyTransposed() */
+  private static final int MULTIPLY_BLOCK = 32;
+
+  /**
+   * Return a probability distribution (over classes or clusters), or a single
+   * element array holding the prediction for a numeric class.
+   *
+   * PT-BR
+   *
+   * Retorna uma distribuicao de probabilidade (atraves de classes ou grupos),
+   * ou uma matriz de um elemento com a previsao para uma classe numerica.
+   *
+   * @param inst the Instance to be predicted
+   *             a Instance para ser prevista
+   * @return a probability distribution
+   *         uma distribuicao de probabilidade
+   * @exception Exception if an error occurs
+   *                      se ocorrer um erro
+   */
+  abstract double[] distributionForInstance(Instance inst) throws Exception;
+
+  /**
+   * Return a classification. The default implementation follows
+   * AbstractClassifier: the most probable class, or the prediction for a
+   * numeric class, taken from labelDistributionForInstance() since only the
+   * label is needed.
+   *
+   * PT-BR
+   *
+   * Retorna uma classificacao. A implementacao padrao segue o
+   * AbstractClassifier: a classe mais provavel, ou a previsao para uma classe
+   * numerica, obtida de labelDistributionForInstance() ja que apenas o
+   * rotulo e necessario.
+   *
+   * @param inst the Instance to be classified
+   *             a Instance para ser classificada
+   * @return the prediction
+   *         a previsao
+   * @exception Exception if an error occurs
+   *                      se ocorrer um erro
+   */
+  double classifyInstance(Instance inst) throws Exception {
+    return classify(labelDistributionForInstance(inst), inst);
+  }
+
+  /**
+   * Batch version of classifyInstance(). The default implementation
+   * classifies the distributions of labelDistributionsForInstances(), so
+   * engines that score batches faster keep doing so.
+   *
+   * PT-BR
+   *
+   * Versao em lote de classifyInstance(). A implementacao padrao classifica
+   * as distribuicoes de labelDistributionsForInstances(), de modo que
+   * motores que pontuam lotes mais rapido continuam a faze-lo.
+   *
+   * @param insts the instances to classify
+   *              as instancias para classificar
+   * @return one prediction for each instance
+   *         uma previsao para cada instancia
+   * @throws Exception if a problem occurs
+   *                   se ocorrer um problema
+   */
+  double[] classifyInstances(Instances insts) throws Exception {
+    double[][] dists = labelDistributionsForInstances(insts);
+    double[] result = new double[dists.length];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = classify(dists[i], insts.instance(i));
+    }
+    return result;
+  }
+
+  /**
+   * Turn a distribution into a classification the way AbstractClassifier
+   * does.
+   *
+   * PT-BR
+   *
+   * Transforma uma distribuicao em uma classificacao da mesma forma que o
+   * AbstractClassifier.
+   *
+   * @param dist the distribution
+   *             a distribuicao
+   * @param inst the Instance that was predicted
+   *             a Instance que foi prevista
+   * @return the prediction
+   *         a previsao
+   * @exception Exception if the distribution is null
+   *                      se a distribuicao for null
+   */
+  static double classify(double[] dist, Instance inst) throws Exception {
+    if (dist == null) {
+      throw new Exception("Null distribution predicted"); //$NON-NLS-1$
+    }
+
+    // a clusterer's instances have no class
+    // as instancias de um agrupador nao possuem classe
+    if (inst.classIndex() >= 0 && inst.classAttribute().isNumeric()) {
+      return dist[0];
+    }
+
+    double max = 0;
+    int maxIndex = 0;
+    for (int i = 0; i < dist.length; i++) {
+      if (dist[i] > max) {
+        maxIndex = i;
+        max = dist[i];
+      }
+    }
+    return (max > 0) ? maxIndex : Utils.missingValue();
+  }
+
+  /**
+   * Returns true if the engine, or one of the engines it is made of, searches
+   * for nearest neighbours, so that it depends on the recall target it was
+   * compiled with.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se o motor, ou um dos motores que o compoem, busca
+   * vizinhos mais proximos, de modo que depende da meta de revocacao com que
+   * foi compilado.
+   *
+   * @return true if the engine searches for nearest neighbours
+   *         verdadeiro se o motor busca vizinhos mais proximos
+   */
+  boolean searchesNeighbours() {
+    return false;
+  }
+
+  /**
+   * Returns true if the engine scores a batch of instances faster than one
+   * instance at a time, in which case the step should send it batches.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se o motor pontua um lote de instancias mais rapido
+   * que uma instancia por vez, caso em que o step (passo) deve lhe enviar
+   * lotes.
+   *
+   * @return true if the engine benefits from batches
+   *         verdadeiro se o motor se beneficia de lotes
+   */
+  boolean isBatchPredictor() {
+    return false;
+  }
+
+  /**
+   * Batch scoring method. Scores the instances one after the other.
+   *
+   * PT-BR
+   *
+   * Metodo de pontuacao em lote. Pontua as instancias uma apos a outra.
+   *
+   * @param insts the instances to score
+   *              as instancias para pontuar
+   * @return an array of probability distributions, one for each instance
+   *         uma matriz de distribuicoes de probabilidade, uma para cada
+   *         instancia
+   * @throws Exception if a problem occurs
+   *                   se ocorrer um problema
+   */
+  double[][] distributionsForInstances(Instances insts) throws Exception {
+    double[][] result = new double[insts.numInstances()][];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = distributionForInstance(insts.instance(i));
+    }
+    return result;
+  }
+
+  /**
+   * Return a distribution whose most probable class is that of
+   * distributionForInstance(), for callers that only output the label.
+   * Engines that can decide the label without computing the whole
+   * distribution override this; the default returns the full distribution.
+   *
+   * PT-BR
+   *
+   * Retorna uma distribuicao cuja classe mais provavel e a de
+   * distributionForInstance(), para chamadores que so emitem o rotulo.
+   * Motores que podem decidir o rotulo sem calcular a distribuicao inteira
+   * sobrescrevem este metodo; o padrao retorna a distribuicao completa.
+   *
+   * @param inst the Instance to be predicted
+   *             a Instance para ser prevista
+   * @return a distribution with the same most probable class
+   *         uma distribuicao com a mesma classe mais provavel
+   * @exception Exception if an error occurs
+   *                      se ocorrer um erro
+   */
+  double[] labelDistributionForInstance(Instance inst) throws Exception {
+    return distributionForInstance(inst);
+  }
+
+  /**
+   * Batch version of labelDistributionForInstance().
+   *
+   * PT-BR
+   *
+   * Versao em lote de labelDistributionForInstance().
+   *
+   * @param insts the instances to score
+   *              as instancias para pontuar
+   * @return one distribution for each instance
+   *         uma distribuicao para cada instancia
+   * @throws Exception if a problem occurs
+   *                   se ocorrer um problema
+   */
+  double[][] labelDistributionsForInstances(Instances insts) throws Exception {
+    double[][] result = new double[insts.numInstances()][];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = labelDistributionForInstance(insts.instance(i));
+    }
+    return result;
+  }
+
+  /**
+   * Compile the supplied Weka model into an engine. Returns null if there is
+   * no engine for this type of model, or if the model could not be compiled,
+   * in which case the model is used directly.
+   *
+   * PT-BR
+   *
+   * Compila o modelo Weka fornecido em um motor. Retorna null se nao ha motor
+   * para este tipo de modelo, ou se o modelo nao pode ser compilado, caso em
+   * que o modelo e usado diretamente.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return a compiled engine or null
+   *         um motor compilado ou null
+   */
+  static WekaScoringEngine forModel(Object model, Instances header) {
+    return forModel(model, header, 0);
+  }
+
+  /**
+   * Compile the supplied Weka model into an engine, searching approximately
+   * for nearest neighbours if the model is a lazy learner and a recall target
+   * is given.
+   *
+   * PT-BR
+   *
+   * Compila o modelo Weka fornecido em um motor, buscando vizinhos mais
+   * proximos de forma aproximada se o modelo for um aprendiz preguicoso e uma
+   * meta de revocacao for dada.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @param recall the recall target for neighbour search, or 0 for exact
+   *               a meta de revocacao para a busca de vizinhos, ou 0 para
+   *               exata
+   * @return a compiled engine or null
+   *         um motor compilado ou null
+   */
+  static WekaScoringEngine forModel(Object model, Instances header,
+      double recall) {
+    try {
+      WekaScoringEngine engine = WekaScoringEnsembleEngine.compile(model,
+          header);
+      if (engine == null) {
+        engine = WekaScoringMetaEngine.compile(model, header, recall);
+      }
+      if (engine == null) {
+        engine = WekaScoringFilteredEngine.compile(model, header, recall);
+      }
+      if (engine == null) {
+        engine = WekaScoringTreeEngine.compile(model, header);
+      }
+      if (engine == null) {
+        engine = WekaScoringBayesEngine.compile(model, header);
+      }
+      if (engine == null) {
+        engine = WekaScoringLinearEngine.compile(model, header);
+      }
+      if (engine == null) {
+        engine = WekaScoringKernelEngine.compile(model, header);
+      }
+      if (engine == null) {
+        engine = WekaScoringNeuralEngine.compile(model, header);
+      }
+      if (engine == null) {
+        engine = WekaScoringRuleEngine.compile(model, header);
+      }
+      if (engine == null) {
+        engine = WekaScoringTableEngine.compile(model, header);
+      }
+      if (engine == null) {
+        engine = WekaScoringKMeansEngine.compile(model, header);
+      }
+      if (engine == null) {
+        engine = WekaScoringEMEngine.compile(model, header);
+      }
+      if (engine == null) {
+        engine = WekaScoringNeighbourEngine.compile(model, header, recall);
+      }
+      if (engine == null) {
+        engine = WekaScoringPMMLEngine.compile(model, header);
+      }
+      return engine;
+    } catch (Exception ex) {
+      // anything unexpected in the model's internals - let Weka score it
+      // algo inesperado na estrutura do modelo - deixa o Weka pontuar
+      return null;
+    }
+  }
+
+  /**
+   * Get the pool of daemon threads shared by all engines that score in
+   * parallel, one thread per processor.
+   *
+   * PT-BR
+   *
+   * Retorna o pool de threads daemon compartilhado por todos os motores que
+   * pontuam em paralelo, uma thread por processador.
+   *
+   * @return the shared pool
+   *         o pool compartilhado
+   */
+  static synchronized ExecutorService getWorkers() {
+    if (s_workers == null) {
+      s_workers = Executors.newFixedThreadPool(Runtime.getRuntime()
+          .availableProcessors(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Worker(r);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return s_workers;
+  }
+
+  /**
+   * Returns true if the calling thread belongs to the shared pool. An engine
+   * that is itself run on the pool (as the member of a meta classifier) must
+   * score inline: waiting on tasks queued behind it could deadlock the pool.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se a thread que chama pertence ao pool compartilhado.
+   * Um motor que e executado no proprio pool (como membro de um meta
+   * classificador) deve pontuar diretamente: esperar por tarefas enfileiradas
+   * atras dele poderia travar o pool.
+   *
+   * @return true if called from a worker of the shared pool
+   *         verdadeiro se chamado de uma thread do pool compartilhado
+   */
+  static boolean inWorkerThread() {
+    return Thread.currentThread() instanceof Worker;
+  }
+
+  /** a thread of the shared pool
+   *  uma thread do pool compartilhado
+   */
+  private static class Worker extends Thread {
+    Worker(Runnable r) {
+      super(r, "WekaScoring engine worker"); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Blocked matrix multiplication for batch scoring: adds a times the
+   * transpose of b to c. All matrices are row-major; a is rows x inner, b is
+   * cols x inner (one row per output, e.g. the weights of a unit or a
+   * support vector) and c is rows x cols. Blocks of rows and columns are
+   * small enough for the rows of b they use to stay in cache while the block
+   * of a is streamed past them.
+   *
+   * PT-BR
+   *
+   * Multiplicacao de matrizes em blocos para pontuacao em lote: soma a vezes
+   * a transposta de b a c. Todas as matrizes sao armazenadas por linha; a e
+   * rows x inner, b e cols x inner (uma linha por saida, por exemplo os pesos
+   * de uma unidade ou um vetor de suporte) e c e rows x cols. Os blocos de
+   * linhas e colunas sao pequenos o suficiente para que as linhas de b que
+   * usam fiquem em cache enquanto o bloco de a passa por elas.
+   *
+   * @param a the left matrix
+   *          a matriz da esquerda
+   * @param rows the number of rows of a and c
+   *             o numero de linhas de a e c
+   * @param inner the number of columns of a and b
+   *              o numero de colunas de a e b
+   * @param b the right matrix, transposed
+   *          a matriz da direita, transposta
+   * @param cols the number of rows of b and columns of c
+   *             o numero de linhas de b e colunas de c
+   * @param c the result, added to
+   *          o resultado, ao qual e somado
+   */
+  static void multiplyTransposed(double[] a, int rows, int inner, double[] b,
+      int cols, double[] c) {
+    for (int r0 = 0; r0 < rows; r0 += MULTIPLY_BLOCK) {
+      int r1 = Math.min(rows, r0 + MULTIPLY_BLOCK);
+      for (int j0 = 0; j0 < cols; j0 += MULTIPLY_BLOCK) {
+        int j1 = Math.min(cols, j0 + MULTIPLY_BLOCK);
+        for (int r = r0; r < r1; r++) {
+          int ar = r * inner;
+          int cr = r * cols;
+          for (int j = j0; j < j1; j++) {
+            int bj = j * inner;
+            double sum = 0;
+            for (int k = 0; k < inner; k++) {
+              sum += a[ar + k] * b[bj + k];
+            }
+            c[cr + j] += sum;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a (possibly non-public) field of a Weka object. Engines need the
+   * trained structure of models that Weka does not expose.
+   *
+   * PT-BR
+   *
+   * Le um campo (possivelmente nao publico) de um objeto Weka. Os motores
+   * precisam da estrutura treinada de modelos que o Weka nao expoe.
+   *
+   * @param obj the object to read from
+   *            o objeto a ser lido
+   * @param name the name of the field
+   *             o nome do campo
+   * @return the value of the field
+   *         o valor do campo
+   * @throws Exception if the field does not exist
+   *                   se o campo nao existir
+   */
+  static Object getField(Object obj, String name) throws Exception {
+    Class<?> c = obj.getClass();
+    while (c != null) {
+      try {
+        Field f = c.getDeclaredField(name);
+        f.setAccessible(true);
+        return f.get(obj);
+      } catch (NoSuchFieldException ex) {
+        c = c.getSuperclass();
+      }
+    }
+    throw new NoSuchFieldException(name);
+  }
+}
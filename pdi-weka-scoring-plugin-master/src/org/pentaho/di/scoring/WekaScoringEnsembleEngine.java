@@ -0,0 +1,550 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Compiled engine for RandomForest and Bagging ensembles of J48, REPTree or
+ * RandomTree members. All member trees are packed into a single tree engine.
+ * Trees that only have binary numeric splits are evaluated QuickScorer style:
+ * the thresholds of all trees are sorted per attribute, each threshold a row
+ * passes removes the leaves of the left subtree of its node from a leaf
+ * bitvector, and the leftmost leaf left in each tree's bitvector is the exit
+ * leaf. Other trees, and rows with missing values, are evaluated by walking
+ * the packed trees. Large ensembles are split into blocks of trees that score
+ * a batch of rows in parallel; member predictions are always combined in
+ * member order, so the result is exactly that of Weka.
+ *
+ * PT-BR
+ *
+ * Motor compilado para conjuntos RandomForest e Bagging com membros J48,
+ * REPTree ou RandomTree. Todas as arvores membro sao agrupadas em um unico
+ * motor de arvores. Arvores que possuem apenas divisoes numericas binarias sao
+ * avaliadas no estilo QuickScorer: os limiares de todas as arvores sao
+ * ordenados por atributo, cada limiar que uma linha ultrapassa remove as
+ * folhas da subarvore esquerda do seu no de um vetor de bits de folhas, e a
+ * folha mais a esquerda que resta no vetor de cada arvore e a folha de saida.
+ * As demais arvores, e linhas com valores ausentes, sao avaliadas percorrendo
+ * as arvores agrupadas. Conjuntos grandes sao divididos em blocos de arvores
+ * que pontuam um lote de linhas em paralelo; as previsoes dos membros sao
+ * sempre combinadas na ordem dos membros, entao o resultado e exatamente o do
+ * Weka.
+ */
+class WekaScoringEnsembleEngine extends WekaScoringEngine {
+
+  /** smallest ensemble that is split into blocks scored in parallel
+   *  menor conjunto que e dividido em blocos pontuados em paralelo
+   */
+  static final int PARALLEL_MIN_TREES = 64;
+
+  /** smallest number of trees in a parallel block
+   *  menor numero de arvores em um bloco paralelo
+   */
+  static final int MIN_TREES_PER_BLOCK = 32;
+
+  /** smallest batch that is scored in parallel
+   *  menor lote que e pontuado em paralelo
+   */
+  static final int PARALLEL_MIN_ROWS = 16;
+
+  private final WekaScoringTreeEngine m_forest;
+  private final QuickBlock[] m_blocks;
+
+  /**
+   * A contiguous range of member trees with their QuickScorer structures.
+   *
+   * Uma faixa contigua de arvores membro com as suas estruturas QuickScorer.
+   */
+  private static class QuickBlock {
+    final int m_firstTree;
+    final int m_lastTree;
+
+    // per tree: bit of its first leaf, or -1 if the tree is walked instead
+    // por arvore: bit da sua primeira folha, ou -1 se a arvore e percorrida
+    final int[] m_leafBase;
+
+    // per leaf bit: offset of the predicted distribution (-1 for none)
+    // por bit de folha: deslocamento da distribuicao prevista (-1 se nenhuma)
+    final int[] m_leafValue;
+    final long[] m_initialBits;
+
+    // thresholds grouped by attribute, ascending within each attribute
+    // limiares agrupados por atributo, crescentes dentro de cada atributo
+    final int[] m_featureAttribute;
+    final int[] m_featureStart;
+    final double[] m_threshold;
+    final int[] m_clearFrom;
+    final int[] m_clearTo;
+
+    QuickBlock(int firstTree, int lastTree, int[] leafBase, int[] leafValue,
+        List<Threshold> thresholds) {
+      m_firstTree = firstTree;
+      m_lastTree = lastTree;
+      m_leafBase = leafBase;
+      m_leafValue = leafValue;
+
+      int numLeaves = leafValue.length;
+      m_initialBits = new long[(numLeaves + 63) >>> 6];
+      for (int i = 0; i < numLeaves; i++) {
+        m_initialBits[i >>> 6] |= 1L << (i & 63);
+      }
+
+      Collections.sort(thresholds);
+      int numFeatures = 0;
+      for (int i = 0; i < thresholds.size(); i++) {
+        if (i == 0
+            || thresholds.get(i).m_attribute != thresholds.get(i - 1).m_attribute) {
+          numFeatures++;
+        }
+      }
+      m_featureAttribute = new int[numFeatures];
+      m_featureStart = new int[numFeatures + 1];
+      m_threshold = new double[thresholds.size()];
+      m_clearFrom = new int[thresholds.size()];
+      m_clearTo = new int[thresholds.size()];
+      int f = -1;
+      for (int i = 0; i < thresholds.size(); i++) {
+        Threshold t = thresholds.get(i);
+        if (i == 0 || t.m_attribute != thresholds.get(i - 1).m_attribute) {
+          f++;
+          m_featureAttribute[f] = t.m_attribute;
+          m_featureStart[f] = i;
+        }
+        m_threshold[i] = t.m_value;
+        m_clearFrom[i] = t.m_clearFrom;
+        m_clearTo[i] = t.m_clearTo;
+      }
+      m_featureStart[numFeatures] = thresholds.size();
+    }
+
+    /**
+     * Find the leaf offsets of this block's trees for one row.
+     *
+     * Encontra os deslocamentos das folhas das arvores deste bloco para uma
+     * linha.
+     */
+    void leafOffsets(WekaScoringTreeEngine forest, Instance inst, long[] bits,
+        int[] offsets) {
+      System.arraycopy(m_initialBits, 0, bits, 0, m_initialBits.length);
+
+      for (int f = 0; f < m_featureAttribute.length; f++) {
+        double value = inst.value(m_featureAttribute[f]);
+        if (Utils.isMissingValue(value)) {
+          // missing values are spread over several leaves - walk the trees
+          // valores ausentes se espalham por varias folhas - percorre as
+          // arvores
+          for (int t = m_firstTree; t < m_lastTree; t++) {
+            offsets[t] = forest.leafOffset(t, inst);
+          }
+          return;
+        }
+
+        // nodes with threshold <= value send the row right
+        // nos com limiar <= valor enviam a linha para a direita
+        int end = m_featureStart[f + 1];
+        for (int k = m_featureStart[f]; k < end && m_threshold[k] <= value; k++) {
+          clearBits(bits, m_clearFrom[k], m_clearTo[k]);
+        }
+      }
+
+      for (int t = m_firstTree; t < m_lastTree; t++) {
+        int base = m_leafBase[t - m_firstTree];
+        offsets[t] = (base < 0) ? forest.leafOffset(t, inst)
+            : m_leafValue[firstSetBit(bits, base)];
+      }
+    }
+  }
+
+  /**
+   * A split threshold of one node while the blocks are being built
+   *
+   * Um limiar de divisao de um no enquanto os blocos estao sendo construidos
+   */
+  private static class Threshold implements Comparable<Threshold> {
+    final int m_attribute;
+    final double m_value;
+    final int m_clearFrom;
+    final int m_clearTo;
+
+    Threshold(int attribute, double value, int clearFrom, int clearTo) {
+      m_attribute = attribute;
+      m_value = value;
+      m_clearFrom = clearFrom;
+      m_clearTo = clearTo;
+    }
+
+    public int compareTo(Threshold other) {
+      if (m_attribute != other.m_attribute) {
+        return (m_attribute < other.m_attribute) ? -1 : 1;
+      }
+      return Double.compare(m_value, other.m_value);
+    }
+  }
+
+  private WekaScoringEnsembleEngine(WekaScoringTreeEngine forest,
+      int numBlocks) {
+    m_forest = forest;
+
+    int numTrees = forest.numTrees();
+    if (numBlocks <= 0) {
+      numBlocks = 1;
+      if (numTrees >= PARALLEL_MIN_TREES) {
+        numBlocks = Math.max(1, Math.min(Runtime.getRuntime()
+            .availableProcessors(), numTrees / MIN_TREES_PER_BLOCK));
+      }
+    }
+    numBlocks = Math.min(numBlocks, numTrees);
+
+    m_blocks = new QuickBlock[numBlocks];
+    for (int b = 0; b < numBlocks; b++) {
+      m_blocks[b] = buildBlock(b * numTrees / numBlocks, (b + 1) * numTrees
+          / numBlocks);
+    }
+  }
+
+  private QuickBlock buildBlock(int firstTree, int lastTree) {
+    int[] leafBase = new int[lastTree - firstTree];
+    List<Integer> leafValues = new ArrayList<Integer>();
+    List<Threshold> thresholds = new ArrayList<Threshold>();
+
+    for (int t = firstTree; t < lastTree; t++) {
+      if (!isQuickScorable(m_forest.m_roots[t])) {
+        leafBase[t - firstTree] = -1;
+        continue;
+      }
+      leafBase[t - firstTree] = leafValues.size();
+      layout(m_forest.m_roots[t], -1, leafValues, thresholds);
+    }
+
+    int[] leafValue = new int[leafValues.size()];
+    for (int i = 0; i < leafValue.length; i++) {
+      leafValue[i] = leafValues.get(i).intValue();
+    }
+    return new QuickBlock(firstTree, lastTree, leafBase, leafValue, thresholds);
+  }
+
+  /**
+   * Only trees made of "value < split point" binary splits can be scored with
+   * bitvectors.
+   *
+   * Apenas arvores formadas por divisoes binarias "valor < ponto de divisao"
+   * podem ser pontuadas com vetores de bits.
+   */
+  private boolean isQuickScorable(int root) {
+    if (m_forest.m_kind != WekaScoringTreeEngine.KIND_REPTREE) {
+      return false;
+    }
+    List<Integer> stack = new ArrayList<Integer>();
+    stack.add(Integer.valueOf(root));
+    while (!stack.isEmpty()) {
+      int node = stack.remove(stack.size() - 1).intValue();
+      if (m_forest.m_attribute[node] < 0) {
+        continue;
+      }
+      if (m_forest.m_splitType[node] != WekaScoringTreeEngine.NUMERIC_LT
+          || m_forest.m_numChildren[node] != 2) {
+        return false;
+      }
+      stack.add(Integer.valueOf(m_forest.m_firstChild[node]));
+      stack.add(Integer.valueOf(m_forest.m_firstChild[node] + 1));
+    }
+    return true;
+  }
+
+  /**
+   * Number the leaves of a tree from left to right and record, for each split
+   * node, the range of leaves in its left subtree. A leaf predicts the
+   * distribution of the nearest node on its path that has one.
+   *
+   * Numera as folhas de uma arvore da esquerda para a direita e registra,
+   * para cada no de divisao, a faixa de folhas da sua subarvore esquerda. Uma
+   * folha preve a distribuicao do no mais proximo no seu caminho que possui
+   * uma.
+   */
+  private void layout(int node, int fallback, List<Integer> leafValues,
+      List<Threshold> thresholds) {
+    if (m_forest.m_valueOffset[node] >= 0) {
+      fallback = m_forest.m_valueOffset[node];
+    }
+    if (m_forest.m_attribute[node] < 0) {
+      leafValues.add(Integer.valueOf(fallback));
+      return;
+    }
+
+    int left = m_forest.m_firstChild[node];
+    int from = leafValues.size();
+    layout(left, fallback, leafValues, thresholds);
+    thresholds.add(new Threshold(m_forest.m_attribute[node],
+        m_forest.m_splitPoint[node], from, leafValues.size()));
+    layout(left + 1, fallback, leafValues, thresholds);
+  }
+
+  /**
+   * Compile a RandomForest or Bagging model. Returns null for any other model
+   * or if a member can't be compiled.
+   *
+   * PT-BR
+   *
+   * Compila um modelo RandomForest ou Bagging. Retorna null para qualquer
+   * outro modelo ou se um membro nao puder ser compilado.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the ensemble can't be read
+   *                   se a estrutura do conjunto nao puder ser lida
+   */
+  static WekaScoringEnsembleEngine compile(Object model, Instances header)
+      throws Exception {
+    return compile(model, header, 0);
+  }
+
+  /**
+   * Compile a RandomForest or Bagging model, splitting the trees into the
+   * supplied number of blocks (0 to choose from the size of the ensemble and
+   * the number of processors).
+   *
+   * PT-BR
+   *
+   * Compila um modelo RandomForest ou Bagging, dividindo as arvores no numero
+   * de blocos fornecido (0 para escolher pelo tamanho do conjunto e pelo
+   * numero de processadores).
+   */
+  static WekaScoringEnsembleEngine compile(Object model, Instances header,
+      int numBlocks) throws Exception {
+    if (model instanceof RandomForest) {
+      model = getField(model, "m_bagger"); //$NON-NLS-1$
+    }
+    if (!(model instanceof Bagging)) {
+      return null;
+    }
+
+    Classifier[] members = (Classifier[]) getField(model, "m_Classifiers"); //$NON-NLS-1$
+    int numIterations = ((Integer) getField(model, "m_NumIterations")) //$NON-NLS-1$
+        .intValue();
+    if (members == null || numIterations < 1 || numIterations > members.length) {
+      return null;
+    }
+
+    Object[] trees = new Object[numIterations];
+    System.arraycopy(members, 0, trees, 0, numIterations);
+    WekaScoringTreeEngine forest = WekaScoringTreeEngine.compileForest(trees,
+        header);
+    if (forest == null) {
+      return null;
+    }
+
+    return new WekaScoringEnsembleEngine(forest, numBlocks);
+  }
+
+  /**
+   * Returns the number of member trees.
+   *
+   * PT-BR
+   *
+   * Retorna o numero de arvores membro.
+   *
+   * @return the number of trees
+   *         o numero de arvores
+   */
+  int numTrees() {
+    return m_forest.numTrees();
+  }
+
+  /**
+   * Returns the number of blocks that the trees are split into for parallel
+   * scoring.
+   *
+   * PT-BR
+   *
+   * Retorna o numero de blocos em que as arvores sao divididas para a
+   * pontuacao em paralelo.
+   *
+   * @return the number of blocks
+   *         o numero de blocos
+   */
+  int numBlocks() {
+    return m_blocks.length;
+  }
+
+  @Override
+  boolean isBatchPredictor() {
+    return true;
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    int[] offsets = new int[m_forest.numTrees()];
+    long[] bits = null;
+    for (QuickBlock block : m_blocks) {
+      if (bits == null || bits.length < block.m_initialBits.length) {
+        bits = new long[block.m_initialBits.length];
+      }
+      block.leafOffsets(m_forest, inst, bits, offsets);
+    }
+    return combine(inst, offsets);
+  }
+
+  @Override
+  double[][] distributionsForInstances(final Instances insts) throws Exception {
+    final int numRows = insts.numInstances();
+    final int[][] offsets = new int[numRows][m_forest.numTrees()];
+
+    if (m_blocks.length > 1 && numRows >= PARALLEL_MIN_ROWS
+        && !inWorkerThread()) {
+      List<Future<Object>> pending = new ArrayList<Future<Object>>();
+      for (final QuickBlock block : m_blocks) {
+        pending.add(getWorkers().submit(new Callable<Object>() {
+          public Object call() {
+            long[] bits = new long[block.m_initialBits.length];
+            for (int i = 0; i < numRows; i++) {
+              block.leafOffsets(m_forest, insts.instance(i), bits, offsets[i]);
+            }
+            return null;
+          }
+        }));
+      }
+      try {
+        for (Future<Object> f : pending) {
+          f.get();
+        }
+      } catch (ExecutionException ex) {
+        throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause()
+            : ex;
+      }
+    } else {
+      for (QuickBlock block : m_blocks) {
+        long[] bits = new long[block.m_initialBits.length];
+        for (int i = 0; i < numRows; i++) {
+          block.leafOffsets(m_forest, insts.instance(i), bits, offsets[i]);
+        }
+      }
+    }
+
+    double[][] result = new double[numRows][];
+    for (int i = 0; i < numRows; i++) {
+      result[i] = combine(insts.instance(i), offsets[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Combine the member predictions in member order, as Bagging does.
+   *
+   * Combina as previsoes dos membros na ordem dos membros, como o Bagging
+   * faz.
+   */
+  private double[] combine(Instance inst, int[] offsets) throws Exception {
+    boolean numeric = inst.classAttribute().isNumeric();
+    double[] sums = new double[inst.numClasses()];
+    double[] values = m_forest.m_values;
+    int numClasses = m_forest.m_numClasses;
+
+    for (int t = 0; t < offsets.length; t++) {
+      int offset = offsets[t];
+      if (offset == WekaScoringTreeEngine.MISSING) {
+        if (numeric) {
+          sums[0] += m_forest.classifyTree(t, inst);
+        } else {
+          double[] newProbs = m_forest.treeDistribution(t, inst);
+          if (newProbs == null) {
+            throw new Exception("Null distribution predicted"); //$NON-NLS-1$
+          }
+          for (int j = 0; j < newProbs.length; j++) {
+            sums[j] += newProbs[j];
+          }
+        }
+      } else if (offset < 0) {
+        throw new Exception("Null distribution predicted"); //$NON-NLS-1$
+      } else if (numeric) {
+        sums[0] += values[offset];
+      } else {
+        for (int j = 0; j < numClasses; j++) {
+          sums[j] += values[offset + j];
+        }
+      }
+    }
+
+    if (numeric) {
+      sums[0] /= offsets.length;
+      return sums;
+    }
+    if (Utils.eq(Utils.sum(sums), 0)) {
+      return sums;
+    }
+    Utils.normalize(sums);
+    return sums;
+  }
+
+  /**
+   * Clear the bits from (inclusive) to to (exclusive).
+   *
+   * Limpa os bits de from (inclusive) ate to (exclusive).
+   */
+  static void clearBits(long[] bits, int from, int to) {
+    if (from >= to) {
+      return;
+    }
+    int first = from >>> 6;
+    int last = (to - 1) >>> 6;
+    long firstMask = -1L << (from & 63);
+    long lastMask = -1L >>> (63 - ((to - 1) & 63));
+    if (first == last) {
+      bits[first] &= ~(firstMask & lastMask);
+      return;
+    }
+    bits[first] &= ~firstMask;
+    for (int w = first + 1; w < last; w++) {
+      bits[w] = 0;
+    }
+    bits[last] &= ~lastMask;
+  }
+
+  /**
+   * Index of the first set bit at or after from. The rightmost leaf of a tree
+   * is never cleared, so there always is one.
+   *
+   * Indice do primeiro bit ligado em ou apos from. A folha mais a direita de
+   * uma arvore nunca e limpa, entao sempre ha um.
+   */
+  static int firstSetBit(long[] bits, int from) {
+    int w = from >>> 6;
+    long word = bits[w] & (-1L << (from & 63));
+    while (word == 0) {
+      word = bits[++w];
+    }
+    return (w << 6) + Long.numberOfTrailingZeros(word);
+  }
+}
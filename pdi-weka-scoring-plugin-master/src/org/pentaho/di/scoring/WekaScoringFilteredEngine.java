@@ -0,0 +1,233 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.filters.Filter;
+
+/**
+ * Engine for a FilteredClassifier whose filter compiles into a
+ * WekaScoringPreprocessor or, for a StringToWordVector, a
+ * WekaScoringTextVectorizer. Instances built against the unfiltered header
+ * are transformed here; instances the step has already transformed while
+ * converting the row (recognised by their header) go straight to the
+ * classifier behind the filter, itself compiled into an engine where one
+ * exists.
+ *
+ * PT-BR
+ *
+ * Motor para um FilteredClassifier cujo filtro compila em um
+ * WekaScoringPreprocessor ou, para um StringToWordVector, um
+ * WekaScoringTextVectorizer. Instancias construidas com o cabecalho nao
+ * filtrado sao transformadas aqui; instancias que o step (passo) ja
+ * transformou enquanto convertia a linha (reconhecidas pelo seu cabecalho)
+ * vao direto para o classificador depois do filtro, ele proprio compilado em
+ * um motor onde existe um.
+ */
+class WekaScoringFilteredEngine extends WekaScoringEngine {
+
+  // exactly one of the two is set
+  // exatamente um dos dois e definido
+  private final WekaScoringPreprocessor m_preprocessor;
+  private final WekaScoringTextVectorizer m_vectorizer;
+  private final WekaScoringMetaEngine.Member m_classifier;
+
+  WekaScoringFilteredEngine(WekaScoringPreprocessor preprocessor,
+      WekaScoringTextVectorizer vectorizer,
+      WekaScoringMetaEngine.Member classifier) {
+    m_preprocessor = preprocessor;
+    m_vectorizer = vectorizer;
+    m_classifier = classifier;
+  }
+
+  /**
+   * Compile a FilteredClassifier. Returns null for any other model, or if
+   * its filter is not supported.
+   *
+   * PT-BR
+   *
+   * Compila um FilteredClassifier. Retorna null para qualquer outro modelo,
+   * ou se o seu filtro nao e suportado.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @param recall the recall target for a classifier that searches for
+   *               neighbours
+   *               a meta de revocacao para um classificador que busca
+   *               vizinhos
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the model can't be read
+   *                   se a estrutura do modelo nao puder ser lida
+   */
+  static WekaScoringFilteredEngine compile(Object model, Instances header,
+      double recall) throws Exception {
+    if (model == null || model.getClass() != FilteredClassifier.class) {
+      return null;
+    }
+    Instances filtered = (Instances) getField(model, "m_FilteredInstances"); //$NON-NLS-1$
+    Filter filter = ((FilteredClassifier) model).getFilter();
+    Classifier classifier = ((FilteredClassifier) model).getClassifier();
+    if (filtered == null || filter == null || classifier == null) {
+      return null;
+    }
+
+    WekaScoringPreprocessor preprocessor;
+    WekaScoringTextVectorizer vectorizer = null;
+    synchronized (model) {
+      preprocessor = WekaScoringPreprocessor.compile(filter, header,
+          filtered);
+      if (preprocessor == null) {
+        vectorizer = WekaScoringTextVectorizer.compile(filter, header,
+            filtered);
+      }
+    }
+    if (preprocessor == null && vectorizer == null) {
+      return null;
+    }
+    Instances outputFormat = (preprocessor != null) ? preprocessor
+        .getOutputFormat() : vectorizer.getOutputFormat();
+    return new WekaScoringFilteredEngine(preprocessor, vectorizer,
+        new WekaScoringMetaEngine.Member(classifier, outputFormat, recall));
+  }
+
+  /**
+   * Get the transforms that the step can run while converting a row.
+   *
+   * PT-BR
+   *
+   * Retorna as transformacoes que o step (passo) pode executar enquanto
+   * converte uma linha.
+   *
+   * @return the compiled filter
+   *         o filtro compilado
+   */
+  WekaScoringPreprocessor getPreprocessor() {
+    return m_preprocessor;
+  }
+
+  /**
+   * Get the word vectorizer that the step can hand the text of a row to.
+   *
+   * PT-BR
+   *
+   * Retorna o vetorizador de palavras ao qual o step (passo) pode entregar o
+   * texto de uma linha.
+   *
+   * @return the compiled StringToWordVector, or null
+   *         o StringToWordVector compilado, ou null
+   */
+  WekaScoringTextVectorizer getTextVectorizer() {
+    return m_vectorizer;
+  }
+
+  private Instance filtered(Instance inst) throws Exception {
+    if (m_vectorizer != null) {
+      return m_vectorizer.isTransformed(inst.dataset()) ? inst : m_vectorizer
+          .transform(inst);
+    }
+    return m_preprocessor.isTransformed(inst.dataset()) ? inst
+        : m_preprocessor.transform(inst);
+  }
+
+  private Instances filtered(Instances insts) throws Exception {
+    Instances batch;
+    if (m_vectorizer != null) {
+      if (m_vectorizer.isTransformed(insts)) {
+        return insts;
+      }
+      batch = m_vectorizer.newBatch(insts.numInstances());
+    } else {
+      if (m_preprocessor.isTransformed(insts)) {
+        return insts;
+      }
+      batch = m_preprocessor.newBatch(insts.numInstances());
+    }
+    for (int i = 0; i < insts.numInstances(); i++) {
+      batch.add(filtered(insts.instance(i)));
+    }
+    return batch;
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    return m_classifier.distribution(filtered(inst));
+  }
+
+  @Override
+  double[] labelDistributionForInstance(Instance inst) throws Exception {
+    WekaScoringEngine engine = m_classifier.m_engine;
+    if (engine != null) {
+      return engine.labelDistributionForInstance(filtered(inst));
+    }
+    return distributionForInstance(inst);
+  }
+
+  @Override
+  double classifyInstance(Instance inst) throws Exception {
+    WekaScoringEngine engine = m_classifier.m_engine;
+    if (engine != null) {
+      return engine.classifyInstance(filtered(inst));
+    }
+    return super.classifyInstance(inst);
+  }
+
+  @Override
+  boolean isBatchPredictor() {
+    return m_classifier.m_engine != null
+        && m_classifier.m_engine.isBatchPredictor();
+  }
+
+  @Override
+  boolean searchesNeighbours() {
+    return m_classifier.searchesNeighbours();
+  }
+
+  @Override
+  double[][] distributionsForInstances(Instances insts) throws Exception {
+    WekaScoringEngine engine = m_classifier.m_engine;
+    if (engine != null) {
+      return engine.distributionsForInstances(filtered(insts));
+    }
+    return super.distributionsForInstances(insts);
+  }
+
+  @Override
+  double[] classifyInstances(Instances insts) throws Exception {
+    WekaScoringEngine engine = m_classifier.m_engine;
+    if (engine != null) {
+      return engine.classifyInstances(filtered(insts));
+    }
+    return super.classifyInstances(insts);
+  }
+
+  @Override
+  double[][] labelDistributionsForInstances(Instances insts) throws Exception {
+    WekaScoringEngine engine = m_classifier.m_engine;
+    if (engine != null) {
+      return engine.labelDistributionsForInstances(filtered(insts));
+    }
+    return super.labelDistributionsForInstances(insts);
+  }
+}
@@ -0,0 +1,456 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import weka.clusterers.SimpleKMeans;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+
+/**
+ * Compiled engine for SimpleKMeans with the Euclidean distance. The centroids
+ * are normalized once and stored as one row-major matrix with a row per
+ * cluster, and the replacement of missing values is reduced to one value per
+ * attribute. An instance is normalized once and compared with the centroids
+ * using the same partial sums as Weka: a centroid is abandoned as soon as its
+ * partial distance is larger than the best one so far, and centroids that the
+ * triangle inequality places too far from the best centroid are not visited
+ * at all. The search starts from a seed centroid (the cluster of the previous
+ * row of a batch) so that the bound is tight early; ties still go to the
+ * first cluster, so the assignments are the same as Weka's.
+ *
+ * PT-BR
+ *
+ * Motor compilado para o SimpleKMeans com a distancia Euclidiana. Os
+ * centroides sao normalizados uma vez e armazenados como uma matriz por
+ * linhas com uma linha por grupo, e a substituicao de valores ausentes e
+ * reduzida a um valor por atributo. Uma instancia e normalizada uma vez e
+ * comparada com os centroides usando as mesmas somas parciais do Weka: um
+ * centroide e abandonado assim que a sua distancia parcial e maior que a
+ * melhor ate o momento, e centroides que a desigualdade triangular coloca
+ * longe demais do melhor centroide nao sao visitados. A busca comeca por um
+ * centroide semente (o grupo da linha anterior de um lote) para que o limite
+ * fique justo cedo; empates continuam indo para o primeiro grupo, entao as
+ * atribuicoes sao as mesmas do Weka.
+ */
+class WekaScoringKMeansEngine extends WekaScoringEngine {
+
+  /** the starting distance bound used by SimpleKMeans
+   *  o limite inicial de distancia usado pelo SimpleKMeans
+   */
+  private static final double MAX_DISTANCE = 2.147483647E9;
+
+  /** relative slack allowed for rounding in the triangle inequality test
+   *  folga relativa permitida para arredondamentos no teste da desigualdade
+   *  triangular
+   */
+  private static final double PRUNE_MARGIN = 1e-6;
+
+  private final int m_numClusters;
+
+  // compared attributes: index in the instance and nominal flag
+  // atributos comparados: indice na instancia e indicador nominal
+  private final int[] m_attIndex;
+  private final boolean[] m_nominal;
+
+  // normalization (Weka's m_Ranges) and replacement values (NaN if none)
+  // normalizacao (m_Ranges do Weka) e valores de substituicao (NaN se nenhum)
+  private final boolean m_normalize;
+  private final double[] m_min;
+  private final double[] m_max;
+  private final double[] m_width;
+  private final double[] m_replace;
+
+  // normalized centroids, row-major, NaN where a centroid value is missing
+  // centroides normalizados, por linha, NaN onde falta um valor do centroide
+  private final double[] m_centroids;
+  private final boolean[] m_centroidMissing;
+
+  // squared distances between centroids (null if pruning is off)
+  // distancias ao quadrado entre centroides (null se a poda esta desligada)
+  private final double[] m_between;
+
+  private WekaScoringKMeansEngine(int numClusters, int[] attIndex,
+      boolean[] nominal, boolean normalize, double[] min, double[] max,
+      double[] width, double[] replace, double[] centroids,
+      boolean[] centroidMissing, boolean pruning) {
+    m_numClusters = numClusters;
+    m_attIndex = attIndex;
+    m_nominal = nominal;
+    m_normalize = normalize;
+    m_min = min;
+    m_max = max;
+    m_width = width;
+    m_replace = replace;
+    m_centroids = centroids;
+    m_centroidMissing = centroidMissing;
+
+    if (pruning) {
+      m_between = new double[numClusters * numClusters];
+      for (int i = 0; i < numClusters; i++) {
+        for (int j = i + 1; j < numClusters; j++) {
+          double d = fastDistance(m_centroids, i * attIndex.length, j,
+              Double.POSITIVE_INFINITY);
+          m_between[i * numClusters + j] = d;
+          m_between[j * numClusters + i] = d;
+        }
+      }
+    } else {
+      m_between = null;
+    }
+  }
+
+  /**
+   * Compile a SimpleKMeans clusterer. Returns null for other models and for
+   * clusterers that use a distance function other than the Euclidean one.
+   *
+   * PT-BR
+   *
+   * Compila um agrupador SimpleKMeans. Retorna null para outros modelos e
+   * para agrupadores que usam uma funcao de distancia diferente da
+   * Euclidiana.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the model can't be read
+   *                   se a estrutura do modelo nao puder ser lida
+   */
+  static WekaScoringKMeansEngine compile(Object model, Instances header)
+      throws Exception {
+    if (model.getClass() != SimpleKMeans.class) {
+      return null;
+    }
+    SimpleKMeans kMeans = (SimpleKMeans) model;
+    Object distance = kMeans.getDistanceFunction();
+    Instances centroids = kMeans.getClusterCentroids();
+    if (distance == null || distance.getClass() != EuclideanDistance.class
+        || centroids == null || centroids.numInstances() == 0) {
+      return null;
+    }
+
+    Instances data = (Instances) getField(distance, "m_Data"); //$NON-NLS-1$
+    double[][] ranges = (double[][]) getField(distance, "m_Ranges"); //$NON-NLS-1$
+    boolean[] active = (boolean[]) getField(distance, "m_ActiveIndices"); //$NON-NLS-1$
+    boolean dontNormalize = ((Boolean) getField(distance, "m_DontNormalize")) //$NON-NLS-1$
+        .booleanValue();
+    if (data == null || ranges == null || active == null
+        || data.numAttributes() != centroids.numAttributes()) {
+      return null;
+    }
+
+    // the attributes that the distance function compares, in its order
+    // os atributos que a funcao de distancia compara, na sua ordem
+    int numAtts = 0;
+    int[] attIndex = new int[data.numAttributes()];
+    for (int i = 0; i < data.numAttributes(); i++) {
+      Attribute att = data.attribute(i);
+      if (i != data.classIndex() && active[i]
+          && (att.isNumeric() && !att.isDate() || att.isNominal())) {
+        attIndex[numAtts++] = i;
+      }
+    }
+    int[] compared = new int[numAtts];
+    System.arraycopy(attIndex, 0, compared, 0, numAtts);
+
+    boolean[] nominal = new boolean[numAtts];
+    double[] min = new double[numAtts];
+    double[] max = new double[numAtts];
+    double[] width = new double[numAtts];
+    double[] replace = new double[numAtts];
+    for (int j = 0; j < numAtts; j++) {
+      int i = compared[j];
+      nominal[j] = data.attribute(i).isNominal();
+      min[j] = ranges[i][0];
+      max[j] = ranges[i][1];
+      width[j] = ranges[i][2];
+      replace[j] = Utils.missingValue();
+    }
+
+    // SimpleKMeans replaces missing values with the means and modes of the
+    // training data; push a row of missing values through its filter to get
+    // them
+    // O SimpleKMeans substitui valores ausentes pelas medias e modas dos
+    // dados de treino; passa uma linha de valores ausentes pelo seu filtro
+    // para obte-los
+    if (!kMeans.getDontReplaceMissingValues()) {
+      ReplaceMissingValues filter = (ReplaceMissingValues) getField(model,
+          "m_ReplaceMissingFilter"); //$NON-NLS-1$
+      Instance probe = new DenseInstance(data.numAttributes());
+      probe.setDataset(filter.getOutputFormat());
+      Instance replaced;
+      synchronized (model) {
+        filter.input(probe);
+        filter.batchFinished();
+        replaced = filter.output();
+      }
+      for (int j = 0; j < numAtts; j++) {
+        replace[j] = replaced.value(compared[j]);
+      }
+    }
+
+    WekaScoringKMeansEngine prototype = new WekaScoringKMeansEngine(0,
+        compared, nominal, !dontNormalize, min, max, width, replace, null,
+        null, false);
+    int k = centroids.numInstances();
+    double[] matrix = new double[k * numAtts];
+    boolean[] centroidMissing = new boolean[k];
+    boolean pruning = true;
+    for (int c = 0; c < k; c++) {
+      centroidMissing[c] = prototype.transform(centroids.instance(c), matrix,
+          c * numAtts, false);
+      pruning &= !centroidMissing[c];
+    }
+
+    return new WekaScoringKMeansEngine(k, compared, nominal, !dontNormalize,
+        min, max, width, replace, matrix, centroidMissing, pruning);
+  }
+
+  @Override
+  boolean isBatchPredictor() {
+    return true;
+  }
+
+  @Override
+  double classifyInstance(Instance inst) throws Exception {
+    double[] x = new double[m_attIndex.length];
+    boolean missing = transform(inst, x, 0, true);
+    return nearest(x, missing, -1);
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    // the distribution of a clusterer without probabilities, as
+    // AbstractClusterer builds it
+    // a distribuicao de um agrupador sem probabilidades, como o
+    // AbstractClusterer a constroi
+    double[] dist = new double[m_numClusters];
+    dist[(int) classifyInstance(inst)] = 1.0;
+    return dist;
+  }
+
+  @Override
+  double[] classifyInstances(Instances insts) throws Exception {
+    double[] x = new double[m_attIndex.length];
+    double[] result = new double[insts.numInstances()];
+    int seed = -1;
+    for (int r = 0; r < result.length; r++) {
+      boolean missing = transform(insts.instance(r), x, 0, true);
+      seed = nearest(x, missing, seed);
+      result[r] = seed;
+    }
+    return result;
+  }
+
+  @Override
+  double[][] distributionsForInstances(Instances insts) throws Exception {
+    double[] x = new double[m_attIndex.length];
+    double[][] result = new double[insts.numInstances()][];
+    int seed = -1;
+    for (int r = 0; r < result.length; r++) {
+      boolean missing = transform(insts.instance(r), x, 0, true);
+      seed = nearest(x, missing, seed);
+      result[r] = new double[m_numClusters];
+      result[r][seed] = 1.0;
+    }
+    return result;
+  }
+
+  /**
+   * Normalize the compared values of an instance into a row of a matrix.
+   * Missing values are replaced first if the clusterer does so, and are NaN
+   * otherwise.
+   *
+   * Normaliza os valores comparados de uma instancia em uma linha de uma
+   * matriz. Valores ausentes sao substituidos antes se o agrupador o faz, e
+   * sao NaN caso contrario.
+   *
+   * @return true if a value is still missing
+   *         verdadeiro se ainda falta algum valor
+   */
+  private boolean transform(Instance inst, double[] row, int offset,
+      boolean replace) {
+    boolean missing = false;
+    for (int j = 0; j < m_attIndex.length; j++) {
+      double v = inst.value(m_attIndex[j]);
+      if (Utils.isMissingValue(v) && replace) {
+        v = m_replace[j];
+      }
+      if (Utils.isMissingValue(v)) {
+        missing = true;
+      } else if (!m_nominal[j] && m_normalize) {
+        // Weka's norm()
+        // o norm() do Weka
+        v = (Double.isNaN(m_min[j]) || m_max[j] == m_min[j]) ? 0
+            : (v - m_min[j]) / m_width[j];
+      }
+      row[offset + j] = v;
+    }
+    return missing;
+  }
+
+  /**
+   * Find the nearest centroid the way SimpleKMeans does: the first cluster
+   * with the smallest distance, or cluster 0 if none is closer than Weka's
+   * starting bound.
+   *
+   * Encontra o centroide mais proximo como o SimpleKMeans faz: o primeiro
+   * grupo com a menor distancia, ou o grupo 0 se nenhum estiver mais perto
+   * que o limite inicial do Weka.
+   */
+  private int nearest(double[] x, boolean missing, int seed) {
+    boolean prune = m_between != null && !missing;
+    double best = MAX_DISTANCE;
+    int bestIndex = 0;
+    boolean found = false;
+    if (seed >= 0) {
+      double d = distance(x, missing, seed, MAX_DISTANCE);
+      if (d < best) {
+        best = d;
+        bestIndex = seed;
+        found = true;
+      }
+    }
+    for (int i = 0; i < m_numClusters; i++) {
+      if (i == seed) {
+        continue;
+      }
+      // if d(best, i) > 2 d(x, best) then d(x, i) > d(x, best)
+      // se d(melhor, i) > 2 d(x, melhor) entao d(x, i) > d(x, melhor)
+      if (prune && found
+          && m_between[bestIndex * m_numClusters + i] > 4 * best
+              * (1 + PRUNE_MARGIN)) {
+        continue;
+      }
+      double d = missing || m_centroidMissing[i] ? distance(x, missing, i,
+          best) : fastDistance(x, 0, i, best);
+      if (d < best || (d == best && found && i < bestIndex)) {
+        best = d;
+        bestIndex = i;
+        found = true;
+      }
+    }
+    return bestIndex;
+  }
+
+  /**
+   * Squared distance between a row and a centroid when neither has missing
+   * values, abandoned (positive infinity) once the partial sum exceeds the
+   * cutoff.
+   *
+   * Distancia ao quadrado entre uma linha e um centroide quando nenhum dos
+   * dois tem valores ausentes, abandonada (infinito positivo) assim que a
+   * soma parcial passa do limite.
+   */
+  private double fastDistance(double[] x, int offset, int centroid,
+      double cutoff) {
+    int numAtts = m_attIndex.length;
+    int c = centroid * numAtts;
+    double sum = 0;
+    for (int j = 0; j < numAtts; j++) {
+      double diff;
+      if (m_nominal[j]) {
+        diff = ((int) x[offset + j] != (int) m_centroids[c + j]) ? 1 : 0;
+      } else {
+        diff = x[offset + j] - m_centroids[c + j];
+      }
+      sum += diff * diff;
+      if (sum > cutoff) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * The difference between two (normalized) values of an attribute as
+   * NormalizableDistance computes it, including its rules for missing values.
+   *
+   * A diferenca entre dois valores (normalizados) de um atributo como o
+   * NormalizableDistance a calcula, incluindo as suas regras para valores
+   * ausentes.
+   *
+   * @param nominal true for a nominal attribute
+   *                verdadeiro para um atributo nominal
+   * @param normalize true if numeric values are normalized
+   *                  verdadeiro se os valores numericos sao normalizados
+   * @param v1 the first value (NaN if missing)
+   *           o primeiro valor (NaN se ausente)
+   * @param v2 the second value (NaN if missing)
+   *           o segundo valor (NaN se ausente)
+   * @param min the smallest value of the attribute
+   *            o menor valor do atributo
+   * @param max the largest value of the attribute
+   *            o maior valor do atributo
+   * @return the difference
+   *         a diferenca
+   */
+  static double difference(boolean nominal, boolean normalize, double v1,
+      double v2, double min, double max) {
+    boolean missing1 = Utils.isMissingValue(v1);
+    boolean missing2 = Utils.isMissingValue(v2);
+    if (nominal) {
+      return (missing1 || missing2 || (int) v1 != (int) v2) ? 1 : 0;
+    }
+    if (missing1 && missing2) {
+      return normalize ? 1 : max - min;
+    }
+    if (missing1 || missing2) {
+      double d = missing1 ? v2 : v1;
+      if (normalize) {
+        return (d < 0.5) ? 1.0 - d : d;
+      }
+      return (max - d > d - min) ? max - d : d - min;
+    }
+    return v1 - v2;
+  }
+
+  /**
+   * Squared distance between a row and a centroid, applying Weka's rules for
+   * missing values.
+   *
+   * Distancia ao quadrado entre uma linha e um centroide, aplicando as regras
+   * do Weka para valores ausentes.
+   */
+  private double distance(double[] x, boolean missing, int centroid,
+      double cutoff) {
+    if (!missing && !m_centroidMissing[centroid]) {
+      return fastDistance(x, 0, centroid, cutoff);
+    }
+    int numAtts = m_attIndex.length;
+    int c = centroid * numAtts;
+    double sum = 0;
+    for (int j = 0; j < numAtts; j++) {
+      double diff = difference(m_nominal[j], m_normalize, x[j],
+          m_centroids[c + j], m_min[j], m_max[j]);
+      sum += diff * diff;
+      if (sum > cutoff) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,414 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import weka.classifiers.functions.SMO;
+import weka.classifiers.functions.supportVector.Kernel;
+import weka.classifiers.functions.supportVector.PolyKernel;
+import weka.classifiers.functions.supportVector.RBFKernel;
+import weka.classifiers.functions.supportVector.SMOset;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+
+/**
+ * Compiled engine for SMO with an RBF or polynomial kernel. The model's
+ * preprocessing is folded into an affine map (see WekaScoringLinearEngine),
+ * and the support vectors of all the pairwise machines are stored once each
+ * in one row-major matrix, so a support vector shared by several machines is
+ * only compared with a row once. A batch of rows is compared with all the
+ * support vectors with one blocked matrix multiplication, the kernel is
+ * applied to the dot products and each machine adds up its coefficients
+ * before voting as SMO does.
+ *
+ * PT-BR
+ *
+ * Motor compilado para SMO com kernel RBF ou polinomial. O
+ * pre-processamento do modelo e incorporado em um mapa afim (veja
+ * WekaScoringLinearEngine), e os vetores de suporte de todas as maquinas de
+ * pares sao armazenados uma vez cada em uma matriz por linhas, de modo que
+ * um vetor de suporte compartilhado por varias maquinas so e comparado com
+ * uma linha uma vez. Um lote de linhas e comparado com todos os vetores de
+ * suporte com uma multiplicacao de matrizes em blocos, o kernel e aplicado
+ * aos produtos escalares e cada maquina soma os seus coeficientes antes de
+ * votar como o SMO faz.
+ */
+class WekaScoringKernelEngine extends WekaScoringEngine {
+
+  /** kernel types / tipos de kernel */
+  static final int KERNEL_RBF = 0;
+  static final int KERNEL_POLY = 1;
+
+  private final WekaScoringLinearEngine m_features;
+  private final int m_numFeatures;
+
+  private final int m_kernel;
+  private final double m_gamma;
+  private final double m_exponent;
+  private final boolean m_lowerOrder;
+
+  // unique support vectors (row-major) and their dot products with
+  // themselves
+  // vetores de suporte unicos (por linha) e seus produtos escalares com eles
+  // mesmos
+  private final double[] m_supportVectors;
+  private final double[] m_selfDot;
+  private final int m_numSupportVectors;
+
+  // pairwise machines: classes, bias and coefficients (class times alpha)
+  // of their support vectors
+  // maquinas de pares: classes, vies e coeficientes (classe vezes alfa) dos
+  // seus vetores de suporte
+  private final int m_numClasses;
+  private final int[] m_pairFirst;
+  private final int[] m_pairSecond;
+  private final double[] m_b;
+  private final int[] m_pairStart;
+  private final int[] m_vectorIndex;
+  private final double[] m_coefficient;
+
+  /**
+   * Key for finding identical support vectors
+   *
+   * Chave para encontrar vetores de suporte identicos
+   */
+  private static class VectorKey {
+    final double[] m_values;
+
+    VectorKey(double[] values) {
+      m_values = values;
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(m_values);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof VectorKey
+          && Arrays.equals(m_values, ((VectorKey) other).m_values);
+    }
+  }
+
+  private WekaScoringKernelEngine(WekaScoringLinearEngine features,
+      Kernel kernel, int numClasses, List<double[]> vectors, int[] pairFirst,
+      int[] pairSecond, double[] b, int[] pairStart, int[] vectorIndex,
+      double[] coefficient) {
+    m_features = features;
+    m_numFeatures = features.numOutputs();
+    if (kernel instanceof RBFKernel) {
+      m_kernel = KERNEL_RBF;
+      m_gamma = ((RBFKernel) kernel).getGamma();
+      m_exponent = 1;
+      m_lowerOrder = false;
+    } else {
+      m_kernel = KERNEL_POLY;
+      m_gamma = 0;
+      m_exponent = ((PolyKernel) kernel).getExponent();
+      m_lowerOrder = ((PolyKernel) kernel).getUseLowerOrder();
+    }
+    m_numClasses = numClasses;
+    m_pairFirst = pairFirst;
+    m_pairSecond = pairSecond;
+    m_b = b;
+    m_pairStart = pairStart;
+    m_vectorIndex = vectorIndex;
+    m_coefficient = coefficient;
+
+    m_numSupportVectors = vectors.size();
+    m_supportVectors = new double[m_numSupportVectors * m_numFeatures];
+    m_selfDot = new double[m_numSupportVectors];
+    for (int i = 0; i < m_numSupportVectors; i++) {
+      double[] v = vectors.get(i);
+      System.arraycopy(v, 0, m_supportVectors, i * m_numFeatures,
+          m_numFeatures);
+      m_selfDot[i] = dot(v, 0, v, 0, m_numFeatures);
+    }
+  }
+
+  /**
+   * Compile an SMO model with an RBF or polynomial kernel (without logistic
+   * models fitted to the outputs). Returns null for other models.
+   *
+   * PT-BR
+   *
+   * Compila um modelo SMO com kernel RBF ou polinomial (sem modelos
+   * logisticos ajustados as saidas). Retorna null para outros modelos.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the model can't be read
+   *                   se a estrutura do modelo nao puder ser lida
+   */
+  static WekaScoringKernelEngine compile(Object model, Instances header)
+      throws Exception {
+    if (model.getClass() != SMO.class || header == null
+        || header.classIndex() < 0 || !header.classAttribute().isNominal()
+        || ((Boolean) getField(model, "m_KernelIsLinear")).booleanValue() //$NON-NLS-1$
+        || ((Boolean) getField(model, "m_fitLogisticModels")).booleanValue()) { //$NON-NLS-1$
+      return null;
+    }
+    int numClasses = header.numClasses();
+    Object[][] machines = (Object[][]) getField(model, "m_classifiers"); //$NON-NLS-1$
+    if (machines == null) {
+      return null;
+    }
+
+    Kernel kernel = null;
+    Map<VectorKey, Integer> unique = new HashMap<VectorKey, Integer>();
+    List<double[]> vectors = new ArrayList<double[]>();
+    List<int[]> pairs = new ArrayList<int[]>();
+    List<Double> biases = new ArrayList<Double>();
+    List<Integer> starts = new ArrayList<Integer>();
+    List<Integer> vectorIndex = new ArrayList<Integer>();
+    List<Double> coefficients = new ArrayList<Double>();
+
+    for (int i = 0; i < numClasses; i++) {
+      for (int j = i + 1; j < numClasses; j++) {
+        Object machine = machines[i][j];
+        double[] alpha = (double[]) getField(machine, "m_alpha"); //$NON-NLS-1$
+        if (alpha == null) {
+          if (getField(machine, "m_sparseWeights") != null) { //$NON-NLS-1$
+            return null;
+          }
+          continue;
+        }
+        Kernel k = (Kernel) getField(machine, "m_kernel"); //$NON-NLS-1$
+        if (k.getClass() != RBFKernel.class && k.getClass() != PolyKernel.class) {
+          return null;
+        }
+        if (kernel == null) {
+          kernel = k;
+        } else if (!sameKernel(kernel, k)) {
+          return null;
+        }
+
+        pairs.add(new int[] { i, j });
+        biases.add((Double) getField(machine, "m_b")); //$NON-NLS-1$
+        starts.add(Integer.valueOf(coefficients.size()));
+        double[] classes = (double[]) getField(machine, "m_class"); //$NON-NLS-1$
+        SMOset supportVectors = (SMOset) getField(machine, "m_supportVectors"); //$NON-NLS-1$
+        Instances data = (Instances) getField(k, "m_data"); //$NON-NLS-1$
+        for (int s = supportVectors.getNext(-1); s != -1; s = supportVectors
+            .getNext(s)) {
+          double[] v = features(data.instance(s));
+          VectorKey key = new VectorKey(v);
+          Integer index = unique.get(key);
+          if (index == null) {
+            index = Integer.valueOf(vectors.size());
+            unique.put(key, index);
+            vectors.add(v);
+          }
+          vectorIndex.add(index);
+          coefficients.add(Double.valueOf(classes[s] * alpha[s]));
+        }
+      }
+    }
+    if (kernel == null) {
+      return null;
+    }
+
+    Filter[] filters = WekaScoringLinearEngine.filters(model,
+        "m_NominalToBinary", "m_Filter"); //$NON-NLS-1$ //$NON-NLS-2$
+    if (!((Boolean) getField(model, "m_checksTurnedOff")).booleanValue()) { //$NON-NLS-1$
+      filters = new Filter[] { (Filter) getField(model, "m_Missing"), //$NON-NLS-1$
+          filters[0], filters[1] };
+    }
+    final Filter[] smoFilters = filters;
+    WekaScoringLinearEngine features;
+    synchronized (model) {
+      features = WekaScoringLinearEngine.affine(header,
+          new WekaScoringLinearEngine.Probe() {
+            @Override
+            double[] scores(Instance inst) throws Exception {
+              return features(WekaScoringLinearEngine.filter(smoFilters, inst,
+                  true));
+            }
+          });
+    }
+    for (double[] v : vectors) {
+      if (v.length != features.numOutputs()) {
+        return null;
+      }
+    }
+
+    int[] first = new int[pairs.size()];
+    int[] second = new int[pairs.size()];
+    double[] b = new double[pairs.size()];
+    int[] pairStart = new int[pairs.size() + 1];
+    for (int p = 0; p < first.length; p++) {
+      first[p] = pairs.get(p)[0];
+      second[p] = pairs.get(p)[1];
+      b[p] = biases.get(p).doubleValue();
+      pairStart[p] = starts.get(p).intValue();
+    }
+    pairStart[first.length] = coefficients.size();
+    int[] index = new int[vectorIndex.size()];
+    double[] coefficient = new double[coefficients.size()];
+    for (int c = 0; c < index.length; c++) {
+      index[c] = vectorIndex.get(c).intValue();
+      coefficient[c] = coefficients.get(c).doubleValue();
+    }
+
+    return new WekaScoringKernelEngine(features, kernel, numClasses, vectors,
+        first, second, b, pairStart, index, coefficient);
+  }
+
+  private static boolean sameKernel(Kernel a, Kernel b) {
+    if (a.getClass() != b.getClass()) {
+      return false;
+    }
+    if (a instanceof RBFKernel) {
+      return ((RBFKernel) a).getGamma() == ((RBFKernel) b).getGamma();
+    }
+    return ((PolyKernel) a).getExponent() == ((PolyKernel) b).getExponent()
+        && ((PolyKernel) a).getUseLowerOrder() == ((PolyKernel) b)
+            .getUseLowerOrder();
+  }
+
+  /**
+   * The values of a (preprocessed) instance other than the class, which is
+   * what the kernels take dot products of.
+   *
+   * PT-BR
+   *
+   * Os valores de uma instancia (pre-processada) exceto a classe, que e do
+   * que os kernels calculam produtos escalares.
+   */
+  private static double[] features(Instance inst) {
+    int classIndex = inst.classIndex();
+    double[] v = new double[inst.numAttributes() - (classIndex >= 0 ? 1 : 0)];
+    for (int a = 0, k = 0; a < inst.numAttributes(); a++) {
+      if (a != classIndex) {
+        v[k++] = inst.value(a);
+      }
+    }
+    return v;
+  }
+
+  private static double dot(double[] a, int aStart, double[] b, int bStart,
+      int n) {
+    double sum = 0;
+    for (int k = 0; k < n; k++) {
+      sum += a[aStart + k] * b[bStart + k];
+    }
+    return sum;
+  }
+
+  /**
+   * Number of distinct support vectors.
+   *
+   * PT-BR
+   *
+   * Numero de vetores de suporte distintos.
+   *
+   * @return the number of support vectors
+   *         o numero de vetores de suporte
+   */
+  int numSupportVectors() {
+    return m_numSupportVectors;
+  }
+
+  @Override
+  boolean isBatchPredictor() {
+    return true;
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    return score(m_features.distributionForInstance(inst), 1)[0];
+  }
+
+  @Override
+  double[][] distributionsForInstances(Instances insts) throws Exception {
+    int rows = insts.numInstances();
+    double[][] features = m_features.distributionsForInstances(insts);
+    double[] x = new double[rows * m_numFeatures];
+    for (int r = 0; r < rows; r++) {
+      System.arraycopy(features[r], 0, x, r * m_numFeatures, m_numFeatures);
+    }
+    return score(x, rows);
+  }
+
+  /**
+   * Score rows of preprocessed values (row-major).
+   *
+   * PT-BR
+   *
+   * Pontua linhas de valores pre-processados (por linha).
+   */
+  private double[][] score(double[] x, int rows) {
+    int numVectors = m_numSupportVectors;
+    double[] k = new double[rows * numVectors];
+    multiplyTransposed(x, rows, m_numFeatures, m_supportVectors, numVectors, k);
+
+    double[][] result = new double[rows][];
+    for (int r = 0; r < rows; r++) {
+      int kr = r * numVectors;
+      if (m_kernel == KERNEL_RBF) {
+        double selfDot = dot(x, r * m_numFeatures, x, r * m_numFeatures,
+            m_numFeatures);
+        for (int s = 0; s < numVectors; s++) {
+          k[kr + s] = Math.exp(m_gamma
+              * (2.0 * k[kr + s] - selfDot - m_selfDot[s]));
+        }
+      } else {
+        for (int s = 0; s < numVectors; s++) {
+          double value = k[kr + s];
+          if (m_lowerOrder) {
+            value += 1.0;
+          }
+          if (m_exponent != 1.0) {
+            value = Math.pow(value, m_exponent);
+          }
+          k[kr + s] = value;
+        }
+      }
+
+      double[] votes = new double[m_numClasses];
+      for (int p = 0; p < m_b.length; p++) {
+        double output = 0;
+        for (int c = m_pairStart[p]; c < m_pairStart[p + 1]; c++) {
+          output += m_coefficient[c] * k[kr + m_vectorIndex[c]];
+        }
+        output -= m_b[p];
+        if (output > 0) {
+          votes[m_pairSecond[p]]++;
+        } else {
+          votes[m_pairFirst[p]]++;
+        }
+      }
+      Utils.normalize(votes);
+      result[r] = votes;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,716 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weka.classifiers.UpdateableClassifier;
+import weka.classifiers.functions.LinearRegression;
+import weka.classifiers.functions.Logistic;
+import weka.classifiers.functions.SGD;
+import weka.classifiers.functions.SMO;
+import weka.classifiers.functions.SimpleLogistic;
+import weka.classifiers.trees.lmt.LogisticBase;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+
+/**
+ * Compiled engine for linear models: Logistic, SimpleLogistic, SGD,
+ * LinearRegression and SMO with a linear kernel. Weka runs every row through
+ * the model's missing value replacement, nominal to binary conversion and
+ * normalization filters before taking the dot products. All of these act on
+ * each attribute separately and are affine, so when the model is compiled
+ * they are folded, together with the model's own coefficients, into one
+ * weight per numeric attribute and output, one table entry per nominal value
+ * and output, and a bias per output. The folded values are found by running
+ * probe rows through the model's own filters and coefficients, so they follow
+ * exactly what Weka does. Scoring is then one multiply-add per attribute and
+ * output followed by the model's link function (logistic, softmax, pairwise
+ * voting or identity). The predictions match the ones from Weka up to
+ * rounding.
+ *
+ * PT-BR
+ *
+ * Motor compilado para modelos lineares: Logistic, SimpleLogistic, SGD,
+ * LinearRegression e SMO com kernel linear. O Weka passa cada linha pelos
+ * filtros de substituicao de valores ausentes, conversao de nominal para
+ * binario e normalizacao do modelo antes de calcular os produtos escalares.
+ * Todos eles agem em cada atributo separadamente e sao afins, entao quando o
+ * modelo e compilado sao incorporados, junto com os coeficientes do proprio
+ * modelo, em um peso por atributo numerico e saida, uma entrada de tabela por
+ * valor nominal e saida, e um vies por saida. Os valores incorporados sao
+ * encontrados passando linhas de sondagem pelos proprios filtros e
+ * coeficientes do modelo, de modo que seguem exatamente o que o Weka faz.
+ * Pontuar e entao uma multiplicacao-adicao por atributo e saida seguida da
+ * funcao de ligacao do modelo (logistica, softmax, votacao em pares ou
+ * identidade). As previsoes coincidem com as do Weka a menos de
+ * arredondamentos.
+ */
+class WekaScoringLinearEngine extends WekaScoringEngine {
+
+  /** link functions / funcoes de ligacao */
+  static final int LINK_IDENTITY = 0;
+  /** Logistic: one score per class but the last / uma por classe menos a ultima */
+  static final int LINK_LOGISTIC = 1;
+  /** SimpleLogistic (LogisticBase.probs) */
+  static final int LINK_SOFTMAX = 2;
+  /** SGD log loss / SGD perda logaritmica */
+  static final int LINK_SGD_LOG = 3;
+  /** SGD hinge loss / SGD perda hinge */
+  static final int LINK_SGD_HINGE = 4;
+  /** SMO: one score per pair of classes / uma por par de classes */
+  static final int LINK_PAIRWISE = 5;
+
+  private final int m_link;
+  private final int m_numClasses;
+  private final int m_numOutputs;
+  private final boolean m_batch;
+
+  private final double[] m_bias;
+
+  // numeric attributes: weights (m_numOutputs per attribute) and what a
+  // missing value adds instead
+  // atributos numericos: pesos (m_numOutputs por atributo) e o que um valor
+  // ausente soma no lugar
+  private final int[] m_numeric;
+  private final double[] m_weights;
+  private final double[] m_missing;
+
+  // nominal attributes: m_numOutputs entries per value, then one set for a
+  // missing value
+  // atributos nominais: m_numOutputs entradas por valor, depois um conjunto
+  // para valor ausente
+  private final int[] m_nominal;
+  private final int[] m_numValues;
+  private final int[] m_tableOffset;
+  private final double[] m_table;
+
+  // SMO: the classes of each pair
+  // SMO: as classes de cada par
+  private final int[] m_pairFirst;
+  private final int[] m_pairSecond;
+
+  /**
+   * The model's own scoring up to (not including) the link function. Only
+   * used while compiling.
+   *
+   * Pontuacao do proprio modelo ate a funcao de ligacao (exclusive). Usada
+   * somente durante a compilacao.
+   */
+  abstract static class Probe {
+    abstract double[] scores(Instance inst) throws Exception;
+  }
+
+  private WekaScoringLinearEngine(int link, int numClasses, Instances header,
+      Probe probe, int[] pairFirst, int[] pairSecond, boolean batch)
+      throws Exception {
+    m_link = link;
+    m_numClasses = numClasses;
+    m_pairFirst = pairFirst;
+    m_pairSecond = pairSecond;
+    m_batch = batch;
+
+    int classIndex = header.classIndex();
+    double[] base = new double[header.numAttributes()];
+    for (int i = 0; i < base.length; i++) {
+      if (i == classIndex || !(header.attribute(i).isNumeric() || header
+          .attribute(i).isNominal())) {
+        base[i] = Utils.missingValue();
+      }
+    }
+    m_bias = probe.scores(probeRow(header, base, -1, 0));
+    m_numOutputs = m_bias.length;
+
+    List<Integer> numeric = new ArrayList<Integer>();
+    List<double[]> weights = new ArrayList<double[]>();
+    List<double[]> missing = new ArrayList<double[]>();
+    List<Integer> nominal = new ArrayList<Integer>();
+    List<double[][]> tables = new ArrayList<double[][]>();
+    int tableSize = 0;
+
+    for (int a = 0; a < base.length; a++) {
+      if (Utils.isMissingValue(base[a])) {
+        continue;
+      }
+      double[] absent = delta(probe.scores(probeRow(header, base, a,
+          Utils.missingValue())));
+      if (header.attribute(a).isNumeric()) {
+        double[] w = delta(probe.scores(probeRow(header, base, a, 1)));
+        if (isZero(w) && isZero(absent)) {
+          // removed by the model's filters / removido pelos filtros do modelo
+          continue;
+        }
+        numeric.add(Integer.valueOf(a));
+        weights.add(w);
+        missing.add(absent);
+      } else {
+        int numValues = header.attribute(a).numValues();
+        double[][] table = new double[numValues + 1][];
+        boolean used = !isZero(absent);
+        for (int v = 0; v < numValues; v++) {
+          table[v] = delta(probe.scores(probeRow(header, base, a, v)));
+          used |= !isZero(table[v]);
+        }
+        table[numValues] = absent;
+        if (used) {
+          nominal.add(Integer.valueOf(a));
+          tables.add(table);
+          tableSize += table.length * m_numOutputs;
+        }
+      }
+    }
+
+    m_numeric = new int[numeric.size()];
+    m_weights = new double[numeric.size() * m_numOutputs];
+    m_missing = new double[numeric.size() * m_numOutputs];
+    for (int i = 0; i < m_numeric.length; i++) {
+      m_numeric[i] = numeric.get(i).intValue();
+      System.arraycopy(weights.get(i), 0, m_weights, i * m_numOutputs,
+          m_numOutputs);
+      System.arraycopy(missing.get(i), 0, m_missing, i * m_numOutputs,
+          m_numOutputs);
+    }
+
+    m_nominal = new int[nominal.size()];
+    m_numValues = new int[nominal.size()];
+    m_tableOffset = new int[nominal.size()];
+    m_table = new double[tableSize];
+    int offset = 0;
+    for (int i = 0; i < m_nominal.length; i++) {
+      double[][] table = tables.get(i);
+      m_nominal[i] = nominal.get(i).intValue();
+      m_numValues[i] = table.length - 1;
+      m_tableOffset[i] = offset;
+      for (double[] row : table) {
+        System.arraycopy(row, 0, m_table, offset, m_numOutputs);
+        offset += m_numOutputs;
+      }
+    }
+  }
+
+  /**
+   * Compile an affine map from the rows of the supplied header to the scores
+   * computed by the probe, which must be affine in each attribute
+   * separately. Used by other engines to fold a model's preprocessing (and
+   * possibly its first layer of weights) into one coefficient matrix; the
+   * engine's distributionForInstance() then returns the scores.
+   *
+   * PT-BR
+   *
+   * Compila um mapa afim das linhas do cabecalho fornecido para as
+   * pontuacoes calculadas pela sondagem, que deve ser afim em cada atributo
+   * separadamente. Usado por outros motores para incorporar o
+   * pre-processamento de um modelo (e possivelmente a sua primeira camada de
+   * pesos) em uma unica matriz de coeficientes; o distributionForInstance()
+   * do motor entao retorna as pontuacoes.
+   *
+   * @param header the header of the rows
+   *               o cabecalho das linhas
+   * @param probe the scores to fold
+   *              as pontuacoes a incorporar
+   * @return the compiled map
+   *         o mapa compilado
+   * @throws Exception if the probe fails
+   *                   se a sondagem falhar
+   */
+  static WekaScoringLinearEngine affine(Instances header, Probe probe)
+      throws Exception {
+    return new WekaScoringLinearEngine(LINK_IDENTITY, 1, header, probe, null,
+        null, true);
+  }
+
+  /**
+   * Number of scores (outputs of the affine part).
+   *
+   * PT-BR
+   *
+   * Numero de pontuacoes (saidas da parte afim).
+   *
+   * @return the number of outputs
+   *         o numero de saidas
+   */
+  int numOutputs() {
+    return m_numOutputs;
+  }
+
+  private static Instance probeRow(Instances header, double[] base,
+      int attribute, double value) {
+    double[] vals = base.clone();
+    if (attribute >= 0) {
+      vals[attribute] = value;
+    }
+    Instance inst = new DenseInstance(1.0, vals);
+    inst.setDataset(header);
+    return inst;
+  }
+
+  private double[] delta(double[] scores) {
+    for (int o = 0; o < scores.length; o++) {
+      scores[o] -= m_bias[o];
+    }
+    return scores;
+  }
+
+  private static boolean isZero(double[] values) {
+    for (double v : values) {
+      if (v != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compile a linear model. Returns null for other models, for subclasses,
+   * for SMO with a non linear kernel or calibrated outputs, and if there is
+   * no usable header.
+   *
+   * PT-BR
+   *
+   * Compila um modelo linear. Retorna null para outros modelos, para
+   * subclasses, para SMO com kernel nao linear ou saidas calibradas, e se nao
+   * houver um cabecalho utilizavel.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the model can't be read
+   *                   se a estrutura do modelo nao puder ser lida
+   */
+  static WekaScoringLinearEngine compile(final Object model, Instances header)
+      throws Exception {
+    if (header == null || header.classIndex() < 0
+        || header.numAttributes() == 0) {
+      return null;
+    }
+    int numClasses = header.classAttribute().isNominal() ? header.numClasses()
+        : 1;
+    boolean batch = !(model instanceof UpdateableClassifier);
+
+    // the probes use the model's stateful filters
+    // as sondagens usam os filtros com estado do modelo
+    synchronized (model) {
+      if (model.getClass() == Logistic.class) {
+        final Filter[] filters = filters(model, "m_ReplaceMissingValues", //$NON-NLS-1$
+            "m_AttFilter", "m_NominalToBinary"); //$NON-NLS-1$ //$NON-NLS-2$
+        final double[][] par = (double[][]) getField(model, "m_Par"); //$NON-NLS-1$
+        final int numPredictors = ((Integer) getField(model, "m_NumPredictors")) //$NON-NLS-1$
+            .intValue();
+        final int classIndex = ((Integer) getField(model, "m_ClassIndex")) //$NON-NLS-1$
+            .intValue();
+        if (par == null) {
+          return null;
+        }
+        return new WekaScoringLinearEngine(LINK_LOGISTIC, numClasses, header,
+            new Probe() {
+              @Override
+              double[] scores(Instance inst) throws Exception {
+                inst = filter(filters, inst, false);
+                double[] data = new double[numPredictors + 1];
+                data[0] = 1;
+                for (int k = 0, j = 1; k <= numPredictors; k++) {
+                  if (k != classIndex) {
+                    data[j++] = inst.value(k);
+                  }
+                }
+                double[] v = new double[par[0].length];
+                for (int j = 0; j < v.length; j++) {
+                  for (int k = 0; k <= numPredictors; k++) {
+                    v[j] += par[k][j] * data[k];
+                  }
+                }
+                return v;
+              }
+            }, null, null, batch);
+      }
+
+      if (model.getClass() == SimpleLogistic.class) {
+        final Filter[] filters = filters(model, "m_ReplaceMissingValues", //$NON-NLS-1$
+            "m_NominalToBinary"); //$NON-NLS-1$
+        final LogisticBase boosted = (LogisticBase) getField(model,
+            "m_boostedModel"); //$NON-NLS-1$
+        if (boosted == null || boosted.getClass() != LogisticBase.class) {
+          return null;
+        }
+        final Instances numericHeader = (Instances) getField(boosted,
+            "m_numericDataHeader"); //$NON-NLS-1$
+        final Method getFs = LogisticBase.class.getDeclaredMethod("getFs", //$NON-NLS-1$
+            Instance.class);
+        getFs.setAccessible(true);
+        return new WekaScoringLinearEngine(LINK_SOFTMAX, numClasses, header,
+            new Probe() {
+              @Override
+              double[] scores(Instance inst) throws Exception {
+                inst = (Instance) filter(filters, inst, false).copy();
+                inst.setDataset(numericHeader);
+                return (double[]) invoke(getFs, boosted, inst);
+              }
+            }, null, null, batch);
+      }
+
+      if (model.getClass() == SGD.class) {
+        final Filter[] filters = filters(model, "m_replaceMissing", //$NON-NLS-1$
+            "m_nominalToBinary", "m_normalize"); //$NON-NLS-1$ //$NON-NLS-2$
+        final double[] weights = (double[]) getField(model, "m_weights"); //$NON-NLS-1$
+        if (weights == null) {
+          return null;
+        }
+        int link = LINK_IDENTITY;
+        if (header.classAttribute().isNominal()) {
+          link = ((Integer) getField(model, "m_loss")).intValue() == SGD.LOGLOSS ? LINK_SGD_LOG //$NON-NLS-1$
+              : LINK_SGD_HINGE;
+        }
+        return new WekaScoringLinearEngine(link, numClasses, header,
+            new Probe() {
+              @Override
+              double[] scores(Instance inst) throws Exception {
+                inst = filter(filters, inst, false);
+                double z = 0;
+                for (int i = 0; i < inst.numAttributes()
+                    && i < weights.length - 1; i++) {
+                  if (i != inst.classIndex() && !inst.isMissing(i)) {
+                    z += inst.value(i) * weights[i];
+                  }
+                }
+                return new double[] { z + weights[weights.length - 1] };
+              }
+            }, null, null, batch);
+      }
+
+      if (model.getClass() == LinearRegression.class) {
+        return new WekaScoringLinearEngine(LINK_IDENTITY, numClasses, header,
+            new Probe() {
+              @Override
+              double[] scores(Instance inst) throws Exception {
+                return new double[] { ((LinearRegression) model)
+                    .classifyInstance(inst) };
+              }
+            }, null, null, batch);
+      }
+
+      if (model.getClass() == SMO.class) {
+        if (!((Boolean) getField(model, "m_KernelIsLinear")).booleanValue() //$NON-NLS-1$
+            || ((Boolean) getField(model, "m_fitLogisticModels")) //$NON-NLS-1$
+                .booleanValue()) {
+          return null;
+        }
+        Filter[] filters = filters(model, "m_NominalToBinary", "m_Filter"); //$NON-NLS-1$ //$NON-NLS-2$
+        if (!((Boolean) getField(model, "m_checksTurnedOff")).booleanValue()) { //$NON-NLS-1$
+          filters = new Filter[] { (Filter) getField(model, "m_Missing"), //$NON-NLS-1$
+              filters[0], filters[1] };
+        }
+        final Filter[] smoFilters = filters;
+        Object[][] binary = (Object[][]) getField(model, "m_classifiers"); //$NON-NLS-1$
+        List<SMO.BinarySMO> machines = new ArrayList<SMO.BinarySMO>();
+        List<int[]> pairs = new ArrayList<int[]>();
+        for (int i = 0; i < numClasses; i++) {
+          for (int j = i + 1; j < numClasses; j++) {
+            if (getField(binary[i][j], "m_alpha") == null //$NON-NLS-1$
+                && getField(binary[i][j], "m_sparseWeights") == null) { //$NON-NLS-1$
+              continue;
+            }
+            machines.add((SMO.BinarySMO) binary[i][j]);
+            pairs.add(new int[] { i, j });
+          }
+        }
+        int[] first = new int[pairs.size()];
+        int[] second = new int[pairs.size()];
+        for (int p = 0; p < first.length; p++) {
+          first[p] = pairs.get(p)[0];
+          second[p] = pairs.get(p)[1];
+        }
+        final SMO.BinarySMO[] smos = machines
+            .toArray(new SMO.BinarySMO[machines.size()]);
+        return new WekaScoringLinearEngine(LINK_PAIRWISE, numClasses, header,
+            new Probe() {
+              @Override
+              double[] scores(Instance inst) throws Exception {
+                inst = filter(smoFilters, inst, true);
+                double[] outputs = new double[smos.length];
+                for (int p = 0; p < smos.length; p++) {
+                  outputs[p] = smos[p].SVMOutput(-1, inst);
+                }
+                return outputs;
+              }
+            }, first, second, batch);
+      }
+    }
+    return null;
+  }
+
+  static Filter[] filters(Object model, String... names)
+      throws Exception {
+    Filter[] filters = new Filter[names.length];
+    for (int i = 0; i < names.length; i++) {
+      filters[i] = (Filter) getField(model, names[i]);
+    }
+    return filters;
+  }
+
+  static Instance filter(Filter[] filters, Instance inst,
+      boolean flush) throws Exception {
+    for (Filter f : filters) {
+      if (f != null) {
+        f.input(inst);
+        if (flush) {
+          f.batchFinished();
+        }
+        inst = f.output();
+      }
+    }
+    return inst;
+  }
+
+  private static Object invoke(Method m, Object target, Object arg)
+      throws Exception {
+    try {
+      return m.invoke(target, arg);
+    } catch (InvocationTargetException ex) {
+      if (ex.getCause() instanceof Exception) {
+        throw (Exception) ex.getCause();
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Number of numeric and nominal attributes that contribute to the
+   * prediction.
+   *
+   * PT-BR
+   *
+   * Numero de atributos numericos e nominais que contribuem para a previsao.
+   *
+   * @return the number of attributes used
+   *         o numero de atributos usados
+   */
+  int numAttributesUsed() {
+    return m_numeric.length + m_nominal.length;
+  }
+
+  @Override
+  boolean isBatchPredictor() {
+    return m_batch;
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    int outputs = m_numOutputs;
+    double[] scores = m_bias.clone();
+
+    for (int i = 0; i < m_numeric.length; i++) {
+      double x = inst.value(m_numeric[i]);
+      int w = i * outputs;
+      if (Utils.isMissingValue(x)) {
+        for (int o = 0; o < outputs; o++) {
+          scores[o] += m_missing[w + o];
+        }
+      } else {
+        for (int o = 0; o < outputs; o++) {
+          scores[o] += m_weights[w + o] * x;
+        }
+      }
+    }
+    for (int i = 0; i < m_nominal.length; i++) {
+      int t = m_tableOffset[i] + nominalIndex(i, inst.value(m_nominal[i]))
+          * outputs;
+      for (int o = 0; o < outputs; o++) {
+        scores[o] += m_table[t + o];
+      }
+    }
+    return link(scores);
+  }
+
+  /**
+   * Batch scoring. The batch is scored one attribute at a time: the values of
+   * the attribute for all the rows are gathered into a column and added to
+   * the scores of every output with a plain multiply-add loop over
+   * contiguous arrays, which the JIT compiler can turn into vector
+   * instructions.
+   *
+   * PT-BR
+   *
+   * Pontuacao em lote. O lote e pontuado um atributo por vez: os valores do
+   * atributo para todas as linhas sao reunidos em uma coluna e somados as
+   * pontuacoes de cada saida com um laco simples de multiplicacao-adicao
+   * sobre matrizes contiguas, que o compilador JIT pode transformar em
+   * instrucoes vetoriais.
+   */
+  @Override
+  double[][] distributionsForInstances(Instances insts) throws Exception {
+    int rows = insts.numInstances();
+    int outputs = m_numOutputs;
+
+    // scores[o * rows + r]
+    double[] scores = new double[outputs * rows];
+    for (int o = 0; o < outputs; o++) {
+      Arrays.fill(scores, o * rows, (o + 1) * rows, m_bias[o]);
+    }
+
+    double[] column = new double[rows];
+    for (int i = 0; i < m_numeric.length; i++) {
+      int att = m_numeric[i];
+      boolean anyMissing = false;
+      for (int r = 0; r < rows; r++) {
+        double x = insts.instance(r).value(att);
+        if (Utils.isMissingValue(x)) {
+          anyMissing = true;
+          x = 0;
+        }
+        column[r] = x;
+      }
+      int w = i * outputs;
+      for (int o = 0; o < outputs; o++) {
+        double weight = m_weights[w + o];
+        int s = o * rows;
+        for (int r = 0; r < rows; r++) {
+          scores[s + r] += weight * column[r];
+        }
+      }
+      if (anyMissing) {
+        for (int r = 0; r < rows; r++) {
+          if (insts.instance(r).isMissing(att)) {
+            for (int o = 0; o < outputs; o++) {
+              scores[o * rows + r] += m_missing[w + o];
+            }
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < m_nominal.length; i++) {
+      int att = m_nominal[i];
+      for (int r = 0; r < rows; r++) {
+        int t = m_tableOffset[i]
+            + nominalIndex(i, insts.instance(r).value(att)) * outputs;
+        for (int o = 0; o < outputs; o++) {
+          scores[o * rows + r] += m_table[t + o];
+        }
+      }
+    }
+
+    double[][] result = new double[rows][];
+    for (int r = 0; r < rows; r++) {
+      double[] rowScores = new double[outputs];
+      for (int o = 0; o < outputs; o++) {
+        rowScores[o] = scores[o * rows + r];
+      }
+      result[r] = link(rowScores);
+    }
+    return result;
+  }
+
+  private int nominalIndex(int i, double value) throws Exception {
+    if (Utils.isMissingValue(value)) {
+      return m_numValues[i];
+    }
+    int v = (int) value;
+    if (v < 0 || v >= m_numValues[i]) {
+      throw new Exception("Value " + value + " is out of range"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    return v;
+  }
+
+  /**
+   * Turn the scores into the model's prediction, with the same arithmetic as
+   * Weka.
+   *
+   * PT-BR
+   *
+   * Transforma as pontuacoes na previsao do modelo, com a mesma aritmetica
+   * do Weka.
+   */
+  private double[] link(double[] scores) {
+    switch (m_link) {
+    case LINK_LOGISTIC: {
+      // Logistic.evaluateProbability
+      double[] v = new double[m_numClasses];
+      System.arraycopy(scores, 0, v, 0, m_numClasses - 1);
+      double[] prob = new double[m_numClasses];
+      for (int m = 0; m < m_numClasses; m++) {
+        double sum = 0;
+        for (int n = 0; n < m_numClasses - 1; n++) {
+          sum += Math.exp(v[n] - v[m]);
+        }
+        prob[m] = 1 / (sum + Math.exp(-v[m]));
+      }
+      return prob;
+    }
+    case LINK_SOFTMAX: {
+      // LogisticBase.probs
+      double maxF = -Double.MAX_VALUE;
+      for (double f : scores) {
+        if (f > maxF) {
+          maxF = f;
+        }
+      }
+      double sum = 0;
+      for (int i = 0; i < scores.length; i++) {
+        scores[i] = Math.exp(scores[i] - maxF);
+        sum += scores[i];
+      }
+      Utils.normalize(scores, sum);
+      return scores;
+    }
+    case LINK_SGD_LOG:
+    case LINK_SGD_HINGE: {
+      double z = scores[0];
+      double[] result = new double[2];
+      if (z <= 0) {
+        if (m_link == LINK_SGD_LOG) {
+          result[0] = 1 / (1 + Math.exp(z));
+          result[1] = 1 - result[0];
+        } else {
+          result[0] = 1;
+        }
+      } else if (m_link == LINK_SGD_LOG) {
+        result[1] = 1 / (1 + Math.exp(-z));
+        result[0] = 1 - result[1];
+      } else {
+        result[1] = 1;
+      }
+      return result;
+    }
+    case LINK_PAIRWISE: {
+      double[] result = new double[m_numClasses];
+      for (int p = 0; p < scores.length; p++) {
+        if (scores[p] > 0) {
+          result[m_pairSecond[p]]++;
+        } else {
+          result[m_pairFirst[p]]++;
+        }
+      }
+      Utils.normalize(result);
+      return result;
+    }
+    default:
+      return scores;
+    }
+  }
+}
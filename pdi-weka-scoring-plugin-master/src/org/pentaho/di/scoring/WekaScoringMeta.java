@@ -55,7 +55,6 @@ import org.pentaho.di.trans.step.StepMetaInterface;
 import org.w3c.dom.Node;
 
 import weka.core.Instances;
-import weka.core.SerializedObject;
 
 /**
  * Contains the meta data for the WekaScoring step.
@@ -150,6 +149,38 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
     public static final int DEFAULT_BATCH_SCORING_SIZE = 100;
     private String m_batchScoringSize = ""; //$NON-NLS-1$
 
+    /**
+     * Limits for the cache of models loaded from files named in a field.
+     * Empty means no limit on the number of models, a memory budget of a
+     * quarter of the maximum heap and no idle timeout.
+     *
+     * Limites do cache de modelos carregados de arquivos informados em um
+     * campo. Vazio significa sem limite no numero de modelos, um limite de
+     * memoria de um quarto do heap maximo e sem tempo ocioso.
+     */
+    private String m_modelCacheMaxEntries = ""; //$NON-NLS-1$
+    private String m_modelCacheMaxMemory = ""; //$NON-NLS-1$
+    private String m_modelCacheIdleTimeout = ""; //$NON-NLS-1$
+
+    /**
+     * Number of rows to read ahead so that the models they name can be loaded
+     * in the background. Empty or 0 turns prefetching off.
+     *
+     * Numero de linhas lidas antecipadamente para que os modelos informados
+     * nelas possam ser carregados em segundo plano. Vazio ou 0 desliga a
+     * antecipacao.
+     */
+    private String m_modelPrefetchRows = ""; //$NON-NLS-1$
+
+    /**
+     * Recall target (between 0 and 1) for approximate nearest neighbour search
+     * by lazy learners. Empty means an exact search.
+     *
+     * Meta de revocacao (entre 0 e 1) para a busca aproximada de vizinhos mais
+     * proximos por aprendizes preguicosos. Vazio significa uma busca exata.
+     */
+    private String m_neighbourSearchRecall = ""; //$NON-NLS-1$
+
     public void setStoreModelInStepMetaData(boolean b) {
         m_storeModelInStepMetaData = b;
     }
@@ -245,6 +276,137 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
         return m_cacheLoadedModels;
     }
 
+    /**
+     * Set the maximum number of models to hold in the model cache
+     *
+     * Define o numero maximo de modelos no cache de modelos
+     *
+     * @param max the maximum number of models (may contain variables) o numero
+     * maximo de modelos (pode conter variaveis)
+     */
+    public void setModelCacheMaxEntries(String max) {
+        m_modelCacheMaxEntries = max;
+    }
+
+    /**
+     * Get the maximum number of models to hold in the model cache
+     *
+     * Retorna o numero maximo de modelos no cache de modelos
+     *
+     * @return the maximum number of models o numero maximo de modelos
+     */
+    public String getModelCacheMaxEntries() {
+        return m_modelCacheMaxEntries;
+    }
+
+    /**
+     * Set the memory budget (in megabytes) of the model cache shared by the
+     * copies of the step. If empty, the cache shares a quarter of the heap
+     * with every other model cache in the JVM
+     *
+     * Define o limite de memoria (em megabytes) do cache de modelos
+     * compartilhado pelas copias do step. Se vazio, o cache compartilha um
+     * quarto do heap com todos os outros caches de modelos da JVM
+     *
+     * @param max the memory budget in MB (may contain variables) o limite de
+     * memoria em MB (pode conter variaveis)
+     */
+    public void setModelCacheMaxMemory(String max) {
+        m_modelCacheMaxMemory = max;
+    }
+
+    /**
+     * Get the memory budget (in megabytes) of the model cache
+     *
+     * Retorna o limite de memoria (em megabytes) do cache de modelos
+     *
+     * @return the memory budget in MB o limite de memoria em MB
+     */
+    public String getModelCacheMaxMemory() {
+        return m_modelCacheMaxMemory;
+    }
+
+    /**
+     * Set the number of seconds after which an unused model is dropped from
+     * the model cache
+     *
+     * Define o numero de segundos apos o qual um modelo nao usado e descartado
+     * do cache de modelos
+     *
+     * @param timeout the idle timeout in seconds (may contain variables) o
+     * tempo ocioso em segundos (pode conter variaveis)
+     */
+    public void setModelCacheIdleTimeout(String timeout) {
+        m_modelCacheIdleTimeout = timeout;
+    }
+
+    /**
+     * Get the number of seconds after which an unused model is dropped from
+     * the model cache
+     *
+     * Retorna o numero de segundos apos o qual um modelo nao usado e
+     * descartado do cache de modelos
+     *
+     * @return the idle timeout in seconds o tempo ocioso em segundos
+     */
+    public String getModelCacheIdleTimeout() {
+        return m_modelCacheIdleTimeout;
+    }
+
+    /**
+     * Set the number of rows to read ahead when prefetching models named in
+     * the incoming rows
+     *
+     * Define o numero de linhas lidas antecipadamente ao carregar os modelos
+     * informados nas linhas de entrada
+     *
+     * @param rows the number of rows (may contain variables) o numero de
+     * linhas (pode conter variaveis)
+     */
+    public void setModelPrefetchRows(String rows) {
+        m_modelPrefetchRows = rows;
+    }
+
+    /**
+     * Get the number of rows to read ahead when prefetching models named in
+     * the incoming rows
+     *
+     * Retorna o numero de linhas lidas antecipadamente ao carregar os modelos
+     * informados nas linhas de entrada
+     *
+     * @return the number of rows o numero de linhas
+     */
+    public String getModelPrefetchRows() {
+        return m_modelPrefetchRows;
+    }
+
+    /**
+     * Set the recall target for approximate nearest neighbour search
+     *
+     * Define a meta de revocacao para a busca aproximada de vizinhos mais
+     * proximos
+     *
+     * @param recall the recall target, empty for an exact search (may contain
+     * variables) a meta de revocacao, vazia para uma busca exata (pode conter
+     * variaveis)
+     */
+    public void setNeighbourSearchRecall(String recall) {
+        m_neighbourSearchRecall = recall;
+    }
+
+    /**
+     * Get the recall target for approximate nearest neighbour search
+     *
+     * Retorna a meta de revocacao para a busca aproximada de vizinhos mais
+     * proximos
+     *
+     * @return the recall target, empty for an exact search a meta de
+     * revocacao, vazia para uma busca exata
+     */
+    public String getNeighbourSearchRecall() {
+        return m_neighbourSearchRecall;
+    }
+
     /**
      * Set the name of the incoming field that holds paths to model files
      *
@@ -469,6 +631,16 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
 
         retval.append(XMLHandler.addTagValue("cache_loaded_models", //$NON-NLS-1$
                 m_cacheLoadedModels));
+        retval.append(XMLHandler.addTagValue("model_cache_max_entries", //$NON-NLS-1$
+                m_modelCacheMaxEntries));
+        retval.append(XMLHandler.addTagValue("model_cache_max_memory", //$NON-NLS-1$
+                m_modelCacheMaxMemory));
+        retval.append(XMLHandler.addTagValue("model_cache_idle_timeout", //$NON-NLS-1$
+                m_modelCacheIdleTimeout));
+        retval.append(XMLHandler.addTagValue("model_prefetch_rows", //$NON-NLS-1$
+                m_modelPrefetchRows));
+        retval.append(XMLHandler.addTagValue("neighbour_search_recall", //$NON-NLS-1$
+                m_neighbourSearchRecall));
 
         WekaScoringModel temp = (m_fileNameFromField) ? m_defaultModel : m_model;
 
@@ -571,33 +743,12 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
     @Override
     public Object clone() {
         WekaScoringMeta retval = (WekaScoringMeta) super.clone();
-    // deep copy the model (if any)
-        // Copia 'profunda' o modeo (se algum)
-        if (m_model != null) {
-            try {
-                SerializedObject so = new SerializedObject(m_model);
-                WekaScoringModel copy = (WekaScoringModel) so.getObject();
-                copy.setLog(getLog());
-                retval.setModel(copy);
-            } catch (Exception ex) {
-                logError(BaseMessages.getString(PKG,
-                        "WekaScoringMeta.Log.DeepCopyingError")); //$NON-NLS-1$
-            }
-        }
-
-    // deep copy the default model (if any)
-        // Copia 'profunda' o modeo (se algum)
-        if (m_defaultModel != null) {
-            try {
-                SerializedObject so = new SerializedObject(m_defaultModel);
-                WekaScoringModel copy = (WekaScoringModel) so.getObject();
-                copy.setLog(getLog());
-                retval.setDefaultModel(copy);
-            } catch (Exception ex) {
-                logError(BaseMessages.getString(PKG,
-                        "WekaScoringMeta.Log.DeepCopyingError")); //$NON-NLS-1$
-            }
-        }
+        // the models are shared rather than deep copied. They are read-only
+        // while scoring; a step that updates its model incrementally makes its
+        // own private copy (see WekaScoring)
+        // os modelos sao compartilhados em vez de copiados. Eles sao somente
+        // leitura durante o scoring; um step que atualiza o modelo
+        // incrementalmente faz a sua propria copia privada (veja WekaScoring)
 
         return retval;
     }
@@ -649,6 +800,17 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
                 m_cacheLoadedModels = true;
             }
 
+            m_modelCacheMaxEntries = Const.NVL(XMLHandler.getTagValue(wekanode,
+                    "model_cache_max_entries"), ""); //$NON-NLS-1$ //$NON-NLS-2$
+            m_modelCacheMaxMemory = Const.NVL(XMLHandler.getTagValue(wekanode,
+                    "model_cache_max_memory"), ""); //$NON-NLS-1$ //$NON-NLS-2$
+            m_modelCacheIdleTimeout = Const.NVL(XMLHandler.getTagValue(wekanode,
+                    "model_cache_idle_timeout"), ""); //$NON-NLS-1$ //$NON-NLS-2$
+            m_modelPrefetchRows = Const.NVL(XMLHandler.getTagValue(wekanode,
+                    "model_prefetch_rows"), ""); //$NON-NLS-1$ //$NON-NLS-2$
+            m_neighbourSearchRecall = Const.NVL(XMLHandler.getTagValue(wekanode,
+                    "neighbour_search_recall"), ""); //$NON-NLS-1$ //$NON-NLS-2$
+
       // try and get the XML-based model
             // Testar e pegar modelo XML-base
             boolean success = false;
@@ -774,6 +936,16 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
 
         m_cacheLoadedModels = rep.getStepAttributeBoolean(id_step, 0,
                 "cache_loaded_models"); //$NON-NLS-1$
+        m_modelCacheMaxEntries = Const.NVL(rep.getStepAttributeString(id_step,
+                0, "model_cache_max_entries"), ""); //$NON-NLS-1$ //$NON-NLS-2$
+        m_modelCacheMaxMemory = Const.NVL(rep.getStepAttributeString(id_step,
+                0, "model_cache_max_memory"), ""); //$NON-NLS-1$ //$NON-NLS-2$
+        m_modelCacheIdleTimeout = Const.NVL(rep.getStepAttributeString(id_step,
+                0, "model_cache_idle_timeout"), ""); //$NON-NLS-1$ //$NON-NLS-2$
+        m_modelPrefetchRows = Const.NVL(rep.getStepAttributeString(id_step,
+                0, "model_prefetch_rows"), ""); //$NON-NLS-1$ //$NON-NLS-2$
+        m_neighbourSearchRecall = Const.NVL(rep.getStepAttributeString(id_step,
+                0, "neighbour_search_recall"), ""); //$NON-NLS-1$ //$NON-NLS-2$
 
         m_storeModelInStepMetaData = rep.getStepAttributeBoolean(id_step, 0,
                 "store_model_in_meta"); //$NON-NLS-1$
@@ -886,6 +1058,16 @@ public class WekaScoringMeta extends BaseStepMeta implements StepMetaInterface {
 
         rep.saveStepAttribute(id_transformation, id_step, 0, "cache_loaded_models", //$NON-NLS-1$
                 m_cacheLoadedModels);
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "model_cache_max_entries", m_modelCacheMaxEntries); //$NON-NLS-1$
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "model_cache_max_memory", m_modelCacheMaxMemory); //$NON-NLS-1$
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "model_cache_idle_timeout", m_modelCacheIdleTimeout); //$NON-NLS-1$
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "model_prefetch_rows", m_modelPrefetchRows); //$NON-NLS-1$
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "neighbour_search_recall", m_neighbourSearchRecall); //$NON-NLS-1$
 
         rep.saveStepAttribute(id_transformation, id_step, 0, "store_model_in_meta", //$NON-NLS-1$
                 m_storeModelInStepMetaData);
@@ -0,0 +1,819 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.AdaBoostM1;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.meta.Stacking;
+import weka.classifiers.meta.Vote;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializedObject;
+import weka.core.Utils;
+
+/**
+ * Engine for the Vote, AdaBoostM1, Stacking and Bagging meta classifiers
+ * (Bagging of trees is handled by WekaScoringEnsembleEngine). Each member is
+ * compiled into its own engine where one exists and is otherwise called
+ * directly, so a batch can be scored by evaluating the members in parallel on
+ * the shared worker pool, one task per member; the member predictions are
+ * then combined in member order, so the result is exactly that of Weka. When
+ * only the label is wanted, members are evaluated in waves and a row stops
+ * being evaluated as soon as the weight of the members left can no longer
+ * change its most probable class.
+ *
+ * PT-BR
+ *
+ * Motor para os meta classificadores Vote, AdaBoostM1, Stacking e Bagging (o
+ * Bagging de arvores e tratado pelo WekaScoringEnsembleEngine). Cada membro e
+ * compilado em um motor proprio onde existe um e, caso contrario, e chamado
+ * diretamente, de modo que um lote pode ser pontuado avaliando os membros em
+ * paralelo no pool de trabalho compartilhado, uma tarefa por membro; as
+ * previsoes dos membros sao depois combinadas na ordem dos membros, entao o
+ * resultado e exatamente o do Weka. Quando apenas o rotulo e desejado, os
+ * membros sao avaliados em ondas e uma linha deixa de ser avaliada assim que
+ * o peso dos membros restantes nao pode mais mudar a sua classe mais
+ * provavel.
+ */
+class WekaScoringMetaEngine extends WekaScoringEngine {
+
+  /** kinds of meta classifier
+   *  tipos de meta classificador
+   */
+  static final int VOTE = 0;
+  static final int ADABOOST = 1;
+  static final int STACKING = 2;
+  static final int BAGGING = 3;
+
+  /** a boosted model that predicts with a single member (or ZeroR)
+   *  um modelo de boosting que preve com um unico membro (ou ZeroR)
+   */
+  static final int SINGLE = 4;
+
+  /** combination rules of Vote, in the order of its tags
+   *  regras de combinacao do Vote, na ordem das suas tags
+   */
+  static final int AVERAGE = 1;
+  static final int PRODUCT = 2;
+  static final int MAJORITY = 3;
+  static final int MIN = 4;
+  static final int MAX = 5;
+  static final int MEDIAN = 6;
+
+  /** smallest batch that is scored in parallel
+   *  menor lote que e pontuado em paralelo
+   */
+  static final int PARALLEL_MIN_ROWS = 16;
+
+  /** margin by which the leading class must be safe before a row stops
+   *  margem pela qual a classe lider deve estar segura antes que uma linha
+   *  pare
+   */
+  static final double EARLY_STOP_MARGIN = 1e-6;
+
+  private final int m_kind;
+  private final int m_rule;
+  private final Member[] m_members;
+
+  /** true if members contribute their classification, not a distribution
+   *  verdadeiro se os membros contribuem com a sua classificacao, nao uma
+   *  distribuicao
+   */
+  private final boolean m_useClassify;
+
+  /** AdaBoostM1 member weights
+   *  pesos dos membros do AdaBoostM1
+   */
+  private final double[] m_betas;
+
+  // for each member, the most the members after it can add to one class
+  // relative to another, or null if rows can't stop early
+  // para cada membro, o maximo que os membros depois dele podem somar a uma
+  // classe em relacao a outra, ou null se as linhas nao podem parar cedo
+  private final double[] m_remaining;
+
+  /** copy of Vote's random number generator, for majority vote ties
+   *  copia do gerador de numeros aleatorios do Vote, para empates na votacao
+   *  por maioria
+   */
+  private final Random m_random;
+
+  // Stacking: the meta classifier and the format of its input
+  // Stacking: o meta classificador e o formato da sua entrada
+  private final Member m_meta;
+  private final Instances m_metaFormat;
+
+  /**
+   * A member of the meta classifier: its engine if it could be compiled,
+   * otherwise the Weka classifier, called under its own lock if it is not
+   * safe to share.
+   *
+   * Um membro do meta classificador: o seu motor se ele pode ser compilado,
+   * caso contrario o classificador Weka, chamado sob o seu proprio bloqueio
+   * se nao for seguro compartilha-lo.
+   */
+  static class Member {
+    final WekaScoringEngine m_engine;
+    final Classifier m_classifier;
+    final boolean m_threadSafe;
+
+    Member(Classifier classifier, Instances header, double recall) {
+      m_engine = forModel(classifier, header, recall);
+      m_classifier = classifier;
+      m_threadSafe = WekaScoringModelRegistry.isThreadSafe(classifier);
+    }
+
+    double[] distribution(Instance inst) throws Exception {
+      if (m_engine != null) {
+        return m_engine.distributionForInstance(inst);
+      }
+      if (m_threadSafe) {
+        return m_classifier.distributionForInstance(inst);
+      }
+      synchronized (m_classifier) {
+        return m_classifier.distributionForInstance(inst);
+      }
+    }
+
+    boolean searchesNeighbours() {
+      return m_engine != null && m_engine.searchesNeighbours();
+    }
+
+    double classify(Instance inst) throws Exception {
+      if (m_engine != null) {
+        return m_engine.classifyInstance(inst);
+      }
+      if (m_threadSafe) {
+        return m_classifier.classifyInstance(inst);
+      }
+      synchronized (m_classifier) {
+        return m_classifier.classifyInstance(inst);
+      }
+    }
+  }
+
+  WekaScoringMetaEngine(int kind, int rule, Member[] members,
+      boolean useClassify, double[] betas, Random random, Member meta,
+      Instances metaFormat) {
+    m_kind = kind;
+    m_rule = rule;
+    m_members = members;
+    m_useClassify = useClassify;
+    m_betas = betas;
+    m_random = random;
+    m_meta = meta;
+    m_metaFormat = metaFormat;
+    m_remaining = remainingWeights();
+  }
+
+  /**
+   * Compile a Vote, AdaBoostM1, Stacking or Bagging model. Returns null for
+   * any other model.
+   *
+   * PT-BR
+   *
+   * Compila um modelo Vote, AdaBoostM1, Stacking ou Bagging. Retorna null
+   * para qualquer outro modelo.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @param recall the recall target for members that search for neighbours
+   *               a meta de revocacao para membros que buscam vizinhos
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the model can't be read
+   *                   se a estrutura do modelo nao puder ser lida
+   */
+  @SuppressWarnings("unchecked")
+  static WekaScoringMetaEngine compile(Object model, Instances header,
+      double recall) throws Exception {
+    if (model instanceof Vote) {
+      List<Classifier> all = new ArrayList<Classifier>();
+      Classifier[] members = (Classifier[]) getField(model, "m_Classifiers"); //$NON-NLS-1$
+      if (members != null) {
+        all.addAll(Arrays.asList(members));
+      }
+      List<Classifier> preBuilt = (List<Classifier>) getField(model,
+          "m_preBuiltClassifiers"); //$NON-NLS-1$
+      if (preBuilt != null) {
+        all.addAll(preBuilt);
+      }
+      int rule = ((Integer) getField(model, "m_CombinationRule")).intValue(); //$NON-NLS-1$
+      if (all.isEmpty() || rule < AVERAGE || rule > MEDIAN) {
+        return null;
+      }
+
+      Random random = null;
+      if (rule == MAJORITY) {
+        Object r = getField(model, "m_Random"); //$NON-NLS-1$
+        if (r == null) {
+          return null;
+        }
+        // a copy in the same state, so ties are broken as Weka would
+        // uma copia no mesmo estado, para que empates sejam desfeitos como o
+        // Weka faria
+        random = (Random) new SerializedObject(r).getObject();
+      }
+      return new WekaScoringMetaEngine(VOTE, rule, members(all, header,
+          recall), rule == MEDIAN, null, random, null, null);
+    }
+
+    if (model instanceof AdaBoostM1) {
+      Classifier zeroR = (Classifier) getField(model, "m_ZeroR"); //$NON-NLS-1$
+      if (zeroR != null) {
+        return new WekaScoringMetaEngine(SINGLE, 0, members(
+            Arrays.asList(zeroR), header, recall), false, null, null, null,
+            null);
+      }
+      Classifier[] members = (Classifier[]) getField(model, "m_Classifiers"); //$NON-NLS-1$
+      double[] betas = (double[]) getField(model, "m_Betas"); //$NON-NLS-1$
+      int performed = ((Integer) getField(model, "m_NumIterationsPerformed")) //$NON-NLS-1$
+          .intValue();
+      if (members == null || betas == null || performed < 1
+          || performed > members.length || performed > betas.length) {
+        return null;
+      }
+      List<Classifier> used = Arrays.asList(members).subList(0, performed);
+      if (performed == 1) {
+        return new WekaScoringMetaEngine(SINGLE, 0, members(used, header,
+            recall), false, null, null, null, null);
+      }
+      return new WekaScoringMetaEngine(ADABOOST, 0, members(used, header,
+          recall), true, Arrays.copyOf(betas, performed), null, null, null);
+    }
+
+    if (model instanceof Stacking) {
+      Classifier[] members = (Classifier[]) getField(model, "m_Classifiers"); //$NON-NLS-1$
+      Classifier meta = (Classifier) getField(model, "m_MetaClassifier"); //$NON-NLS-1$
+      Instances metaFormat = (Instances) getField(model, "m_MetaFormat"); //$NON-NLS-1$
+      Instances baseFormat = (Instances) getField(model, "m_BaseFormat"); //$NON-NLS-1$
+      if (members == null || members.length == 0 || meta == null
+          || metaFormat == null || baseFormat == null) {
+        return null;
+      }
+      boolean numeric = baseFormat.classAttribute().isNumeric();
+      return new WekaScoringMetaEngine(STACKING, 0, members(
+          Arrays.asList(members), header, recall), numeric, null, null,
+          new Member(meta, metaFormat, recall), metaFormat);
+    }
+
+    if (model instanceof Bagging) {
+      Classifier[] members = (Classifier[]) getField(model, "m_Classifiers"); //$NON-NLS-1$
+      int numIterations = ((Integer) getField(model, "m_NumIterations")) //$NON-NLS-1$
+          .intValue();
+      if (members == null || numIterations < 1
+          || numIterations > members.length) {
+        return null;
+      }
+      return new WekaScoringMetaEngine(BAGGING, 0, members(Arrays.asList(
+          members).subList(0, numIterations), header, recall), false, null,
+          null, null, null);
+    }
+
+    return null;
+  }
+
+  private static Member[] members(List<Classifier> classifiers,
+      Instances header, double recall) {
+    Member[] members = new Member[classifiers.size()];
+    for (int i = 0; i < members.length; i++) {
+      members[i] = new Member(classifiers.get(i), header, recall);
+    }
+    return members;
+  }
+
+  /**
+   * The bound used to stop a row early: after member m has been added, no
+   * class can gain more than m_remaining[m] on another. Bagging and Vote add
+   * distributions (or votes) of at most 1 per class and member, AdaBoostM1
+   * adds the weight of each member to one class; the other rules can move
+   * any class, so their rows are always evaluated in full.
+   *
+   * O limite usado para parar uma linha cedo: depois que o membro m foi
+   * somado, nenhuma classe pode ganhar mais que m_remaining[m] sobre outra.
+   * Bagging e Vote somam distribuicoes (ou votos) de no maximo 1 por classe e
+   * membro, o AdaBoostM1 soma o peso de cada membro a uma classe; as demais
+   * regras podem mover qualquer classe, entao as suas linhas sao sempre
+   * avaliadas por completo.
+   */
+  private double[] remainingWeights() {
+    double[] remaining = new double[m_members.length];
+    if (m_kind == BAGGING
+        || (m_kind == VOTE && (m_rule == AVERAGE || m_rule == MAJORITY))) {
+      for (int m = 0; m < remaining.length; m++) {
+        remaining[m] = remaining.length - 1 - m;
+      }
+      return remaining;
+    }
+    if (m_kind == ADABOOST) {
+      for (int m = remaining.length - 1; m > 0; m--) {
+        if (!(m_betas[m] >= 0)) {
+          return null;
+        }
+        remaining[m - 1] = remaining[m] + m_betas[m];
+      }
+      return remaining;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the number of members.
+   *
+   * PT-BR
+   *
+   * Retorna o numero de membros.
+   *
+   * @return the number of members
+   *         o numero de membros
+   */
+  int numMembers() {
+    return m_members.length;
+  }
+
+  /**
+   * Returns the number of members that were compiled into engines.
+   *
+   * PT-BR
+   *
+   * Retorna o numero de membros que foram compilados em motores.
+   *
+   * @return the number of compiled members
+   *         o numero de membros compilados
+   */
+  int numCompiledMembers() {
+    int compiled = 0;
+    for (Member m : m_members) {
+      if (m.m_engine != null) {
+        compiled++;
+      }
+    }
+    return compiled;
+  }
+
+  @Override
+  boolean isBatchPredictor() {
+    return m_members.length > 1;
+  }
+
+  @Override
+  boolean searchesNeighbours() {
+    for (Member member : m_members) {
+      if (member.searchesNeighbours()) {
+        return true;
+      }
+    }
+    return m_meta != null && m_meta.searchesNeighbours();
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    if (m_kind == SINGLE) {
+      return m_members[0].distribution(inst);
+    }
+    double[] acc = newAccumulator(inst);
+    for (int m = 0; m < m_members.length; m++) {
+      accumulate(acc, m, output(m, inst), inst);
+    }
+    return finish(acc, inst);
+  }
+
+  @Override
+  double[] labelDistributionForInstance(Instance inst) throws Exception {
+    if (m_kind == SINGLE) {
+      return m_members[0].distribution(inst);
+    }
+    boolean early = canStop(inst);
+    double[] acc = newAccumulator(inst);
+    for (int m = 0; m < m_members.length; m++) {
+      accumulate(acc, m, output(m, inst), inst);
+      if (early) {
+        int leader = decided(acc, m);
+        if (leader >= 0) {
+          return decidedResult(acc, leader, inst);
+        }
+      }
+    }
+    return finish(acc, inst);
+  }
+
+  @Override
+  double classifyInstance(Instance inst) throws Exception {
+    if (m_kind != VOTE) {
+      return classify(labelDistributionForInstance(inst), inst);
+    }
+
+    // as Vote.classifyInstance()
+    // como Vote.classifyInstance()
+    if (m_rule == MEDIAN) {
+      return median(inst);
+    }
+    double[] dist = labelDistributionForInstance(inst);
+    if (inst.classAttribute().isNominal()) {
+      int index = Utils.maxIndex(dist);
+      return (dist[index] == 0) ? Utils.missingValue() : index;
+    }
+    if (inst.classAttribute().isNumeric()) {
+      return dist[0];
+    }
+    return Utils.missingValue();
+  }
+
+  @Override
+  double[][] distributionsForInstances(Instances insts) throws Exception {
+    int numRows = insts.numInstances();
+    if (!parallel(numRows)) {
+      return super.distributionsForInstances(insts);
+    }
+
+    double[][][] outputs = evaluate(0, m_members.length, insts, null);
+    double[][] result = new double[numRows][];
+    for (int i = 0; i < numRows; i++) {
+      Instance inst = insts.instance(i);
+      double[] acc = newAccumulator(inst);
+      for (int m = 0; m < m_members.length; m++) {
+        accumulate(acc, m, outputs[m][i], inst);
+      }
+      result[i] = finish(acc, inst);
+    }
+    return result;
+  }
+
+  @Override
+  double[][] labelDistributionsForInstances(Instances insts) throws Exception {
+    int numRows = insts.numInstances();
+    if (!parallel(numRows)) {
+      return super.labelDistributionsForInstances(insts);
+    }
+    if (m_remaining == null || insts.classAttribute().isNumeric()) {
+      return distributionsForInstances(insts);
+    }
+
+    // members are evaluated in waves of one per worker; rows whose label is
+    // decided leave the batch before the next wave
+    // os membros sao avaliados em ondas de um por trabalhador; linhas cujo
+    // rotulo esta decidido deixam o lote antes da proxima onda
+    int wave = Math.max(2, Runtime.getRuntime().availableProcessors());
+    double[][] acc = new double[numRows][];
+    int[] leaders = new int[numRows];
+    int[] active = new int[numRows];
+    for (int i = 0; i < numRows; i++) {
+      acc[i] = newAccumulator(insts.instance(i));
+      leaders[i] = -1;
+      active[i] = i;
+    }
+    int numActive = numRows;
+    for (int first = 0; first < m_members.length && numActive > 0; first += wave) {
+      int last = Math.min(m_members.length, first + wave);
+      int[] rows = (numActive == numRows) ? null : Arrays.copyOf(active,
+          numActive);
+      double[][][] outputs = evaluate(first, last, insts, rows);
+      int kept = 0;
+      for (int k = 0; k < numActive; k++) {
+        int row = active[k];
+        Instance inst = insts.instance(row);
+        for (int m = first; m < last; m++) {
+          accumulate(acc[row], m, outputs[m - first][k], inst);
+          leaders[row] = decided(acc[row], m);
+          if (leaders[row] >= 0) {
+            break;
+          }
+        }
+        if (leaders[row] < 0) {
+          active[kept++] = row;
+        }
+      }
+      numActive = kept;
+    }
+
+    // finish in row order, so majority vote ties draw from the random
+    // number generator in the same order as Weka
+    // termina na ordem das linhas, para que empates na votacao por maioria
+    // sorteiem do gerador de numeros aleatorios na mesma ordem do Weka
+    double[][] result = new double[numRows][];
+    for (int i = 0; i < numRows; i++) {
+      Instance inst = insts.instance(i);
+      result[i] = (leaders[i] >= 0) ? decidedResult(acc[i], leaders[i], inst)
+          : finish(acc[i], inst);
+    }
+    return result;
+  }
+
+  private boolean parallel(int numRows) {
+    return m_kind != SINGLE && m_members.length > 1
+        && numRows >= PARALLEL_MIN_ROWS && !inWorkerThread();
+  }
+
+  /**
+   * Evaluate members first to last - 1 on the given rows (all rows if null)
+   * in parallel, one task per member.
+   *
+   * Avalia os membros first a last - 1 nas linhas dadas (todas as linhas se
+   * null) em paralelo, uma tarefa por membro.
+   */
+  private double[][][] evaluate(int first, int last, final Instances insts,
+      final int[] rows) throws Exception {
+    final double[][][] outputs = new double[last - first][][];
+    List<Future<Object>> pending = new ArrayList<Future<Object>>();
+    for (int m = first; m < last; m++) {
+      final int member = m;
+      final int slot = m - first;
+      pending.add(getWorkers().submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          outputs[slot] = outputs(member, insts, rows);
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<Object> f : pending) {
+        f.get();
+      }
+    } catch (ExecutionException ex) {
+      throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause()
+          : ex;
+    }
+    return outputs;
+  }
+
+  private double[][] outputs(int m, Instances insts, int[] rows)
+      throws Exception {
+    int numRows = (rows == null) ? insts.numInstances() : rows.length;
+    WekaScoringEngine engine = m_members[m].m_engine;
+    if (!useClassify(insts.classAttribute()) && engine != null && engine.isBatchPredictor()) {
+      Instances batch = insts;
+      if (rows != null) {
+        batch = new Instances(insts, numRows);
+        for (int row : rows) {
+          batch.add(insts.instance(row));
+        }
+      }
+      return engine.distributionsForInstances(batch);
+    }
+
+    double[][] out = new double[numRows][];
+    for (int k = 0; k < numRows; k++) {
+      out[k] = output(m, insts.instance((rows == null) ? k : rows[k]));
+    }
+    return out;
+  }
+
+  /**
+   * Returns true if members contribute their classification, as Bagging
+   * members do for a numeric class.
+   *
+   * Retorna verdadeiro se os membros contribuem com a sua classificacao, como
+   * os membros do Bagging fazem para uma classe numerica.
+   */
+  private boolean useClassify(Attribute classAtt) {
+    return m_useClassify || (m_kind == BAGGING && classAtt.isNumeric());
+  }
+
+  private double[] output(int m, Instance inst) throws Exception {
+    if (useClassify(inst.classAttribute())) {
+      return new double[] { m_members[m].classify(inst) };
+    }
+    return m_members[m].distribution(inst);
+  }
+
+  private boolean canStop(Instance inst) {
+    return m_remaining != null && !inst.classAttribute().isNumeric();
+  }
+
+  private double[] newAccumulator(Instance inst) {
+    if (m_kind == STACKING) {
+      return new double[m_metaFormat.numAttributes()];
+    }
+    if (m_kind == VOTE && m_rule == MEDIAN) {
+      return new double[m_members.length];
+    }
+    return new double[inst.numClasses()];
+  }
+
+  /**
+   * Add the output of member m, in the same way and order as Weka does.
+   *
+   * Soma a saida do membro m, da mesma forma e na mesma ordem que o Weka.
+   */
+  private void accumulate(double[] acc, int m, double[] out, Instance inst) {
+    switch (m_kind) {
+    case ADABOOST:
+      acc[(int) out[0]] += m_betas[m];
+      break;
+    case STACKING:
+      int width = out.length;
+      System.arraycopy(out, 0, acc, m * width, width);
+      break;
+    case BAGGING:
+      if (inst.classAttribute().isNumeric()) {
+        acc[0] += out[0];
+      } else {
+        for (int j = 0; j < out.length; j++) {
+          acc[j] += out[j];
+        }
+      }
+      break;
+    default:
+      vote(acc, m, out);
+    }
+  }
+
+  private void vote(double[] acc, int m, double[] out) {
+    switch (m_rule) {
+    case MEDIAN:
+      acc[m] = out[0];
+      break;
+    case MAJORITY:
+      int maxIndex = 0;
+      for (int j = 0; j < out.length; j++) {
+        if (out[j] > out[maxIndex]) {
+          maxIndex = j;
+        }
+      }
+      for (int j = 0; j < out.length; j++) {
+        if (out[j] == out[maxIndex]) {
+          acc[j]++;
+        }
+      }
+      break;
+    default:
+      if (m == 0) {
+        System.arraycopy(out, 0, acc, 0, Math.min(out.length, acc.length));
+        break;
+      }
+      for (int j = 0; j < out.length; j++) {
+        if (m_rule == AVERAGE) {
+          acc[j] += out[j];
+        } else if (m_rule == PRODUCT) {
+          acc[j] *= out[j];
+        } else if (m_rule == MAX) {
+          if (acc[j] < out[j]) {
+            acc[j] = out[j];
+          }
+        } else if (acc[j] > out[j]) {
+          acc[j] = out[j];
+        }
+      }
+    }
+  }
+
+  /**
+   * Turn the accumulated member outputs into the distribution Weka returns.
+   *
+   * Transforma as saidas acumuladas dos membros na distribuicao que o Weka
+   * retorna.
+   */
+  private double[] finish(double[] acc, Instance inst) throws Exception {
+    switch (m_kind) {
+    case ADABOOST:
+      return Utils.logs2probs(acc);
+    case STACKING:
+      acc[acc.length - 1] = inst.classValue();
+      Instance metaInst = new DenseInstance(1.0, acc);
+      metaInst.setDataset(m_metaFormat);
+      return m_meta.distribution(metaInst);
+    case BAGGING:
+      if (inst.classAttribute().isNumeric()) {
+        acc[0] /= m_members.length;
+        return acc;
+      }
+      if (!Utils.eq(Utils.sum(acc), 0)) {
+        Utils.normalize(acc);
+      }
+      return acc;
+    default:
+      double[] result = acc;
+      if (m_rule == MEDIAN) {
+        result = new double[inst.numClasses()];
+        result[0] = median(acc);
+      } else if (m_rule == MAJORITY) {
+        result = majority(acc);
+      } else if (m_rule == AVERAGE) {
+        for (int j = 0; j < acc.length; j++) {
+          acc[j] /= m_members.length;
+        }
+      }
+      if (!inst.classAttribute().isNumeric() && Utils.sum(result) > 0) {
+        Utils.normalize(result);
+      }
+      return result;
+    }
+  }
+
+  private double[] majority(double[] votes) {
+    int tmpMajorityIndex = 0;
+    for (int k = 1; k < votes.length; k++) {
+      if (votes[k] > votes[tmpMajorityIndex]) {
+        tmpMajorityIndex = k;
+      }
+    }
+    int[] majorityIndexes = new int[votes.length];
+    int numMajority = 0;
+    for (int k = 0; k < votes.length; k++) {
+      if (votes[k] == votes[tmpMajorityIndex]) {
+        majorityIndexes[numMajority++] = k;
+      }
+    }
+    int draw;
+    synchronized (m_random) {
+      draw = m_random.nextInt(numMajority);
+    }
+    double[] probs = new double[votes.length];
+    probs[majorityIndexes[draw]] = 1.0;
+    return probs;
+  }
+
+  private double median(Instance inst) throws Exception {
+    double[] results = new double[m_members.length];
+    for (int m = 0; m < results.length; m++) {
+      results[m] = m_members[m].classify(inst);
+    }
+    return median(results);
+  }
+
+  private static double median(double[] results) {
+    if (results.length == 1) {
+      return results[0];
+    }
+    return Utils.kthSmallestValue(results, results.length / 2);
+  }
+
+  /**
+   * Returns the leading class if members m + 1 onwards can no longer
+   * overtake it, otherwise -1.
+   *
+   * Retorna a classe lider se os membros m + 1 em diante nao podem mais
+   * ultrapassa-la, caso contrario -1.
+   */
+  private int decided(double[] acc, int m) {
+    if (m + 1 >= m_members.length) {
+      return -1;
+    }
+    int leader = 0;
+    for (int j = 1; j < acc.length; j++) {
+      if (acc[j] > acc[leader]) {
+        leader = j;
+      }
+    }
+    double second = Double.NEGATIVE_INFINITY;
+    for (int j = 0; j < acc.length; j++) {
+      if (j != leader && !(acc[j] <= second)) {
+        second = acc[j];
+      }
+    }
+    // written so that a missing (NaN) value never stops a row
+    // escrito de modo que um valor ausente (NaN) nunca pare uma linha
+    return (acc[leader] - second > m_remaining[m] + EARLY_STOP_MARGIN)
+        ? leader : -1;
+  }
+
+  /**
+   * The result for a row that stopped early: all the weight on the leading
+   * class. A majority vote is finished as usual (the leader is the only
+   * class with the most votes), so the random number generator moves on as
+   * it would in Weka.
+   *
+   * O resultado para uma linha que parou cedo: todo o peso na classe lider.
+   * Uma votacao por maioria e terminada como de costume (a lider e a unica
+   * classe com mais votos), entao o gerador de numeros aleatorios avanca
+   * como avancaria no Weka.
+   */
+  private double[] decidedResult(double[] acc, int leader, Instance inst)
+      throws Exception {
+    if (m_kind == VOTE && m_rule == MAJORITY) {
+      return finish(acc, inst);
+    }
+    double[] result = new double[acc.length];
+    result[leader] = 1.0;
+    return result;
+  }
+}
@@ -43,10 +43,27 @@ import weka.core.pmml.PMMLModel;
  */
 public abstract class WekaScoringModel implements Serializable {
 
+  /**
+   * For serialization. Models are stored in step meta data, so this is pinned
+   * to the value computed for the original version of the class.
+   *
+   * Para serializacao. Modelos sao armazenados nos metadados do step, entao
+   * este valor e fixado no calculado para a versao original da classe.
+   */
+  private static final long serialVersionUID = 8636939478904943234L;
+
   // The header of the Instances used to build the model
   // O cabecalho de Instaces usado para construir o modelo
   private Instances m_header;
 
+  // Recall target for approximate neighbour search (0 = exact)
+  // Meta de revocacao para a busca aproximada de vizinhos (0 = exata)
+  private transient double m_neighbourSearchRecall;
+
+  // Size in bytes of the model as it was loaded (0 if it wasn't loaded)
+  // Tamanho em bytes do modelo como foi carregado (0 se nao foi carregado)
+  private transient long m_loadedSize;
+
   /**
    * Creates a new <code>WekaScoringModel</code> instance.
    * 
@@ -90,6 +107,11 @@ public abstract class WekaScoringModel implements Serializable {
    */
   public void setHeader(Instances header) {
     m_header = header;
+
+    // engines may need the header, so (re)compile now that it is known
+    // motores podem precisar do cabecalho, entao (re)compila agora que ele e
+    // conhecido
+    compile();
   }
 
   /**
@@ -106,6 +128,121 @@ public abstract class WekaScoringModel implements Serializable {
     return m_header;
   }
 
+  /**
+   * Set the recall target for models that search for nearest neighbours.
+   * With a target between 0 and 1 such models are compiled to search
+   * approximately, finding at least that fraction of the true neighbours on
+   * average; 0 means an exact search. Such models are recompiled if the
+   * target changes. Models may be shared by several steps, so the target
+   * is set when a model is loaded, before it is shared.
+   *
+   * PT-BR
+   *
+   * Define a meta de revocacao para modelos que buscam vizinhos mais
+   * proximos. Com uma meta entre 0 e 1 esses modelos sao compilados para
+   * buscar de forma aproximada, encontrando em media pelo menos essa fracao
+   * dos verdadeiros vizinhos; 0 significa uma busca exata. Esses modelos
+   * sao recompilados se a meta mudar. Modelos podem ser compartilhados por
+   * varios steps (passos), entao a meta e definida quando um modelo e
+   * carregado, antes de ser compartilhado.
+   *
+   * @param recall the recall target, or 0 for an exact search
+   *               a meta de revocacao, ou 0 para uma busca exata
+   */
+  public synchronized void setNeighbourSearchRecall(double recall) {
+    if (recall != m_neighbourSearchRecall) {
+      m_neighbourSearchRecall = recall;
+      // only an engine that searches for neighbours depends on the target;
+      // a model that isn't compiled yet picks it up when it is
+      // apenas um motor que busca vizinhos depende da meta; um modelo ainda
+      // nao compilado a recebe quando for compilado
+      if (searchesNeighbours()) {
+        compile();
+      }
+    }
+  }
+
+  /**
+   * Returns true if the model has been compiled into an engine that searches
+   * for nearest neighbours.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se o modelo foi compilado em um motor que busca
+   * vizinhos mais proximos.
+   *
+   * @return true if the compiled engine searches for nearest neighbours
+   *         verdadeiro se o motor compilado busca vizinhos mais proximos
+   */
+  boolean searchesNeighbours() {
+    return false;
+  }
+
+  /**
+   * Returns true if one instance of the model can score for several copies of
+   * the step at once without them waiting on each other. Other models are
+   * given to each step copy as a private copy.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se uma instancia do modelo pode pontuar para varias
+   * copias do step (passo) ao mesmo tempo sem que elas esperem umas pelas
+   * outras. Os outros modelos sao entregues a cada copia do step como uma
+   * copia privada.
+   *
+   * @return true if the model can be shared between step copies
+   *              se o modelo pode ser compartilhado entre copias do step
+   */
+  boolean isShareable() {
+    return false;
+  }
+
+  /**
+   * Get the recall target for models that search for nearest neighbours.
+   *
+   * PT-BR
+   *
+   * Retorna a meta de revocacao para modelos que buscam vizinhos mais
+   * proximos.
+   *
+   * @return the recall target, or 0 for an exact search
+   *         a meta de revocacao, ou 0 para uma busca exata
+   */
+  public double getNeighbourSearchRecall() {
+    return m_neighbourSearchRecall;
+  }
+
+  /**
+   * Set the size of the model as it was loaded, measured by
+   * WekaScoringData.loadSerializedModel().
+   *
+   * PT-BR
+   *
+   * Define o tamanho do modelo como foi carregado, medido por
+   * WekaScoringData.loadSerializedModel().
+   *
+   * @param size the size in bytes
+   *             o tamanho em bytes
+   */
+  void setLoadedSize(long size) {
+    m_loadedSize = size;
+  }
+
+  /**
+   * Get the size of the model as it was loaded.
+   *
+   * PT-BR
+   *
+   * Retorna o tamanho do modelo como foi carregado.
+   *
+   * @return the size in bytes, or 0 if the model wasn't loaded from a file
+   *         o tamanho em bytes, ou 0 se o modelo nao foi carregado de um
+   *         arquivo
+   */
+  long getLoadedSize() {
+    return m_loadedSize;
+  }
+
   /**
    * Tell the model that this scoring run is finished.
    * 
@@ -218,6 +355,53 @@ public abstract class WekaScoringModel implements Serializable {
   public abstract double[][] distributionsForInstances(Instances insts)
       throws Exception;
 
+  /**
+   * Return a distribution whose most probable class (or cluster) is that of
+   * distributionForInstance(), for when only the label is output. Models
+   * that can decide the label without the whole distribution override this.
+   *
+   * PT-BR
+   *
+   * Retorna uma distribuicao cuja classe (ou grupo) mais provavel e a de
+   * distributionForInstance(), para quando apenas o rotulo e emitido.
+   * Modelos que podem decidir o rotulo sem a distribuicao inteira
+   * sobrescrevem este metodo.
+   *
+   * @param inst the Instance to be predicted
+   *             a Instance para ser prevista
+   * @return a distribution with the same most probable class
+   *         uma distribuicao com a mesma classe mais provavel
+   * @exception Exception if an error occurs
+   *                      se ocorrer um erro
+   */
+  public double[] labelDistributionForInstance(Instance inst)
+      throws Exception {
+    return distributionForInstance(inst);
+  }
+
+  /**
+   * Batch version of labelDistributionForInstance(). Call isBatchPredictor()
+   * first in order to determine if the underlying model can handle batch
+   * scoring.
+   *
+   * PT-BR
+   *
+   * Versao em lote de labelDistributionForInstance(). Chama o metodo
+   * isBatchPredictor() primeiramente para determinar se o modelo subjacente
+   * pode manusear o lote scoring.
+   *
+   * @param insts the instances to score
+   *              as instancias para pontuar
+   * @return one distribution for each instance
+   *         uma distribuicao para cada instancia
+   * @throws Exception if a problem occurs
+   *                   se ocorrer um problema
+   */
+  public double[][] labelDistributionsForInstances(Instances insts)
+      throws Exception {
+    return distributionsForInstances(insts);
+  }
+
   /**
    * Returns true if the encapsulated Weka model is a supervised model (i.e. has
    * been built to predict a single target in the data).
@@ -275,6 +459,66 @@ public abstract class WekaScoringModel implements Serializable {
    */
   public abstract boolean update(Instance inst) throws Exception;
 
+  /**
+   * Compile the Weka model into a faster scoring engine, if there is one for
+   * this type of model. Predictions are unchanged; models without an engine
+   * are scored by Weka directly. This is done automatically when the header is
+   * set, and on first use for models read from serialized step meta data.
+   *
+   * PT-BR
+   *
+   * Compila o modelo Weka em um motor de pontuacao mais rapido, se houver um
+   * para este tipo de modelo. As previsoes nao mudam; modelos sem motor sao
+   * pontuados diretamente pelo Weka. Isto e feito automaticamente quando o
+   * cabecalho e definido, e no primeiro uso para modelos lidos de metadados
+   * serializados do step (passo).
+   *
+   * @return true if predictions are made by a compiled engine
+   *              se as previsoes sao feitas por um motor compilado
+   */
+  public boolean compile() {
+    // subclasses override if they have engines
+    // subclasses sobreescrevem se possuirem motores
+    return false;
+  }
+
+  /**
+   * Get the compiled filters of the model, if it has any, so that the step
+   * can filter values while it converts a row. Instances built against the
+   * preprocessor's output format are taken to be filtered already.
+   *
+   * PT-BR
+   *
+   * Retorna os filtros compilados do modelo, se ele possuir algum, para que
+   * o step (passo) possa filtrar os valores enquanto converte uma linha.
+   * Instancias construidas com o formato de saida do pre-processador sao
+   * tomadas como ja filtradas.
+   *
+   * @return the compiled filters or null
+   *         os filtros compilados ou null
+   */
+  WekaScoringPreprocessor getPreprocessor() {
+    return null;
+  }
+
+  /**
+   * Get the compiled word vectorizer of the model, if it has one, so that
+   * the step can hand it the text of a row instead of storing the text in
+   * the header.
+   *
+   * PT-BR
+   *
+   * Retorna o vetorizador de palavras compilado do modelo, se ele possuir
+   * um, para que o step (passo) possa entregar a ele o texto de uma linha em
+   * vez de guardar o texto no cabecalho.
+   *
+   * @return the compiled vectorizer or null
+   *         o vetorizador compilado ou null
+   */
+  WekaScoringTextVectorizer getTextVectorizer() {
+    return null;
+  }
+
   /**
    * Static factory method to create an instance of an appropriate subclass of
    * WekaScoringModel given a Weka model.
@@ -0,0 +1,613 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least recently used cache for models that are loaded from files
+ * named in the incoming rows. One cache is shared by all copies of a step
+ * (see acquire()). The cache can be limited by number of entries and by the
+ * estimated memory taken by the cached models; caches without a memory limit
+ * of their own share a budget of a quarter of the heap across the JVM.
+ * Models that have not been used for longer than the idle timeout are
+ * dropped. Like WekaScoringModelRegistry, models that can't be shared are
+ * held as their serialized bytes and every step copy gets a private copy.
+ * Hit, miss, eviction and load time counters are kept so that they can be
+ * reported in the step log.
+ *
+ * PT-BR
+ *
+ * Cache limitado, do menos usado recentemente, para modelos carregados a
+ * partir de arquivos informados nas linhas de entrada. Um cache e
+ * compartilhado por todas as copias de um step (passo) (veja acquire()). O
+ * cache pode ser limitado pelo numero de entradas e pela memoria estimada dos
+ * modelos; caches sem limite de memoria proprio compartilham um limite de um
+ * quarto do heap para toda a JVM. Os modelos nao usados por mais tempo que o
+ * tempo ocioso sao descartados. Assim como no WekaScoringModelRegistry,
+ * modelos que nao podem ser compartilhados sao mantidos como os seus bytes
+ * serializados e cada copia do step recebe uma copia privada. Contadores de
+ * acertos, falhas, remocoes e tempo de carga sao mantidos para que possam
+ * ser informados no log do step (passo).
+ */
+class WekaScoringModelCache {
+
+  /** memory limit meaning the JVM-wide default budget
+   *  limite de memoria que significa o limite padrao para toda a JVM
+   */
+  static final long DEFAULT_BUDGET = -1;
+
+  /** the JVM-wide default budget: a quarter of the heap
+   *  o limite padrao para toda a JVM: um quarto do heap
+   */
+  static final long DEFAULT_BUDGET_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+  /**
+   * Rough number of bytes of heap taken by a model for each byte of its
+   * serialized form (object headers, references and padding).
+   *
+   * Numero aproximado de bytes do heap ocupados por um modelo para cada byte
+   * da sua forma serializada (cabecalhos de objetos, referencias e
+   * alinhamento).
+   */
+  static final int HEAP_BYTES_PER_SERIALIZED_BYTE = 3;
+
+  /** bytes held by all caches that use the default budget
+   *  bytes mantidos por todos os caches que usam o limite padrao
+   */
+  private static long s_defaultBudgetUsed;
+  private static final Object s_budgetLock = new Object();
+
+  /** caches shared by the copies of a step, keyed by step
+   *  caches compartilhados pelas copias de um step, indexados pelo step
+   */
+  private static final Map<String, WekaScoringModelCache> s_shared = new HashMap<String, WekaScoringModelCache>();
+
+  private static class CacheEntry {
+    final WekaScoringSharedModel m_model;
+    final long m_size;
+    long m_lastAccess;
+
+    CacheEntry(WekaScoringSharedModel model, long size, long lastAccess) {
+      m_model = model;
+      m_size = size;
+      m_lastAccess = lastAccess;
+    }
+  }
+
+  /** cached models in access order (least recently used first)
+   *  modelos no cache em ordem de acesso (menos usado recentemente primeiro)
+   */
+  private final LinkedHashMap<String, CacheEntry> m_entries = new LinkedHashMap<String, CacheEntry>(
+      16, 0.75f, true);
+
+  /** maximum number of entries (0 for no limit)
+   *  numero maximo de entradas (0 para sem limite)
+   */
+  private final int m_maxEntries;
+
+  /** maximum estimated size in bytes of the cached models (0 for no limit,
+   *  DEFAULT_BUDGET for the JVM-wide budget)
+   *  tamanho maximo estimado em bytes dos modelos no cache (0 para sem
+   *  limite, DEFAULT_BUDGET para o limite de toda a JVM)
+   */
+  private final long m_maxBytes;
+
+  /** idle time in milliseconds after which a model is dropped (0 for never)
+   *  tempo ocioso em milisegundos apos o qual um modelo e descartado (0 para
+   *  nunca)
+   */
+  private final long m_idleTimeout;
+
+  private long m_currentBytes;
+
+  /** step copies using a shared cache
+   *  copias do step usando um cache compartilhado
+   */
+  private int m_users;
+
+  private long m_hits;
+  private long m_misses;
+  private long m_evictions;
+  private long m_expirations;
+  private long m_loads;
+  private long m_loadTime;
+
+  /**
+   * Creates a new <code>WekaScoringModelCache</code>
+   *
+   * PT-BR
+   *
+   * Cria um novo WekaScoringModelCache
+   *
+   * @param maxEntries maximum number of models to hold (0 for no limit)
+   *                   numero maximo de modelos (0 para sem limite)
+   * @param maxBytes maximum estimated size of the models held (0 for no
+   *                 limit, DEFAULT_BUDGET for the JVM-wide budget)
+   *                 tamanho maximo estimado dos modelos (0 para sem limite,
+   *                 DEFAULT_BUDGET para o limite de toda a JVM)
+   * @param idleTimeout milliseconds after which an unused model is dropped (0
+   *                    for never)
+   *                    milisegundos apos os quais um modelo nao usado e
+   *                    descartado (0 para nunca)
+   */
+  WekaScoringModelCache(int maxEntries, long maxBytes, long idleTimeout) {
+    m_maxEntries = maxEntries;
+    m_maxBytes = maxBytes;
+    m_idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Get the cache shared by the copies of a step, creating it with the
+   * supplied limits for the first copy. Every call must be matched with a
+   * call to release().
+   *
+   * PT-BR
+   *
+   * Retorna o cache compartilhado pelas copias de um step (passo), criando-o
+   * com os limites fornecidos para a primeira copia. Cada chamada deve ter
+   * uma chamada correspondente de release().
+   *
+   * @param key identifies the step
+   *            identifica o step
+   * @param maxEntries maximum number of models to hold (0 for no limit)
+   *                   numero maximo de modelos (0 para sem limite)
+   * @param maxBytes maximum estimated size of the models held (0 for no
+   *                 limit, DEFAULT_BUDGET for the JVM-wide budget)
+   *                 tamanho maximo estimado dos modelos (0 para sem limite,
+   *                 DEFAULT_BUDGET para o limite de toda a JVM)
+   * @param idleTimeout milliseconds after which an unused model is dropped (0
+   *                    for never)
+   *                    milisegundos apos os quais um modelo nao usado e
+   *                    descartado (0 para nunca)
+   * @return the shared cache
+   *         o cache compartilhado
+   */
+  static WekaScoringModelCache acquire(String key, int maxEntries,
+      long maxBytes, long idleTimeout) {
+    synchronized (s_shared) {
+      WekaScoringModelCache cache = s_shared.get(key);
+      if (cache == null) {
+        cache = new WekaScoringModelCache(maxEntries, maxBytes, idleTimeout);
+        s_shared.put(key, cache);
+      }
+      cache.m_users++;
+      return cache;
+    }
+  }
+
+  /**
+   * Release one step copy's use of a shared cache. The cache is emptied when
+   * the last copy releases it.
+   *
+   * PT-BR
+   *
+   * Libera o uso de um cache compartilhado por uma copia do step (passo). O
+   * cache e esvaziado quando a ultima copia o libera.
+   *
+   * @param key identifies the step
+   *            identifica o step
+   * @return true if this was the last copy using the cache
+   *         verdadeiro se esta era a ultima copia usando o cache
+   */
+  static boolean release(String key) {
+    WekaScoringModelCache cache;
+    synchronized (s_shared) {
+      cache = s_shared.get(key);
+      if (cache == null || --cache.m_users > 0) {
+        return false;
+      }
+      s_shared.remove(key);
+    }
+    cache.clear();
+    return true;
+  }
+
+  /**
+   * Get a model from the cache, counting a hit or a miss. A model that can't
+   * be shared is returned as a private copy.
+   *
+   * PT-BR
+   *
+   * Retorna um modelo do cache, contando um acerto ou uma falha. Um modelo
+   * que nao pode ser compartilhado e retornado como uma copia privada.
+   *
+   * @param key the resolved path of the model file
+   *            o caminho resolvido do arquivo de modelo
+   * @return the cached model or null if it is not cached
+   *         o modelo no cache ou null se ele nao estiver no cache
+   * @throws Exception if the private copy can't be made
+   *                   se a copia privada nao puder ser feita
+   */
+  WekaScoringModel get(String key) throws Exception {
+    WekaScoringSharedModel model;
+    synchronized (this) {
+      long now = currentTime();
+      expire(now);
+
+      CacheEntry entry = m_entries.get(key);
+      if (entry == null) {
+        m_misses++;
+        return null;
+      }
+
+      m_hits++;
+      entry.m_lastAccess = now;
+      model = entry.m_model;
+    }
+    // private copies are made outside of the lock
+    // copias privadas sao feitas fora do lock
+    return model.get();
+  }
+
+  /**
+   * Returns true if a model is cached under the supplied key. Unlike get(), this
+   * neither counts as a hit or miss nor changes the access order.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se ha um modelo no cache com a chave fornecida. Ao
+   * contrario de get(), nao conta acerto ou falha nem altera a ordem de acesso.
+   *
+   * @param key the resolved path of the model file
+   *            o caminho resolvido do arquivo de modelo
+   * @return true if the model is cached
+   *         verdadeiro se o modelo esta no cache
+   */
+  synchronized boolean contains(String key) {
+    return m_entries.containsKey(key);
+  }
+
+  /**
+   * Add a freshly loaded model to the cache, evicting the least recently used
+   * models until the cache is back within its limits. A model that is larger
+   * than the whole memory budget is not cached, nor is a model that doesn't
+   * fit in the JVM-wide budget once this cache's other models are evicted.
+   *
+   * PT-BR
+   *
+   * Adiciona um modelo recem carregado ao cache, removendo os modelos menos
+   * usados recentemente ate que o cache volte aos seus limites. Um modelo
+   * maior que todo o limite de memoria nao e armazenado, nem um modelo que
+   * nao cabe no limite de toda a JVM depois que os outros modelos deste
+   * cache sao removidos.
+   *
+   * @param key the resolved path of the model file
+   *            o caminho resolvido do arquivo de modelo
+   * @param model the model
+   *              o modelo
+   * @param size the estimated size of the model in bytes (see
+   *             estimateHeapSize())
+   *             o tamanho estimado do modelo em bytes (veja
+   *             estimateHeapSize())
+   * @param loadTime the time taken to load the model in milliseconds
+   *                 o tempo gasto para carregar o modelo em milisegundos
+   * @return true if the model was cached
+   *         verdadeiro se o modelo foi armazenado
+   * @throws Exception if a model that can't be shared can't be serialized
+   *                   se um modelo que nao pode ser compartilhado nao puder
+   *                   ser serializado
+   */
+  boolean put(String key, WekaScoringModel model, long size, long loadTime)
+      throws Exception {
+    WekaScoringSharedModel shared = null;
+    long maxBytes = (m_maxBytes < 0) ? DEFAULT_BUDGET_BYTES : m_maxBytes;
+    if (maxBytes <= 0 || size <= maxBytes) {
+      shared = new WekaScoringSharedModel(model);
+    }
+
+    synchronized (this) {
+      return putEntry(key, shared, size, loadTime);
+    }
+  }
+
+  private boolean putEntry(String key, WekaScoringSharedModel model,
+      long size, long loadTime) {
+    m_loads++;
+    m_loadTime += loadTime;
+
+    long now = currentTime();
+    expire(now);
+
+    CacheEntry old = m_entries.remove(key);
+    if (old != null) {
+      addBytes(-old.m_size);
+    }
+
+    if (model == null) {
+      // larger than the whole budget
+      // maior que todo o limite
+      return false;
+    }
+
+    m_entries.put(key, new CacheEntry(model, size, now));
+    addBytes(size);
+
+    Iterator<Map.Entry<String, CacheEntry>> i = m_entries.entrySet()
+        .iterator();
+    while (i.hasNext() && overLimits()) {
+      Map.Entry<String, CacheEntry> lru = i.next();
+      if (lru.getKey().equals(key)) {
+        // never evict the model that was just added
+        // nunca remove o modelo que acabou de ser adicionado
+        continue;
+      }
+      addBytes(-lru.getValue().m_size);
+      i.remove();
+      m_evictions++;
+    }
+
+    if (overLimits()) {
+      // the rest of the JVM-wide budget is held by other caches
+      // o resto do limite de toda a JVM e mantido por outros caches
+      m_entries.remove(key);
+      addBytes(-size);
+      return false;
+    }
+
+    return true;
+  }
+
+  private boolean overLimits() {
+    if (m_maxEntries > 0 && m_entries.size() > m_maxEntries) {
+      return true;
+    }
+    if (m_maxBytes < 0) {
+      return getDefaultBudgetUsed() > DEFAULT_BUDGET_BYTES;
+    }
+    return m_maxBytes > 0 && m_currentBytes > m_maxBytes;
+  }
+
+  private void addBytes(long delta) {
+    m_currentBytes += delta;
+    if (m_maxBytes < 0) {
+      synchronized (s_budgetLock) {
+        s_defaultBudgetUsed += delta;
+      }
+    }
+  }
+
+  /**
+   * Get the bytes held by all caches that use the JVM-wide default budget.
+   *
+   * PT-BR
+   *
+   * Retorna os bytes mantidos por todos os caches que usam o limite padrao
+   * de toda a JVM.
+   *
+   * @return the bytes held
+   *         os bytes mantidos
+   */
+  static long getDefaultBudgetUsed() {
+    synchronized (s_budgetLock) {
+      return s_defaultBudgetUsed;
+    }
+  }
+
+  /**
+   * Drop models that have been idle for longer than the timeout. Entries are
+   * held in access order so the scan stops at the first one still in use.
+   *
+   * PT-BR
+   *
+   * Descarta os modelos ociosos por mais tempo que o limite. As entradas sao
+   * mantidas em ordem de acesso, entao a busca para na primeira ainda em uso.
+   */
+  private void expire(long now) {
+    if (m_idleTimeout <= 0) {
+      return;
+    }
+
+    Iterator<CacheEntry> i = m_entries.values().iterator();
+    while (i.hasNext()) {
+      CacheEntry entry = i.next();
+      if (now - entry.m_lastAccess < m_idleTimeout) {
+        break;
+      }
+      addBytes(-entry.m_size);
+      i.remove();
+      m_expirations++;
+    }
+  }
+
+  /**
+   * Get the current time in milliseconds.
+   *
+   * PT-BR
+   *
+   * Retorna o tempo atual em milisegundos.
+   *
+   * @return the current time in milliseconds
+   *         o tempo atual em milisegundos
+   */
+  protected long currentTime() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Remove all models from the cache. The counters are kept.
+   *
+   * PT-BR
+   *
+   * Remove todos os modelos do cache. Os contadores sao mantidos.
+   */
+  synchronized void clear() {
+    m_entries.clear();
+    addBytes(-m_currentBytes);
+  }
+
+  synchronized int size() {
+    return m_entries.size();
+  }
+
+  synchronized long getCurrentBytes() {
+    return m_currentBytes;
+  }
+
+  synchronized long getHits() {
+    return m_hits;
+  }
+
+  synchronized long getMisses() {
+    return m_misses;
+  }
+
+  synchronized long getEvictions() {
+    return m_evictions;
+  }
+
+  synchronized long getExpirations() {
+    return m_expirations;
+  }
+
+  synchronized long getLoads() {
+    return m_loads;
+  }
+
+  synchronized long getLoadTime() {
+    return m_loadTime;
+  }
+
+  /**
+   * Estimate the memory taken by a model from the size of its serialized form.
+   * Models loaded from a file use the size measured while loading them; the
+   * others, such as models stored in the step meta data, are serialized and
+   * the bytes counted without being buffered.
+   *
+   * PT-BR
+   *
+   * Estima a memoria ocupada por um modelo pelo tamanho da sua forma
+   * serializada. Modelos carregados de um arquivo usam o tamanho medido ao
+   * carrega-los; os demais, como modelos armazenados nos metadados do step
+   * (passo), sao serializados e os bytes contados sem serem armazenados.
+   *
+   * @param model the model
+   *              o modelo
+   * @return the estimated size in bytes
+   *         o tamanho estimado em bytes
+   * @throws Exception if the model can't be serialized
+   *                   se o modelo nao puder ser serializado
+   */
+  static long estimateSize(WekaScoringModel model) throws Exception {
+    if (model.getLoadedSize() > 0) {
+      return model.getLoadedSize();
+    }
+
+    final long[] count = new long[1];
+    ObjectOutputStream oos = new ObjectOutputStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+        count[0]++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        count[0] += len;
+      }
+    });
+    oos.writeObject(model);
+    oos.close();
+
+    return count[0];
+  }
+
+  /**
+   * Estimate the heap taken by a model while it is cached. A model that can
+   * be shared is held as an object graph, which takes several times the size
+   * of its serialized form; any other model is held as its serialized bytes.
+   *
+   * PT-BR
+   *
+   * Estima o heap ocupado por um modelo enquanto ele esta no cache. Um modelo
+   * que pode ser compartilhado e mantido como um grafo de objetos, que ocupa
+   * varias vezes o tamanho da sua forma serializada; os demais modelos sao
+   * mantidos como os seus bytes serializados.
+   *
+   * @param model the model
+   *              o modelo
+   * @return the estimated size in bytes
+   *         o tamanho estimado em bytes
+   * @throws Exception if the model can't be serialized
+   *                   se o modelo nao puder ser serializado
+   */
+  static long estimateHeapSize(WekaScoringModel model) throws Exception {
+    long size = estimateSize(model);
+    return model.isShareable() ? size * HEAP_BYTES_PER_SERIALIZED_BYTE : size;
+  }
+
+  /**
+   * Input stream that counts the bytes read through it, so that the size of
+   * a model can be measured while it is loaded.
+   *
+   * PT-BR
+   *
+   * Stream de entrada que conta os bytes lidos atraves dele, de modo que o
+   * tamanho de um modelo possa ser medido enquanto e carregado.
+   */
+  static class CountingInputStream extends FilterInputStream {
+
+    private long m_count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        m_count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        m_count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      m_count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    long getCount() {
+      return m_count;
+    }
+  }
+}
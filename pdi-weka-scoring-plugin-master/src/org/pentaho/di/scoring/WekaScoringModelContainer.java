@@ -0,0 +1,461 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.pentaho.di.core.variables.Variables;
+
+import weka.core.Instances;
+
+/**
+ * Reads and writes the fast binary model container (<code>.wsmodel</code>
+ * files). A container starts with a small uncompressed header block holding the
+ * Instances header, the attributes to ignore when clustering, the class of the
+ * model and a hash of the model's content. The serialized model follows as a
+ * series of independently deflated blocks that are inflated in parallel when
+ * the model is loaded.
+ * <p>
+ *
+ * Layout: magic, version, header block length, header block, payload length,
+ * block size, number of blocks, then for each block its compressed length
+ * followed by the compressed bytes.
+ * <p>
+ *
+ * Existing <code>.model</code> and <code>.model.gz</code> files can be
+ * converted by running this class with the source and destination file names.
+ *
+ * PT-BR
+ *
+ * Le e grava o conteiner binario rapido de modelos (arquivos
+ * <code>.wsmodel</code>). Um conteiner comeca com um pequeno bloco de cabecalho
+ * nao comprimido contendo o cabecalho Instances, os atributos ignorados no
+ * agrupamento, a classe do modelo e um hash do conteudo do modelo. O modelo
+ * serializado vem em seguida como uma serie de blocos comprimidos de forma
+ * independente, que sao descomprimidos em paralelo quando o modelo e
+ * carregado.
+ *
+ * Arquivos <code>.model</code> e <code>.model.gz</code> existentes podem ser
+ * convertidos executando esta classe com os nomes dos arquivos de origem e de
+ * destino.
+ */
+public class WekaScoringModelContainer {
+
+  /** file extension of model containers
+   *  extensao dos arquivos de conteiner de modelos
+   */
+  public static final String FILE_EXTENSION = ".wsmodel"; //$NON-NLS-1$
+
+  private static final int MAGIC = 0x57534d43; // "WSMC"
+  private static final int VERSION = 1;
+
+  /** size of the uncompressed payload blocks
+   *  tamanho dos blocos nao comprimidos do conteudo
+   */
+  static final int BLOCK_SIZE = 1024 * 1024;
+
+  /** pool used to inflate payload blocks
+   *  pool usado para descomprimir os blocos do conteudo
+   */
+  private static ExecutorService s_inflaters;
+
+  /**
+   * The uncompressed header block of a container.
+   *
+   * PT-BR
+   *
+   * O bloco de cabecalho nao comprimido de um conteiner.
+   */
+  public static class Header {
+    /** the class name of the Weka model */
+    public String m_modelClass;
+
+    /** SHA-1 of the uncompressed payload */
+    public byte[] m_contentHash;
+
+    /** the Instances header the model was built with */
+    public Instances m_header;
+
+    /** attributes to ignore when clustering (may be null) */
+    public int[] m_ignoredAttsForClustering;
+
+    /** size of the uncompressed payload (set by readModel()) */
+    public long m_payloadSize;
+  }
+
+  private WekaScoringModelContainer() {
+  }
+
+  /**
+   * Returns true if the supplied file name names a model container.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se o nome de arquivo fornecido for de um conteiner de
+   * modelo.
+   *
+   * @param fileName the file name
+   *                 o nome do arquivo
+   * @return true if the file is a model container
+   *         verdadeiro se o arquivo for um conteiner de modelo
+   */
+  public static boolean isContainerFile(String fileName) {
+    return fileName.toLowerCase().endsWith(FILE_EXTENSION);
+  }
+
+  /**
+   * Write a model to a container.
+   *
+   * PT-BR
+   *
+   * Grava um modelo em um conteiner.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the Instances header the model was built with
+   *               o cabecalho Instances usado para construir o modelo
+   * @param ignoredAttsForClustering attributes ignored when clustering (may be
+   *                                 null)
+   *                                 atributos ignorados no agrupamento (pode
+   *                                 ser null)
+   * @param out the stream to write to (closed by this method)
+   *            o stream para gravar (fechado por este metodo)
+   * @throws Exception if a problem occurs
+   *                   se ocorrer um problema
+   */
+  public static void write(Object model, Instances header,
+      int[] ignoredAttsForClustering, OutputStream out) throws Exception {
+    write(model, header, ignoredAttsForClustering, out, BLOCK_SIZE);
+  }
+
+  static void write(Object model, Instances header,
+      int[] ignoredAttsForClustering, OutputStream out, int blockSize)
+      throws Exception {
+
+    // serialize the model
+    // serializa o modelo
+    ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(payloadBytes);
+    oos.writeObject(model);
+    oos.close();
+    byte[] payload = payloadBytes.toByteArray();
+
+    // the header block
+    // o bloco de cabecalho
+    ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+    DataOutputStream hdos = new DataOutputStream(headerBytes);
+    hdos.writeUTF(model.getClass().getName());
+    byte[] hash = MessageDigest.getInstance("SHA-1").digest(payload); //$NON-NLS-1$
+    hdos.writeShort(hash.length);
+    hdos.write(hash);
+    if (ignoredAttsForClustering == null) {
+      hdos.writeInt(-1);
+    } else {
+      hdos.writeInt(ignoredAttsForClustering.length);
+      for (int att : ignoredAttsForClustering) {
+        hdos.writeInt(att);
+      }
+    }
+    ObjectOutputStream hoos = new ObjectOutputStream(hdos);
+    hoos.writeObject(header);
+    hoos.close();
+
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+    try {
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      dos.writeInt(headerBytes.size());
+      headerBytes.writeTo(dos);
+
+      int numBlocks = (payload.length + blockSize - 1) / blockSize;
+      dos.writeInt(payload.length);
+      dos.writeInt(blockSize);
+      dos.writeInt(numBlocks);
+
+      Deflater deflater = new Deflater();
+      byte[] buff = new byte[blockSize + blockSize / 100 + 64];
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      try {
+        for (int i = 0; i < numBlocks; i++) {
+          int off = i * blockSize;
+          int len = Math.min(blockSize, payload.length - off);
+          deflater.reset();
+          deflater.setInput(payload, off, len);
+          deflater.finish();
+          block.reset();
+          while (!deflater.finished()) {
+            int n = deflater.deflate(buff);
+            block.write(buff, 0, n);
+          }
+          dos.writeInt(block.size());
+          block.writeTo(dos);
+        }
+      } finally {
+        deflater.end();
+      }
+    } finally {
+      dos.close();
+    }
+  }
+
+  /**
+   * Read just the header block of a container, without touching the model
+   * payload.
+   *
+   * PT-BR
+   *
+   * Le apenas o bloco de cabecalho de um conteiner, sem ler o conteudo do
+   * modelo.
+   *
+   * @param in the stream to read from (left positioned at the payload)
+   *           o stream para ler (posicionado no inicio do conteudo)
+   * @return the header
+   *         o cabecalho
+   * @throws Exception if the stream is not a model container
+   *                   se o stream nao for um conteiner de modelo
+   */
+  public static Header readHeader(InputStream in) throws Exception {
+    byte[] headerBlock = readHeaderBlock(in);
+
+    DataInputStream hdis = new DataInputStream(new ByteArrayInputStream(
+        headerBlock));
+    Header result = new Header();
+    result.m_modelClass = hdis.readUTF();
+    result.m_contentHash = new byte[hdis.readShort()];
+    hdis.readFully(result.m_contentHash);
+    int numIgnored = hdis.readInt();
+    if (numIgnored >= 0) {
+      result.m_ignoredAttsForClustering = new int[numIgnored];
+      for (int i = 0; i < numIgnored; i++) {
+        result.m_ignoredAttsForClustering[i] = hdis.readInt();
+      }
+    }
+    ObjectInputStream ois = new ObjectInputStream(hdis);
+    result.m_header = (Instances) ois.readObject();
+
+    return result;
+  }
+
+  /**
+   * Compute a digest that identifies the content of a container. Only the
+   * header block is read: it holds the hash of the model payload as well as
+   * the Instances header.
+   *
+   * PT-BR
+   *
+   * Calcula um digest que identifica o conteudo de um conteiner. Apenas o
+   * bloco de cabecalho e lido: ele contem o hash do conteudo do modelo e o
+   * cabecalho Instances.
+   *
+   * @param in the stream to read from
+   *           o stream para ler
+   * @return the SHA-1 digest of the header block
+   *         o digest SHA-1 do bloco de cabecalho
+   * @throws Exception if the stream is not a model container
+   *                   se o stream nao for um conteiner de modelo
+   */
+  static byte[] readContentDigest(InputStream in) throws Exception {
+    return MessageDigest.getInstance("SHA-1").digest(readHeaderBlock(in)); //$NON-NLS-1$
+  }
+
+  private static byte[] readHeaderBlock(InputStream in) throws IOException {
+    DataInputStream dis = new DataInputStream(in);
+    if (dis.readInt() != MAGIC) {
+      throw new IOException("Not a Weka scoring model container"); //$NON-NLS-1$
+    }
+    int version = dis.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported model container version " + version); //$NON-NLS-1$
+    }
+
+    byte[] headerBlock = new byte[dis.readInt()];
+    dis.readFully(headerBlock);
+    return headerBlock;
+  }
+
+  /**
+   * Read the model payload that follows the header block. Blocks are inflated
+   * in parallel and the content hash is checked before the model is
+   * de-serialized.
+   *
+   * PT-BR
+   *
+   * Le o conteudo do modelo que segue o bloco de cabecalho. Os blocos sao
+   * descomprimidos em paralelo e o hash do conteudo e verificado antes de o
+   * modelo ser deserializado.
+   *
+   * @param in the stream positioned after the header block
+   *           o stream posicionado apos o bloco de cabecalho
+   * @param header the header read from the stream
+   *               o cabecalho lido do stream
+   * @return the Weka model
+   *         o modelo Weka
+   * @throws Exception if a problem occurs
+   *                   se ocorrer um problema
+   */
+  public static Object readModel(InputStream in, Header header)
+      throws Exception {
+    DataInputStream dis = new DataInputStream(in);
+    final byte[] payload = new byte[dis.readInt()];
+    header.m_payloadSize = payload.length;
+    final int blockSize = dis.readInt();
+    int numBlocks = dis.readInt();
+
+    List<Callable<Object>> inflateTasks = new ArrayList<Callable<Object>>(
+        numBlocks);
+    for (int i = 0; i < numBlocks; i++) {
+      final byte[] compressed = new byte[dis.readInt()];
+      dis.readFully(compressed);
+      final int off = i * blockSize;
+      final int len = Math.min(blockSize, payload.length - off);
+      inflateTasks.add(new Callable<Object>() {
+        public Object call() throws Exception {
+          inflate(compressed, payload, off, len);
+          return null;
+        }
+      });
+    }
+
+    if (numBlocks == 1) {
+      inflateTasks.get(0).call();
+    } else if (numBlocks > 1) {
+      try {
+        for (Future<Object> f : getInflaters().invokeAll(inflateTasks)) {
+          f.get();
+        }
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        throw (cause instanceof Exception) ? (Exception) cause : ex;
+      }
+    }
+
+    byte[] hash = MessageDigest.getInstance("SHA-1").digest(payload); //$NON-NLS-1$
+    if (!Arrays.equals(hash, header.m_contentHash)) {
+      throw new IOException("Model container content does not match its hash"); //$NON-NLS-1$
+    }
+
+    ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+        payload));
+    try {
+      return ois.readObject();
+    } finally {
+      ois.close();
+    }
+  }
+
+  private static void inflate(byte[] compressed, byte[] dest, int off, int len)
+      throws DataFormatException, IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int done = 0;
+      while (done < len) {
+        int n = inflater.inflate(dest, off + done, len - done);
+        if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+          break;
+        }
+        done += n;
+      }
+      if (done != len) {
+        throw new IOException("Truncated model container block"); //$NON-NLS-1$
+      }
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static synchronized ExecutorService getInflaters() {
+    if (s_inflaters == null) {
+      s_inflaters = Executors.newFixedThreadPool(Runtime.getRuntime()
+          .availableProcessors(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "WekaScoring model inflater"); //$NON-NLS-1$
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return s_inflaters;
+  }
+
+  /**
+   * Converts an existing model file (<code>.model</code>,
+   * <code>.model.gz</code>, <code>.xstreammodel</code> or PMML) into a model
+   * container.
+   *
+   * PT-BR
+   *
+   * Converte um arquivo de modelo existente (<code>.model</code>,
+   * <code>.model.gz</code>, <code>.xstreammodel</code> ou PMML) em um
+   * conteiner de modelo.
+   *
+   * @param args the source model file and the destination container file
+   *             o arquivo de modelo de origem e o arquivo de conteiner de
+   *             destino
+   */
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.err.println("Usage: WekaScoringModelContainer <source model file> " //$NON-NLS-1$
+          + "<destination" + FILE_EXTENSION + ">"); //$NON-NLS-1$ //$NON-NLS-2$
+      System.exit(1);
+    }
+
+    try {
+      WekaScoringModel model = WekaScoringData.loadSerializedModel(args[0],
+          null, new Variables());
+
+      File dest = new File(args[1]);
+      if (!isContainerFile(dest.getName())) {
+        dest = new File(args[1] + FILE_EXTENSION);
+      }
+      int[] ignored = (model instanceof WekaScoringClusterer) ? ((WekaScoringClusterer) model)
+          .getAttributesToIgnore() : null;
+      write(model.getModel(), model.getHeader(), ignored, new FileOutputStream(
+          dest));
+      System.out.println("Wrote " + dest); //$NON-NLS-1$
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      System.exit(1);
+    }
+  }
+}
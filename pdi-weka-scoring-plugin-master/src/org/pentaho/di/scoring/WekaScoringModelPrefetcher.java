@@ -0,0 +1,229 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+
+/**
+ * Loads models named in rows that are still waiting in the step's look-ahead
+ * buffer, so that a model is usually ready by the time its first row reaches
+ * the scorer. Loads run on virtual threads when the JVM supports them and on
+ * a small pool of daemon threads otherwise.
+ *
+ * PT-BR
+ *
+ * Carrega os modelos informados em linhas que ainda estao no buffer de
+ * antecipacao do step (passo), para que um modelo normalmente esteja pronto
+ * quando a sua primeira linha chegar ao scorer. As cargas executam em threads
+ * virtuais quando a JVM as suporta e em um pequeno pool de threads daemon caso
+ * contrario.
+ */
+class WekaScoringModelPrefetcher {
+
+  /** number of loader threads when virtual threads are not available
+   *  numero de threads de carga quando threads virtuais nao estao disponiveis
+   */
+  static final int DEFAULT_LOADER_THREADS = 2;
+
+  private final ExecutorService m_executor;
+
+  /** loads that have been started but not yet handed out
+   *  cargas iniciadas mas ainda nao entregues
+   */
+  private final Map<String, Future<WekaScoringModel>> m_pending = new HashMap<String, Future<WekaScoringModel>>();
+
+  private final LogChannelInterface m_log;
+  private final VariableSpace m_space;
+
+  private long m_started;
+  private long m_used;
+  private long m_waitTime;
+
+  /**
+   * Creates a new <code>WekaScoringModelPrefetcher</code>
+   *
+   * PT-BR
+   *
+   * Cria um novo WekaScoringModelPrefetcher
+   *
+   * @param log the log to use when loading models
+   *            o log usado ao carregar os modelos
+   * @param space variables to substitute in model paths
+   *              variaveis para substituir nos caminhos dos modelos
+   */
+  WekaScoringModelPrefetcher(LogChannelInterface log, VariableSpace space) {
+    m_log = log;
+    m_space = space;
+    m_executor = createExecutor();
+  }
+
+  /**
+   * Use a virtual thread per load if the JVM has them (Java 21+), otherwise a
+   * fixed pool of daemon threads. Reflection keeps the plugin loadable on
+   * older JVMs.
+   *
+   * PT-BR
+   *
+   * Usa uma thread virtual por carga se a JVM as possuir (Java 21+), caso
+   * contrario um pool fixo de threads daemon. Reflexao mantem o plugin
+   * carregavel em JVMs mais antigas.
+   */
+  private static ExecutorService createExecutor() {
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor"); //$NON-NLS-1$
+      return (ExecutorService) m.invoke(null);
+    } catch (Exception ex) {
+      // not available - fall back to platform threads
+      // nao disponivel - usa threads de plataforma
+    }
+
+    return Executors.newFixedThreadPool(DEFAULT_LOADER_THREADS,
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "WekaScoring model prefetch"); //$NON-NLS-1$
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Start loading the supplied model file in the background, unless a load for
+   * it is already pending.
+   *
+   * PT-BR
+   *
+   * Inicia a carga do arquivo de modelo fornecido em segundo plano, a menos
+   * que uma carga para ele ja esteja pendente.
+   *
+   * @param resolvedName the model file path with variables substituted
+   *                     o caminho do arquivo de modelo com as variaveis
+   *                     substituidas
+   */
+  void prefetch(final String resolvedName) {
+    if (m_pending.containsKey(resolvedName)) {
+      return;
+    }
+
+    m_pending.put(resolvedName,
+        m_executor.submit(new Callable<WekaScoringModel>() {
+          public WekaScoringModel call() throws Exception {
+            return WekaScoringData.loadSerializedModel(resolvedName, m_log,
+                m_space);
+          }
+        }));
+    m_started++;
+  }
+
+  /**
+   * Returns true if a load for the supplied model file is pending.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se uma carga para o arquivo de modelo fornecido esta
+   * pendente.
+   *
+   * @param resolvedName the model file path with variables substituted
+   *                     o caminho do arquivo de modelo com as variaveis
+   *                     substituidas
+   * @return true if the model is being (or has been) loaded
+   *         verdadeiro se o modelo esta sendo (ou foi) carregado
+   */
+  boolean isPending(String resolvedName) {
+    return m_pending.containsKey(resolvedName);
+  }
+
+  /**
+   * Take the model prefetched for the supplied file, waiting for the load to
+   * finish if necessary. Returns null if no load was started for the file or
+   * if the background load failed; the caller then loads the model itself so
+   * that any error is reported in the usual way.
+   *
+   * PT-BR
+   *
+   * Retorna o modelo antecipado para o arquivo fornecido, esperando o fim da
+   * carga se necessario. Retorna null se nenhuma carga foi iniciada para o
+   * arquivo ou se a carga em segundo plano falhou; neste caso quem chamou
+   * carrega o modelo por conta propria para que o erro seja informado da
+   * maneira usual.
+   *
+   * @param resolvedName the model file path with variables substituted
+   *                     o caminho do arquivo de modelo com as variaveis
+   *                     substituidas
+   * @return the loaded model or null
+   *         o modelo carregado ou null
+   */
+  WekaScoringModel take(String resolvedName) {
+    Future<WekaScoringModel> pending = m_pending.remove(resolvedName);
+    if (pending == null) {
+      return null;
+    }
+
+    long start = System.currentTimeMillis();
+    try {
+      WekaScoringModel model = pending.get();
+      m_used++;
+      return model;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (Exception ex) {
+      return null;
+    } finally {
+      m_waitTime += System.currentTimeMillis() - start;
+    }
+  }
+
+  /**
+   * Cancel any pending loads and stop the loader threads.
+   *
+   * PT-BR
+   *
+   * Cancela as cargas pendentes e para as threads de carga.
+   */
+  void shutdown() {
+    for (Future<WekaScoringModel> f : m_pending.values()) {
+      f.cancel(true);
+    }
+    m_pending.clear();
+    m_executor.shutdownNow();
+  }
+
+  long getStarted() {
+    return m_started;
+  }
+
+  long getUsed() {
+    return m_used;
+  }
+
+  long getWaitTime() {
+    return m_waitTime;
+  }
+}
@@ -0,0 +1,435 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.vfs.FileObject;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
+
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.rules.OneR;
+import weka.classifiers.rules.ZeroR;
+import weka.classifiers.trees.DecisionStump;
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.REPTree;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+
+/**
+ * JVM-wide registry of loaded models. Every copy of the step (and every
+ * transformation running in the same Carte/Pan JVM) that scores with the same
+ * model content uses a single load of the model. Compiled and thread-safe
+ * models are handed out as the same read-only WekaScoringModel instance;
+ * other models are handed out as private copies of the loaded model (see
+ * WekaScoringSharedModel). Models are keyed by a hash of their content and
+ * are reference counted; a model is unloaded when the last user releases it.
+ *
+ * PT-BR
+ *
+ * Registro de modelos carregados para toda a JVM. Cada copia do step (passo)
+ * (e cada transformacao executando na mesma JVM do Carte/Pan) que usa o mesmo
+ * conteudo de modelo usa uma unica carga do modelo. Modelos compilados e
+ * seguros entre threads sao entregues como a mesma instancia somente leitura
+ * de WekaScoringModel; os outros modelos sao entregues como copias privadas
+ * do modelo carregado (veja WekaScoringSharedModel). Os modelos sao indexados
+ * por um hash do seu conteudo e possuem contagem de referencias; um modelo e
+ * descarregado quando o ultimo usuario o libera.
+ */
+final class WekaScoringModelRegistry {
+
+  /** registered models keyed by content hash
+   *  modelos registrados indexados pelo hash do conteudo
+   */
+  private static final Map<String, RegistryEntry> s_entries = new HashMap<String, RegistryEntry>();
+
+  /** content keys already computed for in-memory models
+   *  chaves de conteudo ja calculadas para modelos em memoria
+   */
+  private static final Map<WekaScoringModel, String> s_modelKeys = new WeakHashMap<WekaScoringModel, String>();
+
+  /**
+   * Weka models whose prediction methods only read the model's state, so a
+   * single instance can be used by several threads at once.
+   *
+   * Modelos Weka cujos metodos de previsao apenas leem o estado do modelo,
+   * entao uma unica instancia pode ser usada por varias threads ao mesmo tempo.
+   */
+  private static final Class<?>[] THREAD_SAFE_MODELS = { J48.class,
+      REPTree.class, RandomTree.class, RandomForest.class, DecisionStump.class,
+      OneR.class, ZeroR.class, WekaScoringPMMLClassifier.class };
+
+  private static class RegistryEntry {
+    final FutureTask<WekaScoringSharedModel> m_loader;
+    int m_refCount;
+
+    RegistryEntry(final Callable<WekaScoringModel> loader) {
+      m_loader = new FutureTask<WekaScoringSharedModel>(
+          new Callable<WekaScoringSharedModel>() {
+            public WekaScoringSharedModel call() throws Exception {
+              return new WekaScoringSharedModel(loader.call());
+            }
+          });
+    }
+  }
+
+  private WekaScoringModelRegistry() {
+  }
+
+  /**
+   * Get the model registered under the supplied key, loading it with the
+   * supplied loader if this is the first user. Concurrent callers asking for
+   * the same key wait for a single load. Models that can't be shared are
+   * returned as a private copy for each call. Every successful call must be
+   * matched with a call to release().
+   *
+   * PT-BR
+   *
+   * Retorna o modelo registrado com a chave fornecida, carregando-o com o
+   * carregador fornecido se este for o primeiro usuario. Chamadas
+   * concorrentes para a mesma chave esperam por um unico carregamento.
+   * Modelos que nao podem ser compartilhados sao retornados como uma copia
+   * privada para cada chamada. Cada chamada bem sucedida deve ter uma
+   * chamada correspondente de release().
+   *
+   * @param key the content key of the model
+   *            a chave de conteudo do modelo
+   * @param loader loads the model if it is not registered yet
+   *               carrega o modelo se ele ainda nao estiver registrado
+   * @return the shared model or a private copy of it
+   *         o modelo compartilhado ou uma copia privada dele
+   * @throws Exception if the model can't be loaded
+   *                   se o modelo nao puder ser carregado
+   */
+  static WekaScoringModel acquire(String key,
+      Callable<WekaScoringModel> loader) throws Exception {
+    RegistryEntry entry;
+    boolean mustLoad = false;
+    synchronized (s_entries) {
+      entry = s_entries.get(key);
+      if (entry == null) {
+        entry = new RegistryEntry(loader);
+        s_entries.put(key, entry);
+        mustLoad = true;
+      }
+      entry.m_refCount++;
+    }
+
+    // load outside of the lock so that other models can still be handed out
+    // carrega fora do lock para que outros modelos ainda possam ser entregues
+    if (mustLoad) {
+      entry.m_loader.run();
+    }
+
+    WekaScoringSharedModel loaded;
+    try {
+      loaded = entry.m_loader.get();
+    } catch (ExecutionException ex) {
+      synchronized (s_entries) {
+        // forget the failed load so that the next caller tries again
+        // esquece o carregamento com falha para que o proximo tente novamente
+        if (s_entries.get(key) == entry) {
+          s_entries.remove(key);
+        }
+        entry.m_refCount--;
+      }
+      Throwable cause = ex.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw new Exception(cause);
+    }
+
+    try {
+      return loaded.get();
+    } catch (Exception ex) {
+      release(key);
+      throw ex;
+    }
+  }
+
+  /**
+   * Release one reference to the model registered under the supplied key.
+   * The model is unloaded when the last reference is released, and a shared
+   * instance is told that scoring is finished. Private copies are told so
+   * by their users.
+   *
+   * PT-BR
+   *
+   * Libera uma referencia ao modelo registrado com a chave fornecida. O
+   * modelo e descarregado quando a ultima referencia for liberada, e uma
+   * instancia compartilhada e avisada que o scoring terminou. Copias
+   * privadas sao avisadas pelos seus usuarios.
+   *
+   * @param key the content key of the model
+   *            a chave de conteudo do modelo
+   */
+  static void release(String key) {
+    WekaScoringModel unloaded = null;
+    synchronized (s_entries) {
+      RegistryEntry entry = s_entries.get(key);
+      if (entry == null) {
+        return;
+      }
+      entry.m_refCount--;
+      if (entry.m_refCount <= 0) {
+        s_entries.remove(key);
+        if (entry.m_loader.isDone()) {
+          try {
+            unloaded = entry.m_loader.get().getShared();
+          } catch (Exception ex) {
+            // never loaded, nothing to tidy up
+            // nunca foi carregado, nada para limpar
+          }
+        }
+      }
+    }
+
+    if (unloaded != null) {
+      unloaded.done();
+    }
+  }
+
+  /**
+   * Returns true if the model registered under the supplied key is handed out
+   * as a single shared instance rather than as private copies.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se o modelo registrado com a chave fornecida e
+   * entregue como uma unica instancia compartilhada em vez de copias
+   * privadas.
+   *
+   * @param key the content key of the model
+   *            a chave de conteudo do modelo
+   * @return true if the model is loaded and shared
+   *              se o modelo esta carregado e e compartilhado
+   */
+  static boolean isShared(String key) {
+    RegistryEntry entry;
+    synchronized (s_entries) {
+      entry = s_entries.get(key);
+    }
+    if (entry == null || !entry.m_loader.isDone()) {
+      return false;
+    }
+    try {
+      return entry.m_loader.get().isShared();
+    } catch (Exception ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Get the number of users of the model registered under the supplied key.
+   *
+   * PT-BR
+   *
+   * Retorna o numero de usuarios do modelo registrado com a chave fornecida.
+   *
+   * @param key the content key of the model
+   *            a chave de conteudo do modelo
+   * @return the number of references held (0 if not registered)
+   *         o numero de referencias (0 se nao estiver registrado)
+   */
+  static int getReferenceCount(String key) {
+    synchronized (s_entries) {
+      RegistryEntry entry = s_entries.get(key);
+      return (entry == null) ? 0 : entry.m_refCount;
+    }
+  }
+
+  /**
+   * Compute the content key for a model file. The file is streamed through a
+   * SHA-1 digest, which is much cheaper than de-serializing it. Only the
+   * header block of a model container is read.
+   *
+   * PT-BR
+   *
+   * Calcula a chave de conteudo de um arquivo de modelo. O arquivo e lido por
+   * um digest SHA-1, o que e muito mais barato do que deserializa-lo. Apenas o
+   * bloco de cabecalho de um conteiner de modelo e lido.
+   *
+   * @param modelFile the path to the model file
+   *                  o caminho do arquivo de modelo
+   * @param space variables to substitute in the path
+   *              variaveis para substituir no caminho
+   * @return the content key
+   *         a chave de conteudo
+   * @throws Exception if the file can't be read
+   *                   se o arquivo nao puder ser lido
+   */
+  static String keyForModelFile(String modelFile, VariableSpace space)
+      throws Exception {
+    modelFile = space.environmentSubstitute(modelFile);
+    FileObject modelF = KettleVFS.getFileObject(modelFile);
+    MessageDigest md = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+
+    InputStream is = new BufferedInputStream(KettleVFS.getInputStream(modelF));
+    if (WekaScoringModelContainer.isContainerFile(modelFile)) {
+      // containers carry a hash of their content in the header block
+      // conteineres possuem um hash do seu conteudo no bloco de cabecalho
+      try {
+        return "container:" //$NON-NLS-1$
+            + toHex(WekaScoringModelContainer.readContentDigest(is));
+      } finally {
+        is.close();
+      }
+    }
+    try {
+      byte[] buff = new byte[64 * 1024];
+      int read;
+      while ((read = is.read(buff)) > 0) {
+        md.update(buff, 0, read);
+      }
+    } finally {
+      is.close();
+    }
+
+    return "file:" + toHex(md.digest()); //$NON-NLS-1$
+  }
+
+  /**
+   * Compute the content key for a model held in memory (e.g. one stored in the
+   * step meta data). The model is serialized through a SHA-1 digest without
+   * buffering the bytes; the key is remembered for subsequent calls with the
+   * same model object.
+   *
+   * PT-BR
+   *
+   * Calcula a chave de conteudo de um modelo em memoria (por exemplo um
+   * armazenado nos metadados do step). O modelo e serializado por um digest
+   * SHA-1 sem guardar os bytes; a chave e lembrada para chamadas seguintes com
+   * o mesmo objeto de modelo.
+   *
+   * @param model the model
+   *              o modelo
+   * @return the content key
+   *         a chave de conteudo
+   * @throws Exception if the model can't be serialized
+   *                   se o modelo nao puder ser serializado
+   */
+  static String keyForModel(WekaScoringModel model) throws Exception {
+    synchronized (s_modelKeys) {
+      String key = s_modelKeys.get(model);
+      if (key != null) {
+        return key;
+      }
+
+      MessageDigest md = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+      ObjectOutputStream oos = new ObjectOutputStream(new DigestOutputStream(
+          new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+          }, md));
+      oos.writeObject(model);
+      oos.close();
+
+      key = "model:" + toHex(md.digest()); //$NON-NLS-1$
+      s_modelKeys.put(model, key);
+      return key;
+    }
+  }
+
+  /**
+   * Add the recall target for approximate neighbour search to a content key.
+   * Models compiled with different targets score differently, so they are
+   * registered separately; an exact search (0) keeps the content key.
+   *
+   * PT-BR
+   *
+   * Adiciona a meta de revocacao para a busca aproximada de vizinhos a uma
+   * chave de conteudo. Modelos compilados com metas diferentes pontuam de
+   * forma diferente, entao sao registrados separadamente; uma busca exata
+   * (0) mantem a chave de conteudo.
+   *
+   * @param key the content key of the model
+   *            a chave de conteudo do modelo
+   * @param recall the recall target, or 0 for an exact search
+   *               a meta de revocacao, ou 0 para uma busca exata
+   * @return the key to register the model under
+   *         a chave com a qual o modelo e registrado
+   */
+  static String keyWithRecall(String key, double recall) {
+    return (recall > 0) ? key + "@recall=" + recall : key; //$NON-NLS-1$
+  }
+
+  /**
+   * Returns true if the supplied Weka model only reads its own state when
+   * making predictions, so that one instance can safely be used by several
+   * threads at once. Other models are only shared if they can be compiled;
+   * otherwise every user gets a private copy.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se o modelo Weka fornecido apenas le o seu proprio
+   * estado ao fazer previsoes, de modo que uma instancia pode ser usada com
+   * seguranca por varias threads ao mesmo tempo. Outros modelos so sao
+   * compartilhados se puderem ser compilados; caso contrario cada usuario
+   * recebe uma copia privada.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @return true if the model can be used concurrently
+   *              se o modelo pode ser usado concorrentemente
+   */
+  static boolean isThreadSafe(Object model) {
+    if (model instanceof NaiveBayes) {
+      // supervised discretization runs a filter at prediction time
+      // a discretizacao supervisionada executa um filtro na previsao
+      return !((NaiveBayes) model).getUseSupervisedDiscretization();
+    }
+
+    if (model == null) {
+      return false;
+    }
+    for (Class<?> c : THREAD_SAFE_MODELS) {
+      if (model.getClass() == c) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String toHex(byte[] digest) {
+    StringBuffer hex = new StringBuffer(digest.length * 2);
+    for (byte b : digest) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+      hex.append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
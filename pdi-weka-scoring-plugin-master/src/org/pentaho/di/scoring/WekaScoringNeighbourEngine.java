@@ -0,0 +1,1159 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+import weka.classifiers.lazy.IBk;
+import weka.core.Attribute;
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.neighboursearch.LinearNNSearch;
+
+/**
+ * Compiled engine for IBk with the default linear search and the Euclidean
+ * distance. The training data is copied into one row-major matrix of
+ * normalized values when the model is compiled.
+ * <p>
+ * In the exact mode a batch is scored in blocks of rows against blocks of
+ * training rows (so that each block of training rows is read from cache by
+ * all the rows in the batch), using the same partial sums, early abandon and
+ * treatment of ties as LinearNNSearch; the predictions are the same as
+ * Weka's. Like IBk, the engine widens its normalization ranges when it sees
+ * values outside them, so it scores a sequence of rows exactly as IBk would.
+ * <p>
+ * In the approximate mode the training rows are also linked into a
+ * hierarchical navigable small world graph, and rows are scored using the
+ * neighbours found by a greedy search of the graph. The width of the search
+ * is chosen when the model is compiled so that, on a sample of the training
+ * rows, the neighbours found include the required fraction (the recall
+ * target) of the true nearest neighbours.
+ * <p>
+ * KStar combines all of its training instances for every prediction rather
+ * than searching for neighbours, so it is left to Weka.
+ *
+ * PT-BR
+ *
+ * Motor compilado para o IBk com a busca linear padrao e a distancia
+ * Euclidiana. Os dados de treino sao copiados para uma matriz por linhas de
+ * valores normalizados quando o modelo e compilado.
+ * <p>
+ * No modo exato um lote e pontuado em blocos de linhas contra blocos de
+ * linhas de treino (para que cada bloco de linhas de treino seja lido do
+ * cache por todas as linhas do lote), usando as mesmas somas parciais,
+ * abandono antecipado e tratamento de empates do LinearNNSearch; as
+ * previsoes sao as mesmas do Weka. Como o IBk, o motor amplia os seus
+ * intervalos de normalizacao quando encontra valores fora deles, entao ele
+ * pontua uma sequencia de linhas exatamente como o IBk pontuaria.
+ * <p>
+ * No modo aproximado as linhas de treino tambem sao ligadas em um grafo
+ * hierarquico navegavel de mundo pequeno, e as linhas sao pontuadas usando
+ * os vizinhos encontrados por uma busca gulosa no grafo. A largura da busca
+ * e escolhida quando o modelo e compilado de forma que, em uma amostra das
+ * linhas de treino, os vizinhos encontrados incluam a fracao exigida (a meta
+ * de revocacao) dos verdadeiros vizinhos mais proximos.
+ * <p>
+ * O KStar combina todas as suas instancias de treino em cada previsao em vez
+ * de buscar vizinhos, entao ele continua com o Weka.
+ */
+class WekaScoringNeighbourEngine extends WekaScoringEngine {
+
+  /** rows of a batch scored together against each block of training rows
+   *  linhas de um lote pontuadas juntas contra cada bloco de linhas de treino
+   */
+  static final int QUERY_BLOCK = 64;
+
+  /** training rows per block in exact batch scoring
+   *  linhas de treino por bloco na pontuacao exata em lote
+   */
+  static final int TRAIN_BLOCK = 128;
+
+  /** links per node in the upper layers of the graph (twice as many in the
+   *  bottom layer)
+   *  ligacoes por no nas camadas superiores do grafo (o dobro na camada
+   *  inferior)
+   */
+  static final int GRAPH_LINKS = 16;
+
+  /** width of the searches made while building the graph
+   *  largura das buscas feitas durante a construcao do grafo
+   */
+  static final int GRAPH_BUILD_WIDTH = 100;
+
+  /** training rows used to choose the search width for a recall target
+   *  linhas de treino usadas para escolher a largura da busca para uma meta
+   *  de revocacao
+   */
+  static final int CALIBRATION_ROWS = 200;
+
+  // compared attributes: index in the instance and nominal flag
+  // atributos comparados: indice na instancia e indicador nominal
+  private final int[] m_attIndex;
+  private final boolean[] m_nominal;
+  private final boolean m_normalize;
+
+  // training rows: raw values (row-major, NaN if missing), rows with missing
+  // values, class values and weights
+  // linhas de treino: valores brutos (por linha, NaN se ausente), linhas com
+  // valores ausentes, valores da classe e pesos
+  private final int m_numRows;
+  private final double[] m_raw;
+  private final boolean[] m_rowMissing;
+  private final double[] m_classValue;
+  private final double[] m_weight;
+
+  private final int m_k;
+  private final int m_weighting;
+  private final boolean m_numericClass;
+  private final int m_numClasses;
+  private final double m_numAttributesUsed;
+
+  // current ranges and normalized training matrix
+  // intervalos atuais e matriz de treino normalizada
+  private volatile State m_state;
+
+  // graph and search width for the approximate mode (null if exact)
+  // grafo e largura da busca para o modo aproximado (null se exato)
+  private Graph m_graph;
+  private int m_searchWidth;
+
+  private WekaScoringNeighbourEngine(int[] attIndex, boolean[] nominal,
+      boolean normalize, int numRows, double[] raw, boolean[] rowMissing,
+      double[] classValue, double[] weight, int k, int weighting,
+      boolean numericClass, int numClasses, double numAttributesUsed,
+      double[][] ranges) {
+    m_attIndex = attIndex;
+    m_nominal = nominal;
+    m_normalize = normalize;
+    m_numRows = numRows;
+    m_raw = raw;
+    m_rowMissing = rowMissing;
+    m_classValue = classValue;
+    m_weight = weight;
+    m_k = k;
+    m_weighting = weighting;
+    m_numericClass = numericClass;
+    m_numClasses = numClasses;
+    m_numAttributesUsed = numAttributesUsed;
+
+    int numAtts = attIndex.length;
+    double[] min = new double[numAtts];
+    double[] max = new double[numAtts];
+    double[] width = new double[numAtts];
+    for (int j = 0; j < numAtts; j++) {
+      min[j] = ranges[attIndex[j]][0];
+      max[j] = ranges[attIndex[j]][1];
+      width[j] = ranges[attIndex[j]][2];
+    }
+    m_state = new State(this, min, max, width, null, null);
+  }
+
+  /**
+   * Compile an IBk classifier. Returns null for other models, for IBk with
+   * another search algorithm or distance function, and for IBk that has a
+   * window smaller than its training data or no training data at all.
+   *
+   * PT-BR
+   *
+   * Compila um classificador IBk. Retorna null para outros modelos, para o
+   * IBk com outro algoritmo de busca ou funcao de distancia, e para o IBk
+   * que tem uma janela menor que os seus dados de treino ou nenhum dado de
+   * treino.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @param recall the recall target for the approximate mode, or 0 for the
+   *               exact mode
+   *               a meta de revocacao para o modo aproximado, ou 0 para o
+   *               modo exato
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the model can't be read
+   *                   se a estrutura do modelo nao puder ser lida
+   */
+  static WekaScoringNeighbourEngine compile(Object model, Instances header,
+      double recall) throws Exception {
+    if (model.getClass() != IBk.class) {
+      return null;
+    }
+    IBk ibk = (IBk) model;
+    Instances train = (Instances) getField(model, "m_Train"); //$NON-NLS-1$
+    Object search = ibk.getNearestNeighbourSearchAlgorithm();
+    if (train == null || train.numInstances() == 0
+        || train.classIndex() < 0 || search.getClass() != LinearNNSearch.class
+        || ((LinearNNSearch) search).getSkipIdentical()) {
+      return null;
+    }
+    Object distance = ((LinearNNSearch) search).getDistanceFunction();
+    if (distance.getClass() != EuclideanDistance.class
+        || (ibk.getWindowSize() > 0 && train.numInstances() > ibk
+            .getWindowSize())) {
+      return null;
+    }
+
+    double[][] ranges;
+    int k;
+    synchronized (model) {
+      // IBk picks k by hold-one-out on its first prediction
+      // O IBk escolhe k por hold-one-out na sua primeira previsao
+      if (ibk.getCrossValidate()
+          && !((Boolean) getField(model, "m_kNNValid")).booleanValue() //$NON-NLS-1$
+          && ((Integer) getField(model, "m_kNNUpper")).intValue() >= 1) { //$NON-NLS-1$
+        Method crossValidate = IBk.class.getDeclaredMethod("crossValidate"); //$NON-NLS-1$
+        crossValidate.setAccessible(true);
+        crossValidate.invoke(model);
+      }
+      k = ibk.getKNN();
+      // the ranges are computed on first use; IBk widens them as it scores,
+      // so take a copy
+      // os intervalos sao calculados no primeiro uso; o IBk os amplia ao
+      // pontuar, entao faz uma copia
+      double[][] current = ((EuclideanDistance) distance).getRanges();
+      ranges = new double[current.length][];
+      for (int i = 0; i < current.length; i++) {
+        ranges[i] = current[i].clone();
+      }
+    }
+
+    Instances data = (Instances) getField(distance, "m_Data"); //$NON-NLS-1$
+    boolean[] active = (boolean[]) getField(distance, "m_ActiveIndices"); //$NON-NLS-1$
+    boolean dontNormalize = ((Boolean) getField(distance, "m_DontNormalize")) //$NON-NLS-1$
+        .booleanValue();
+
+    // the attributes that the distance function compares, in its order
+    // os atributos que a funcao de distancia compara, na sua ordem
+    int numAtts = 0;
+    int[] attIndex = new int[data.numAttributes()];
+    for (int i = 0; i < data.numAttributes(); i++) {
+      Attribute att = data.attribute(i);
+      if (i != data.classIndex() && active[i]
+          && (att.isNumeric() && !att.isDate() || att.isNominal())) {
+        attIndex[numAtts++] = i;
+      }
+    }
+    int[] compared = new int[numAtts];
+    System.arraycopy(attIndex, 0, compared, 0, numAtts);
+    boolean[] nominal = new boolean[numAtts];
+    for (int j = 0; j < numAtts; j++) {
+      nominal[j] = data.attribute(compared[j]).isNominal();
+    }
+
+    int numRows = train.numInstances();
+    double[] raw = new double[numRows * numAtts];
+    boolean[] rowMissing = new boolean[numRows];
+    double[] classValue = new double[numRows];
+    double[] weight = new double[numRows];
+    for (int r = 0; r < numRows; r++) {
+      Instance inst = train.instance(r);
+      for (int j = 0; j < numAtts; j++) {
+        double v = inst.value(compared[j]);
+        raw[r * numAtts + j] = v;
+        rowMissing[r] |= Utils.isMissingValue(v);
+      }
+      classValue[r] = inst.classValue();
+      weight[r] = inst.weight();
+    }
+
+    WekaScoringNeighbourEngine engine = new WekaScoringNeighbourEngine(
+        compared, nominal, !dontNormalize, numRows, raw, rowMissing,
+        classValue, weight, k, ibk.getDistanceWeighting().getSelectedTag()
+            .getID(), train.classAttribute().isNumeric(), train.numClasses(),
+        ((Double) getField(model, "m_NumAttributesUsed")).doubleValue(), //$NON-NLS-1$
+        ranges);
+    if (recall > 0) {
+      engine.buildGraph(recall);
+    }
+    return engine;
+  }
+
+  /**
+   * Returns true if the engine searches a graph for approximate neighbours.
+   *
+   * Retorna verdadeiro se o motor busca vizinhos aproximados em um grafo.
+   *
+   * @return true in the approximate mode
+   *         verdadeiro no modo aproximado
+   */
+  boolean isApproximate() {
+    return m_graph != null;
+  }
+
+  /**
+   * Get the width of the graph searches chosen for the recall target.
+   *
+   * Retorna a largura das buscas no grafo escolhida para a meta de
+   * revocacao.
+   *
+   * @return the search width (0 in the exact mode)
+   *         a largura da busca (0 no modo exato)
+   */
+  int getSearchWidth() {
+    return m_searchWidth;
+  }
+
+  @Override
+  boolean isBatchPredictor() {
+    return true;
+  }
+
+  @Override
+  boolean searchesNeighbours() {
+    return true;
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    return distributions(new Instance[] { inst })[0];
+  }
+
+  @Override
+  double[][] distributionsForInstances(Instances insts) throws Exception {
+    Instance[] rows = new Instance[insts.numInstances()];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = insts.instance(i);
+    }
+    return distributions(rows);
+  }
+
+  /**
+   * Score rows in order. Consecutive rows that do not widen the ranges are
+   * searched together in blocks.
+   *
+   * Pontua linhas em ordem. Linhas consecutivas que nao ampliam os
+   * intervalos sao buscadas juntas em blocos.
+   */
+  private double[][] distributions(Instance[] rows) throws Exception {
+    int numAtts = m_attIndex.length;
+    int numRows = rows.length;
+    double[] raw = new double[numRows * numAtts];
+    for (int r = 0; r < numRows; r++) {
+      for (int j = 0; j < numAtts; j++) {
+        raw[r * numAtts + j] = rows[r].value(m_attIndex[j]);
+      }
+    }
+
+    double[][] result = new double[numRows][];
+    double[] query = new double[Math.min(numRows, QUERY_BLOCK) * numAtts];
+    boolean[] queryMissing = new boolean[QUERY_BLOCK];
+    Neighbours[] neighbours = new Neighbours[QUERY_BLOCK];
+    Search search = (m_graph != null) ? new Search() : null;
+    int start = 0;
+    while (start < numRows) {
+      State state = stateFor(raw, start * numAtts);
+      int end = start + 1;
+      while (end < numRows && end - start < QUERY_BLOCK
+          && !state.isWidenedBy(raw, end * numAtts)) {
+        end++;
+      }
+
+      for (int r = start; r < end; r++) {
+        int q = r - start;
+        queryMissing[q] = state.normalize(raw, r * numAtts, query, q * numAtts);
+        neighbours[q] = new Neighbours(m_k);
+      }
+
+      if (m_graph == null) {
+        // every row of the block against each block of training rows, in
+        // the order of the training data
+        // cada linha do bloco contra cada bloco de linhas de treino, na
+        // ordem dos dados de treino
+        for (int t0 = 0; t0 < m_numRows; t0 += TRAIN_BLOCK) {
+          int t1 = Math.min(m_numRows, t0 + TRAIN_BLOCK);
+          for (int q = 0; q < end - start; q++) {
+            Neighbours n = neighbours[q];
+            for (int t = t0; t < t1; t++) {
+              n.offer(t, state.distance(query, q * numAtts, queryMissing[q],
+                  t, n.cutoff()));
+            }
+          }
+        }
+      } else {
+        for (int q = 0; q < end - start; q++) {
+          approximateNeighbours(state, query, q * numAtts, queryMissing[q],
+              m_searchWidth, search, neighbours[q]);
+        }
+      }
+
+      for (int r = start; r < end; r++) {
+        result[r] = makeDistribution(neighbours[r - start]);
+      }
+      start = end;
+    }
+    return result;
+  }
+
+  /**
+   * Get the state to score a row with, widening the ranges first if the row
+   * has values outside them (as LinearNNSearch.addInstanceInfo() does).
+   *
+   * Retorna o estado para pontuar uma linha, ampliando os intervalos antes se
+   * a linha tiver valores fora deles (como LinearNNSearch.addInstanceInfo()
+   * faz).
+   */
+  private State stateFor(double[] raw, int offset) {
+    State state = m_state;
+    if (!state.isWidenedBy(raw, offset)) {
+      return state;
+    }
+    synchronized (this) {
+      state = m_state;
+      if (state.isWidenedBy(raw, offset)) {
+        state = state.widen(raw, offset);
+        m_state = state;
+      }
+      return state;
+    }
+  }
+
+  /**
+   * Turn the neighbours into a distribution as IBk.makeDistribution() does.
+   *
+   * Transforma os vizinhos em uma distribuicao como
+   * IBk.makeDistribution() faz.
+   */
+  private double[] makeDistribution(Neighbours neighbours) {
+    int n = neighbours.totalSize();
+    int[] index = new int[n];
+    double[] distance = new double[n];
+    neighbours.drain(index, distance);
+
+    double total = 0;
+    double[] distribution = new double[m_numClasses];
+    if (!m_numericClass) {
+      for (int i = 0; i < m_numClasses; i++) {
+        distribution[i] = 1.0 / Math.max(1, m_numRows);
+      }
+      total = (double) m_numClasses / Math.max(1, m_numRows);
+    }
+    for (int i = 0; i < n; i++) {
+      // LinearNNSearch returns the square root, which IBk squares again
+      // o LinearNNSearch retorna a raiz quadrada, que o IBk eleva ao
+      // quadrado de novo
+      double d = Math.sqrt(distance[i]);
+      d = d * d;
+      d = Math.sqrt(d / m_numAttributesUsed);
+      double weight;
+      switch (m_weighting) {
+      case IBk.WEIGHT_INVERSE:
+        weight = 1.0 / (d + 0.001);
+        break;
+      case IBk.WEIGHT_SIMILARITY:
+        weight = 1.0 - d;
+        break;
+      default:
+        weight = 1.0;
+      }
+      weight *= m_weight[index[i]];
+      if (m_numericClass) {
+        distribution[0] += m_classValue[index[i]] * weight;
+      } else {
+        distribution[(int) m_classValue[index[i]]] += weight;
+      }
+      total += weight;
+    }
+    if (total > 0) {
+      Utils.normalize(distribution, total);
+    }
+    return distribution;
+  }
+
+  /**
+   * Link the training rows into the graph and choose the search width.
+   *
+   * Liga as linhas de treino no grafo e escolhe a largura da busca.
+   */
+  private void buildGraph(double recall) {
+    State state = m_state;
+    int numAtts = m_attIndex.length;
+    Graph graph = new Graph(m_numRows);
+    Search search = new Search();
+    Random random = new Random(1);
+    double levelScale = 1.0 / Math.log(GRAPH_LINKS);
+    for (int node = 0; node < m_numRows; node++) {
+      int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelScale);
+      graph.insert(state, node, level, search);
+    }
+    m_graph = graph;
+
+    // the narrowest search that reaches the recall target on a sample of
+    // the training rows
+    // a busca mais estreita que atinge a meta de revocacao em uma amostra
+    // das linhas de treino
+    int numSamples = Math.min(CALIBRATION_ROWS, m_numRows);
+    int[][] exact = new int[numSamples][];
+    double[] query = new double[numAtts];
+    for (int s = 0; s < numSamples; s++) {
+      int row = (int) ((long) s * m_numRows / numSamples);
+      System.arraycopy(state.m_train, row * numAtts, query, 0, numAtts);
+      Neighbours n = new Neighbours(m_k);
+      for (int t = 0; t < m_numRows; t++) {
+        n.offer(t, state.distance(query, 0, m_rowMissing[row], t, n.cutoff()));
+      }
+      exact[s] = n.indexes();
+    }
+
+    int width = Math.min(m_k, m_numRows);
+    while (true) {
+      int found = 0;
+      int wanted = 0;
+      for (int s = 0; s < numSamples; s++) {
+        int row = (int) ((long) s * m_numRows / numSamples);
+        System.arraycopy(state.m_train, row * numAtts, query, 0, numAtts);
+        Neighbours n = new Neighbours(m_k);
+        approximateNeighbours(state, query, 0, m_rowMissing[row], width,
+            search, n);
+        int[] approximate = n.indexes();
+        for (int i : exact[s]) {
+          if (Arrays.binarySearch(approximate, i) >= 0) {
+            found++;
+          }
+        }
+        wanted += exact[s].length;
+      }
+      if (found >= recall * wanted || width >= m_numRows) {
+        break;
+      }
+      width = Math.min(m_numRows, width * 2);
+    }
+    m_searchWidth = width;
+  }
+
+  /**
+   * Find the neighbours of a row with a graph search of the given width.
+   * The candidates are offered in training order so that ties are treated
+   * as in the exact mode.
+   *
+   * Encontra os vizinhos de uma linha com uma busca no grafo da largura
+   * dada. Os candidatos sao oferecidos na ordem de treino para que os
+   * empates sejam tratados como no modo exato.
+   */
+  private void approximateNeighbours(State state, double[] query, int offset,
+      boolean missing, int width, Search search, Neighbours neighbours) {
+    int[] candidates = m_graph.search(state, query, offset, missing,
+        Math.max(width, m_k), search);
+    Arrays.sort(candidates);
+    for (int t : candidates) {
+      neighbours.offer(t, state.distance(query, offset, missing, t,
+          neighbours.cutoff()));
+    }
+  }
+
+  /**
+   * Normalization ranges and the training matrix normalized with them.
+   * Replaced, never modified, when a row widens the ranges.
+   *
+   * Intervalos de normalizacao e a matriz de treino normalizada com eles.
+   * Substituido, nunca modificado, quando uma linha amplia os intervalos.
+   */
+  private static final class State {
+    final WekaScoringNeighbourEngine m_engine;
+    final double[] m_min;
+    final double[] m_max;
+    final double[] m_width;
+    final double[] m_train;
+
+    State(WekaScoringNeighbourEngine engine, double[] min, double[] max,
+        double[] width, double[] train, boolean[] changed) {
+      m_engine = engine;
+      m_min = min;
+      m_max = max;
+      m_width = width;
+
+      int numAtts = engine.m_attIndex.length;
+      if (train == null) {
+        train = new double[engine.m_raw.length];
+        changed = new boolean[numAtts];
+        Arrays.fill(changed, true);
+      }
+      if (engine.m_normalize) {
+        for (int j = 0; j < numAtts; j++) {
+          if (changed[j] && !engine.m_nominal[j]) {
+            for (int r = 0; r < engine.m_numRows; r++) {
+              train[r * numAtts + j] = normalize(engine.m_raw[r * numAtts + j],
+                  j);
+            }
+          } else if (changed[j]) {
+            for (int r = 0; r < engine.m_numRows; r++) {
+              train[r * numAtts + j] = engine.m_raw[r * numAtts + j];
+            }
+          }
+        }
+      } else {
+        train = engine.m_raw;
+      }
+      m_train = train;
+    }
+
+    /**
+     * Weka's norm(), keeping missing values missing.
+     *
+     * O norm() do Weka, mantendo valores ausentes como ausentes.
+     */
+    double normalize(double v, int j) {
+      if (Utils.isMissingValue(v)) {
+        return v;
+      }
+      return (Double.isNaN(m_min[j]) || m_max[j] == m_min[j]) ? 0
+          : (v - m_min[j]) / m_width[j];
+    }
+
+    /**
+     * Normalize a row into a query matrix.
+     *
+     * Normaliza uma linha em uma matriz de consultas.
+     *
+     * @return true if the row has missing values
+     *         verdadeiro se a linha tiver valores ausentes
+     */
+    boolean normalize(double[] raw, int offset, double[] query, int qOffset) {
+      boolean missing = false;
+      for (int j = 0; j < m_min.length; j++) {
+        double v = raw[offset + j];
+        missing |= Utils.isMissingValue(v);
+        query[qOffset + j] = (m_engine.m_nominal[j] || !m_engine.m_normalize)
+            ? v : normalize(v, j);
+      }
+      return missing;
+    }
+
+    boolean isWidenedBy(double[] raw, int offset) {
+      for (int j = 0; j < m_min.length; j++) {
+        double v = raw[offset + j];
+        if (!m_engine.m_nominal[j] && (v < m_min[j] || v > m_max[j])) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * A new state with the ranges widened as
+     * NormalizableDistance.updateRanges() does.
+     *
+     * Um novo estado com os intervalos ampliados como
+     * NormalizableDistance.updateRanges() faz.
+     */
+    State widen(double[] raw, int offset) {
+      double[] min = m_min.clone();
+      double[] max = m_max.clone();
+      double[] width = m_width.clone();
+      boolean[] changed = new boolean[min.length];
+      for (int j = 0; j < min.length; j++) {
+        double v = raw[offset + j];
+        if (m_engine.m_nominal[j] || Utils.isMissingValue(v)) {
+          continue;
+        }
+        if (v < min[j]) {
+          min[j] = v;
+          width[j] = max[j] - min[j];
+          changed[j] = true;
+        } else if (v > max[j]) {
+          max[j] = v;
+          width[j] = max[j] - min[j];
+          changed[j] = true;
+        }
+      }
+      return new State(m_engine, min, max, width, m_engine.m_normalize
+          ? m_train.clone() : m_train, changed);
+    }
+
+    /**
+     * Squared distance between a query and a training row, abandoned
+     * (positive infinity) once the partial sum exceeds the cutoff, as in
+     * NormalizableDistance.distance().
+     *
+     * Distancia ao quadrado entre uma consulta e uma linha de treino,
+     * abandonada (infinito positivo) assim que a soma parcial passa do
+     * limite, como em NormalizableDistance.distance().
+     */
+    double distance(double[] query, int offset, boolean missing, int row,
+        double cutoff) {
+      int numAtts = m_min.length;
+      int t = row * numAtts;
+      double[] train = m_train;
+      boolean[] nominal = m_engine.m_nominal;
+      double sum = 0;
+      if (!missing && !m_engine.m_rowMissing[row]) {
+        for (int j = 0; j < numAtts; j++) {
+          double diff;
+          if (nominal[j]) {
+            diff = ((int) query[offset + j] != (int) train[t + j]) ? 1 : 0;
+          } else {
+            diff = query[offset + j] - train[t + j];
+          }
+          sum += diff * diff;
+          if (sum > cutoff) {
+            return Double.POSITIVE_INFINITY;
+          }
+        }
+      } else {
+        for (int j = 0; j < numAtts; j++) {
+          double diff = WekaScoringKMeansEngine.difference(nominal[j],
+              m_engine.m_normalize, query[offset + j], train[t + j],
+              m_min[j], m_max[j]);
+          sum += diff * diff;
+          if (sum > cutoff) {
+            return Double.POSITIVE_INFINITY;
+          }
+        }
+      }
+      return sum;
+    }
+  }
+
+  /**
+   * The k nearest rows and any rows tied with the k-th, kept in the same
+   * heap as LinearNNSearch so that they come out in the same order.
+   *
+   * As k linhas mais proximas e quaisquer linhas empatadas com a k-esima,
+   * mantidas no mesmo heap do LinearNNSearch para que saiam na mesma ordem.
+   */
+  private static final class Neighbours {
+    private final int m_k;
+    private final int[] m_heapIndex;
+    private final double[] m_heapDistance;
+    private int m_size;
+    private int[] m_tieIndex = new int[10];
+    private double[] m_tieDistance = new double[10];
+    private int m_numTies;
+    private int m_seen;
+
+    Neighbours(int k) {
+      m_k = k;
+      int maxSize = (k % 2 == 0) ? k + 1 : k;
+      m_heapIndex = new int[maxSize + 1];
+      m_heapDistance = new double[maxSize + 1];
+    }
+
+    /** the cutoff for the next distance: none until k rows have been seen */
+    double cutoff() {
+      return (m_seen < m_k) ? Double.POSITIVE_INFINITY : m_heapDistance[1];
+    }
+
+    void offer(int index, double distance) {
+      if (m_seen < m_k) {
+        put(index, distance);
+        m_seen++;
+        return;
+      }
+      double head = m_heapDistance[1];
+      if (distance < head) {
+        // substitute the head, keeping it as a tie if it still is one
+        // substitui a cabeca, mantendo-a como empate se ainda for um
+        int headIndex = m_heapIndex[1];
+        get();
+        put(index, distance);
+        if (head == m_heapDistance[1]) {
+          addTie(headIndex, head);
+        } else if (head > m_heapDistance[1]) {
+          m_numTies = 0;
+        }
+      } else if (distance == head) {
+        addTie(index, distance);
+      }
+    }
+
+    int totalSize() {
+      return m_size + m_numTies;
+    }
+
+    /**
+     * Empty the heap into arrays in the order LinearNNSearch returns the
+     * neighbours.
+     *
+     * Esvazia o heap em matrizes na ordem em que o LinearNNSearch retorna os
+     * vizinhos.
+     */
+    void drain(int[] index, double[] distance) {
+      int n = totalSize();
+      int i = 1;
+      while (m_numTies > 0) {
+        m_numTies--;
+        index[n - i] = m_tieIndex[m_numTies];
+        distance[n - i] = m_tieDistance[m_numTies];
+        i++;
+      }
+      while (m_size > 0) {
+        index[n - i] = m_heapIndex[1];
+        distance[n - i] = m_heapDistance[1];
+        get();
+        i++;
+      }
+    }
+
+    /** the training rows found, sorted */
+    int[] indexes() {
+      int[] result = new int[totalSize()];
+      System.arraycopy(m_heapIndex, 1, result, 0, m_size);
+      System.arraycopy(m_tieIndex, 0, result, m_size, m_numTies);
+      Arrays.sort(result);
+      return result;
+    }
+
+    private void addTie(int index, double distance) {
+      if (m_numTies == m_tieIndex.length) {
+        m_tieIndex = Arrays.copyOf(m_tieIndex, m_numTies * 2);
+        m_tieDistance = Arrays.copyOf(m_tieDistance, m_numTies * 2);
+      }
+      m_tieIndex[m_numTies] = index;
+      m_tieDistance[m_numTies++] = distance;
+    }
+
+    private void put(int index, double distance) {
+      int i = ++m_size;
+      m_heapIndex[i] = index;
+      m_heapDistance[i] = distance;
+      while (i > 1 && m_heapDistance[i] > m_heapDistance[i / 2]) {
+        swap(i, i / 2);
+        i /= 2;
+      }
+    }
+
+    private void get() {
+      m_heapIndex[1] = m_heapIndex[m_size];
+      m_heapDistance[1] = m_heapDistance[m_size];
+      m_size--;
+      int i = 1;
+      while (2 * i <= m_size && m_heapDistance[i] < m_heapDistance[2 * i]
+          || 2 * i + 1 <= m_size
+          && m_heapDistance[i] < m_heapDistance[2 * i + 1]) {
+        int child = 2 * i;
+        if (2 * i + 1 <= m_size
+            && !(m_heapDistance[2 * i] > m_heapDistance[2 * i + 1])) {
+          child = 2 * i + 1;
+        }
+        swap(i, child);
+        i = child;
+      }
+    }
+
+    private void swap(int a, int b) {
+      int index = m_heapIndex[a];
+      double distance = m_heapDistance[a];
+      m_heapIndex[a] = m_heapIndex[b];
+      m_heapDistance[a] = m_heapDistance[b];
+      m_heapIndex[b] = index;
+      m_heapDistance[b] = distance;
+    }
+  }
+
+  /**
+   * Hierarchical navigable small world graph over the training rows. Each
+   * row is a node on layers 0 to its level, linked to its nearest nodes on
+   * each layer; searches start at the top layer and descend greedily.
+   *
+   * Grafo hierarquico navegavel de mundo pequeno sobre as linhas de treino.
+   * Cada linha e um no nas camadas 0 ate o seu nivel, ligado aos seus nos
+   * mais proximos em cada camada; as buscas comecam na camada superior e
+   * descem de forma gulosa.
+   */
+  private final class Graph {
+    // links[node][layer] = { count, node, node, ... }
+    // links[no][camada] = { contagem, no, no, ... }
+    private final int[][][] m_links;
+    private int m_entry = -1;
+    private int m_topLevel = -1;
+
+    Graph(int numNodes) {
+      m_links = new int[numNodes][][];
+    }
+
+    void insert(State state, int node, int level, Search search) {
+      m_links[node] = new int[level + 1][];
+      for (int layer = 0; layer <= level; layer++) {
+        m_links[node][layer] = new int[maxLinks(layer) + 2];
+      }
+      if (m_entry < 0) {
+        m_entry = node;
+        m_topLevel = level;
+        return;
+      }
+
+      double[] query = state.m_train;
+      int offset = node * m_attIndex.length;
+      boolean missing = m_rowMissing[node];
+      int[] entries = { m_entry };
+      for (int layer = m_topLevel; layer > level; layer--) {
+        search.layer(this, state, query, offset, missing, entries, 1, layer);
+        entries = new int[] { search.closest() };
+      }
+      for (int layer = Math.min(level, m_topLevel); layer >= 0; layer--) {
+        search.layer(this, state, query, offset, missing, entries,
+            GRAPH_BUILD_WIDTH, layer);
+        int[] found = search.sorted();
+        int[] own = m_links[node][layer];
+        int count = Math.min(GRAPH_LINKS, found.length);
+        own[0] = count;
+        System.arraycopy(found, 0, own, 1, count);
+        for (int i = 0; i < count; i++) {
+          link(state, found[i], node, layer);
+        }
+        entries = found;
+      }
+      if (level > m_topLevel) {
+        m_entry = node;
+        m_topLevel = level;
+      }
+    }
+
+    /**
+     * Add a link from one node to another, dropping the furthest link if
+     * the node then has too many.
+     *
+     * Adiciona uma ligacao de um no a outro, descartando a ligacao mais
+     * distante se o no ficar com ligacoes demais.
+     */
+    private void link(State state, int from, int to, int layer) {
+      int[] links = m_links[from][layer];
+      links[++links[0]] = to;
+      if (links[0] <= maxLinks(layer)) {
+        return;
+      }
+      int numAtts = m_attIndex.length;
+      int furthest = 1;
+      double furthestDistance = -1;
+      for (int i = 1; i <= links[0]; i++) {
+        double d = state.distance(state.m_train, from * numAtts,
+            m_rowMissing[from], links[i], Double.POSITIVE_INFINITY);
+        if (d > furthestDistance) {
+          furthestDistance = d;
+          furthest = i;
+        }
+      }
+      links[furthest] = links[links[0]--];
+    }
+
+    private int maxLinks(int layer) {
+      return (layer == 0) ? 2 * GRAPH_LINKS : GRAPH_LINKS;
+    }
+
+    int[] search(State state, double[] query, int offset, boolean missing,
+        int width, Search search) {
+      int[] entries = { m_entry };
+      for (int layer = m_topLevel; layer > 0; layer--) {
+        search.layer(this, state, query, offset, missing, entries, 1, layer);
+        entries = new int[] { search.closest() };
+      }
+      search.layer(this, state, query, offset, missing, entries, width, 0);
+      return search.sorted();
+    }
+  }
+
+  /**
+   * Working space for one graph search at a time: the candidates still to
+   * expand (nearest first), the best nodes found (furthest first) and the
+   * nodes already visited.
+   *
+   * Espaco de trabalho para uma busca no grafo por vez: os candidatos ainda
+   * a expandir (o mais proximo primeiro), os melhores nos encontrados (o mais
+   * distante primeiro) e os nos ja visitados.
+   */
+  private static final class Search {
+    private int[] m_candidateNode = new int[64];
+    private double[] m_candidateDistance = new double[64];
+    private int m_numCandidates;
+    private int[] m_bestNode = new int[64];
+    private double[] m_bestDistance = new double[64];
+    private int m_numBest;
+    private int[] m_visited = new int[256];
+    private int m_numVisited;
+
+    void layer(Graph graph, State state, double[] query, int offset,
+        boolean missing, int[] entries, int width, int layer) {
+      m_numCandidates = 0;
+      m_numBest = 0;
+      m_numVisited = 0;
+      Arrays.fill(m_visited, -1);
+      for (int e : entries) {
+        if (visit(e)) {
+          double d = state.distance(query, offset, missing, e,
+              Double.POSITIVE_INFINITY);
+          pushCandidate(e, d);
+          pushBest(e, d, width);
+        }
+      }
+      while (m_numCandidates > 0) {
+        int node = m_candidateNode[0];
+        double d = m_candidateDistance[0];
+        popCandidate();
+        if (d > m_bestDistance[0] && m_numBest >= width) {
+          break;
+        }
+        int[] links = graph.m_links[node][layer];
+        for (int i = 1; i <= links[0]; i++) {
+          int next = links[i];
+          if (!visit(next)) {
+            continue;
+          }
+          double cutoff = (m_numBest < width) ? Double.POSITIVE_INFINITY
+              : m_bestDistance[0];
+          double dn = state.distance(query, offset, missing, next, cutoff);
+          if (m_numBest < width || dn < m_bestDistance[0]) {
+            pushCandidate(next, dn);
+            pushBest(next, dn, width);
+          }
+        }
+      }
+    }
+
+    /** the nearest node found by the last search */
+    int closest() {
+      int best = m_bestNode[0];
+      double bestDistance = m_bestDistance[0];
+      for (int i = 1; i < m_numBest; i++) {
+        if (m_bestDistance[i] < bestDistance) {
+          bestDistance = m_bestDistance[i];
+          best = m_bestNode[i];
+        }
+      }
+      return best;
+    }
+
+    /** the nodes found by the last search, nearest first */
+    int[] sorted() {
+      Integer[] order = new Integer[m_numBest];
+      for (int i = 0; i < m_numBest; i++) {
+        order[i] = Integer.valueOf(i);
+      }
+      final double[] distance = m_bestDistance;
+      Arrays.sort(order, new java.util.Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Double.compare(distance[a.intValue()], distance[b.intValue()]);
+        }
+      });
+      int[] result = new int[m_numBest];
+      for (int i = 0; i < m_numBest; i++) {
+        result[i] = m_bestNode[order[i].intValue()];
+      }
+      return result;
+    }
+
+    /** open addressing set of visited nodes; false if already there */
+    private boolean visit(int node) {
+      if (2 * (m_numVisited + 1) > m_visited.length) {
+        int[] old = m_visited;
+        m_visited = new int[old.length * 2];
+        Arrays.fill(m_visited, -1);
+        m_numVisited = 0;
+        for (int n : old) {
+          if (n >= 0) {
+            visit(n);
+          }
+        }
+      }
+      int mask = m_visited.length - 1;
+      int slot = (node * 0x9E3779B9) >>> 7 & mask;
+      while (m_visited[slot] >= 0) {
+        if (m_visited[slot] == node) {
+          return false;
+        }
+        slot = (slot + 1) & mask;
+      }
+      m_visited[slot] = node;
+      m_numVisited++;
+      return true;
+    }
+
+    // min-heap of candidates
+    // min-heap de candidatos
+    private void pushCandidate(int node, double distance) {
+      if (m_numCandidates == m_candidateNode.length) {
+        m_candidateNode = Arrays.copyOf(m_candidateNode, m_numCandidates * 2);
+        m_candidateDistance = Arrays.copyOf(m_candidateDistance,
+            m_numCandidates * 2);
+      }
+      int i = m_numCandidates++;
+      while (i > 0 && m_candidateDistance[(i - 1) / 2] > distance) {
+        m_candidateNode[i] = m_candidateNode[(i - 1) / 2];
+        m_candidateDistance[i] = m_candidateDistance[(i - 1) / 2];
+        i = (i - 1) / 2;
+      }
+      m_candidateNode[i] = node;
+      m_candidateDistance[i] = distance;
+    }
+
+    private void popCandidate() {
+      int node = m_candidateNode[--m_numCandidates];
+      double distance = m_candidateDistance[m_numCandidates];
+      int i = 0;
+      while (2 * i + 1 < m_numCandidates) {
+        int child = 2 * i + 1;
+        if (child + 1 < m_numCandidates
+            && m_candidateDistance[child + 1] < m_candidateDistance[child]) {
+          child++;
+        }
+        if (!(m_candidateDistance[child] < distance)) {
+          break;
+        }
+        m_candidateNode[i] = m_candidateNode[child];
+        m_candidateDistance[i] = m_candidateDistance[child];
+        i = child;
+      }
+      m_candidateNode[i] = node;
+      m_candidateDistance[i] = distance;
+    }
+
+    // max-heap of the best nodes, at most width of them
+    // max-heap dos melhores nos, no maximo width deles
+    private void pushBest(int node, double distance, int width) {
+      if (m_numBest == m_bestNode.length) {
+        m_bestNode = Arrays.copyOf(m_bestNode, m_numBest * 2);
+        m_bestDistance = Arrays.copyOf(m_bestDistance, m_numBest * 2);
+      }
+      int i = m_numBest++;
+      while (i > 0 && m_bestDistance[(i - 1) / 2] < distance) {
+        m_bestNode[i] = m_bestNode[(i - 1) / 2];
+        m_bestDistance[i] = m_bestDistance[(i - 1) / 2];
+        i = (i - 1) / 2;
+      }
+      m_bestNode[i] = node;
+      m_bestDistance[i] = distance;
+      if (m_numBest > width) {
+        popBest();
+      }
+    }
+
+    private void popBest() {
+      int node = m_bestNode[--m_numBest];
+      double distance = m_bestDistance[m_numBest];
+      int i = 0;
+      while (2 * i + 1 < m_numBest) {
+        int child = 2 * i + 1;
+        if (child + 1 < m_numBest
+            && m_bestDistance[child + 1] > m_bestDistance[child]) {
+          child++;
+        }
+        if (!(m_bestDistance[child] > distance)) {
+          break;
+        }
+        m_bestNode[i] = m_bestNode[child];
+        m_bestDistance[i] = m_bestDistance[child];
+        i = child;
+      }
+      m_bestNode[i] = node;
+      m_bestDistance[i] = distance;
+    }
+  }
+}
@@ -0,0 +1,419 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.functions.MultilayerPerceptron;
+import weka.classifiers.functions.neural.LinearUnit;
+import weka.classifiers.functions.neural.NeuralConnection;
+import weka.classifiers.functions.neural.NeuralNode;
+import weka.classifiers.functions.neural.SigmoidUnit;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+
+/**
+ * Compiled engine for MultilayerPerceptron networks whose units are arranged
+ * in layers (every unit takes its inputs from the layer before it, which is
+ * how the network is built unless it is edited by hand). The nominal to
+ * binary conversion, the normalization of the inputs and the weights of the
+ * first layer are folded into one affine map (see WekaScoringLinearEngine);
+ * the weights of every other layer are stored as one row-major matrix with a
+ * row per unit. A batch of rows goes through each layer with one blocked
+ * matrix multiplication instead of a walk through the NeuralNode graph per
+ * row. The predictions match the ones from Weka up to rounding.
+ *
+ * PT-BR
+ *
+ * Motor compilado para redes MultilayerPerceptron cujas unidades estao
+ * dispostas em camadas (cada unidade recebe as suas entradas da camada
+ * anterior, que e como a rede e construida a menos que seja editada a mao).
+ * A conversao de nominal para binario, a normalizacao das entradas e os
+ * pesos da primeira camada sao incorporados em um unico mapa afim (veja
+ * WekaScoringLinearEngine); os pesos de cada uma das outras camadas sao
+ * armazenados como uma matriz por linhas com uma linha por unidade. Um lote
+ * de linhas passa por cada camada com uma multiplicacao de matrizes em
+ * blocos em vez de percorrer o grafo de NeuralNode por linha. As previsoes
+ * coincidem com as do Weka a menos de arredondamentos.
+ */
+class WekaScoringNeuralEngine extends WekaScoringEngine {
+
+  // first layer: inputs and weights folded into an affine map
+  // primeira camada: entradas e pesos incorporados em um mapa afim
+  private final WekaScoringLinearEngine m_firstLayer;
+
+  // number of units, sigmoid flags, weights (row-major, one row per unit)
+  // and biases of each layer; weights and biases are null for the first
+  // numero de unidades, indicadores sigmoide, pesos (por linha, uma linha
+  // por unidade) e vieses de cada camada; pesos e vieses sao null para a
+  // primeira
+  private final int[] m_size;
+  private final boolean[][] m_sigmoid;
+  private final double[][] m_weights;
+  private final double[][] m_bias;
+
+  // units feeding each output (layer, unit)
+  // unidades que alimentam cada saida (camada, unidade)
+  private final int[][] m_outputLayer;
+  private final int[][] m_outputUnit;
+
+  private final boolean m_numeric;
+  private final double m_classRange;
+  private final double m_classBase;
+  private final double[] m_defaultDistribution;
+
+  private WekaScoringNeuralEngine(WekaScoringLinearEngine firstLayer,
+      int[] size, boolean[][] sigmoid, double[][] weights, double[][] bias,
+      int[][] outputLayer, int[][] outputUnit, boolean numeric,
+      double classRange, double classBase, double[] defaultDistribution) {
+    m_firstLayer = firstLayer;
+    m_size = size;
+    m_sigmoid = sigmoid;
+    m_weights = weights;
+    m_bias = bias;
+    m_outputLayer = outputLayer;
+    m_outputUnit = outputUnit;
+    m_numeric = numeric;
+    m_classRange = classRange;
+    m_classBase = classBase;
+    m_defaultDistribution = defaultDistribution;
+  }
+
+  /**
+   * Compile a MultilayerPerceptron. Returns null for other models, for
+   * networks that are not arranged in layers or use other kinds of units,
+   * and for networks that were replaced by ZeroR during training.
+   *
+   * PT-BR
+   *
+   * Compila um MultilayerPerceptron. Retorna null para outros modelos, para
+   * redes que nao estao dispostas em camadas ou usam outros tipos de
+   * unidades, e para redes que foram substituidas pelo ZeroR durante o
+   * treino.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the model can't be read
+   *                   se a estrutura do modelo nao puder ser lida
+   */
+  static WekaScoringNeuralEngine compile(Object model, Instances header)
+      throws Exception {
+    if (model.getClass() != MultilayerPerceptron.class || header == null
+        || header.classIndex() < 0
+        || ((Boolean) getField(model, "m_useDefaultModel")).booleanValue()) { //$NON-NLS-1$
+      return null;
+    }
+
+    NeuralConnection[] inputs = (NeuralConnection[]) getField(model,
+        "m_inputs"); //$NON-NLS-1$
+    NeuralConnection[] outputs = (NeuralConnection[]) getField(model,
+        "m_outputs"); //$NON-NLS-1$
+    NeuralConnection[] nodes = (NeuralConnection[]) getField(model,
+        "m_neuralNodes"); //$NON-NLS-1$
+
+    // which layer each unit is in (input ends are layer 0)
+    // em que camada cada unidade esta (as entradas sao a camada 0)
+    final Map<NeuralConnection, Integer> layerOf = new IdentityHashMap<NeuralConnection, Integer>();
+    final Map<NeuralConnection, Integer> indexOf = new IdentityHashMap<NeuralConnection, Integer>();
+    for (NeuralConnection in : inputs) {
+      layerOf.put(in, Integer.valueOf(0));
+    }
+    List<List<NeuralNode>> layers = new ArrayList<List<NeuralNode>>();
+    layers.add(new ArrayList<NeuralNode>());
+    boolean progress = true;
+    while (progress) {
+      progress = false;
+      for (NeuralConnection n : nodes) {
+        if (layerOf.containsKey(n)) {
+          continue;
+        }
+        if (!(n instanceof NeuralNode)
+            || (((NeuralNode) n).getMethod().getClass() != SigmoidUnit.class && ((NeuralNode) n)
+                .getMethod().getClass() != LinearUnit.class)) {
+          return null;
+        }
+        int layer = -1;
+        boolean ready = n.getNumInputs() > 0;
+        for (int i = 0; i < n.getNumInputs() && ready; i++) {
+          Integer l = layerOf.get(n.getInputs()[i]);
+          if (l == null) {
+            ready = false;
+          } else if (layer >= 0 && l.intValue() != layer) {
+            // connections skip a layer / conexoes pulam uma camada
+            return null;
+          } else {
+            layer = l.intValue();
+          }
+        }
+        if (ready) {
+          layerOf.put(n, Integer.valueOf(layer + 1));
+          while (layers.size() <= layer + 1) {
+            layers.add(new ArrayList<NeuralNode>());
+          }
+          indexOf.put(n, Integer.valueOf(layers.get(layer + 1).size()));
+          layers.get(layer + 1).add((NeuralNode) n);
+          progress = true;
+        }
+      }
+    }
+    if (layerOf.size() != inputs.length + nodes.length || layers.size() < 2) {
+      return null;
+    }
+
+    int numLayers = layers.size() - 1;
+    int[] size = new int[numLayers];
+    boolean[][] sigmoid = new boolean[numLayers][];
+    double[][] weights = new double[numLayers][];
+    double[][] bias = new double[numLayers][];
+    for (int l = 0; l < numLayers; l++) {
+      List<NeuralNode> units = layers.get(l + 1);
+      size[l] = units.size();
+      sigmoid[l] = new boolean[size[l]];
+      for (int u = 0; u < size[l]; u++) {
+        sigmoid[l][u] = units.get(u).getMethod() instanceof SigmoidUnit;
+      }
+      if (l == 0) {
+        continue;
+      }
+      weights[l] = new double[size[l] * size[l - 1]];
+      bias[l] = new double[size[l]];
+      for (int u = 0; u < size[l]; u++) {
+        NeuralNode unit = units.get(u);
+        double[] w = unit.getWeights();
+        bias[l][u] = w[0];
+        for (int i = 0; i < unit.getNumInputs(); i++) {
+          weights[l][u * size[l - 1]
+              + indexOf.get(unit.getInputs()[i]).intValue()] += w[i + 1];
+        }
+      }
+    }
+
+    int[][] outputLayer = new int[outputs.length][];
+    int[][] outputUnit = new int[outputs.length][];
+    for (int o = 0; o < outputs.length; o++) {
+      NeuralConnection[] in = outputs[o].getInputs();
+      outputLayer[o] = new int[outputs[o].getNumInputs()];
+      outputUnit[o] = new int[outputs[o].getNumInputs()];
+      for (int i = 0; i < outputLayer[o].length; i++) {
+        if (!indexOf.containsKey(in[i])) {
+          return null;
+        }
+        outputLayer[o][i] = layerOf.get(in[i]).intValue() - 1;
+        outputUnit[o][i] = indexOf.get(in[i]).intValue();
+      }
+    }
+
+    // the first layer's inputs, as MultilayerPerceptron computes them
+    // as entradas da primeira camada, como o MultilayerPerceptron as calcula
+    final Instances trained = (Instances) getField(model, "m_instances"); //$NON-NLS-1$
+    final double[] ranges = (double[]) getField(model, "m_attributeRanges"); //$NON-NLS-1$
+    final double[] bases = (double[]) getField(model, "m_attributeBases"); //$NON-NLS-1$
+    final boolean normalize = ((Boolean) getField(model,
+        "m_normalizeAttributes")).booleanValue(); //$NON-NLS-1$
+    final Filter[] filters = ((Boolean) getField(model, "m_useNomToBin")) //$NON-NLS-1$
+        .booleanValue() ? WekaScoringLinearEngine.filters(model,
+        "m_nominalToBinaryFilter") : new Filter[0]; //$NON-NLS-1$
+    final List<NeuralNode> first = layers.get(1);
+    final int[] links = new int[inputs.length];
+    for (int i = 0; i < inputs.length; i++) {
+      if (!((Boolean) getField(inputs[i], "m_input")).booleanValue()) { //$NON-NLS-1$
+        return null;
+      }
+      links[i] = ((Integer) getField(inputs[i], "m_link")).intValue(); //$NON-NLS-1$
+      indexOf.put(inputs[i], Integer.valueOf(i));
+    }
+
+    WekaScoringLinearEngine firstLayer;
+    double[] defaultDistribution;
+    synchronized (model) {
+      firstLayer = WekaScoringLinearEngine.affine(header,
+          new WekaScoringLinearEngine.Probe() {
+            @Override
+            double[] scores(Instance inst) throws Exception {
+              inst = WekaScoringLinearEngine.filter(filters, inst, false);
+              int classIndex = trained.classIndex();
+              double[] in = new double[links.length];
+              for (int i = 0; i < links.length; i++) {
+                double v = inst.value(links[i]);
+                if (normalize && links[i] != classIndex) {
+                  v = (ranges[links[i]] != 0) ? (v - bases[links[i]])
+                      / ranges[links[i]] : v - bases[links[i]];
+                }
+                in[i] = Utils.isMissingValue(v) ? 0 : v;
+              }
+              double[] pre = new double[first.size()];
+              for (int u = 0; u < pre.length; u++) {
+                NeuralNode unit = first.get(u);
+                double[] w = unit.getWeights();
+                double value = w[0];
+                for (int i = 0; i < unit.getNumInputs(); i++) {
+                  value += in[indexOf.get(unit.getInputs()[i]).intValue()]
+                      * w[i + 1];
+                }
+                pre[u] = value;
+              }
+              return pre;
+            }
+          });
+
+      Instance empty = new DenseInstance(header.numAttributes());
+      empty.setDataset(header);
+      defaultDistribution = ((Classifier) getField(model, "m_ZeroR")) //$NON-NLS-1$
+          .distributionForInstance(empty);
+    }
+
+    boolean numeric = ((Boolean) getField(model, "m_numeric")).booleanValue(); //$NON-NLS-1$
+    double classRange = 1;
+    double classBase = 0;
+    if (numeric
+        && ((Boolean) getField(model, "m_normalizeClass")).booleanValue()) { //$NON-NLS-1$
+      classRange = ranges[trained.classIndex()];
+      classBase = bases[trained.classIndex()];
+    }
+
+    return new WekaScoringNeuralEngine(firstLayer, size, sigmoid, weights,
+        bias, outputLayer, outputUnit, numeric, classRange, classBase,
+        defaultDistribution);
+  }
+
+  /**
+   * Number of layers of units.
+   *
+   * PT-BR
+   *
+   * Numero de camadas de unidades.
+   *
+   * @return the number of layers
+   *         o numero de camadas
+   */
+  int numLayers() {
+    return m_size.length;
+  }
+
+  @Override
+  boolean isBatchPredictor() {
+    return true;
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    return score(m_firstLayer.distributionForInstance(inst), 1)[0];
+  }
+
+  @Override
+  double[][] distributionsForInstances(Instances insts) throws Exception {
+    int rows = insts.numInstances();
+    double[][] pre = m_firstLayer.distributionsForInstances(insts);
+    double[] first = new double[rows * m_size[0]];
+    for (int r = 0; r < rows; r++) {
+      System.arraycopy(pre[r], 0, first, r * m_size[0], m_size[0]);
+    }
+    return score(first, rows);
+  }
+
+  /**
+   * Run rows through the network, starting from the weighted sums of the
+   * first layer (row-major).
+   *
+   * PT-BR
+   *
+   * Passa linhas pela rede, a partir das somas ponderadas da primeira camada
+   * (por linha).
+   */
+  private double[][] score(double[] first, int rows) {
+    double[][] values = new double[m_size.length][];
+    activate(first, rows, 0);
+    values[0] = first;
+    for (int l = 1; l < m_size.length; l++) {
+      int units = m_size[l];
+      double[] next = new double[rows * units];
+      for (int r = 0; r < rows; r++) {
+        System.arraycopy(m_bias[l], 0, next, r * units, units);
+      }
+      multiplyTransposed(values[l - 1], rows, m_size[l - 1], m_weights[l],
+          units, next);
+      activate(next, rows, l);
+      values[l] = next;
+    }
+
+    double[][] result = new double[rows][];
+    for (int r = 0; r < rows; r++) {
+      double[] out = new double[m_outputLayer.length];
+      double count = 0;
+      for (int o = 0; o < out.length; o++) {
+        double value = 0;
+        for (int i = 0; i < m_outputLayer[o].length; i++) {
+          int layer = m_outputLayer[o][i];
+          value += values[layer][r * m_size[layer] + m_outputUnit[o][i]];
+        }
+        if (m_numeric) {
+          value = value * m_classRange + m_classBase;
+        }
+        out[o] = value;
+        count += value;
+      }
+      if (!m_numeric) {
+        if (count <= 0) {
+          out = m_defaultDistribution.clone();
+        } else {
+          for (int o = 0; o < out.length; o++) {
+            out[o] /= count;
+          }
+        }
+      }
+      result[r] = out;
+    }
+    return result;
+  }
+
+  /**
+   * Apply the units' activation functions (SigmoidUnit or LinearUnit) to
+   * the weighted sums of a layer.
+   *
+   * PT-BR
+   *
+   * Aplica as funcoes de ativacao das unidades (SigmoidUnit ou LinearUnit)
+   * as somas ponderadas de uma camada.
+   */
+  private void activate(double[] values, int rows, int layer) {
+    int units = m_size[layer];
+    boolean[] sigmoid = m_sigmoid[layer];
+    for (int r = 0; r < rows; r++) {
+      int base = r * units;
+      for (int u = 0; u < units; u++) {
+        if (sigmoid[u]) {
+          double value = values[base + u];
+          values[base + u] = value < -45 ? 0 : (value > 45 ? 1
+              : 1 / (1 + Math.exp(-value)));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,231 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import org.pentaho.di.i18n.BaseMessages;
+
+import weka.core.Attribute;
+import weka.core.Utils;
+
+/**
+ * Writes the prediction for a row into the new fields of its output row.
+ * The writer for the model and output mode is chosen once, when the first
+ * row is scored, so writing a prediction doesn't branch on the mode: the
+ * labels of a nominal class are resolved (and interned) up front, the
+ * indices of clusters are boxed once and reused, and the messages for rows
+ * that can't be predicted are read from the resource bundle only when the
+ * writer is created.
+ *
+ * PT-BR
+ *
+ * Escreve a previsao de uma linha nos novos campos da sua linha de saida. O
+ * escritor para o modelo e o modo de saida e escolhido uma vez, quando a
+ * primeira linha e pontuada, de modo que escrever uma previsao nao
+ * ramifica no modo: os rotulos de uma classe nominal sao resolvidos (e
+ * internados) antecipadamente, os indices dos agrupamentos sao encaixotados
+ * uma vez e reutilizados, e as mensagens para linhas que nao podem ser
+ * previstas sao lidas do resource bundle apenas quando o escritor e criado.
+ */
+abstract class WekaScoringOutputWriter {
+
+  /**
+   * Create the writer for a model.
+   *
+   * PT-BR
+   *
+   * Cria o escritor para um modelo.
+   *
+   * @param model the model that makes the predictions
+   *              o modelo que faz as previsoes
+   * @param outputProbs true if probability distributions are output
+   *                    verdadeiro se distribuicoes de probabilidade sao
+   *                    emitidas
+   * @return the writer
+   *         o escritor
+   */
+  static WekaScoringOutputWriter create(WekaScoringModel model,
+      boolean outputProbs) {
+    WekaScoringOutputWriter writer;
+    if (model.isSupervisedLearningModel()) {
+      Attribute classAtt = model.getHeader().classAttribute();
+      writer = classAtt.isNumeric() ? new Regression() : new ClassLabel(
+          classAtt);
+    } else {
+      writer = new ClusterIndex();
+    }
+    return outputProbs ? new Probabilities(writer) : writer;
+  }
+
+  /**
+   * Write a prediction.
+   *
+   * PT-BR
+   *
+   * Escreve uma previsao.
+   *
+   * @param prediction the prediction of the model
+   *                   a previsao do modelo
+   * @param resultRow the output row
+   *                  a linha de saida
+   * @param index the index of the first new field
+   *              o indice do primeiro campo novo
+   */
+  abstract void write(double[] prediction, Object[] resultRow, int index);
+
+  /**
+   * Write a classification: a numeric value, the index of a label or of a
+   * cluster, or missing if the model can't make a prediction.
+   *
+   * PT-BR
+   *
+   * Escreve uma classificacao: um valor numerico, o indice de um rotulo ou de
+   * um agrupamento, ou ausente se o modelo nao pode fazer uma previsao.
+   *
+   * @param label the classification of the model
+   *              a classificacao do modelo
+   * @param resultRow the output row
+   *                  a linha de saida
+   * @param index the index of the new field
+   *              o indice do campo novo
+   */
+  abstract void writeLabel(double label, Object[] resultRow, int index);
+
+  /**
+   * The value of a numeric class.
+   *
+   * O valor de uma classe numerica.
+   */
+  static class Regression extends WekaScoringOutputWriter {
+    @Override
+    void write(double[] prediction, Object[] resultRow, int index) {
+      resultRow[index] = Double.valueOf(prediction[0]);
+    }
+
+    @Override
+    void writeLabel(double label, Object[] resultRow, int index) {
+      resultRow[index] = Double.valueOf(label);
+    }
+  }
+
+  /**
+   * The most likely label of a nominal class.
+   *
+   * O rotulo mais provavel de uma classe nominal.
+   */
+  static class ClassLabel extends WekaScoringOutputWriter {
+    private final String[] m_labels;
+    private final String m_unableToPredict;
+
+    ClassLabel(Attribute classAtt) {
+      m_labels = new String[classAtt.numValues()];
+      for (int i = 0; i < m_labels.length; i++) {
+        m_labels[i] = classAtt.value(i).intern();
+      }
+      m_unableToPredict = BaseMessages.getString(WekaScoringMeta.PKG,
+          "WekaScoringData.Message.UnableToPredict"); //$NON-NLS-1$
+    }
+
+    @Override
+    void write(double[] prediction, Object[] resultRow, int index) {
+      int maxProb = Utils.maxIndex(prediction);
+      resultRow[index] = (prediction[maxProb] > 0) ? m_labels[maxProb]
+          : m_unableToPredict;
+    }
+
+    @Override
+    void writeLabel(double label, Object[] resultRow, int index) {
+      resultRow[index] = Utils.isMissingValue(label) ? m_unableToPredict
+          : m_labels[(int) label];
+    }
+  }
+
+  /**
+   * The most likely cluster.
+   *
+   * O agrupamento mais provavel.
+   */
+  static class ClusterIndex extends WekaScoringOutputWriter {
+    private Double[] m_indices = new Double[0];
+    private final String m_unableToPredict;
+
+    ClusterIndex() {
+      m_unableToPredict = BaseMessages.getString(WekaScoringMeta.PKG,
+          "WekaScoringData.Message.UnableToPredictCluster"); //$NON-NLS-1$
+    }
+
+    @Override
+    void write(double[] prediction, Object[] resultRow, int index) {
+      int maxProb = Utils.maxIndex(prediction);
+      resultRow[index] = (prediction[maxProb] > 0) ? cluster(maxProb)
+          : m_unableToPredict;
+    }
+
+    @Override
+    void writeLabel(double label, Object[] resultRow, int index) {
+      resultRow[index] = Utils.isMissingValue(label) ? m_unableToPredict
+          : cluster((int) label);
+    }
+
+    private Double cluster(int cluster) {
+      if (cluster >= m_indices.length) {
+        // boxed once per cluster, as the clusters are first seen
+        // encaixotados uma vez por agrupamento, quando sao vistos pela
+        // primeira vez
+        Double[] indices = new Double[cluster + 1];
+        System.arraycopy(m_indices, 0, indices, 0, m_indices.length);
+        for (int i = m_indices.length; i < indices.length; i++) {
+          indices[i] = Double.valueOf(i);
+        }
+        m_indices = indices;
+      }
+      return m_indices[cluster];
+    }
+  }
+
+  /**
+   * The probability distribution, or the single value of a prediction that
+   * has only one.
+   *
+   * A distribuicao de probabilidade, ou o unico valor de uma previsao que
+   * possui apenas um.
+   */
+  static class Probabilities extends WekaScoringOutputWriter {
+    private final WekaScoringOutputWriter m_single;
+
+    Probabilities(WekaScoringOutputWriter single) {
+      m_single = single;
+    }
+
+    @Override
+    void write(double[] prediction, Object[] resultRow, int index) {
+      if (prediction.length == 1) {
+        m_single.write(prediction, resultRow, index);
+        return;
+      }
+      for (int i = 0; i < prediction.length; i++) {
+        resultRow[index++] = Double.valueOf(prediction[i]);
+      }
+    }
+
+    @Override
+    void writeLabel(double label, Object[] resultRow, int index) {
+      m_single.writeLabel(label, resultRow, index);
+    }
+  }
+}
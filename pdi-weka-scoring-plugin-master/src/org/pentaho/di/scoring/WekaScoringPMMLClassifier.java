@@ -0,0 +1,101 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A classifier compiled from a PMML document by WekaScoringPMMLCompiler. It
+ * takes the place of the PMMLClassifier that PMMLFactory would build, and
+ * scores rows (with the mining schema as their header) with the same results.
+ * It can't be trained.
+ *
+ * PT-BR
+ *
+ * Um classificador compilado a partir de um documento PMML pelo
+ * WekaScoringPMMLCompiler. Ele toma o lugar do PMMLClassifier que o
+ * PMMLFactory construiria, e pontua linhas (com o esquema de mineracao como
+ * cabecalho) com os mesmos resultados. Ele nao pode ser treinado.
+ */
+class WekaScoringPMMLClassifier extends AbstractClassifier {
+
+  /** for serialization */
+  private static final long serialVersionUID = 5326027906338574316L;
+
+  private final WekaScoringPMMLEngine m_engine;
+
+  // the mining schema as instances, and a description of the model
+  // o esquema de mineracao como instancias, e uma descricao do modelo
+  private final Instances m_miningSchema;
+  private final String m_description;
+
+  WekaScoringPMMLClassifier(WekaScoringPMMLEngine engine,
+      Instances miningSchema, String description) {
+    m_engine = engine;
+    m_miningSchema = miningSchema;
+    m_description = description;
+  }
+
+  /**
+   * Get the compiled engine.
+   *
+   * PT-BR
+   *
+   * Retorna o motor compilado.
+   *
+   * @return the engine
+   *         o motor
+   */
+  WekaScoringPMMLEngine getEngine() {
+    return m_engine;
+  }
+
+  /**
+   * Get the mining schema of the model, the structure of the rows that it
+   * scores.
+   *
+   * PT-BR
+   *
+   * Retorna o esquema de mineracao do modelo, a estrutura das linhas que ele
+   * pontua.
+   *
+   * @return the mining schema
+   *         o esquema de mineracao
+   */
+  Instances getMiningSchema() {
+    return new Instances(m_miningSchema, 0);
+  }
+
+  @Override
+  public void buildClassifier(Instances data) throws Exception {
+    throw new Exception("A model compiled from PMML can't be trained"); //$NON-NLS-1$
+  }
+
+  @Override
+  public double[] distributionForInstance(Instance inst) throws Exception {
+    return m_engine.distributionForInstance(inst);
+  }
+
+  @Override
+  public String toString() {
+    return m_description;
+  }
+}
@@ -0,0 +1,1639 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.io.InputStream;
+import java.io.StreamTokenizer;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+
+/**
+ * Compiles a PMML document holding a TreeModel, RegressionModel,
+ * GeneralRegressionModel or NeuralNetwork straight into a
+ * WekaScoringPMMLEngine. The document is read once with a streaming (StAX)
+ * reader, so no DOM is built, and each element is turned into the flat
+ * arrays of the engine as it is read. The rules of Weka's PMML consumers
+ * (weka.core.pmml.PMMLFactory and weka.classifiers.pmml.consumer) are
+ * followed, so the compiled model scores rows as the interpreted one does.
+ * Anything outside that subset (targets, derived fields, other model types,
+ * surrogate predicates, ...) makes compile() return null, and the caller
+ * falls back to PMMLFactory.
+ *
+ * PT-BR
+ *
+ * Compila um documento PMML contendo um TreeModel, RegressionModel,
+ * GeneralRegressionModel ou NeuralNetwork diretamente em um
+ * WekaScoringPMMLEngine. O documento e lido uma vez com um leitor de fluxo
+ * (StAX), de modo que nenhum DOM e construido, e cada elemento e
+ * transformado nas matrizes planas do motor a medida que e lido. As regras
+ * dos consumidores PMML do Weka (weka.core.pmml.PMMLFactory e
+ * weka.classifiers.pmml.consumer) sao seguidas, de modo que o modelo
+ * compilado pontua linhas como o interpretado. Qualquer coisa fora desse
+ * subconjunto (alvos, campos derivados, outros tipos de modelo, predicados
+ * substitutos, ...) faz compile() retornar null, e o chamador recorre ao
+ * PMMLFactory.
+ */
+class WekaScoringPMMLCompiler {
+
+  /**
+   * Elements that Weka's consumers look for anywhere below the element that
+   * holds them; if one turns up inside an element that the compiler skips,
+   * the document is left to Weka.
+   *
+   * Elementos que os consumidores do Weka procuram em qualquer lugar abaixo
+   * do elemento que os contem; se um aparece dentro de um elemento que o
+   * compilador ignora, o documento e deixado para o Weka.
+   */
+  private static final Set<String> SENSITIVE = new HashSet<String>(
+      Arrays.asList(new String[] { "DataDictionary", "DataField", "Value", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          "TransformationDictionary", "DerivedField", "LocalTransformations", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          "MiningSchema", "MiningField", "Targets", "Target", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+          "RegressionModel", "GeneralRegressionModel", "NeuralNetwork", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          "TreeModel", "RuleSetModel", "SupportVectorMachineModel", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          "MiningModel", "RegressionTable", "NumericPredictor", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          "CategoricalPredictor", "PredictorTerm", "FieldRef", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          "ParameterList", "Parameter", "FactorList", "CovariateList", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+          "Predictor", "PPMatrix", "PPCell", "ParamMatrix", "PCell", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+          "NeuralInputs", "NeuralInput", "NeuralLayer", "Neuron", "Con", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+          "NeuralOutputs", "NeuralOutput", "NormContinuous", "NormDiscrete", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+          "LinearNorm", "Node" })); //$NON-NLS-1$ //$NON-NLS-2$
+
+  /** usage types that leave a field out of the mining schema
+   *  tipos de uso que deixam um campo fora do esquema de mineracao
+   */
+  private static final Set<String> SUPPLEMENTARY_USAGE = new HashSet<String>(
+      Arrays.asList(new String[] { "supplementary", "group", "order" })); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+  /** missing value treatments that use the replacement value
+   *  tratamentos de valores ausentes que usam o valor substituto
+   */
+  private static final Set<String> REPLACING_TREATMENTS = new HashSet<String>(
+      Arrays.asList(new String[] { "asMean", "asMode", "asMedian", "asValue" })); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+  /** distributions of GeneralRegression.Distribution
+   *  distribuicoes de GeneralRegression.Distribution
+   */
+  private static final Set<String> DISTRIBUTIONS = new HashSet<String>(
+      Arrays.asList(new String[] { "none", "normal", "binomial", "gamma", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+          "igauss", "negbin", "poisson" })); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+  /** the outlier treatments of NormContinuous, by engine code
+   *  os tratamentos de valores extremos do NormContinuous, por codigo do motor
+   */
+  private static final String[] OUTLIERS = { "asIs", "asMissingValues", //$NON-NLS-1$ //$NON-NLS-2$
+      "asExtremeValues" }; //$NON-NLS-1$
+
+  private final XMLStreamReader m_reader;
+
+  // the PMML version and the application that wrote the document
+  // a versao do PMML e a aplicacao que escreveu o documento
+  private String m_version = "?"; //$NON-NLS-1$
+  private String m_application = "?"; //$NON-NLS-1$
+
+  // the data dictionary, and the mining schema of the model with its
+  // missing value and outlier treatments
+  // o dicionario de dados, e o esquema de mineracao do modelo com os seus
+  // tratamentos de valores ausentes e extremos
+  private Instances m_dictionary;
+  private Instances m_schema;
+  private double[] m_replacement;
+  private boolean[] m_clamp;
+  private double[] m_low;
+  private double[] m_high;
+
+  private WekaScoringPMMLCompiler(XMLStreamReader reader) {
+    m_reader = reader;
+  }
+
+  /**
+   * Compile a PMML document.
+   *
+   * PT-BR
+   *
+   * Compila um documento PMML.
+   *
+   * @param in the stream to read the document from
+   *           o fluxo de onde ler o documento
+   * @return the compiled model, or null if the document holds something the
+   *         compiler does not handle
+   *         o modelo compilado, ou null se o documento contem algo que o
+   *         compilador nao trata
+   */
+  static WekaScoringPMMLClassifier compile(InputStream in) {
+    XMLStreamReader reader = null;
+    try {
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+          Boolean.FALSE);
+      reader = factory.createXMLStreamReader(in);
+      return new WekaScoringPMMLCompiler(reader).document();
+    } catch (Exception ex) {
+      return null;
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException ex) {
+          // nothing to do
+          // nada a fazer
+        }
+      }
+    }
+  }
+
+  private static Exception unsupported(String what) {
+    return new Exception("Not compiled: " + what); //$NON-NLS-1$
+  }
+
+  // ---------------------------------------------------------------------
+  // reader helpers
+  // auxiliares do leitor
+
+  /** the name of the current element as a DOM reports it (prefix:local)
+   *  o nome do elemento atual como um DOM o informa (prefixo:local)
+   */
+  private String name() {
+    String prefix = m_reader.getPrefix();
+    String local = m_reader.getLocalName();
+    return (prefix == null || prefix.length() == 0) ? local : prefix + ":" //$NON-NLS-1$
+        + local;
+  }
+
+  /** an attribute of the current element, or "" if it is absent
+   *  um atributo do elemento atual, ou "" se estiver ausente
+   */
+  private String attr(String name) {
+    for (int i = 0; i < m_reader.getAttributeCount(); i++) {
+      String prefix = m_reader.getAttributePrefix(i);
+      if ((prefix == null || prefix.length() == 0)
+          && name.equals(m_reader.getAttributeLocalName(i))) {
+        return m_reader.getAttributeValue(i);
+      }
+    }
+    return ""; //$NON-NLS-1$
+  }
+
+  private double number(String name, double defaultValue) {
+    String value = attr(name);
+    return (value.length() > 0) ? Double.parseDouble(value) : defaultValue;
+  }
+
+  /**
+   * Move to the start of the next child element of the current element, or
+   * to the end of the current element.
+   *
+   * PT-BR
+   *
+   * Move para o inicio do proximo elemento filho do elemento atual, ou para
+   * o fim do elemento atual.
+   *
+   * @return true at a child, false at the end
+   *         verdadeiro em um filho, falso no fim
+   */
+  private boolean nextChild() throws XMLStreamException {
+    while (true) {
+      int event = m_reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        return true;
+      }
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Skip the current element, failing if something that Weka would look for
+   * is inside it.
+   *
+   * PT-BR
+   *
+   * Ignora o elemento atual, falhando se algo que o Weka procuraria estiver
+   * dentro dele.
+   */
+  private void skip() throws Exception {
+    int depth = 1;
+    while (depth > 0) {
+      int event = m_reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        if (SENSITIVE.contains(name())) {
+          throw unsupported(name());
+        }
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  private int fieldIndex(String name) throws Exception {
+    Attribute att = m_schema.attribute(name);
+    if (att == null) {
+      throw unsupported("field " + name); //$NON-NLS-1$
+    }
+    return att.index();
+  }
+
+  private static int indexOf(String[] names, String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int[] toInts(List<Integer> list) {
+    int[] result = new int[list.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = list.get(i);
+    }
+    return result;
+  }
+
+  private static double[] toDoubles(List<Double> list) {
+    double[] result = new double[list.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = list.get(i);
+    }
+    return result;
+  }
+
+  // ---------------------------------------------------------------------
+  // document
+  // documento
+
+  private WekaScoringPMMLClassifier document() throws Exception {
+    while (m_reader.next() != XMLStreamConstants.START_ELEMENT) {
+      // move to the root
+      // move para a raiz
+    }
+    if (!"PMML".equals(name())) { //$NON-NLS-1$
+      throw unsupported(name());
+    }
+    if (attr("version").length() > 0) { //$NON-NLS-1$
+      m_version = attr("version"); //$NON-NLS-1$
+    }
+
+    boolean header = false;
+    WekaScoringPMMLEngine engine = null;
+    String modelType = null;
+    while (nextChild()) {
+      String name = name();
+      if ("Header".equals(name)) { //$NON-NLS-1$
+        header();
+        header = true;
+      } else if ("DataDictionary".equals(name) && m_dictionary == null) { //$NON-NLS-1$
+        dataDictionary();
+      } else if ("TransformationDictionary".equals(name) //$NON-NLS-1$
+          || "MiningBuildTask".equals(name) || "Extension".equals(name)) { //$NON-NLS-1$ //$NON-NLS-2$
+        // a transformation dictionary without derived fields changes nothing
+        // um dicionario de transformacoes sem campos derivados nao muda nada
+        skip();
+      } else if (engine == null && m_dictionary != null
+          && ("TreeModel".equals(name) || "RegressionModel".equals(name) //$NON-NLS-1$ //$NON-NLS-2$
+              || "GeneralRegressionModel".equals(name) || "NeuralNetwork" //$NON-NLS-1$ //$NON-NLS-2$
+                .equals(name))) {
+        modelType = name;
+        engine = model(name);
+      } else {
+        throw unsupported(name);
+      }
+    }
+    if (!header || engine == null) {
+      throw unsupported("document"); //$NON-NLS-1$
+    }
+
+    StringBuffer description = new StringBuffer();
+    description.append("PMML version ").append(m_version); //$NON-NLS-1$
+    description.append("\nApplication: ").append(m_application); //$NON-NLS-1$
+    description.append("\nPMML Model: ").append(modelType) //$NON-NLS-1$
+        .append(" (compiled)"); //$NON-NLS-1$
+    description.append("\n\nMining schema:\n"); //$NON-NLS-1$
+    for (int i = 0; i < m_schema.numAttributes(); i++) {
+      description.append("  ").append(m_schema.attribute(i).name()); //$NON-NLS-1$
+      if (i == m_schema.classIndex()) {
+        description.append(" (predicted)"); //$NON-NLS-1$
+      }
+      description.append("\n"); //$NON-NLS-1$
+    }
+    return new WekaScoringPMMLClassifier(engine, m_schema,
+        description.toString());
+  }
+
+  private void header() throws Exception {
+    boolean first = true;
+    while (nextChild()) {
+      if ("Application".equals(name()) && first) { //$NON-NLS-1$
+        first = false;
+        String appName = attr("name"); //$NON-NLS-1$
+        if (appName.length() > 0) {
+          String version = attr("version"); //$NON-NLS-1$
+          m_application = (version.length() > 0) ? appName + " v. " + version //$NON-NLS-1$
+              : appName;
+        }
+      }
+      skip();
+    }
+  }
+
+  private void dataDictionary() throws Exception {
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    while (nextChild()) {
+      if (!"DataField".equals(name())) { //$NON-NLS-1$
+        skip();
+        continue;
+      }
+      String name = attr("name"); //$NON-NLS-1$
+      String optype = attr("optype"); //$NON-NLS-1$
+      boolean categorical = "categorical".equals(optype) //$NON-NLS-1$
+          || "ordinal".equals(optype); //$NON-NLS-1$
+      if (!categorical && !"continuous".equals(optype)) { //$NON-NLS-1$
+        throw unsupported("optype " + optype); //$NON-NLS-1$
+      }
+      ArrayList<String> values = new ArrayList<String>();
+      boolean hasValues = false;
+      while (nextChild()) {
+        if ("Value".equals(name())) { //$NON-NLS-1$
+          hasValues = true;
+          String property = attr("property"); //$NON-NLS-1$
+          if (property.length() == 0 || "valid".equals(property)) { //$NON-NLS-1$
+            values.add(attr("value")); //$NON-NLS-1$
+          }
+        }
+        skip();
+      }
+      if (!categorical) {
+        atts.add(new Attribute(name));
+      } else if (hasValues) {
+        atts.add(new Attribute(name, values));
+      } else {
+        // a string attribute
+        // um atributo de texto
+        throw unsupported("string field " + name); //$NON-NLS-1$
+      }
+    }
+    m_dictionary = new Instances("dataDictionary", atts, 0); //$NON-NLS-1$
+  }
+
+  /**
+   * Compile a model element: its mining schema first, then its body.
+   *
+   * PT-BR
+   *
+   * Compila um elemento de modelo: primeiro o seu esquema de mineracao,
+   * depois o seu corpo.
+   */
+  private WekaScoringPMMLEngine model(String type) throws Exception {
+    String functionName = attr("functionName"); //$NON-NLS-1$
+    ModelBody body;
+    if ("TreeModel".equals(type)) { //$NON-NLS-1$
+      body = new TreeBody(functionName, attr("missingValueStrategy")); //$NON-NLS-1$
+    } else if ("RegressionModel".equals(type)) { //$NON-NLS-1$
+      body = new RegressionBody(functionName, attr("normalizationMethod")); //$NON-NLS-1$
+    } else if ("GeneralRegressionModel".equals(type)) { //$NON-NLS-1$
+      body = new GeneralRegressionBody(functionName);
+    } else {
+      body = new NeuralBody();
+    }
+
+    while (nextChild()) {
+      String name = name();
+      if ("MiningSchema".equals(name) && m_schema == null) { //$NON-NLS-1$
+        miningSchema();
+        body.schemaRead();
+      } else if ("Output".equals(name) || "ModelStats".equals(name) //$NON-NLS-1$ //$NON-NLS-2$
+          || "ModelExplanation".equals(name) //$NON-NLS-1$
+          || "ModelVerification".equals(name) || "Extension".equals(name)) { //$NON-NLS-1$ //$NON-NLS-2$
+        skip();
+      } else if ("Targets".equals(name) //$NON-NLS-1$
+          || "LocalTransformations".equals(name)) { //$NON-NLS-1$
+        throw unsupported(name);
+      } else if (m_schema != null) {
+        body.child(name);
+      } else {
+        throw unsupported(name);
+      }
+    }
+    if (m_schema == null) {
+      throw unsupported("no mining schema"); //$NON-NLS-1$
+    }
+    return body.engine();
+  }
+
+  private void miningSchema() throws Exception {
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    List<Double> replacement = new ArrayList<Double>();
+    List<double[]> bounds = new ArrayList<double[]>();
+    List<String> replacementLabels = new ArrayList<String>();
+    int classIndex = -1;
+    while (nextChild()) {
+      if (!"MiningField".equals(name())) { //$NON-NLS-1$
+        skip();
+        continue;
+      }
+      String name = attr("name"); //$NON-NLS-1$
+      String usage = attr("usageType"); //$NON-NLS-1$
+      if (SUPPLEMENTARY_USAGE.contains(usage)) {
+        skip();
+        continue;
+      }
+      Attribute att = m_dictionary.attribute(name);
+      if (att == null) {
+        throw unsupported("mining field " + name); //$NON-NLS-1$
+      }
+      atts.add(att);
+      if ("predicted".equals(usage)) { //$NON-NLS-1$
+        classIndex = atts.size() - 1;
+      }
+
+      // the replacement for a missing value, as a number or a label
+      // o substituto para um valor ausente, como numero ou rotulo
+      double value = Double.NaN;
+      String label = null;
+      String missing = attr("missingValueReplacement"); //$NON-NLS-1$
+      if (missing.length() > 0
+          && REPLACING_TREATMENTS.contains(attr("missingValueTreatment"))) { //$NON-NLS-1$
+        try {
+          value = Double.parseDouble(missing);
+        } catch (NumberFormatException ex) {
+          label = missing;
+        }
+      }
+      replacement.add(value);
+      replacementLabels.add(label);
+
+      double[] bound = null;
+      if ("asExtremeValues".equals(attr("outliers"))) { //$NON-NLS-1$ //$NON-NLS-2$
+        bound = new double[] { Double.parseDouble(attr("lowValue")), //$NON-NLS-1$
+            Double.parseDouble(attr("highValue")) }; //$NON-NLS-1$
+      }
+      bounds.add(bound);
+      skip();
+    }
+
+    m_schema = new Instances("miningSchema", atts, 0); //$NON-NLS-1$
+    if (classIndex < 0) {
+      throw unsupported("no predicted field"); //$NON-NLS-1$
+    }
+    m_schema.setClassIndex(classIndex);
+
+    int n = atts.size();
+    m_replacement = new double[n];
+    m_clamp = new boolean[n];
+    m_low = new double[n];
+    m_high = new double[n];
+    for (int i = 0; i < n; i++) {
+      Attribute att = m_schema.attribute(i);
+      if (!att.isNumeric() && !att.isNominal()) {
+        throw unsupported("field " + att.name()); //$NON-NLS-1$
+      }
+      m_replacement[i] = replacement.get(i);
+      if (replacementLabels.get(i) != null) {
+        int index = att.indexOfValue(replacementLabels.get(i));
+        if (index < 0) {
+          throw unsupported("replacement " + replacementLabels.get(i)); //$NON-NLS-1$
+        }
+        m_replacement[i] = index;
+      }
+      if (bounds.get(i) != null) {
+        m_clamp[i] = true;
+        m_low[i] = bounds.get(i)[0];
+        m_high[i] = bounds.get(i)[1];
+      }
+    }
+  }
+
+  /**
+   * The body of a model, fed the children of the model element that follow
+   * the mining schema.
+   *
+   * O corpo de um modelo, alimentado com os filhos do elemento de modelo que
+   * seguem o esquema de mineracao.
+   */
+  private abstract class ModelBody {
+
+    void schemaRead() throws Exception {
+    }
+
+    abstract void child(String name) throws Exception;
+
+    abstract WekaScoringPMMLEngine engine() throws Exception;
+  }
+
+  // ---------------------------------------------------------------------
+  // RegressionModel
+
+  private class RegressionBody extends ModelBody {
+
+    private final boolean m_classification;
+    private final int m_normalization;
+
+    private final List<Integer> m_target = new ArrayList<Integer>();
+    private final List<Double> m_intercept = new ArrayList<Double>();
+    private final List<int[]> m_numericField = new ArrayList<int[]>();
+    private final List<double[]> m_numericCoefficient = new ArrayList<double[]>();
+    private final List<double[]> m_numericExponent = new ArrayList<double[]>();
+    private final List<int[]> m_categoricalField = new ArrayList<int[]>();
+    private final List<int[]> m_categoricalValue = new ArrayList<int[]>();
+    private final List<double[]> m_categoricalCoefficient = new ArrayList<double[]>();
+    private final List<double[]> m_termCoefficient = new ArrayList<double[]>();
+    private final List<int[][]> m_termFields = new ArrayList<int[][]>();
+
+    RegressionBody(String functionName, String normalization) throws Exception {
+      if ("classification".equals(functionName)) { //$NON-NLS-1$
+        m_classification = true;
+      } else if ("regression".equals(functionName)) { //$NON-NLS-1$
+        m_classification = false;
+      } else {
+        throw unsupported("function " + functionName); //$NON-NLS-1$
+      }
+      m_normalization = Math.max(0, indexOf(
+          WekaScoringPMMLRegressionEngine.NORMALIZATIONS, normalization));
+    }
+
+    @Override
+    void child(String name) throws Exception {
+      if (!"RegressionTable".equals(name)) { //$NON-NLS-1$
+        throw unsupported(name);
+      }
+      int target = 0;
+      if (m_classification) {
+        String category = attr("targetCategory"); //$NON-NLS-1$
+        target = m_schema.classAttribute().isNominal() ? m_schema
+            .classAttribute().indexOfValue(category) : -1;
+        if (target < 0) {
+          throw unsupported("target category " + category); //$NON-NLS-1$
+        }
+      }
+      m_target.add(target);
+      m_intercept.add(number("intercept", 0.0)); //$NON-NLS-1$
+
+      List<Integer> numericField = new ArrayList<Integer>();
+      List<Double> numericCoefficient = new ArrayList<Double>();
+      List<Double> numericExponent = new ArrayList<Double>();
+      List<Integer> categoricalField = new ArrayList<Integer>();
+      List<Integer> categoricalValue = new ArrayList<Integer>();
+      List<Double> categoricalCoefficient = new ArrayList<Double>();
+      List<Double> termCoefficient = new ArrayList<Double>();
+      List<int[]> termFields = new ArrayList<int[]>();
+      while (nextChild()) {
+        String child = name();
+        if ("NumericPredictor".equals(child)) { //$NON-NLS-1$
+          numericField.add(fieldIndex(attr("name"))); //$NON-NLS-1$
+          numericCoefficient.add(number("coefficient", 1.0)); //$NON-NLS-1$
+          numericExponent.add(number("exponent", 1.0)); //$NON-NLS-1$
+          skip();
+        } else if ("CategoricalPredictor".equals(child)) { //$NON-NLS-1$
+          int field = fieldIndex(attr("name")); //$NON-NLS-1$
+          String value = attr("value"); //$NON-NLS-1$
+          int index = m_schema.attribute(field).isNominal() ? m_schema
+              .attribute(field).indexOfValue(value) : -1;
+          if (index < 0) {
+            throw unsupported("category " + value); //$NON-NLS-1$
+          }
+          categoricalField.add(field);
+          categoricalValue.add(index);
+          categoricalCoefficient.add(number("coefficient", 1.0)); //$NON-NLS-1$
+          skip();
+        } else if ("PredictorTerm".equals(child)) { //$NON-NLS-1$
+          termCoefficient.add(number("coefficient", 1.0)); //$NON-NLS-1$
+          List<Integer> fields = new ArrayList<Integer>();
+          while (nextChild()) {
+            if ("FieldRef".equals(name())) { //$NON-NLS-1$
+              int field = fieldIndex(attr("field")); //$NON-NLS-1$
+              if (!m_schema.attribute(field).isNumeric()) {
+                throw unsupported("term field " + attr("field")); //$NON-NLS-1$ //$NON-NLS-2$
+              }
+              fields.add(field);
+            }
+            skip();
+          }
+          if (fields.size() == 0) {
+            throw unsupported("empty term"); //$NON-NLS-1$
+          }
+          termFields.add(toInts(fields));
+        } else {
+          skip();
+        }
+      }
+      m_numericField.add(toInts(numericField));
+      m_numericCoefficient.add(toDoubles(numericCoefficient));
+      m_numericExponent.add(toDoubles(numericExponent));
+      m_categoricalField.add(toInts(categoricalField));
+      m_categoricalValue.add(toInts(categoricalValue));
+      m_categoricalCoefficient.add(toDoubles(categoricalCoefficient));
+      m_termCoefficient.add(toDoubles(termCoefficient));
+      m_termFields.add(termFields.toArray(new int[termFields.size()][]));
+    }
+
+    @Override
+    WekaScoringPMMLEngine engine() throws Exception {
+      if (m_target.size() == 0) {
+        throw unsupported("no regression table"); //$NON-NLS-1$
+      }
+      int n = m_target.size();
+      return new WekaScoringPMMLRegressionEngine(m_schema, m_replacement,
+          m_clamp, m_low, m_high, m_normalization, toInts(m_target),
+          toDoubles(m_intercept), m_numericField.toArray(new int[n][]),
+          m_numericCoefficient.toArray(new double[n][]),
+          m_numericExponent.toArray(new double[n][]),
+          m_categoricalField.toArray(new int[n][]),
+          m_categoricalValue.toArray(new int[n][]),
+          m_categoricalCoefficient.toArray(new double[n][]),
+          m_termCoefficient.toArray(new double[n][]),
+          m_termFields.toArray(new int[n][][]));
+    }
+  }
+
+  // ---------------------------------------------------------------------
+  // GeneralRegressionModel
+
+  private class GeneralRegressionBody extends ModelBody {
+
+    private final int m_modelType;
+    private final boolean m_classification;
+    private int m_link = -1;
+
+    private int m_parameterLists;
+    private int m_factorLists;
+    private int m_covariateLists;
+    private int m_ppMatrices;
+    private int m_paramMatrices;
+
+    // parameter names, factor and covariate fields, and the cells of the two
+    // matrices as they are read (resolved in engine())
+    // nomes dos parametros, campos fatores e covariaveis, e as celulas das
+    // duas matrizes a medida que sao lidas (resolvidas em engine())
+    private final List<String> m_parameters = new ArrayList<String>();
+    private final Set<String> m_factors = new HashSet<String>();
+    private final Set<String> m_covariates = new HashSet<String>();
+    private final List<String[]> m_ppCells = new ArrayList<String[]>();
+    private final List<String[]> m_pCells = new ArrayList<String[]>();
+
+    private final double m_linkParameter;
+    private final String m_trialsVariable;
+    private final double m_trialsValue;
+    private final String m_distribution;
+    private final double m_distParameter;
+    private final String m_offsetVariable;
+    private final double m_offsetValue;
+
+    GeneralRegressionBody(String functionName) throws Exception {
+      m_modelType = indexOf(WekaScoringPMMLGeneralRegressionEngine.MODEL_TYPES,
+          attr("modelType")); //$NON-NLS-1$
+      if (m_modelType < 0) {
+        throw unsupported("model type " + attr("modelType")); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      m_classification = "classification".equals(functionName); //$NON-NLS-1$
+      if (m_modelType == WekaScoringPMMLGeneralRegressionEngine.ORDINAL_MULTINOMIAL) {
+        m_link = indexOf(WekaScoringPMMLGeneralRegressionEngine.CUMULATIVE_LINKS,
+            attr("cumulativeLink")); //$NON-NLS-1$
+      } else if (m_modelType == WekaScoringPMMLGeneralRegressionEngine.GENERAL_LINEAR
+          || m_modelType == WekaScoringPMMLGeneralRegressionEngine.GENERALIZED_LINEAR) {
+        m_link = indexOf(WekaScoringPMMLGeneralRegressionEngine.LINKS,
+            attr("linkFunction")); //$NON-NLS-1$
+      } else {
+        m_link = 0;
+      }
+      if (m_link < 0) {
+        throw unsupported("link function"); //$NON-NLS-1$
+      }
+      m_linkParameter = number("linkParameter", Double.NaN); //$NON-NLS-1$
+      m_trialsVariable = attr("trialsVariable"); //$NON-NLS-1$
+      m_trialsValue = number("trialsValue", Double.NaN); //$NON-NLS-1$
+      m_distribution = attr("distribution"); //$NON-NLS-1$
+      if (m_distribution.length() > 0 && !DISTRIBUTIONS.contains(m_distribution)) {
+        throw unsupported("distribution " + m_distribution); //$NON-NLS-1$
+      }
+      m_distParameter = number("distParameter", Double.NaN); //$NON-NLS-1$
+      m_offsetVariable = attr("offsetVariable"); //$NON-NLS-1$
+      m_offsetValue = number("offsetValue", Double.NaN); //$NON-NLS-1$
+    }
+
+    @Override
+    void schemaRead() throws Exception {
+      if (m_classification && !m_schema.classAttribute().isNominal()) {
+        throw unsupported("classification with a numeric target"); //$NON-NLS-1$
+      }
+    }
+
+    @Override
+    void child(String name) throws Exception {
+      if ("ParameterList".equals(name)) { //$NON-NLS-1$
+        m_parameterLists++;
+        while (nextChild()) {
+          if ("Parameter".equals(name())) { //$NON-NLS-1$
+            m_parameters.add(attr("name")); //$NON-NLS-1$
+          }
+          skip();
+        }
+      } else if ("FactorList".equals(name) || "CovariateList".equals(name)) { //$NON-NLS-1$ //$NON-NLS-2$
+        boolean factors = "FactorList".equals(name); //$NON-NLS-1$
+        if (factors) {
+          m_factorLists++;
+        } else {
+          m_covariateLists++;
+        }
+        while (nextChild()) {
+          if ("Predictor".equals(name())) { //$NON-NLS-1$
+            String predictor = attr("name"); //$NON-NLS-1$
+            fieldIndex(predictor);
+            (factors ? m_factors : m_covariates).add(predictor);
+          }
+          skip();
+        }
+      } else if ("PPMatrix".equals(name)) { //$NON-NLS-1$
+        m_ppMatrices++;
+        while (nextChild()) {
+          if ("PPCell".equals(name())) { //$NON-NLS-1$
+            m_ppCells.add(new String[] { attr("predictorName"), //$NON-NLS-1$
+                attr("parameterName"), attr("value") }); //$NON-NLS-1$ //$NON-NLS-2$
+          }
+          skip();
+        }
+      } else if ("ParamMatrix".equals(name)) { //$NON-NLS-1$
+        m_paramMatrices++;
+        while (nextChild()) {
+          if ("PCell".equals(name())) { //$NON-NLS-1$
+            String df = attr("df"); //$NON-NLS-1$
+            if (df.length() > 0) {
+              Integer.parseInt(df);
+            }
+            m_pCells.add(new String[] { attr("parameterName"), //$NON-NLS-1$
+                attr("targetCategory"), attr("beta") }); //$NON-NLS-1$ //$NON-NLS-2$
+          }
+          skip();
+        }
+      } else {
+        skip();
+      }
+    }
+
+    @Override
+    WekaScoringPMMLEngine engine() throws Exception {
+      if (m_parameterLists != 1 || m_ppMatrices != 1 || m_paramMatrices != 1
+          || m_factorLists > 1 || m_covariateLists > 1) {
+        throw unsupported("general regression structure"); //$NON-NLS-1$
+      }
+      for (String factor : m_factors) {
+        if (m_covariates.contains(factor)) {
+          throw unsupported("predictor " + factor); //$NON-NLS-1$
+        }
+      }
+
+      // the predictor-to-parameter matrix, [parameter][field]
+      // a matriz de preditores para parametros, [parametro][campo]
+      int numParams = m_parameters.size();
+      int numFields = m_schema.numAttributes();
+      Double[][] pp = new Double[numParams][numFields];
+      for (String[] cell : m_ppCells) {
+        int param = m_parameters.indexOf(cell[1]);
+        if (param < 0) {
+          throw unsupported("parameter " + cell[1]); //$NON-NLS-1$
+        }
+        int field = fieldIndex(cell[0]);
+        Attribute att = m_schema.attribute(field);
+        double value;
+        if (m_covariates.contains(cell[0])) {
+          value = Double.parseDouble(cell[2]);
+        } else if (m_factors.contains(cell[0])) {
+          value = att.isNumeric() ? Double.parseDouble(cell[2]) : att
+              .indexOfValue(cell[2]);
+          if (value < 0 && att.isNominal()) {
+            throw unsupported("factor value " + cell[2]); //$NON-NLS-1$
+          }
+        } else {
+          throw unsupported("predictor " + cell[0]); //$NON-NLS-1$
+        }
+        pp[param][field] = value;
+      }
+      int[][] fields = new int[numParams][];
+      boolean[][] factor = new boolean[numParams][];
+      double[][] values = new double[numParams][];
+      for (int i = 0; i < numParams; i++) {
+        List<Integer> used = new ArrayList<Integer>();
+        for (int j = 0; j < numFields; j++) {
+          if (pp[i][j] != null) {
+            used.add(j);
+          }
+        }
+        fields[i] = toInts(used);
+        factor[i] = new boolean[used.size()];
+        values[i] = new double[used.size()];
+        for (int k = 0; k < used.size(); k++) {
+          int j = used.get(k);
+          factor[i][k] = m_factors.contains(m_schema.attribute(j).name());
+          values[i][k] = pp[i][j];
+        }
+      }
+
+      // the parameter matrix, one row per prediction
+      // a matriz de parametros, uma linha por previsao
+      Attribute classAtt = m_schema.classAttribute();
+      double[][] beta = new double[classAtt.isNominal() ? classAtt.numValues()
+          : 1][numParams];
+      for (String[] cell : m_pCells) {
+        int param = m_parameters.indexOf(cell[0]);
+        if (param < 0) {
+          throw unsupported("parameter " + cell[0]); //$NON-NLS-1$
+        }
+        int row = -1;
+        if (cell[1].length() > 0) {
+          if (!classAtt.isNominal()) {
+            throw unsupported("target category " + cell[1]); //$NON-NLS-1$
+          }
+          row = classAtt.indexOfValue(cell[1]);
+        }
+        double b = Double.parseDouble(cell[2]);
+        for (int r = 0; r < beta.length; r++) {
+          if (row < 0 || row == r) {
+            beta[r][param] = b;
+          }
+        }
+      }
+
+      boolean glm = m_modelType == WekaScoringPMMLGeneralRegressionEngine.GENERAL_LINEAR
+          || m_modelType == WekaScoringPMMLGeneralRegressionEngine.GENERALIZED_LINEAR;
+      boolean ordinal = m_modelType == WekaScoringPMMLGeneralRegressionEngine.ORDINAL_MULTINOMIAL;
+      int offsetField = -1;
+      int trialsField = -1;
+      double distParameter = 0;
+      if (glm || ordinal) {
+        if (m_offsetVariable.length() > 0) {
+          offsetField = fieldIndex(m_offsetVariable);
+        }
+      }
+      if (glm) {
+        if (m_trialsVariable.length() > 0) {
+          trialsField = fieldIndex(m_trialsVariable);
+        }
+        if (m_link == WekaScoringPMMLGeneralRegressionEngine.NEGBIN
+            && "negbin".equals(m_distribution)) { //$NON-NLS-1$
+          if (Double.isNaN(m_distParameter)) {
+            throw unsupported("distParameter"); //$NON-NLS-1$
+          }
+          distParameter = m_distParameter;
+        }
+        if ((m_link == WekaScoringPMMLGeneralRegressionEngine.POWER || m_link == WekaScoringPMMLGeneralRegressionEngine.ODDSPOWER)
+            && Double.isNaN(m_linkParameter)) {
+          throw unsupported("linkParameter"); //$NON-NLS-1$
+        }
+      }
+      return new WekaScoringPMMLGeneralRegressionEngine(m_schema,
+          m_replacement, m_clamp, m_low, m_high, m_modelType, fields, factor,
+          values, beta, m_link, offsetField,
+          Double.isNaN(m_offsetValue) ? 0 : m_offsetValue, trialsField,
+          Double.isNaN(m_trialsValue) ? 1 : m_trialsValue, distParameter,
+          m_linkParameter);
+    }
+  }
+
+  // ---------------------------------------------------------------------
+  // NeuralNetwork
+
+  /** a NormContinuous or NormDiscrete element
+   *  um elemento NormContinuous ou NormDiscrete
+   */
+  private static class Norm {
+    boolean m_continuous;
+    String m_field;
+    String m_value;
+    double m_mapMissingTo;
+    int m_outliers;
+    List<Double> m_orig = new ArrayList<Double>();
+    List<Double> m_norm = new ArrayList<Double>();
+  }
+
+  /**
+   * Read a NormContinuous or NormDiscrete element (the current one).
+   *
+   * Le um elemento NormContinuous ou NormDiscrete (o atual).
+   */
+  private Norm norm() throws Exception {
+    Norm norm = new Norm();
+    norm.m_continuous = "NormContinuous".equals(name()); //$NON-NLS-1$
+    norm.m_field = attr("field"); //$NON-NLS-1$
+    norm.m_value = attr("value"); //$NON-NLS-1$
+    norm.m_mapMissingTo = number("mapMissingTo", Double.NaN); //$NON-NLS-1$
+    norm.m_outliers = Math.max(0, indexOf(OUTLIERS, attr("outliers"))); //$NON-NLS-1$
+    while (nextChild()) {
+      if ("LinearNorm".equals(name()) && norm.m_continuous) { //$NON-NLS-1$
+        norm.m_orig.add(Double.parseDouble(attr("orig"))); //$NON-NLS-1$
+        norm.m_norm.add(Double.parseDouble(attr("norm"))); //$NON-NLS-1$
+      }
+      skip();
+    }
+    if (norm.m_continuous && norm.m_orig.size() < 2) {
+      throw unsupported("linear norm"); //$NON-NLS-1$
+    }
+    return norm;
+  }
+
+  /**
+   * Collect the NormContinuous and NormDiscrete elements at any depth below
+   * the current element.
+   *
+   * Coleta os elementos NormContinuous e NormDiscrete em qualquer
+   * profundidade abaixo do elemento atual.
+   */
+  private void norms(List<Norm> norms) throws Exception {
+    while (nextChild()) {
+      String name = name();
+      if ("NormContinuous".equals(name) || "NormDiscrete".equals(name)) { //$NON-NLS-1$ //$NON-NLS-2$
+        norms.add(norm());
+      } else if ("DerivedField".equals(name) || "Extension".equals(name)) { //$NON-NLS-1$ //$NON-NLS-2$
+        norms(norms);
+      } else {
+        throw unsupported(name);
+      }
+    }
+  }
+
+  private class NeuralBody extends ModelBody {
+
+    private final int m_activation;
+    private final int m_normalization;
+    private final double m_threshold;
+    private final double m_width;
+    private final double m_altitude;
+
+    // inputs by id
+    // entradas por id
+    private final Map<String, Integer> m_inputIds = new HashMap<String, Integer>();
+    private final List<Integer> m_inputKind = new ArrayList<Integer>();
+    private final List<Integer> m_inputField = new ArrayList<Integer>();
+    private final List<double[]> m_inputOrig = new ArrayList<double[]>();
+    private final List<double[]> m_inputNorm = new ArrayList<double[]>();
+    private final List<Integer> m_inputValue = new ArrayList<Integer>();
+    private final List<Double> m_inputMissing = new ArrayList<Double>();
+    private final List<Integer> m_inputOutliers = new ArrayList<Integer>();
+    private final List<Double> m_inputMapMissingTo = new ArrayList<Double>();
+
+    // layers, and the ids of the neurons of the last layer read
+    // camadas, e os ids dos neuronios da ultima camada lida
+    private Map<String, Integer> m_previousIds;
+    private final List<Integer> m_layerActivation = new ArrayList<Integer>();
+    private final List<Double> m_layerThreshold = new ArrayList<Double>();
+    private final List<Integer> m_layerNormalization = new ArrayList<Integer>();
+    private final List<double[]> m_bias = new ArrayList<double[]>();
+    private final List<double[]> m_neuronWidth = new ArrayList<double[]>();
+    private final List<double[]> m_neuronAltitude = new ArrayList<double[]>();
+    private final List<int[][]> m_from = new ArrayList<int[][]>();
+    private final List<double[][]> m_weight = new ArrayList<double[][]>();
+
+    // outputs: neuron ids and their norms
+    // saidas: ids dos neuronios e as suas normas
+    private int m_outputLists;
+    private final List<String> m_outputNeuron = new ArrayList<String>();
+    private final List<Norm> m_outputNorm = new ArrayList<Norm>();
+
+    NeuralBody() throws Exception {
+      String activation = attr("activationFunction"); //$NON-NLS-1$
+      if (activation.length() == 0) {
+        throw unsupported("activation function"); //$NON-NLS-1$
+      }
+      int index = indexOf(WekaScoringPMMLNeuralEngine.ACTIVATIONS, activation);
+      m_activation = (index < 0) ? WekaScoringPMMLNeuralEngine.ARCTAN : index;
+      m_normalization = Math.max(0, indexOf(
+          WekaScoringPMMLNeuralEngine.NORMALIZATIONS,
+          attr("normalizationMethod"))); //$NON-NLS-1$
+      m_threshold = number("threshold", 0.0); //$NON-NLS-1$
+      m_width = number("width", Double.NaN); //$NON-NLS-1$
+      m_altitude = number("altitude", 1.0); //$NON-NLS-1$
+    }
+
+    @Override
+    void child(String name) throws Exception {
+      if ("NeuralInputs".equals(name)) { //$NON-NLS-1$
+        while (nextChild()) {
+          if ("NeuralInput".equals(name())) { //$NON-NLS-1$
+            input();
+          } else {
+            skip();
+          }
+        }
+      } else if ("NeuralLayer".equals(name)) { //$NON-NLS-1$
+        layer();
+      } else if ("NeuralOutputs".equals(name)) { //$NON-NLS-1$
+        m_outputLists++;
+        while (nextChild()) {
+          if ("NeuralOutput".equals(name())) { //$NON-NLS-1$
+            m_outputNeuron.add(attr("outputNeuron")); //$NON-NLS-1$
+            List<Norm> norms = new ArrayList<Norm>();
+            norms(norms);
+            if (norms.size() != 1) {
+              throw unsupported("neural output"); //$NON-NLS-1$
+            }
+            m_outputNorm.add(norms.get(0));
+          } else {
+            skip();
+          }
+        }
+      } else {
+        skip();
+      }
+    }
+
+    private void input() throws Exception {
+      String id = attr("id"); //$NON-NLS-1$
+      if (m_inputIds.containsKey(id)) {
+        throw unsupported("input " + id); //$NON-NLS-1$
+      }
+      int kind = -1;
+      int field = 0;
+      double[] orig = null;
+      double[] norm = null;
+      int value = -1;
+      double missing = Double.NaN;
+      int outliers = 0;
+      double mapMissingTo = 0;
+      int derived = 0;
+      while (nextChild()) {
+        if (!"DerivedField".equals(name())) { //$NON-NLS-1$
+          skip();
+          continue;
+        }
+        derived++;
+        String optype = attr("optype"); //$NON-NLS-1$
+        if (!"continuous".equals(optype)) { //$NON-NLS-1$
+          throw unsupported("input optype " + optype); //$NON-NLS-1$
+        }
+        while (nextChild()) {
+          String name = name();
+          if (kind >= 0) {
+            skip();
+          } else if ("FieldRef".equals(name)) { //$NON-NLS-1$
+            field = fieldIndex(attr("field")); //$NON-NLS-1$
+            if (!m_schema.attribute(field).isNumeric()) {
+              throw unsupported("input field " + attr("field")); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            kind = WekaScoringPMMLNeuralEngine.FIELD_REF;
+            skip();
+          } else if ("NormContinuous".equals(name) //$NON-NLS-1$
+              || "NormDiscrete".equals(name)) { //$NON-NLS-1$
+            Norm n = norm();
+            field = fieldIndex(n.m_field);
+            Attribute att = m_schema.attribute(field);
+            missing = n.m_mapMissingTo;
+            if (n.m_continuous) {
+              if (!att.isNumeric()) {
+                throw unsupported("input field " + n.m_field); //$NON-NLS-1$
+              }
+              kind = WekaScoringPMMLNeuralEngine.NORM_CONTINUOUS;
+              orig = toDoubles(n.m_orig);
+              norm = toDoubles(n.m_norm);
+              outliers = n.m_outliers;
+              mapMissingTo = Double.isNaN(n.m_mapMissingTo) ? 0
+                  : n.m_mapMissingTo;
+            } else {
+              value = att.isNominal() ? att.indexOfValue(n.m_value) : -1;
+              if (value < 0) {
+                throw unsupported("input value " + n.m_value); //$NON-NLS-1$
+              }
+              kind = WekaScoringPMMLNeuralEngine.NORM_DISCRETE;
+            }
+          } else if ("Constant".equals(name) || "Apply".equals(name) //$NON-NLS-1$ //$NON-NLS-2$
+              || "Discretize".equals(name) || "MapValues".equals(name) //$NON-NLS-1$ //$NON-NLS-2$
+              || "Aggregate".equals(name)) { //$NON-NLS-1$
+            throw unsupported(name);
+          } else {
+            skip();
+          }
+        }
+      }
+      if (derived != 1 || kind < 0) {
+        throw unsupported("input " + id); //$NON-NLS-1$
+      }
+      m_inputIds.put(id, m_inputKind.size());
+      m_inputKind.add(kind);
+      m_inputField.add(field);
+      m_inputOrig.add(orig);
+      m_inputNorm.add(norm);
+      m_inputValue.add(value);
+      m_inputMissing.add(missing);
+      m_inputOutliers.add(outliers);
+      m_inputMapMissingTo.add(mapMissingTo);
+    }
+
+    private void layer() throws Exception {
+      int activation = m_activation;
+      String name = attr("activationFunction"); //$NON-NLS-1$
+      if (name.length() > 0) {
+        activation = indexOf(WekaScoringPMMLNeuralEngine.ACTIVATIONS, name);
+        if (activation < 0) {
+          throw unsupported("activation function " + name); //$NON-NLS-1$
+        }
+      }
+      int normalization = m_normalization;
+      name = attr("normalizationMethod"); //$NON-NLS-1$
+      if (name.length() > 0) {
+        normalization = indexOf(WekaScoringPMMLNeuralEngine.NORMALIZATIONS,
+            name);
+        if (normalization < 0) {
+          throw unsupported("normalization " + name); //$NON-NLS-1$
+        }
+      }
+      double threshold = number("threshold", m_threshold); //$NON-NLS-1$
+      double layerWidth = number("width", m_width); //$NON-NLS-1$
+      double layerAltitude = number("altitude", m_altitude); //$NON-NLS-1$
+
+      // connections resolve against the previous layer, or the inputs
+      // as conexoes sao resolvidas contra a camada anterior, ou as entradas
+      Map<String, Integer> previous = (m_previousIds == null) ? m_inputIds
+          : m_previousIds;
+      Map<String, Integer> ids = new HashMap<String, Integer>();
+      List<Double> bias = new ArrayList<Double>();
+      List<Double> width = new ArrayList<Double>();
+      List<Double> altitude = new ArrayList<Double>();
+      List<int[]> from = new ArrayList<int[]>();
+      List<double[]> weight = new ArrayList<double[]>();
+      while (nextChild()) {
+        if (!"Neuron".equals(name())) { //$NON-NLS-1$
+          skip();
+          continue;
+        }
+        String id = attr("id"); //$NON-NLS-1$
+        if (ids.containsKey(id)) {
+          throw unsupported("neuron " + id); //$NON-NLS-1$
+        }
+        ids.put(id, bias.size());
+        bias.add(number("bias", 0.0)); //$NON-NLS-1$
+        width.add(number("width", layerWidth)); //$NON-NLS-1$
+        altitude.add(number("altitude", layerAltitude)); //$NON-NLS-1$
+        List<Integer> f = new ArrayList<Integer>();
+        List<Double> w = new ArrayList<Double>();
+        while (nextChild()) {
+          if ("Con".equals(name())) { //$NON-NLS-1$
+            Integer source = previous.get(attr("from")); //$NON-NLS-1$
+            if (source == null) {
+              throw unsupported("connection " + attr("from")); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            f.add(source);
+            w.add(Double.parseDouble(attr("weight"))); //$NON-NLS-1$
+          }
+          skip();
+        }
+        from.add(toInts(f));
+        weight.add(toDoubles(w));
+      }
+      m_previousIds = ids;
+      m_layerActivation.add(activation);
+      m_layerThreshold.add(threshold);
+      m_layerNormalization.add(normalization);
+      m_bias.add(toDoubles(bias));
+      m_neuronWidth.add(toDoubles(width));
+      m_neuronAltitude.add(toDoubles(altitude));
+      m_from.add(from.toArray(new int[from.size()][]));
+      m_weight.add(weight.toArray(new double[weight.size()][]));
+    }
+
+    @Override
+    WekaScoringPMMLEngine engine() throws Exception {
+      Attribute classAtt = m_schema.classAttribute();
+      int width = classAtt.isNominal() ? classAtt.numValues() : 1;
+      if (m_previousIds == null || m_outputLists != 1
+          || m_outputNeuron.size() != width) {
+        throw unsupported("neural network structure"); //$NON-NLS-1$
+      }
+      int[] outputNeuron = new int[width];
+      int[] outputClass = new int[width];
+      for (int i = 0; i < width; i++) {
+        Integer neuron = m_previousIds.get(m_outputNeuron.get(i));
+        Norm norm = m_outputNorm.get(i);
+        if (neuron == null || norm.m_continuous == classAtt.isNominal()) {
+          throw unsupported("neural output"); //$NON-NLS-1$
+        }
+        outputNeuron[i] = neuron;
+        if (classAtt.isNominal()) {
+          outputClass[i] = classAtt.indexOfValue(norm.m_value);
+          if (outputClass[i] < 0) {
+            throw unsupported("output value " + norm.m_value); //$NON-NLS-1$
+          }
+        }
+      }
+      double[] outputOrig = null;
+      double[] outputNorm = null;
+      double outputMissing = Double.NaN;
+      int outputOutliers = 0;
+      double outputMapMissingTo = 0;
+      if (!classAtt.isNominal()) {
+        Norm norm = m_outputNorm.get(0);
+        outputOrig = toDoubles(norm.m_orig);
+        outputNorm = toDoubles(norm.m_norm);
+        outputMissing = norm.m_mapMissingTo;
+        outputOutliers = norm.m_outliers;
+        outputMapMissingTo = Double.isNaN(norm.m_mapMissingTo) ? 0
+            : norm.m_mapMissingTo;
+      }
+
+      int numInputs = m_inputKind.size();
+      int[] inputValue = new int[numInputs];
+      double[] inputMissing = new double[numInputs];
+      int[] inputOutliers = new int[numInputs];
+      double[] inputMapMissingTo = new double[numInputs];
+      for (int i = 0; i < numInputs; i++) {
+        inputValue[i] = m_inputValue.get(i);
+        inputMissing[i] = m_inputMissing.get(i);
+        inputOutliers[i] = m_inputOutliers.get(i);
+        inputMapMissingTo[i] = m_inputMapMissingTo.get(i);
+      }
+      int layers = m_bias.size();
+      return new WekaScoringPMMLNeuralEngine(m_schema, m_replacement,
+          m_clamp, m_low, m_high, toInts(m_inputKind), toInts(m_inputField),
+          m_inputOrig.toArray(new double[numInputs][]),
+          m_inputNorm.toArray(new double[numInputs][]), inputValue,
+          inputMissing, inputOutliers, inputMapMissingTo,
+          toInts(m_layerActivation), toDoubles(m_layerThreshold),
+          toInts(m_layerNormalization), m_bias.toArray(new double[layers][]),
+          m_neuronWidth.toArray(new double[layers][]),
+          m_neuronAltitude.toArray(new double[layers][]),
+          m_from.toArray(new int[layers][][]),
+          m_weight.toArray(new double[layers][][]), outputNeuron,
+          outputClass, outputOrig, outputNorm, outputMissing, outputOutliers,
+          outputMapMissingTo);
+    }
+  }
+
+  // ---------------------------------------------------------------------
+  // TreeModel
+
+  private class TreeBody extends ModelBody {
+
+    private final boolean m_classification;
+    private final int m_strategy;
+    private boolean m_rootRead;
+
+    // nodes, in the order they are numbered (root first)
+    // nos, na ordem em que sao numerados (raiz primeiro)
+    private final List<int[]> m_children = new ArrayList<int[]>();
+    private final List<Integer> m_predicate = new ArrayList<Integer>();
+    private final List<Integer> m_defaultChild = new ArrayList<Integer>();
+    private final List<double[]> m_leaf = new ArrayList<double[]>();
+
+    // predicates
+    // predicados
+    private final List<Integer> m_kind = new ArrayList<Integer>();
+    private final List<Integer> m_field = new ArrayList<Integer>();
+    private final List<Integer> m_operator = new ArrayList<Integer>();
+    private final List<Double> m_value = new ArrayList<Double>();
+    private final List<Object> m_set = new ArrayList<Object>();
+    private final List<int[]> m_components = new ArrayList<int[]>();
+
+    TreeBody(String functionName, String strategy) throws Exception {
+      m_classification = !"regression".equals(functionName); //$NON-NLS-1$
+      if (strategy.length() == 0 || "none".equals(strategy)) { //$NON-NLS-1$
+        m_strategy = WekaScoringPMMLTreeEngine.NONE;
+      } else if ("lastPrediction".equals(strategy)) { //$NON-NLS-1$
+        m_strategy = WekaScoringPMMLTreeEngine.LAST_PREDICTION;
+      } else if ("defaultChild".equals(strategy)) { //$NON-NLS-1$
+        m_strategy = WekaScoringPMMLTreeEngine.DEFAULT_CHILD;
+      } else if ("nullPrediction".equals(strategy) //$NON-NLS-1$
+          || "weightedConfidence".equals(strategy) //$NON-NLS-1$
+          || "aggregateNodes".equals(strategy)) { //$NON-NLS-1$
+        throw unsupported("missing value strategy " + strategy); //$NON-NLS-1$
+      } else {
+        m_strategy = WekaScoringPMMLTreeEngine.NONE;
+      }
+    }
+
+    @Override
+    void child(String name) throws Exception {
+      if (!"Node".equals(name)) { //$NON-NLS-1$
+        skip();
+        return;
+      }
+      if (m_rootRead) {
+        throw unsupported("second root node"); //$NON-NLS-1$
+      }
+      m_rootRead = true;
+      node();
+    }
+
+    /**
+     * Read a Node element (the current one) and its subtree, returning its
+     * number.
+     *
+     * Le um elemento Node (o atual) e a sua subarvore, retornando o seu
+     * numero.
+     */
+    private int node() throws Exception {
+      int node = m_children.size();
+      m_children.add(null);
+      m_predicate.add(-1);
+      m_defaultChild.add(-1);
+      m_leaf.add(null);
+
+      Attribute classAtt = m_schema.classAttribute();
+      String score = attr("score"); //$NON-NLS-1$
+      double scoreValue = Double.NaN;
+      int scoreIndex = -1;
+      if (score.length() > 0) {
+        if (classAtt.isNumeric()) {
+          scoreValue = Double.parseDouble(score);
+        } else {
+          scoreIndex = classAtt.indexOfValue(score);
+          if (scoreIndex < 0) {
+            throw unsupported("score " + score); //$NON-NLS-1$
+          }
+        }
+      }
+      double recordCount = number("recordCount", Double.NaN); //$NON-NLS-1$
+      String defaultChild = attr("defaultChild"); //$NON-NLS-1$
+
+      List<Integer> children = new ArrayList<Integer>();
+      List<String> childIds = new ArrayList<String>();
+      List<Integer> distValue = new ArrayList<Integer>();
+      List<Double> distCount = new ArrayList<Double>();
+      List<Double> distConfidence = new ArrayList<Double>();
+      boolean predicate = false;
+      while (nextChild()) {
+        String name = name();
+        if ("Node".equals(name)) { //$NON-NLS-1$
+          childIds.add(attr("id")); //$NON-NLS-1$
+          children.add(node());
+        } else if ("ScoreDistribution".equals(name) && m_classification) { //$NON-NLS-1$
+          int value = classAtt.isNominal() ? classAtt
+              .indexOfValue(attr("value")) : -1; //$NON-NLS-1$
+          if (value < 0) {
+            throw unsupported("score distribution " + attr("value")); //$NON-NLS-1$ //$NON-NLS-2$
+          }
+          distValue.add(value);
+          distCount.add(Double.parseDouble(attr("recordCount"))); //$NON-NLS-1$
+          distConfidence.add(number("confidence", Double.NaN)); //$NON-NLS-1$
+          skip();
+        } else if (!predicate && isPredicate(name)) {
+          predicate = true;
+          m_predicate.set(node, predicate(name));
+        } else {
+          skip();
+        }
+      }
+      if (!predicate) {
+        throw unsupported("node without predicate"); //$NON-NLS-1$
+      }
+
+      int[] childArray = toInts(children);
+      m_children.set(node, childArray);
+      if (defaultChild.length() > 0) {
+        int index = childIds.indexOf(defaultChild);
+        if (index >= 0) {
+          m_defaultChild.set(node, childArray[index]);
+        }
+      }
+
+      // the distribution of TreeNode.doLeaf()
+      // a distribuicao de TreeNode.doLeaf()
+      double[] leaf = null;
+      if (classAtt.isNumeric()) {
+        leaf = new double[] { scoreValue };
+      } else if (distValue.size() > 0) {
+        double base = recordCount;
+        if (Double.isNaN(base)) {
+          base = 0;
+          for (double count : distCount) {
+            base += count;
+          }
+        }
+        leaf = new double[classAtt.numValues()];
+        for (int i = 0; i < distValue.size(); i++) {
+          double confidence = distConfidence.get(i);
+          if (Double.isNaN(confidence) && base > 0) {
+            confidence = distCount.get(i) / base;
+          }
+          leaf[distValue.get(i)] = confidence;
+        }
+      } else if (scoreIndex >= 0) {
+        leaf = new double[classAtt.numValues()];
+        leaf[scoreIndex] = 1.0;
+      }
+      m_leaf.set(node, leaf);
+      return node;
+    }
+
+    private boolean isPredicate(String name) {
+      return "True".equals(name) || "False".equals(name) //$NON-NLS-1$ //$NON-NLS-2$
+          || "SimplePredicate".equals(name) || "CompoundPredicate".equals(name) //$NON-NLS-1$ //$NON-NLS-2$
+          || "SimpleSetPredicate".equals(name); //$NON-NLS-1$
+    }
+
+    private int addPredicate(int kind, int field, int operator, double value,
+        Object set, int[] components) {
+      m_kind.add(kind);
+      m_field.add(field);
+      m_operator.add(operator);
+      m_value.add(value);
+      m_set.add(set);
+      m_components.add(components);
+      return m_kind.size() - 1;
+    }
+
+    /**
+     * Read a predicate element (the current one), returning its number.
+     *
+     * Le um elemento de predicado (o atual), retornando o seu numero.
+     */
+    private int predicate(String name) throws Exception {
+      if ("True".equals(name) || "False".equals(name)) { //$NON-NLS-1$ //$NON-NLS-2$
+        skip();
+        return addPredicate("True".equals(name) ? WekaScoringPMMLTreeEngine.TRUE //$NON-NLS-1$
+            : WekaScoringPMMLTreeEngine.FALSE, 0, 0, 0, null, null);
+      }
+      if ("SimplePredicate".equals(name)) { //$NON-NLS-1$
+        int field = fieldIndex(attr("field")); //$NON-NLS-1$
+        Attribute att = m_schema.attribute(field);
+        int operator = indexOf(WekaScoringPMMLTreeEngine.OPERATORS,
+            attr("operator")); //$NON-NLS-1$
+        if (operator < 0) {
+          throw unsupported("operator " + attr("operator")); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        double value = 0;
+        if (operator != WekaScoringPMMLTreeEngine.IS_MISSING
+            && operator != WekaScoringPMMLTreeEngine.IS_NOT_MISSING) {
+          String text = attr("value"); //$NON-NLS-1$
+          if (att.isNumeric()) {
+            value = Double.parseDouble(text);
+          } else {
+            value = att.indexOfValue(text);
+            if (value < 0) {
+              throw unsupported("predicate value " + text); //$NON-NLS-1$
+            }
+          }
+        }
+        skip();
+        return addPredicate(WekaScoringPMMLTreeEngine.SIMPLE, field, operator,
+            value, null, null);
+      }
+      if ("CompoundPredicate".equals(name)) { //$NON-NLS-1$
+        String operator = attr("booleanOperator"); //$NON-NLS-1$
+        int kind;
+        if ("and".equals(operator)) { //$NON-NLS-1$
+          kind = WekaScoringPMMLTreeEngine.AND;
+        } else if ("or".equals(operator)) { //$NON-NLS-1$
+          kind = WekaScoringPMMLTreeEngine.OR;
+        } else if ("xor".equals(operator)) { //$NON-NLS-1$
+          kind = WekaScoringPMMLTreeEngine.XOR;
+        } else {
+          throw unsupported("boolean operator " + operator); //$NON-NLS-1$
+        }
+        List<Integer> components = new ArrayList<Integer>();
+        while (nextChild()) {
+          String child = name();
+          if (!isPredicate(child)) {
+            throw unsupported(child);
+          }
+          components.add(predicate(child));
+        }
+        if (kind == WekaScoringPMMLTreeEngine.XOR && components.size() == 0) {
+          throw unsupported("empty xor"); //$NON-NLS-1$
+        }
+        return addPredicate(kind, 0, 0, 0, null, toInts(components));
+      }
+      return setPredicate();
+    }
+
+    private int setPredicate() throws Exception {
+      int field = fieldIndex(attr("field")); //$NON-NLS-1$
+      Attribute att = m_schema.attribute(field);
+      if ("isNotIn".equals(attr("booleanOperator"))) { //$NON-NLS-1$ //$NON-NLS-2$
+        throw unsupported("isNotIn"); //$NON-NLS-1$
+      }
+      String type = null;
+      String text = null;
+      while (nextChild()) {
+        String name = name();
+        if (type != null) {
+          skip();
+        } else if ("Array".equals(name)) { //$NON-NLS-1$
+          String t = attr("type"); //$NON-NLS-1$
+          type = "int".equals(t) ? "INT" : "real".equals(t) ? "REAL" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+              : "string".equals(t) ? "STRING" : "NUM"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          text = m_reader.getElementText();
+        } else if ("NUM-ARRAY".equals(name) || "INT-ARRAY".equals(name) //$NON-NLS-1$ //$NON-NLS-2$
+            || "REAL-ARRAY".equals(name) || "STRING-ARRAY".equals(name)) { //$NON-NLS-1$ //$NON-NLS-2$
+          type = name.substring(0, name.indexOf('-'));
+          text = m_reader.getElementText();
+        } else if ("INT-SparseArray".equals(name) //$NON-NLS-1$
+            || "REAL-SparseArray".equals(name)) { //$NON-NLS-1$
+          throw unsupported(name);
+        } else {
+          skip();
+        }
+      }
+      if (type == null || text.length() == 0) {
+        throw unsupported("set predicate array"); //$NON-NLS-1$
+      }
+      boolean string = "STRING".equals(type); //$NON-NLS-1$
+      if (string != att.isNominal()) {
+        throw unsupported("set predicate type"); //$NON-NLS-1$
+      }
+
+      // tokenized as weka.core.pmml.Array does it
+      // separado em elementos como weka.core.pmml.Array o faz
+      List<String> tokens = new ArrayList<String>();
+      StreamTokenizer tokenizer = new StreamTokenizer(new StringReader(text));
+      tokenizer.resetSyntax();
+      tokenizer.whitespaceChars(0, ' ');
+      tokenizer.wordChars(' ' + 1, 255);
+      tokenizer.quoteChar('"');
+      tokenizer.quoteChar('\'');
+      while (tokenizer.nextToken() != StreamTokenizer.TT_EOF) {
+        tokens.add(tokenizer.sval);
+      }
+
+      if (string) {
+        boolean[] set = new boolean[att.numValues()];
+        for (int i = 0; i < set.length; i++) {
+          set[i] = tokens.contains(att.value(i));
+        }
+        return addPredicate(WekaScoringPMMLTreeEngine.SET_NOMINAL, field, 0, 0,
+            set, null);
+      }
+      if ("INT".equals(type)) { //$NON-NLS-1$
+        List<Integer> values = new ArrayList<Integer>();
+        for (String token : tokens) {
+          try {
+            int v = Integer.parseInt(token);
+            if (Integer.toString(v).equals(token)) {
+              values.add(v);
+            }
+          } catch (NumberFormatException ex) {
+            // never matches
+            // nunca coincide
+          }
+        }
+        int[] set = toInts(values);
+        Arrays.sort(set);
+        return addPredicate(WekaScoringPMMLTreeEngine.SET_INT, field, 0, 0,
+            set, null);
+      }
+      List<Double> values = new ArrayList<Double>();
+      for (String token : tokens) {
+        try {
+          double v = Double.parseDouble(token);
+          if (Double.toString(v).equals(token)) {
+            values.add(v);
+          }
+        } catch (NumberFormatException ex) {
+          // never matches
+          // nunca coincide
+        }
+      }
+      double[] set = toDoubles(values);
+      Arrays.sort(set);
+      return addPredicate(WekaScoringPMMLTreeEngine.SET_REAL, field, 0, 0, set,
+          null);
+    }
+
+    @Override
+    WekaScoringPMMLEngine engine() throws Exception {
+      if (!m_rootRead) {
+        throw unsupported("no root node"); //$NON-NLS-1$
+      }
+      int nodes = m_children.size();
+      int predicates = m_kind.size();
+      double[] value = new double[predicates];
+      for (int i = 0; i < predicates; i++) {
+        value[i] = m_value.get(i);
+      }
+      return new WekaScoringPMMLTreeEngine(m_schema, m_replacement, m_clamp,
+          m_low, m_high, m_strategy, m_children.toArray(new int[nodes][]),
+          toInts(m_predicate), toInts(m_defaultChild),
+          m_leaf.toArray(new double[nodes][]), toInts(m_kind),
+          toInts(m_field), toInts(m_operator), value, m_set.toArray(),
+          m_components.toArray(new int[predicates][]));
+    }
+  }
+}
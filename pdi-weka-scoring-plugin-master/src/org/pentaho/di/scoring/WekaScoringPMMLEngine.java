@@ -0,0 +1,177 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.io.Serializable;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Base class for the engines compiled from PMML documents. It holds the
+ * mining schema stage that Weka's PMML consumers apply to every row (missing
+ * value replacement and clamping of outliers) as flat arrays, and leaves the
+ * model itself to the subclasses. Unlike the other engines, a PMML engine is
+ * the model: it is serialized along with the WekaScoringPMMLClassifier that
+ * wraps it.
+ *
+ * PT-BR
+ *
+ * Classe base para os motores compilados a partir de documentos PMML. Guarda
+ * a etapa do esquema de mineracao que os consumidores PMML do Weka aplicam a
+ * cada linha (substituicao de valores ausentes e limitacao de valores
+ * extremos) em matrizes planas, e deixa o modelo em si para as subclasses. Ao
+ * contrario dos outros motores, um motor PMML e o modelo: ele e serializado
+ * junto com o WekaScoringPMMLClassifier que o envolve.
+ */
+abstract class WekaScoringPMMLEngine extends WekaScoringEngine implements
+    Serializable {
+
+  /** for serialization */
+  private static final long serialVersionUID = -2867329175843391702L;
+
+  /** index of the predicted field in the mining schema
+   *  indice do campo previsto no esquema de mineracao
+   */
+  protected final int m_classIndex;
+
+  /** true if the predicted field is nominal
+   *  verdadeiro se o campo previsto e nominal
+   */
+  protected final boolean m_nominalClass;
+
+  /** length of a prediction (number of class values, or 1)
+   *  tamanho de uma previsao (numero de valores da classe, ou 1)
+   */
+  protected final int m_width;
+
+  // per field: replacement for a missing value (or NaN for none), and the
+  // bounds that outliers are clamped to (if m_clamp is set)
+  // por campo: substituto para um valor ausente (ou NaN para nenhum), e os
+  // limites aos quais os valores extremos sao ajustados (se m_clamp estiver
+  // definido)
+  private final double[] m_replacement;
+  private final boolean[] m_clamp;
+  private final double[] m_low;
+  private final double[] m_high;
+
+  protected WekaScoringPMMLEngine(Instances miningSchema,
+      double[] replacement, boolean[] clamp, double[] low, double[] high) {
+    m_classIndex = miningSchema.classIndex();
+    m_nominalClass = miningSchema.classAttribute().isNominal();
+    m_width = m_nominalClass ? miningSchema.classAttribute().numValues() : 1;
+    m_replacement = replacement;
+    m_clamp = clamp;
+    m_low = low;
+    m_high = high;
+  }
+
+  /**
+   * Return the engine of a model compiled from PMML, or null for any other
+   * model.
+   *
+   * PT-BR
+   *
+   * Retorna o motor de um modelo compilado a partir de PMML, ou null para
+   * qualquer outro modelo.
+   *
+   * @param model the model
+   *              o modelo
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the engine or null
+   *         o motor ou null
+   */
+  static WekaScoringPMMLEngine compile(Object model, Instances header) {
+    if (!(model instanceof WekaScoringPMMLClassifier)) {
+      return null;
+    }
+    return ((WekaScoringPMMLClassifier) model).getEngine();
+  }
+
+  /**
+   * The values of the fields of the mining schema for a row, after the
+   * missing value and outlier treatments of the schema, as
+   * MappingInfo.instanceToSchema() computes them.
+   *
+   * PT-BR
+   *
+   * Os valores dos campos do esquema de mineracao para uma linha, apos os
+   * tratamentos de valores ausentes e extremos do esquema, como
+   * MappingInfo.instanceToSchema() os calcula.
+   *
+   * @param inst the row, with the mining schema as its header
+   *             a linha, com o esquema de mineracao como cabecalho
+   * @return the values of the fields
+   *         os valores dos campos
+   */
+  protected double[] fields(Instance inst) {
+    double[] x = new double[m_replacement.length];
+    for (int i = 0; i < x.length; i++) {
+      double value = inst.value(i);
+      if (value != value) {
+        value = m_replacement[i];
+      }
+      if (m_clamp[i]) {
+        if (value < m_low[i]) {
+          value = m_low[i];
+        } else if (value > m_high[i]) {
+          value = m_high[i];
+        }
+      }
+      x[i] = value;
+    }
+    return x;
+  }
+
+  /**
+   * True if a field other than the predicted one is missing, in which case
+   * the regression and neural network consumers make no prediction.
+   *
+   * PT-BR
+   *
+   * Verdadeiro se um campo diferente do previsto esta ausente, caso em que os
+   * consumidores de regressao e de rede neural nao fazem previsao.
+   */
+  protected boolean hasMissing(double[] x) {
+    for (int i = 0; i < x.length; i++) {
+      if (i != m_classIndex && x[i] != x[i]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The "no prediction" of the consumers: zero probabilities for a nominal
+   * class, a missing value for a numeric one.
+   *
+   * PT-BR
+   *
+   * A "nao previsao" dos consumidores: probabilidades zero para uma classe
+   * nominal, um valor ausente para uma numerica.
+   */
+  protected double[] noPrediction() {
+    double[] preds = new double[m_width];
+    if (!m_nominalClass) {
+      preds[0] = Double.NaN;
+    }
+    return preds;
+  }
+}
@@ -0,0 +1,269 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.matrix.Maths;
+
+/**
+ * Engine for a PMML GeneralRegressionModel. The predictor-to-parameter
+ * matrix is held per parameter as the fields it uses (in the order of the
+ * mining schema, as weka.classifiers.pmml.consumer.GeneralRegression walks
+ * it), and the parameter matrix as a dense array of coefficients, so a row
+ * is scored with two small loops and the model's link function.
+ *
+ * PT-BR
+ *
+ * Motor para um GeneralRegressionModel PMML. A matriz de preditores para
+ * parametros e guardada por parametro como os campos que ele usa (na ordem do
+ * esquema de mineracao, como weka.classifiers.pmml.consumer.GeneralRegression
+ * a percorre), e a matriz de parametros como uma matriz densa de
+ * coeficientes, de modo que uma linha e pontuada com dois lacos pequenos e a
+ * funcao de ligacao do modelo.
+ */
+class WekaScoringPMMLGeneralRegressionEngine extends WekaScoringPMMLEngine {
+
+  /** for serialization */
+  private static final long serialVersionUID = -6107617683000462358L;
+
+  /** model types, in the order of GeneralRegression.ModelType
+   *  tipos de modelo, na ordem de GeneralRegression.ModelType
+   */
+  static final String[] MODEL_TYPES = { "regression", "generalLinear", //$NON-NLS-1$ //$NON-NLS-2$
+      "multinomialLogistic", "ordinalMultinomial", "generalizedLinear" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+  /** link functions of the generalized linear models
+   *  funcoes de ligacao dos modelos lineares generalizados
+   */
+  static final String[] LINKS = { "cloglog", "identity", "log", "logc", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+      "logit", "loglog", "negbin", "oddspower", "power", "probit" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+
+  /** cumulative link functions of the ordinal multinomial models
+   *  funcoes de ligacao cumulativas dos modelos multinomiais ordinais
+   */
+  static final String[] CUMULATIVE_LINKS = { "logit", "probit", "cloglog", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      "loglog", "cauchit" }; //$NON-NLS-1$ //$NON-NLS-2$
+
+  static final int REGRESSION = 0;
+  static final int GENERAL_LINEAR = 1;
+  static final int MULTINOMIAL_LOGISTIC = 2;
+  static final int ORDINAL_MULTINOMIAL = 3;
+  static final int GENERALIZED_LINEAR = 4;
+
+  private static final int CLOGLOG = 0;
+  private static final int IDENTITY = 1;
+  private static final int LOG = 2;
+  private static final int LOGC = 3;
+  private static final int LOGIT = 4;
+  private static final int LOGLOG = 5;
+  static final int NEGBIN = 6;
+  static final int ODDSPOWER = 7;
+  static final int POWER = 8;
+
+  private final int m_modelType;
+
+  // per parameter: the fields of its row of the predictor-to-parameter
+  // matrix, whether each is a factor, and the factor value or exponent
+  // por parametro: os campos da sua linha da matriz de preditores para
+  // parametros, se cada um e um fator, e o valor do fator ou o expoente
+  private final int[][] m_field;
+  private final boolean[][] m_factor;
+  private final double[][] m_value;
+
+  /** coefficients, one row per prediction
+   *  coeficientes, uma linha por previsao
+   */
+  private final double[][] m_beta;
+
+  // link (or cumulative link) function and its inputs; a field index of -1
+  // means the constant value is used
+  // funcao de ligacao (ou de ligacao cumulativa) e suas entradas; um indice
+  // de campo -1 significa que o valor constante e usado
+  private final int m_link;
+  private final int m_offsetField;
+  private final double m_offsetValue;
+  private final int m_trialsField;
+  private final double m_trialsValue;
+  private final double m_distParameter;
+  private final double m_linkParameter;
+
+  WekaScoringPMMLGeneralRegressionEngine(Instances miningSchema,
+      double[] replacement, boolean[] clamp, double[] low, double[] high,
+      int modelType, int[][] field, boolean[][] factor, double[][] value,
+      double[][] beta, int link, int offsetField, double offsetValue,
+      int trialsField, double trialsValue, double distParameter,
+      double linkParameter) {
+    super(miningSchema, replacement, clamp, low, high);
+    m_modelType = modelType;
+    m_field = field;
+    m_factor = factor;
+    m_value = value;
+    m_beta = beta;
+    m_link = link;
+    m_offsetField = offsetField;
+    m_offsetValue = offsetValue;
+    m_trialsField = trialsField;
+    m_trialsValue = trialsValue;
+    m_distParameter = distParameter;
+    m_linkParameter = linkParameter;
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    double[] x = fields(inst);
+    if (hasMissing(x)) {
+      return noPrediction();
+    }
+
+    // the parameter vector of the row
+    // o vetor de parametros da linha
+    double[] pv = new double[m_field.length];
+    for (int i = 0; i < pv.length; i++) {
+      double p = 1.0;
+      int[] field = m_field[i];
+      for (int k = 0; k < field.length; k++) {
+        if (m_factor[i][k]) {
+          p *= ((int) x[field[k]] == (int) m_value[i][k]) ? 1.0 : 0.0;
+        } else {
+          p *= Math.pow(x[field[k]], m_value[i][k]);
+        }
+      }
+      pv[i] = p;
+    }
+
+    double[] responses = new double[m_width];
+    for (int c = 0; c < responses.length; c++) {
+      double[] beta = m_beta[c];
+      for (int j = 0; j < pv.length; j++) {
+        responses[c] += pv[j] * beta[j];
+      }
+    }
+
+    switch (m_modelType) {
+    case MULTINOMIAL_LOGISTIC:
+      multinomialLogistic(responses);
+      break;
+    case GENERAL_LINEAR:
+    case GENERALIZED_LINEAR:
+      generalizedLinear(x, responses);
+      break;
+    case ORDINAL_MULTINOMIAL:
+      ordinalMultinomial(x, responses);
+      break;
+    default:
+      break;
+    }
+    return responses;
+  }
+
+  private static void multinomialLogistic(double[] responses) {
+    double[] r = responses.clone();
+    for (int j = 0; j < r.length; j++) {
+      double sum = 0;
+      boolean overflow = false;
+      for (int k = 0; k < r.length; k++) {
+        if (r[k] - r[j] > 700) {
+          overflow = true;
+          break;
+        }
+        sum += Math.exp(r[k] - r[j]);
+      }
+      responses[j] = overflow ? 0 : 1.0 / sum;
+    }
+  }
+
+  private double offset(double[] x) {
+    return (m_offsetField >= 0) ? x[m_offsetField] : m_offsetValue;
+  }
+
+  private void generalizedLinear(double[] x, double[] responses) {
+    double offset = offset(x);
+    double trials = (m_trialsField >= 0) ? x[m_trialsField] : m_trialsValue;
+    double linkParam = m_linkParameter;
+    for (int i = 0; i < responses.length; i++) {
+      double v = responses[i] + offset;
+      double result;
+      switch (m_link) {
+      case CLOGLOG:
+        result = 1.0 - Math.exp(-Math.exp(v));
+        break;
+      case IDENTITY:
+        result = v;
+        break;
+      case LOG:
+        result = Math.exp(v);
+        break;
+      case LOGC:
+        result = 1.0 - Math.exp(v);
+        break;
+      case LOGIT:
+        result = 1.0 / (1.0 + Math.exp(-v));
+        break;
+      case LOGLOG:
+        result = Math.exp(-Math.exp(-v));
+        break;
+      case NEGBIN:
+        result = 1.0 / (m_distParameter * (Math.exp(-v) - 1.0));
+        break;
+      case ODDSPOWER:
+        result = (linkParam < 0 || linkParam > 0) ? 1.0 / (1.0 + Math.pow(
+            1.0 + linkParam * v, -1.0 / linkParam)) : 1.0 / (1.0 + Math
+            .exp(-v));
+        break;
+      case POWER:
+        result = (linkParam < 0 || linkParam > 0) ? Math.pow(v,
+            1.0 / linkParam) : Math.exp(v);
+        break;
+      default:
+        result = Maths.pnorm(v);
+      }
+      responses[i] = result * trials;
+    }
+  }
+
+  private void ordinalMultinomial(double[] x, double[] responses) {
+    double offset = offset(x);
+    for (int i = 0; i < responses.length; i++) {
+      if (i > 0 && i == responses.length - 1) {
+        responses[i] = 1.0 - responses[i - 1];
+        continue;
+      }
+      double v = responses[i] + offset;
+      double f;
+      switch (m_link) {
+      case 0:
+        f = 1.0 / (1.0 + Math.exp(-v));
+        break;
+      case 1:
+        f = Maths.pnorm(v);
+        break;
+      case 2:
+        f = 1.0 - Math.exp(-Math.exp(v));
+        break;
+      case 3:
+        f = Math.exp(-Math.exp(-v));
+        break;
+      default:
+        f = 0.5 + 0.3183098861837907 * Math.atan(v);
+      }
+      responses[i] = (i == 0) ? f : f - responses[i - 1];
+    }
+  }
+}
@@ -0,0 +1,321 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Engine for a PMML NeuralNetwork. The connections of every neuron are
+ * resolved at compile time from neuron ids to indexes into the outputs of
+ * the previous layer, so a row flows through the network as plain arrays
+ * instead of the maps of ids that weka.classifiers.pmml.consumer.NeuralNetwork
+ * fills for each layer.
+ *
+ * PT-BR
+ *
+ * Motor para uma NeuralNetwork PMML. As conexoes de cada neuronio sao
+ * resolvidas em tempo de compilacao de ids de neuronios para indices nas
+ * saidas da camada anterior, de modo que uma linha percorre a rede como
+ * matrizes simples em vez dos mapas de ids que
+ * weka.classifiers.pmml.consumer.NeuralNetwork preenche para cada camada.
+ */
+class WekaScoringPMMLNeuralEngine extends WekaScoringPMMLEngine {
+
+  /** for serialization */
+  private static final long serialVersionUID = 2211784905963318514L;
+
+  /** activation functions, in the order of NeuralNetwork.ActivationFunction
+   *  funcoes de ativacao, na ordem de NeuralNetwork.ActivationFunction
+   */
+  static final String[] ACTIVATIONS = { "threshold", "logistic", "tanh", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      "identity", "exponential", "reciprocal", "square", "gauss", "sine", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+      "cosine", "ellicot", "arctan", "radialBasis" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+  /** layer normalizations, in the order of NeuralNetwork.Normalization
+   *  normalizacoes de camada, na ordem de NeuralNetwork.Normalization
+   */
+  static final String[] NORMALIZATIONS = { "none", "simplemax", "softmax" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+  /** kinds of input
+   *  tipos de entrada
+   */
+  static final int FIELD_REF = 0;
+  static final int NORM_CONTINUOUS = 1;
+  static final int NORM_DISCRETE = 2;
+
+  /** outlier treatments of NormContinuous
+   *  tratamentos de valores extremos do NormContinuous
+   */
+  static final int AS_IS = 0;
+  static final int AS_MISSING_VALUES = 1;
+  static final int AS_EXTREME_VALUES = 2;
+
+  static final int ARCTAN = 11;
+  static final int RADIAL_BASIS = 12;
+
+  private static final int SIMPLEMAX = 1;
+  private static final int SOFTMAX = 2;
+
+  // per input: kind, field, the linear norm for NormContinuous or the value
+  // index for NormDiscrete, and the missing value and outlier handling
+  // por entrada: tipo, campo, a norma linear para NormContinuous ou o indice
+  // do valor para NormDiscrete, e o tratamento de valores ausentes e extremos
+  private final int[] m_inputKind;
+  private final int[] m_inputField;
+  private final double[][] m_inputOrig;
+  private final double[][] m_inputNorm;
+  private final int[] m_inputValue;
+  private final double[] m_inputMissing;
+  private final int[] m_inputOutliers;
+  private final double[] m_inputMapMissingTo;
+
+  // per layer: activation, threshold and normalization; per neuron: bias,
+  // width, altitude, and its connections to the previous layer
+  // por camada: ativacao, limiar e normalizacao; por neuronio: vies,
+  // largura, altitude, e as suas conexoes com a camada anterior
+  private final int[] m_activation;
+  private final double[] m_threshold;
+  private final int[] m_normalization;
+  private final double[][] m_bias;
+  private final double[][] m_neuronWidth;
+  private final double[][] m_altitude;
+  private final int[][][] m_from;
+  private final double[][][] m_weight;
+
+  // outputs: the neuron of the last layer and the class value for each
+  // (nominal class), or the inverse linear norm (numeric class)
+  // saidas: o neuronio da ultima camada e o valor da classe de cada uma
+  // (classe nominal), ou a norma linear inversa (classe numerica)
+  private final int[] m_outputNeuron;
+  private final int[] m_outputClass;
+  private final double[] m_outputOrig;
+  private final double[] m_outputNorm;
+  private final double m_outputMissing;
+  private final int m_outputOutliers;
+  private final double m_outputMapMissingTo;
+
+  WekaScoringPMMLNeuralEngine(Instances miningSchema, double[] replacement,
+      boolean[] clamp, double[] low, double[] high, int[] inputKind,
+      int[] inputField, double[][] inputOrig, double[][] inputNorm,
+      int[] inputValue, double[] inputMissing, int[] inputOutliers,
+      double[] inputMapMissingTo, int[] activation, double[] threshold,
+      int[] normalization, double[][] bias, double[][] width,
+      double[][] altitude, int[][][] from, double[][][] weight,
+      int[] outputNeuron, int[] outputClass, double[] outputOrig,
+      double[] outputNorm, double outputMissing, int outputOutliers,
+      double outputMapMissingTo) {
+    super(miningSchema, replacement, clamp, low, high);
+    m_inputKind = inputKind;
+    m_inputField = inputField;
+    m_inputOrig = inputOrig;
+    m_inputNorm = inputNorm;
+    m_inputValue = inputValue;
+    m_inputMissing = inputMissing;
+    m_inputOutliers = inputOutliers;
+    m_inputMapMissingTo = inputMapMissingTo;
+    m_activation = activation;
+    m_threshold = threshold;
+    m_normalization = normalization;
+    m_bias = bias;
+    m_neuronWidth = width;
+    m_altitude = altitude;
+    m_from = from;
+    m_weight = weight;
+    m_outputNeuron = outputNeuron;
+    m_outputClass = outputClass;
+    m_outputOrig = outputOrig;
+    m_outputNorm = outputNorm;
+    m_outputMissing = outputMissing;
+    m_outputOutliers = outputOutliers;
+    m_outputMapMissingTo = outputMapMissingTo;
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    double[] x = fields(inst);
+    if (hasMissing(x)) {
+      return noPrediction();
+    }
+
+    double[] in = new double[m_inputKind.length];
+    for (int i = 0; i < in.length; i++) {
+      double value = x[m_inputField[i]];
+      switch (m_inputKind[i]) {
+      case NORM_CONTINUOUS:
+        in[i] = norm(m_inputOrig[i], m_inputNorm[i], value, m_inputMissing[i],
+            m_inputOutliers[i], m_inputMapMissingTo[i]);
+        break;
+      case NORM_DISCRETE:
+        if (Utils.isMissingValue(value)) {
+          in[i] = m_inputMissing[i];
+        } else {
+          in[i] = (m_inputValue[i] == (int) value) ? 1.0 : 0.0;
+        }
+        break;
+      default:
+        in[i] = value;
+      }
+    }
+
+    for (int l = 0; l < m_activation.length; l++) {
+      in = layer(l, in);
+    }
+
+    double[] preds = new double[m_width];
+    if (!m_nominalClass) {
+      preds[0] = norm(m_outputNorm, m_outputOrig, in[m_outputNeuron[0]],
+          m_outputMissing, m_outputOutliers, m_outputMapMissingTo);
+      return preds;
+    }
+    for (int i = 0; i < m_outputNeuron.length; i++) {
+      preds[m_outputClass[i]] = in[m_outputNeuron[i]];
+    }
+    double min = preds[Utils.minIndex(preds)];
+    if (min < 0) {
+      for (int i = 0; i < preds.length; i++) {
+        preds[i] -= min;
+      }
+    }
+    Utils.normalize(preds);
+    return preds;
+  }
+
+  /**
+   * The outputs of a layer, as NeuralLayer.computeOutput() computes them.
+   *
+   * PT-BR
+   *
+   * As saidas de uma camada, como NeuralLayer.computeOutput() as calcula.
+   */
+  private double[] layer(int l, double[] in) {
+    int activation = m_activation[l];
+    double[] bias = m_bias[l];
+    double[] out = new double[bias.length];
+    double normSum = 0;
+    for (int n = 0; n < out.length; n++) {
+      int[] from = m_from[l][n];
+      double[] weight = m_weight[l][n];
+      double z = bias[n];
+      if (activation != RADIAL_BASIS) {
+        for (int c = 0; c < from.length; c++) {
+          z += in[from[c]] * weight[c];
+        }
+      } else {
+        for (int c = 0; c < from.length; c++) {
+          z += Math.pow(in[from[c]] - weight[c], 2.0);
+        }
+        double width = m_neuronWidth[l][n];
+        z /= 2.0 * (width * width);
+      }
+      out[n] = activate(activation, z, m_threshold[l], m_altitude[l][n],
+          from.length);
+      if (m_normalization[l] == SOFTMAX) {
+        normSum += Math.exp(out[n]);
+      } else if (m_normalization[l] == SIMPLEMAX) {
+        normSum += out[n];
+      }
+    }
+    if (m_normalization[l] == SOFTMAX) {
+      for (int n = 0; n < out.length; n++) {
+        out[n] = Math.exp(out[n]) / normSum;
+      }
+    } else if (m_normalization[l] == SIMPLEMAX) {
+      for (int n = 0; n < out.length; n++) {
+        out[n] /= normSum;
+      }
+    }
+    return out;
+  }
+
+  private static double activate(int activation, double z, double threshold,
+      double altitude, double fanIn) {
+    switch (activation) {
+    case 0:
+      return (z > threshold) ? 1.0 : 0.0;
+    case 1:
+      return 1.0 / (1.0 + Math.exp(-z));
+    case 2:
+      double a = Math.exp(z);
+      double b = Math.exp(-z);
+      return (a - b) / (a + b);
+    case 3:
+      return z;
+    case 4:
+      return Math.exp(z);
+    case 5:
+      return 1.0 / z;
+    case 6:
+      return z * z;
+    case 7:
+      return Math.exp(-(z * z));
+    case 8:
+      return Math.sin(z);
+    case 9:
+      return Math.cos(z);
+    case 10:
+      return z / (1.0 + Math.abs(z));
+    case ARCTAN:
+      return 2.0 * Math.atan(z) / Math.PI;
+    default:
+      return Math.exp(fanIn * Math.log(altitude) - z);
+    }
+  }
+
+  /**
+   * A piecewise linear norm from a to b, as NormContinuous.computeNorm().
+   *
+   * PT-BR
+   *
+   * Uma norma linear por partes de a para b, como
+   * NormContinuous.computeNorm().
+   */
+  static double norm(double[] a, double[] b, double x, double missing,
+      int outliers, double mapMissingTo) {
+    if (Utils.isMissingValue(x)) {
+      return missing;
+    }
+    int last = a.length - 1;
+    if (x < a[0]) {
+      if (outliers == AS_IS) {
+        double slope = (b[1] - b[0]) / (a[1] - a[0]);
+        double offset = b[0] - slope * a[0];
+        return slope * x + offset;
+      }
+      return (outliers == AS_EXTREME_VALUES) ? b[0] : mapMissingTo;
+    }
+    if (x > a[last]) {
+      if (outliers == AS_IS) {
+        double slope = (b[last] - b[last - 1]) / (a[last] - a[last - 1]);
+        double offset = b[last] - slope * a[last];
+        return slope * x + offset;
+      }
+      return (outliers == AS_EXTREME_VALUES) ? b[last] : mapMissingTo;
+    }
+    for (int i = 1; i < a.length; i++) {
+      if (x <= a[i]) {
+        double result = b[i - 1];
+        result += (x - a[i - 1]) / (a[i] - a[i - 1]) * (b[i] - b[i - 1]);
+        return result;
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,190 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.matrix.Maths;
+
+/**
+ * Engine for a PMML RegressionModel. Each regression table is held as arrays
+ * of field indexes, coefficients and exponents, and is evaluated in the order
+ * that weka.classifiers.pmml.consumer.Regression uses (numeric predictors,
+ * then categorical predictors, then predictor terms), so the results are the
+ * same to the last bit.
+ *
+ * PT-BR
+ *
+ * Motor para um RegressionModel PMML. Cada tabela de regressao e guardada
+ * como matrizes de indices de campos, coeficientes e expoentes, e e avaliada
+ * na ordem que weka.classifiers.pmml.consumer.Regression usa (preditores
+ * numericos, depois preditores categoricos, depois termos de preditores), de
+ * modo que os resultados sao os mesmos ate o ultimo bit.
+ */
+class WekaScoringPMMLRegressionEngine extends WekaScoringPMMLEngine {
+
+  /** for serialization */
+  private static final long serialVersionUID = 4472108846313620547L;
+
+  /** normalization methods, in the order of Regression.Normalization
+   *  metodos de normalizacao, na ordem de Regression.Normalization
+   */
+  static final String[] NORMALIZATIONS = { "none", "simplemax", "softmax", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      "logit", "probit", "cloglog", "exp", "loglog", "cauchit" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+
+  private static final int NONE = 0;
+  private static final int SIMPLEMAX = 1;
+  private static final int SOFTMAX = 2;
+  private static final int LOGIT = 3;
+  private static final int PROBIT = 4;
+  private static final int CLOGLOG = 5;
+  private static final int EXP = 6;
+  private static final int LOGLOG = 7;
+  private static final int CAUCHIT = 8;
+
+  private final int m_normalization;
+
+  // per table: the prediction it sets and its intercept
+  // por tabela: a previsao que ela define e o seu intercepto
+  private final int[] m_target;
+  private final double[] m_intercept;
+
+  // per table: numeric predictors (field, coefficient, exponent)
+  // por tabela: preditores numericos (campo, coeficiente, expoente)
+  private final int[][] m_numericField;
+  private final double[][] m_numericCoefficient;
+  private final double[][] m_numericExponent;
+
+  // per table: categorical predictors (field, value index, coefficient)
+  // por tabela: preditores categoricos (campo, indice do valor, coeficiente)
+  private final int[][] m_categoricalField;
+  private final int[][] m_categoricalValue;
+  private final double[][] m_categoricalCoefficient;
+
+  // per table: predictor terms (coefficient, fields multiplied)
+  // por tabela: termos de preditores (coeficiente, campos multiplicados)
+  private final double[][] m_termCoefficient;
+  private final int[][][] m_termFields;
+
+  WekaScoringPMMLRegressionEngine(Instances miningSchema,
+      double[] replacement, boolean[] clamp, double[] low, double[] high,
+      int normalization, int[] target, double[] intercept,
+      int[][] numericField, double[][] numericCoefficient,
+      double[][] numericExponent, int[][] categoricalField,
+      int[][] categoricalValue, double[][] categoricalCoefficient,
+      double[][] termCoefficient, int[][][] termFields) {
+    super(miningSchema, replacement, clamp, low, high);
+    m_normalization = normalization;
+    m_target = target;
+    m_intercept = intercept;
+    m_numericField = numericField;
+    m_numericCoefficient = numericCoefficient;
+    m_numericExponent = numericExponent;
+    m_categoricalField = categoricalField;
+    m_categoricalValue = categoricalValue;
+    m_categoricalCoefficient = categoricalCoefficient;
+    m_termCoefficient = termCoefficient;
+    m_termFields = termFields;
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    double[] x = fields(inst);
+    if (hasMissing(x)) {
+      return noPrediction();
+    }
+
+    double[] preds = new double[m_width];
+    for (int t = 0; t < m_target.length; t++) {
+      int target = m_target[t];
+      preds[target] = m_intercept[t];
+
+      int[] field = m_numericField[t];
+      double[] coefficient = m_numericCoefficient[t];
+      double[] exponent = m_numericExponent[t];
+      for (int p = 0; p < field.length; p++) {
+        // pow(x, 1) is x exactly
+        // pow(x, 1) e exatamente x
+        double value = (exponent[p] == 1) ? x[field[p]] : Math.pow(
+            x[field[p]], exponent[p]);
+        preds[target] += coefficient[p] * value;
+      }
+
+      field = m_categoricalField[t];
+      int[] valueIndex = m_categoricalValue[t];
+      coefficient = m_categoricalCoefficient[t];
+      for (int p = 0; p < field.length; p++) {
+        if (valueIndex[p] == (int) x[field[p]]) {
+          preds[target] += coefficient[p];
+        }
+      }
+
+      coefficient = m_termCoefficient[t];
+      for (int p = 0; p < coefficient.length; p++) {
+        double result = coefficient[p];
+        for (int f : m_termFields[t][p]) {
+          result *= x[f];
+        }
+        preds[target] += result;
+      }
+    }
+
+    switch (m_normalization) {
+    case NONE:
+      break;
+    case SIMPLEMAX:
+      Utils.normalize(preds);
+      break;
+    case SOFTMAX:
+      for (int i = 0; i < preds.length; i++) {
+        preds[i] = Math.exp(preds[i]);
+      }
+      if (preds.length == 1) {
+        preds[0] = preds[0] / (preds[0] + 1.0);
+      } else {
+        Utils.normalize(preds);
+      }
+      break;
+    default:
+      for (int i = 0; i < preds.length; i++) {
+        preds[i] = link(m_normalization, preds[i]);
+      }
+      Utils.normalize(preds);
+    }
+    return preds;
+  }
+
+  private static double link(int normalization, double value) {
+    switch (normalization) {
+    case LOGIT:
+      return 1.0 / (1.0 + Math.exp(-value));
+    case PROBIT:
+      return Maths.pnorm(value);
+    case CLOGLOG:
+      return 1.0 - Math.exp(-Math.exp(-value));
+    case EXP:
+      return Math.exp(value);
+    case LOGLOG:
+      return Math.exp(-Math.exp(-value));
+    default:
+      return 0.5 + 0.3183098861837907 * Math.atan(value);
+    }
+  }
+}
@@ -0,0 +1,319 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.util.Arrays;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Engine for a PMML TreeModel. The nodes are held in flat arrays (the
+ * children of a node, its predicate, its default child and the distribution
+ * it predicts as a leaf) and the predicates in a second set of arrays, with
+ * the values of set predicates resolved to lookup tables, so a row descends
+ * the tree in a loop instead of through the recursive TreeNode.score() of
+ * weka.classifiers.pmml.consumer.TreeModel. The missing value strategies
+ * none, lastPrediction and defaultChild are supported, with the same results
+ * as Weka's consumer.
+ *
+ * PT-BR
+ *
+ * Motor para um TreeModel PMML. Os nos sao guardados em matrizes planas (os
+ * filhos de um no, o seu predicado, o seu filho padrao e a distribuicao que
+ * ele preve como folha) e os predicados em um segundo conjunto de matrizes,
+ * com os valores dos predicados de conjunto resolvidos em tabelas de busca,
+ * de modo que uma linha desce a arvore em um laco em vez de atraves do
+ * TreeNode.score() recursivo de weka.classifiers.pmml.consumer.TreeModel. As
+ * estrategias de valores ausentes none, lastPrediction e defaultChild sao
+ * suportadas, com os mesmos resultados do consumidor do Weka.
+ */
+class WekaScoringPMMLTreeEngine extends WekaScoringPMMLEngine {
+
+  /** for serialization */
+  private static final long serialVersionUID = -3915570246376214651L;
+
+  /** missing value strategies
+   *  estrategias de valores ausentes
+   */
+  static final int NONE = 0;
+  static final int LAST_PREDICTION = 1;
+  static final int DEFAULT_CHILD = 2;
+
+  /** kinds of predicate
+   *  tipos de predicado
+   */
+  static final int TRUE = 0;
+  static final int FALSE = 1;
+  static final int SIMPLE = 2;
+  static final int SET_NOMINAL = 3;
+  static final int SET_REAL = 4;
+  static final int SET_INT = 5;
+  static final int AND = 6;
+  static final int OR = 7;
+  static final int XOR = 8;
+
+  /** operators of simple predicates, in the order of SimplePredicate.Operator
+   *  operadores dos predicados simples, na ordem de SimplePredicate.Operator
+   */
+  static final String[] OPERATORS = { "equal", "notEqual", "lessThan", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      "lessOrEqual", "greaterThan", "greaterOrEqual", "isMissing", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+      "isNotMissing" }; //$NON-NLS-1$
+
+  static final int IS_MISSING = 6;
+  static final int IS_NOT_MISSING = 7;
+
+  // results of a predicate
+  // resultados de um predicado
+  private static final int EVAL_TRUE = 0;
+  private static final int EVAL_FALSE = 1;
+  private static final int EVAL_UNKNOWN = 2;
+
+  private final int m_strategy;
+
+  // per node: children, predicate, default child (-1 for none), and the
+  // distribution of TreeNode.doLeaf() (null where doLeaf() would fail)
+  // por no: filhos, predicado, filho padrao (-1 para nenhum), e a
+  // distribuicao de TreeNode.doLeaf() (null onde doLeaf() falharia)
+  private final int[][] m_children;
+  private final int[] m_predicate;
+  private final int[] m_defaultChild;
+  private final double[][] m_leaf;
+
+  // per predicate: kind, field, operator and value (simple predicates), the
+  // set of values (set predicates) or the components (compound predicates)
+  // por predicado: tipo, campo, operador e valor (predicados simples), o
+  // conjunto de valores (predicados de conjunto) ou os componentes
+  // (predicados compostos)
+  private final int[] m_kind;
+  private final int[] m_field;
+  private final int[] m_operator;
+  private final double[] m_value;
+  private final Object[] m_set;
+  private final int[][] m_components;
+
+  WekaScoringPMMLTreeEngine(Instances miningSchema, double[] replacement,
+      boolean[] clamp, double[] low, double[] high, int strategy,
+      int[][] children, int[] predicate, int[] defaultChild,
+      double[][] leaf, int[] kind, int[] field, int[] operator,
+      double[] value, Object[] set, int[][] components) {
+    super(miningSchema, replacement, clamp, low, high);
+    m_strategy = strategy;
+    m_children = children;
+    m_predicate = predicate;
+    m_defaultChild = defaultChild;
+    m_leaf = leaf;
+    m_kind = kind;
+    m_field = field;
+    m_operator = operator;
+    m_value = value;
+    m_set = set;
+    m_components = components;
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    double[] x = fields(inst);
+    int node = 0;
+    while (true) {
+      int[] children = m_children[node];
+      if (children.length == 0) {
+        return leaf(node);
+      }
+      boolean invoked = false;
+      int next = -1;
+      for (int c : children) {
+        int result = evaluate(m_predicate[c], x);
+        if (result == EVAL_TRUE) {
+          next = c;
+          break;
+        }
+        if (result == EVAL_UNKNOWN) {
+          invoked = true;
+        }
+      }
+      if (next >= 0) {
+        node = next;
+        continue;
+      }
+
+      // no true child
+      // nenhum filho verdadeiro
+      if (m_strategy == NONE || !invoked) {
+        if (m_strategy == DEFAULT_CHILD) {
+          // TreeNode.doNoTrueChild() is handed a null array here
+          // TreeNode.doNoTrueChild() recebe uma matriz null aqui
+          if (m_nominalClass) {
+            throw new Exception("No prediction for node " + node); //$NON-NLS-1$
+          }
+          return null;
+        }
+        return nullPrediction();
+      }
+      if (m_strategy == LAST_PREDICTION) {
+        if (!m_nominalClass) {
+          throw new Exception("No prediction for node " + node); //$NON-NLS-1$
+        }
+        return leaf(node);
+      }
+      if (m_defaultChild[node] < 0) {
+        throw new Exception("No default child in node " + node); //$NON-NLS-1$
+      }
+      node = m_defaultChild[node];
+    }
+  }
+
+  private double[] leaf(int node) throws Exception {
+    if (m_leaf[node] == null) {
+      throw new Exception("No score in node " + node); //$NON-NLS-1$
+    }
+    return m_leaf[node].clone();
+  }
+
+  /**
+   * The null prediction: a missing value for each class value (an empty
+   * array for a numeric class, as Weka's consumer returns).
+   *
+   * PT-BR
+   *
+   * A previsao nula: um valor ausente para cada valor da classe (uma matriz
+   * vazia para uma classe numerica, como o consumidor do Weka retorna).
+   */
+  private double[] nullPrediction() {
+    double[] preds = new double[m_nominalClass ? m_width : 0];
+    Arrays.fill(preds, Double.NaN);
+    return preds;
+  }
+
+  private int evaluate(int p, double[] x) {
+    switch (m_kind[p]) {
+    case TRUE:
+      return EVAL_TRUE;
+    case FALSE:
+      return EVAL_FALSE;
+    case SIMPLE:
+      return simple(p, x[m_field[p]]);
+    case SET_NOMINAL:
+    case SET_REAL:
+    case SET_INT:
+      return set(p, x[m_field[p]]);
+    case AND:
+      int and = EVAL_TRUE;
+      for (int c : m_components[p]) {
+        int result = evaluate(c, x);
+        if (result == EVAL_FALSE) {
+          return EVAL_FALSE;
+        }
+        if (result == EVAL_UNKNOWN) {
+          and = EVAL_UNKNOWN;
+        }
+      }
+      return and;
+    case OR:
+      int or = EVAL_FALSE;
+      for (int c : m_components[p]) {
+        int result = evaluate(c, x);
+        if (result == EVAL_TRUE) {
+          return EVAL_TRUE;
+        }
+        if (result == EVAL_UNKNOWN) {
+          or = EVAL_UNKNOWN;
+        }
+      }
+      return or;
+    default:
+      int[] components = m_components[p];
+      int xor = evaluate(components[0], x);
+      if (xor != EVAL_UNKNOWN) {
+        for (int i = 1; i < components.length; i++) {
+          int result = evaluate(components[i], x);
+          if (result == EVAL_UNKNOWN) {
+            return EVAL_UNKNOWN;
+          }
+          xor = (xor != result) ? EVAL_TRUE : EVAL_FALSE;
+        }
+      }
+      return xor;
+    }
+  }
+
+  private int simple(int p, double v) {
+    int operator = m_operator[p];
+    boolean missing = Utils.isMissingValue(v);
+    if (operator == IS_MISSING) {
+      return missing ? EVAL_TRUE : EVAL_FALSE;
+    }
+    if (operator == IS_NOT_MISSING) {
+      return missing ? EVAL_FALSE : EVAL_TRUE;
+    }
+    if (missing) {
+      return EVAL_UNKNOWN;
+    }
+    double value = m_value[p];
+    boolean result;
+    switch (operator) {
+    case 0:
+      result = Utils.eq(v, value);
+      break;
+    case 1:
+      result = v != value;
+      break;
+    case 2:
+      result = v < value;
+      break;
+    case 3:
+      result = v <= value;
+      break;
+    case 4:
+      result = v > value;
+      break;
+    default:
+      result = v >= value;
+    }
+    return result ? EVAL_TRUE : EVAL_FALSE;
+  }
+
+  /**
+   * Array.contains() compares the string form of the value with the strings
+   * of the array; the compiler keeps only the elements whose string form
+   * that comparison can match, so a lookup gives the same answer.
+   *
+   * Array.contains() compara a forma textual do valor com os textos da
+   * matriz; o compilador guarda apenas os elementos cuja forma textual essa
+   * comparacao pode encontrar, de modo que uma busca da a mesma resposta.
+   */
+  private int set(int p, double v) {
+    if (Utils.isMissingValue(v)) {
+      return EVAL_UNKNOWN;
+    }
+    boolean result;
+    switch (m_kind[p]) {
+    case SET_NOMINAL:
+      result = ((boolean[]) m_set[p])[(int) v];
+      break;
+    case SET_REAL:
+      result = Arrays.binarySearch((double[]) m_set[p], v) >= 0;
+      break;
+    default:
+      result = Arrays.binarySearch((int[]) m_set[p], (int) v) >= 0;
+    }
+    return result ? EVAL_TRUE : EVAL_FALSE;
+  }
+}
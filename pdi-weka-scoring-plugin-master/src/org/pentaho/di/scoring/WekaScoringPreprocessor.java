@@ -0,0 +1,567 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Range;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.MultiFilter;
+import weka.filters.unsupervised.attribute.NominalToBinary;
+import weka.filters.unsupervised.attribute.Normalize;
+import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+import weka.filters.unsupervised.attribute.Standardize;
+
+/**
+ * A chain of trained Normalize, Standardize, ReplaceMissingValues,
+ * NominalToBinary and Discretize filters (directly or inside a MultiFilter)
+ * compiled into primitive per-attribute transforms. Every output attribute
+ * of these filters depends on a single input attribute, so each output is
+ * held as its input attribute and the list of operations the filters apply
+ * to it, in filter order and with the filters' own arithmetic. The step runs
+ * the transforms while it converts a row, so the model behind the filters
+ * receives a single array of already filtered values instead of one new
+ * Instance per row and filter.
+ *
+ * PT-BR
+ *
+ * Uma cadeia de filtros Normalize, Standardize, ReplaceMissingValues,
+ * NominalToBinary e Discretize treinados (diretamente ou dentro de um
+ * MultiFilter) compilada em transformacoes primitivas por atributo. Cada
+ * atributo de saida destes filtros depende de um unico atributo de entrada,
+ * entao cada saida e guardada como o seu atributo de entrada e a lista de
+ * operacoes que os filtros aplicam a ele, na ordem dos filtros e com a
+ * aritmetica dos proprios filtros. O step (passo) executa as transformacoes
+ * enquanto converte uma linha, de modo que o modelo depois dos filtros recebe
+ * uma unica matriz de valores ja filtrados em vez de uma nova Instance por
+ * linha e filtro.
+ */
+class WekaScoringPreprocessor {
+
+  // operations; missing values pass through all but REPLACE
+  // operacoes; valores ausentes passam por todas exceto REPLACE
+  static final int REPLACE = 0; // arg: replacement / substituto
+  static final int NORMALIZE = 1; // args: min, max, scale, translation
+  static final int STANDARDIZE = 2; // args: mean, standard deviation
+  static final int ZERO = 3; // no args / sem argumentos
+  static final int INDICATOR = 4; // arg: value index / indice do valor
+  static final int BIN = 5; // args: number of cut points, cut points
+  static final int THRESHOLD = 6; // arg: cut point / ponto de corte
+
+  /** header of the filtered instances, which also marks them as filtered
+   *  cabecalho das instancias filtradas, que tambem as marca como filtradas
+   */
+  private final Transformed m_outputFormat;
+
+  // per output attribute: its input attribute, operations and arguments
+  // por atributo de saida: o seu atributo de entrada, operacoes e argumentos
+  private final int[] m_source;
+  private final int[][] m_ops;
+  private final double[][] m_args;
+
+  /** per input attribute: the output attributes computed from it
+   *  por atributo de entrada: os atributos de saida calculados a partir dele
+   */
+  private final int[][] m_outputs;
+
+  /**
+   * The header of instances that hold filtered values. Its class identifies
+   * them, since a filter may leave the structure of the data unchanged.
+   *
+   * O cabecalho de instancias que contem valores filtrados. A sua classe as
+   * identifica, ja que um filtro pode deixar a estrutura dos dados
+   * inalterada.
+   */
+  static class Transformed extends Instances {
+
+    /** for serialization */
+    private static final long serialVersionUID = 4218849204935624718L;
+
+    /** the compiled filter that made the values
+     *  o filtro compilado que produziu os valores
+     */
+    final transient Object m_preprocessor;
+
+    Transformed(Instances format, int capacity, Object preprocessor) {
+      super(format, capacity);
+      m_preprocessor = preprocessor;
+    }
+
+    /**
+     * Add an instance without copying it, unlike add(). The instance is
+     * owned by the caller, which must not change it while it is held here.
+     *
+     * PT-BR
+     *
+     * Adiciona uma instancia sem copia-la, ao contrario de add(). A instancia
+     * pertence ao chamador, que nao deve altera-la enquanto ela estiver aqui.
+     *
+     * @param inst the instance to add
+     *             a instancia a adicionar
+     */
+    void addShared(Instance inst) {
+      inst.setDataset(this);
+      m_Instances.add(inst);
+    }
+
+    /**
+     * Remove all instances, keeping the capacity of the list.
+     *
+     * PT-BR
+     *
+     * Remove todas as instancias, mantendo a capacidade da lista.
+     */
+    void clearShared() {
+      m_Instances.clear();
+    }
+  }
+
+  /**
+   * An output attribute while the filters are compiled.
+   *
+   * Um atributo de saida enquanto os filtros sao compilados.
+   */
+  private static class Slot {
+    final int m_source;
+    final List<Integer> m_ops = new ArrayList<Integer>();
+    final List<Double> m_args = new ArrayList<Double>();
+
+    Slot(int source) {
+      m_source = source;
+    }
+
+    Slot then(int op, double... args) {
+      Slot s = new Slot(m_source);
+      s.m_ops.addAll(m_ops);
+      s.m_args.addAll(m_args);
+      s.m_ops.add(op);
+      for (double a : args) {
+        s.m_args.add(a);
+      }
+      return s;
+    }
+  }
+
+  private WekaScoringPreprocessor(Instances outputFormat, List<Slot> slots,
+      int numInputs) {
+    m_outputFormat = new Transformed(outputFormat, 0, this);
+    m_source = new int[slots.size()];
+    m_ops = new int[slots.size()][];
+    m_args = new double[slots.size()][];
+    int[] counts = new int[numInputs];
+    for (int o = 0; o < m_source.length; o++) {
+      Slot s = slots.get(o);
+      m_source[o] = s.m_source;
+      m_ops[o] = new int[s.m_ops.size()];
+      for (int k = 0; k < m_ops[o].length; k++) {
+        m_ops[o][k] = s.m_ops.get(k).intValue();
+      }
+      m_args[o] = new double[s.m_args.size()];
+      for (int k = 0; k < m_args[o].length; k++) {
+        m_args[o][k] = s.m_args.get(k).doubleValue();
+      }
+      counts[s.m_source]++;
+    }
+    m_outputs = new int[numInputs][];
+    for (int i = 0; i < numInputs; i++) {
+      m_outputs[i] = new int[counts[i]];
+      counts[i] = 0;
+    }
+    for (int o = 0; o < m_source.length; o++) {
+      m_outputs[m_source[o]][counts[m_source[o]]++] = o;
+    }
+  }
+
+  /**
+   * Compile a trained filter. Returns null if the filter (or one inside a
+   * MultiFilter) is not one of the supported filters.
+   *
+   * PT-BR
+   *
+   * Compila um filtro treinado. Retorna null se o filtro (ou um dentro de um
+   * MultiFilter) nao e um dos filtros suportados.
+   *
+   * @param filter the trained filter
+   *               o filtro treinado
+   * @param header the header the step converts rows against (may be null)
+   *               o cabecalho com o qual o step (passo) converte as linhas
+   *               (pode ser null)
+   * @param outputFormat the header of the filtered data
+   *                     o cabecalho dos dados filtrados
+   * @return the compiled transforms or null
+   *         as transformacoes compiladas ou null
+   * @throws Exception if the state of a filter can't be read
+   *                   se o estado de um filtro nao puder ser lido
+   */
+  static WekaScoringPreprocessor compile(Filter filter, Instances header,
+      Instances outputFormat) throws Exception {
+    List<Filter> chain = new ArrayList<Filter>();
+    if (!flatten(filter, chain) || chain.isEmpty()) {
+      return null;
+    }
+    Instances input = inputFormat(chain.get(0));
+    if (input == null || input.checkForStringAttributes()
+        || (header != null && !header.equalHeaders(input))) {
+      return null;
+    }
+
+    List<Slot> slots = new ArrayList<Slot>();
+    for (int i = 0; i < input.numAttributes(); i++) {
+      slots.add(new Slot(i));
+    }
+    for (Filter f : chain) {
+      Instances format = inputFormat(f);
+      if (format == null || format.numAttributes() != slots.size()) {
+        return null;
+      }
+      slots = stage(f, format, slots);
+      if (slots == null) {
+        return null;
+      }
+    }
+    if (slots.size() != outputFormat.numAttributes()) {
+      return null;
+    }
+    return new WekaScoringPreprocessor(outputFormat, slots,
+        input.numAttributes());
+  }
+
+  private static boolean flatten(Filter filter, List<Filter> chain) {
+    if (filter instanceof MultiFilter) {
+      for (Filter f : ((MultiFilter) filter).getFilters()) {
+        if (!flatten(f, chain)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    Class<?> c = filter.getClass();
+    if (c == ReplaceMissingValues.class || c == Normalize.class
+        || c == Standardize.class || c == NominalToBinary.class
+        || c == weka.filters.unsupervised.attribute.Discretize.class
+        || c == weka.filters.supervised.attribute.Discretize.class) {
+      chain.add(filter);
+      return true;
+    }
+    return false;
+  }
+
+  private static Instances inputFormat(Filter f) throws Exception {
+    return (Instances) WekaScoringEngine.getField(f, "m_InputFormat"); //$NON-NLS-1$
+  }
+
+  /**
+   * The output attributes of one filter, as it computes them in
+   * convertInstance().
+   *
+   * Os atributos de saida de um filtro, como ele os calcula em
+   * convertInstance().
+   */
+  private static List<Slot> stage(Filter f, Instances format, List<Slot> in)
+      throws Exception {
+    int classIndex = format.classIndex();
+    List<Slot> out = new ArrayList<Slot>();
+
+    if (f instanceof ReplaceMissingValues) {
+      double[] modesAndMeans = (double[]) WekaScoringEngine.getField(f,
+          "m_ModesAndMeans"); //$NON-NLS-1$
+      if (modesAndMeans == null) {
+        return null;
+      }
+      for (int j = 0; j < in.size(); j++) {
+        Attribute att = format.attribute(j);
+        out.add((j != classIndex && (att.isNominal() || att.isNumeric())) ? in
+            .get(j).then(REPLACE, modesAndMeans[j]) : in.get(j));
+      }
+      return out;
+    }
+
+    if (f instanceof Normalize) {
+      double[] min = (double[]) WekaScoringEngine.getField(f, "m_MinArray"); //$NON-NLS-1$
+      double[] max = (double[]) WekaScoringEngine.getField(f, "m_MaxArray"); //$NON-NLS-1$
+      double scale = ((Double) WekaScoringEngine.getField(f, "m_Scale")) //$NON-NLS-1$
+          .doubleValue();
+      double translation = ((Double) WekaScoringEngine.getField(f,
+          "m_Translation")).doubleValue(); //$NON-NLS-1$
+      if (min == null || max == null) {
+        return null;
+      }
+      for (int j = 0; j < in.size(); j++) {
+        if (!format.attribute(j).isNumeric() || j == classIndex) {
+          out.add(in.get(j));
+        } else if (Double.isNaN(min[j]) || max[j] == min[j]) {
+          out.add(in.get(j).then(ZERO));
+        } else {
+          out.add(in.get(j).then(NORMALIZE, min[j], max[j], scale,
+              translation));
+        }
+      }
+      return out;
+    }
+
+    if (f instanceof Standardize) {
+      double[] means = (double[]) WekaScoringEngine.getField(f, "m_Means"); //$NON-NLS-1$
+      double[] stdDevs = (double[]) WekaScoringEngine.getField(f, "m_StdDevs"); //$NON-NLS-1$
+      if (means == null || stdDevs == null) {
+        return null;
+      }
+      for (int j = 0; j < in.size(); j++) {
+        out.add((format.attribute(j).isNumeric() && j != classIndex) ? in.get(
+            j).then(STANDARDIZE, means[j], stdDevs[j]) : in.get(j));
+      }
+      return out;
+    }
+
+    if (f instanceof NominalToBinary) {
+      if (!((Boolean) WekaScoringEngine.getField(f, "m_needToTransform")) //$NON-NLS-1$
+          .booleanValue()) {
+        return in;
+      }
+      Range columns = (Range) WekaScoringEngine.getField(f, "m_Columns"); //$NON-NLS-1$
+      boolean transformAll = ((Boolean) WekaScoringEngine.getField(f,
+          "m_TransformAll")).booleanValue(); //$NON-NLS-1$
+      for (int j = 0; j < in.size(); j++) {
+        Attribute att = format.attribute(j);
+        if (!att.isNominal() || j == classIndex || !columns.isInRange(j)
+            || (att.numValues() <= 2 && !transformAll)) {
+          out.add(in.get(j));
+          continue;
+        }
+        for (int k = 0; k < att.numValues(); k++) {
+          out.add(in.get(j).then(INDICATOR, k));
+        }
+      }
+      return out;
+    }
+
+    // either Discretize: the supervised one has no class check, as its
+    // class is nominal
+    // qualquer Discretize: o supervisionado nao verifica a classe, ja que a
+    // sua classe e nominal
+    boolean supervised = f instanceof weka.filters.supervised.attribute.Discretize;
+    Range columns = (Range) WekaScoringEngine.getField(f, "m_DiscretizeCols"); //$NON-NLS-1$
+    double[][] cutPoints = (double[][]) WekaScoringEngine.getField(f,
+        "m_CutPoints"); //$NON-NLS-1$
+    boolean makeBinary = ((Boolean) WekaScoringEngine.getField(f,
+        "m_MakeBinary")).booleanValue(); //$NON-NLS-1$
+    if (cutPoints == null) {
+      return null;
+    }
+    for (int j = 0; j < in.size(); j++) {
+      if (!columns.isInRange(j) || !format.attribute(j).isNumeric()
+          || (!supervised && j == classIndex)) {
+        out.add(in.get(j));
+      } else if (cutPoints[j] == null) {
+        out.add(in.get(j).then(ZERO));
+      } else if (!makeBinary) {
+        double[] args = new double[cutPoints[j].length + 1];
+        args[0] = cutPoints[j].length;
+        System.arraycopy(cutPoints[j], 0, args, 1, cutPoints[j].length);
+        out.add(in.get(j).then(BIN, args));
+      } else {
+        for (double cut : cutPoints[j]) {
+          out.add(in.get(j).then(THRESHOLD, cut));
+        }
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Get the header that instances of filtered values must be built against.
+   *
+   * PT-BR
+   *
+   * Retorna o cabecalho com o qual instancias de valores filtrados devem ser
+   * construidas.
+   *
+   * @return the header of the filtered data
+   *         o cabecalho dos dados filtrados
+   */
+  Instances getOutputFormat() {
+    return m_outputFormat;
+  }
+
+  /**
+   * Create an empty batch for instances of filtered values.
+   *
+   * PT-BR
+   *
+   * Cria um lote vazio para instancias de valores filtrados.
+   *
+   * @param capacity the expected number of instances
+   *                 o numero esperado de instancias
+   * @return the empty batch
+   *         o lote vazio
+   */
+  Instances newBatch(int capacity) {
+    return new Transformed(m_outputFormat, capacity, this);
+  }
+
+  /**
+   * Returns true if the supplied header holds values filtered by this
+   * preprocessor.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se o cabecalho fornecido contem valores filtrados por
+   * este pre-processador.
+   *
+   * @param header the header to check
+   *               o cabecalho a verificar
+   * @return true for filtered values
+   *         verdadeiro para valores filtrados
+   */
+  boolean isTransformed(Instances header) {
+    return header instanceof Transformed
+        && ((Transformed) header).m_preprocessor == this;
+  }
+
+  /**
+   * Returns the number of attributes of the filtered data.
+   *
+   * PT-BR
+   *
+   * Retorna o numero de atributos dos dados filtrados.
+   *
+   * @return the number of filtered attributes
+   *         o numero de atributos filtrados
+   */
+  int numOutputs() {
+    return m_source.length;
+  }
+
+  /**
+   * Write the filtered values computed from one input value.
+   *
+   * PT-BR
+   *
+   * Escreve os valores filtrados calculados a partir de um valor de entrada.
+   *
+   * @param input the index of the input attribute
+   *              o indice do atributo de entrada
+   * @param value the input value
+   *              o valor de entrada
+   * @param out the filtered values
+   *            os valores filtrados
+   * @throws Exception if a filter would fail on the value
+   *                   se um filtro falharia com o valor
+   */
+  void transform(int input, double value, double[] out) throws Exception {
+    for (int o : m_outputs[input]) {
+      out[o] = apply(o, value);
+    }
+  }
+
+  /**
+   * Filter an instance built against the unfiltered header.
+   *
+   * PT-BR
+   *
+   * Filtra uma instancia construida com o cabecalho nao filtrado.
+   *
+   * @param inst the instance to filter
+   *             a instancia para filtrar
+   * @return the filtered instance
+   *         a instancia filtrada
+   * @throws Exception if a filter would fail on the instance
+   *                   se um filtro falharia com a instancia
+   */
+  Instance transform(Instance inst) throws Exception {
+    double[] out = new double[m_source.length];
+    for (int i = 0; i < m_outputs.length; i++) {
+      transform(i, inst.value(i), out);
+    }
+    Instance result = new DenseInstance(inst.weight(), out);
+    result.setDataset(m_outputFormat);
+    return result;
+  }
+
+  private double apply(int o, double v) throws Exception {
+    int[] ops = m_ops[o];
+    double[] args = m_args[o];
+    int a = 0;
+    for (int op : ops) {
+      boolean missing = Utils.isMissingValue(v);
+      switch (op) {
+      case REPLACE:
+        if (missing) {
+          v = args[a];
+        }
+        a++;
+        break;
+      case NORMALIZE:
+        if (!missing) {
+          v = (v - args[a]) / (args[a + 1] - args[a]) * args[a + 2]
+              + args[a + 3];
+          if (Double.isNaN(v)) {
+            throw new Exception("A NaN value was generated while normalizing " //$NON-NLS-1$
+                + m_outputFormat.attribute(o).name());
+          }
+        }
+        a += 4;
+        break;
+      case STANDARDIZE:
+        if (!missing) {
+          v = (args[a + 1] > 0) ? (v - args[a]) / args[a + 1] : v - args[a];
+          if (Double.isNaN(v)) {
+            throw new Exception("A NaN value was generated while standardizing " //$NON-NLS-1$
+                + m_outputFormat.attribute(o).name());
+          }
+        }
+        a += 2;
+        break;
+      case ZERO:
+        if (!missing) {
+          v = 0;
+        }
+        break;
+      case INDICATOR:
+        if (!missing) {
+          v = ((int) v == (int) args[a]) ? 1.0 : 0.0;
+        }
+        a++;
+        break;
+      case BIN:
+        int numCuts = (int) args[a];
+        if (!missing) {
+          int j = 0;
+          while (j < numCuts && !(v <= args[a + 1 + j])) {
+            j++;
+          }
+          v = j;
+        }
+        a += 1 + numCuts;
+        break;
+      default:
+        if (!missing) {
+          v = (v <= args[a]) ? 0.0 : 1.0;
+        }
+        a++;
+      }
+    }
+    return v;
+  }
+}
@@ -0,0 +1,581 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import weka.classifiers.rules.JRip;
+import weka.classifiers.rules.OneR;
+import weka.classifiers.rules.PART;
+import weka.classifiers.trees.j48.BinC45Split;
+import weka.classifiers.trees.j48.C45Split;
+import weka.classifiers.trees.j48.ClassifierSplitModel;
+import weka.classifiers.trees.j48.Distribution;
+import weka.classifiers.trees.j48.NoSplit;
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Compiled engine for the rule learners JRip, PART and OneR. The conditions
+ * of all the rules are collected into one array of predicates, shared by the
+ * rules that test the same thing, and each rule is an ordered list of
+ * indexes into it. While a row is scored two bitsets record which predicates
+ * have been evaluated and which of them hold, so a condition that appears in
+ * several rules is only tested once per row.
+ * <p>
+ * A JRip rule set predicts the distribution of the first rule that covers
+ * the row. A PART decision list combines its rules in order, as in
+ * MakeDecList, with a row that is missing a tested value passing the rule
+ * with the fraction of the training data that took the same branch. OneR
+ * keeps its single rule as sorted breakpoints that are searched by
+ * bisection.
+ *
+ * PT-BR
+ *
+ * Motor compilado para os aprendizes de regras JRip, PART e OneR. As
+ * condicoes de todas as regras sao reunidas em uma matriz de predicados,
+ * compartilhados pelas regras que testam a mesma coisa, e cada regra e uma
+ * lista ordenada de indices nessa matriz. Enquanto uma linha e pontuada dois
+ * conjuntos de bits registram quais predicados ja foram avaliados e quais
+ * deles sao verdadeiros, entao uma condicao que aparece em varias regras e
+ * testada uma unica vez por linha.
+ * <p>
+ * Um conjunto de regras JRip preve a distribuicao da primeira regra que
+ * cobre a linha. Uma lista de decisao PART combina as suas regras em ordem,
+ * como no MakeDecList, e uma linha sem um valor testado passa pela regra com
+ * a fracao dos dados de treino que seguiu o mesmo ramo. O OneR guarda a sua
+ * unica regra como pontos de corte ordenados que sao buscados por bissecao.
+ */
+class WekaScoringRuleEngine extends WekaScoringEngine {
+
+  /** predicate types / tipos de predicado */
+  static final byte NOMINAL_EQUALS = 0;
+  static final byte NOMINAL_NOT_EQUALS = 1;
+  /** value &lt;= split point (JRip) */
+  static final byte NUMERIC_LE = 2;
+  /** value &gt;= split point (JRip) */
+  static final byte NUMERIC_GE = 3;
+  /** value &lt;= split point with Weka's tolerance (PART) */
+  static final byte NUMERIC_LE_TOLERANCE = 4;
+  /** value &gt; split point with Weka's tolerance (PART) */
+  static final byte NUMERIC_GT_TOLERANCE = 5;
+
+  /** model kinds / tipos de modelo */
+  static final int KIND_JRIP = 0;
+  static final int KIND_PART = 1;
+  static final int KIND_ONER = 2;
+
+  private final int m_kind;
+  private final int m_numClasses;
+
+  // predicates
+  // predicados
+  private final byte[] m_type;
+  private final int[] m_attribute;
+  private final double[] m_value;
+
+  // rules: the conditions of rule r are m_conditions[m_ruleStart[r]] to
+  // m_conditions[m_ruleStart[r + 1] - 1]
+  // regras: as condicoes da regra r sao m_conditions[m_ruleStart[r]] ate
+  // m_conditions[m_ruleStart[r + 1] - 1]
+  private final int[] m_ruleStart;
+  private final int[] m_conditions;
+
+  // PART: weight of a condition when its attribute is missing
+  // PART: peso de uma condicao quando o seu atributo esta ausente
+  private final double[] m_missingWeight;
+
+  // distribution predicted by each rule
+  // distribuicao prevista por cada regra
+  private final double[] m_distributions;
+
+  // OneR: the attribute, its breakpoints (null if nominal), the class of each
+  // interval or value and the class for a missing value
+  // OneR: o atributo, os seus pontos de corte (null se nominal), a classe de
+  // cada intervalo ou valor e a classe para um valor ausente
+  private final int m_oneRAttribute;
+  private final double[] m_breakpoints;
+  private final int[] m_classifications;
+  private final int m_missingClass;
+
+  /**
+   * The rules of a model while it is being compiled
+   *
+   * As regras de um modelo enquanto ele esta sendo compilado
+   */
+  private static class RuleSpec {
+    final List<Byte> m_types = new ArrayList<Byte>();
+    final List<Integer> m_attributes = new ArrayList<Integer>();
+    final List<Double> m_values = new ArrayList<Double>();
+    final Map<String, Integer> m_index = new HashMap<String, Integer>();
+    final List<Integer> m_ruleStart = new ArrayList<Integer>();
+    final List<Integer> m_conditions = new ArrayList<Integer>();
+    final List<Double> m_missingWeights = new ArrayList<Double>();
+    final List<double[]> m_distributions = new ArrayList<double[]>();
+
+    void startRule(double[] distribution) {
+      m_ruleStart.add(m_conditions.size());
+      m_distributions.add(distribution);
+    }
+
+    void addCondition(byte type, int attribute, double value,
+        double missingWeight) {
+      String key = type + ":" + attribute + ":" //$NON-NLS-1$ //$NON-NLS-2$
+          + Double.doubleToLongBits(value);
+      Integer index = m_index.get(key);
+      if (index == null) {
+        index = m_types.size();
+        m_index.put(key, index);
+        m_types.add(type);
+        m_attributes.add(attribute);
+        m_values.add(value);
+      }
+      m_conditions.add(index);
+      m_missingWeights.add(missingWeight);
+    }
+  }
+
+  private WekaScoringRuleEngine(int kind, int numClasses, RuleSpec spec,
+      int oneRAttribute, double[] breakpoints, int[] classifications,
+      int missingClass) {
+    m_kind = kind;
+    m_numClasses = numClasses;
+    m_oneRAttribute = oneRAttribute;
+    m_breakpoints = breakpoints;
+    m_classifications = classifications;
+    m_missingClass = missingClass;
+
+    if (spec == null) {
+      spec = new RuleSpec();
+    }
+    int numPredicates = spec.m_types.size();
+    m_type = new byte[numPredicates];
+    m_attribute = new int[numPredicates];
+    m_value = new double[numPredicates];
+    for (int i = 0; i < numPredicates; i++) {
+      m_type[i] = spec.m_types.get(i);
+      m_attribute[i] = spec.m_attributes.get(i);
+      m_value[i] = spec.m_values.get(i);
+    }
+
+    int numRules = spec.m_ruleStart.size();
+    m_ruleStart = new int[numRules + 1];
+    for (int r = 0; r < numRules; r++) {
+      m_ruleStart[r] = spec.m_ruleStart.get(r);
+    }
+    m_ruleStart[numRules] = spec.m_conditions.size();
+    m_conditions = new int[spec.m_conditions.size()];
+    m_missingWeight = new double[m_conditions.length];
+    for (int i = 0; i < m_conditions.length; i++) {
+      m_conditions[i] = spec.m_conditions.get(i);
+      m_missingWeight[i] = spec.m_missingWeights.get(i);
+    }
+    m_distributions = new double[numRules * numClasses];
+    for (int r = 0; r < numRules; r++) {
+      System.arraycopy(spec.m_distributions.get(r), 0, m_distributions, r
+          * numClasses, numClasses);
+    }
+  }
+
+  /**
+   * Compile a JRip, PART or OneR model. Returns null for any other model,
+   * and for rules that test something the engine does not know.
+   *
+   * PT-BR
+   *
+   * Compila um modelo JRip, PART ou OneR. Retorna null para qualquer outro
+   * modelo, e para regras que testam algo que o motor nao conhece.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the model can't be read
+   *                   se a estrutura do modelo nao puder ser lida
+   */
+  static WekaScoringRuleEngine compile(Object model, Instances header)
+      throws Exception {
+    if (model.getClass() == JRip.class) {
+      return compileJRip((JRip) model);
+    }
+    if (model.getClass() == PART.class) {
+      return compilePART((PART) model, header);
+    }
+    if (model.getClass() == OneR.class) {
+      return compileOneR((OneR) model);
+    }
+    return null;
+  }
+
+  private static WekaScoringRuleEngine compileJRip(JRip model)
+      throws Exception {
+    FastVector ruleset = model.getRuleset();
+    FastVector distributions = (FastVector) getField(model,
+        "m_Distributions"); //$NON-NLS-1$
+    if (ruleset == null || distributions == null || ruleset.size() == 0) {
+      return null;
+    }
+    int numClasses = ((double[]) distributions.elementAt(0)).length;
+
+    RuleSpec spec = new RuleSpec();
+    for (int r = 0; r < ruleset.size(); r++) {
+      if (!(ruleset.elementAt(r) instanceof JRip.RipperRule)) {
+        return null;
+      }
+      spec.startRule((double[]) distributions.elementAt(r));
+      FastVector antds = ((JRip.RipperRule) ruleset.elementAt(r)).getAntds();
+      for (int i = 0; i < antds.size(); i++) {
+        Object antd = antds.elementAt(i);
+        if (antd instanceof JRip.NominalAntd) {
+          JRip.NominalAntd nominal = (JRip.NominalAntd) antd;
+          spec.addCondition(NOMINAL_EQUALS, nominal.getAttr().index(),
+              nominal.getAttrValue(), 0);
+        } else if (antd instanceof JRip.NumericAntd) {
+          JRip.NumericAntd numeric = (JRip.NumericAntd) antd;
+          spec.addCondition(((int) numeric.getAttrValue() == 0) ? NUMERIC_LE
+              : NUMERIC_GE, numeric.getAttr().index(), numeric.getSplitPoint(),
+              0);
+        } else {
+          return null;
+        }
+      }
+    }
+    return new WekaScoringRuleEngine(KIND_JRIP, numClasses, spec, -1, null,
+        null, -1);
+  }
+
+  private static WekaScoringRuleEngine compilePART(PART model,
+      Instances header) throws Exception {
+    Object root = getField(model, "m_root"); //$NON-NLS-1$
+    if (root == null) {
+      return null;
+    }
+    List<?> rules = (List<?>) getField(root, "theRules"); //$NON-NLS-1$
+    if (rules == null || rules.isEmpty()) {
+      return null;
+    }
+    if (header == null) {
+      header = (Instances) getField(rules.get(0), "m_train"); //$NON-NLS-1$
+    }
+    if (header == null || header.classIndex() < 0) {
+      return null;
+    }
+    int numClasses = header.numClasses();
+
+    RuleSpec spec = new RuleSpec();
+    for (Object rule : rules) {
+      // follow the expanded branch (indeX) of each node down to the leaf
+      // segue o ramo expandido (indeX) de cada no ate a folha
+      List<Object> path = new ArrayList<Object>();
+      Object node = rule;
+      while (!((Boolean) getField(node, "m_isLeaf")).booleanValue()) { //$NON-NLS-1$
+        path.add(node);
+        int index = ((Integer) getField(node, "indeX")).intValue(); //$NON-NLS-1$
+        node = ((Object[]) getField(node, "m_sons"))[index]; //$NON-NLS-1$
+      }
+      ClassifierSplitModel leaf = (ClassifierSplitModel) getField(node,
+          "m_localModel"); //$NON-NLS-1$
+      if (!(leaf instanceof NoSplit)) {
+        return null;
+      }
+      double[] distribution = new double[numClasses];
+      for (int j = 0; j < numClasses; j++) {
+        distribution[j] = leaf.distribution().prob(j);
+      }
+      spec.startRule(distribution);
+
+      for (Object step : path) {
+        ClassifierSplitModel split = (ClassifierSplitModel) getField(step,
+            "m_localModel"); //$NON-NLS-1$
+        int index = ((Integer) getField(step, "indeX")).intValue(); //$NON-NLS-1$
+        Distribution dist = split.distribution();
+        double missingWeight = dist.perBag(index) / dist.total();
+        int att;
+        double splitPoint;
+        boolean binary;
+        if (split instanceof C45Split) {
+          att = ((C45Split) split).attIndex();
+          splitPoint = ((C45Split) split).splitPoint();
+          binary = false;
+        } else if (split instanceof BinC45Split) {
+          att = ((BinC45Split) split).attIndex();
+          splitPoint = ((BinC45Split) split).splitPoint();
+          binary = true;
+        } else {
+          return null;
+        }
+
+        if (header.attribute(att).isNominal()) {
+          if (!binary) {
+            spec.addCondition(NOMINAL_EQUALS, att, index, missingWeight);
+          } else {
+            spec.addCondition((index == 0) ? NOMINAL_EQUALS
+                : NOMINAL_NOT_EQUALS, att, (int) splitPoint, missingWeight);
+          }
+        } else {
+          spec.addCondition((index == 0) ? NUMERIC_LE_TOLERANCE
+              : NUMERIC_GT_TOLERANCE, att, splitPoint, missingWeight);
+        }
+      }
+    }
+    return new WekaScoringRuleEngine(KIND_PART, numClasses, spec, -1, null,
+        null, -1);
+  }
+
+  private static WekaScoringRuleEngine compileOneR(OneR model)
+      throws Exception {
+    if (getField(model, "m_ZeroR") != null) { //$NON-NLS-1$
+      return null;
+    }
+    Object rule = getField(model, "m_rule"); //$NON-NLS-1$
+    if (rule == null) {
+      return null;
+    }
+    Attribute att = (Attribute) getField(rule, "m_attr"); //$NON-NLS-1$
+    Attribute classAtt = (Attribute) getField(rule, "m_class"); //$NON-NLS-1$
+    int[] classifications = (int[]) getField(rule, "m_classifications"); //$NON-NLS-1$
+    int missingClass = ((Integer) getField(rule, "m_missingValueClass")) //$NON-NLS-1$
+        .intValue();
+    double[] breakpoints = null;
+    if (!att.isNominal()) {
+      breakpoints = ((double[]) getField(rule, "m_breakpoints")).clone(); //$NON-NLS-1$
+      for (int i = 1; i < breakpoints.length; i++) {
+        if (!(breakpoints[i - 1] <= breakpoints[i])) {
+          // not sorted, so bisection would not match the linear scan
+          // nao ordenados, entao a bissecao nao seria igual a busca linear
+          return null;
+        }
+      }
+    }
+
+    return new WekaScoringRuleEngine(KIND_ONER, classAtt.numValues(), null,
+        att.index(), breakpoints, classifications.clone(), missingClass);
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    if (m_kind == KIND_ONER) {
+      double[] dist = new double[m_numClasses];
+      dist[oneRClass(inst)] = 1.0;
+      return dist;
+    }
+    int words = (m_type.length + 63) >>> 6;
+    return distribution(inst, new long[words], new long[words]);
+  }
+
+  @Override
+  double classifyInstance(Instance inst) throws Exception {
+    if (m_kind == KIND_ONER) {
+      return oneRClass(inst);
+    }
+    if (m_kind != KIND_PART) {
+      return super.classifyInstance(inst);
+    }
+
+    // same tie breaking as MakeDecList.classifyInstance()
+    // mesmo desempate do MakeDecList.classifyInstance()
+    double[] probs = distributionForInstance(inst);
+    double maxProb = -1;
+    int maxIndex = 0;
+    for (int j = 0; j < probs.length; j++) {
+      if (Utils.gr(probs[j], maxProb)) {
+        maxIndex = j;
+        maxProb = probs[j];
+      }
+    }
+    return maxIndex;
+  }
+
+  @Override
+  double[][] distributionsForInstances(Instances insts) throws Exception {
+    if (m_kind == KIND_ONER) {
+      return super.distributionsForInstances(insts);
+    }
+
+    // the bitsets are cleared and reused for each row
+    // os conjuntos de bits sao limpos e reutilizados para cada linha
+    int words = (m_type.length + 63) >>> 6;
+    long[] evaluated = new long[words];
+    long[] satisfied = new long[words];
+    double[][] result = new double[insts.numInstances()][];
+    for (int i = 0; i < result.length; i++) {
+      for (int w = 0; w < words; w++) {
+        evaluated[w] = 0;
+        satisfied[w] = 0;
+      }
+      result[i] = distribution(insts.instance(i), evaluated, satisfied);
+    }
+    return result;
+  }
+
+  private double[] distribution(Instance inst, long[] evaluated,
+      long[] satisfied) {
+    int numRules = m_ruleStart.length - 1;
+    if (m_kind == KIND_JRIP) {
+      for (int r = 0; r < numRules; r++) {
+        if (covers(r, inst, evaluated, satisfied)) {
+          double[] dist = new double[m_numClasses];
+          System.arraycopy(m_distributions, r * m_numClasses, dist, 0,
+              m_numClasses);
+          return dist;
+        }
+      }
+      return new double[m_numClasses];
+    }
+
+    // PART: as MakeDecList.distributionForInstance(), the weight of a rule
+    // multiplied from the leaf up and its probabilities from the root down
+    // PART: como MakeDecList.distributionForInstance(), o peso de uma regra
+    // multiplicado da folha para cima e as suas probabilidades da raiz para
+    // baixo
+    double[] sumProbs = new double[m_numClasses];
+    double weight = 1.0;
+    for (int r = 0; r < numRules && Utils.gr(weight, 0.0); r++) {
+      double pathWeight = 1.0;
+      boolean passes = true;
+      for (int c = m_ruleStart[r]; c < m_ruleStart[r + 1]; c++) {
+        int p = m_conditions[c];
+        if (inst.isMissing(m_attribute[p])) {
+          pathWeight = m_missingWeight[c] * pathWeight;
+        } else if (!holds(p, inst, evaluated, satisfied)) {
+          passes = false;
+          break;
+        }
+      }
+      if (!passes) {
+        continue;
+      }
+      double ruleWeight = 1.0;
+      for (int c = m_ruleStart[r + 1] - 1; c >= m_ruleStart[r]; c--) {
+        if (inst.isMissing(m_attribute[m_conditions[c]])) {
+          ruleWeight = m_missingWeight[c] * ruleWeight;
+        }
+      }
+      if (Utils.gr(ruleWeight, 0.0)) {
+        int offset = r * m_numClasses;
+        for (int j = 0; j < m_numClasses; j++) {
+          sumProbs[j] += weight * (pathWeight * m_distributions[offset + j]);
+        }
+        weight *= 1.0 - ruleWeight;
+      }
+    }
+    return sumProbs;
+  }
+
+  /**
+   * JRip: true if every condition of the rule holds. A missing value fails
+   * the condition.
+   *
+   * JRip: verdadeiro se todas as condicoes da regra forem verdadeiras. Um
+   * valor ausente falha a condicao.
+   */
+  private boolean covers(int rule, Instance inst, long[] evaluated,
+      long[] satisfied) {
+    for (int c = m_ruleStart[rule]; c < m_ruleStart[rule + 1]; c++) {
+      int p = m_conditions[c];
+      if (inst.isMissing(m_attribute[p])
+          || !holds(p, inst, evaluated, satisfied)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Evaluate a predicate on a value that is not missing, or look the result
+   * up if another rule has already evaluated it for this row.
+   *
+   * Avalia um predicado em um valor que nao esta ausente, ou busca o
+   * resultado se outra regra ja o avaliou para esta linha.
+   */
+  private boolean holds(int p, Instance inst, long[] evaluated,
+      long[] satisfied) {
+    int word = p >>> 6;
+    long bit = 1L << (p & 63);
+    if ((evaluated[word] & bit) == 0) {
+      evaluated[word] |= bit;
+      double value = inst.value(m_attribute[p]);
+      boolean result;
+      switch (m_type[p]) {
+      case NOMINAL_EQUALS:
+        result = (int) value == (int) m_value[p];
+        break;
+      case NOMINAL_NOT_EQUALS:
+        result = (int) value != (int) m_value[p];
+        break;
+      case NUMERIC_LE:
+        result = !(value > m_value[p]);
+        break;
+      case NUMERIC_GE:
+        result = !(value < m_value[p]);
+        break;
+      case NUMERIC_LE_TOLERANCE:
+        result = Utils.smOrEq(value, m_value[p]);
+        break;
+      default:
+        result = !Utils.smOrEq(value, m_value[p]);
+      }
+      if (result) {
+        satisfied[word] |= bit;
+      }
+    }
+    return (satisfied[word] & bit) != 0;
+  }
+
+  /**
+   * OneR: the class of the interval or value of the rule's attribute, as in
+   * OneR.classifyInstance().
+   *
+   * OneR: a classe do intervalo ou valor do atributo da regra, como em
+   * OneR.classifyInstance().
+   */
+  private int oneRClass(Instance inst) {
+    if (inst.isMissing(m_oneRAttribute)) {
+      return (m_missingClass != -1) ? m_missingClass : 0;
+    }
+    double value = inst.value(m_oneRAttribute);
+    int v;
+    if (m_breakpoints == null) {
+      v = (int) value;
+    } else {
+      // the number of leading breakpoints that the value is not below
+      // o numero de pontos de corte iniciais dos quais o valor nao e menor
+      int low = 0;
+      int high = m_breakpoints.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (value >= m_breakpoints[mid]) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      v = low;
+    }
+    return m_classifications[v];
+  }
+}
@@ -0,0 +1,149 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * A loaded model that is handed out to several copies of the step. Models
+ * that can score for several threads at once (compiled models and thread-safe
+ * Weka models) are handed out as a single instance. Other models are kept as
+ * their serialized bytes and every user gets a private copy, so that copies of
+ * the step never wait on each other.
+ *
+ * PT-BR
+ *
+ * Um modelo carregado que e entregue a varias copias do step (passo).
+ * Modelos que podem pontuar para varias threads ao mesmo tempo (modelos
+ * compilados e modelos Weka seguros entre threads) sao entregues como uma
+ * unica instancia. Os outros modelos sao mantidos como os seus bytes
+ * serializados e cada usuario recebe uma copia privada, para que as copias do
+ * step nunca esperem umas pelas outras.
+ */
+class WekaScoringSharedModel {
+
+  /** the single instance, if the model can be shared
+   *  a instancia unica, se o modelo puder ser compartilhado
+   */
+  private final WekaScoringModel m_shared;
+
+  /** the serialized model, if every user needs a private copy
+   *  o modelo serializado, se cada usuario precisar de uma copia privada
+   */
+  private final byte[] m_serialized;
+
+  private final double m_neighbourSearchRecall;
+  private final long m_loadedSize;
+
+  /**
+   * Creates a new <code>WekaScoringSharedModel</code>
+   *
+   * PT-BR
+   *
+   * Cria um novo WekaScoringSharedModel
+   *
+   * @param model the loaded model
+   *              o modelo carregado
+   * @throws Exception if a model that can't be shared can't be serialized
+   *                   se um modelo que nao pode ser compartilhado nao puder
+   *                   ser serializado
+   */
+  WekaScoringSharedModel(WekaScoringModel model) throws Exception {
+    m_neighbourSearchRecall = model.getNeighbourSearchRecall();
+    m_loadedSize = model.getLoadedSize();
+    if (model.isShareable()) {
+      m_shared = model;
+      m_serialized = null;
+    } else {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(bos);
+      oos.writeObject(model);
+      oos.close();
+      m_shared = null;
+      m_serialized = bos.toByteArray();
+    }
+  }
+
+  /**
+   * Returns true if every user gets the same instance of the model.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se todos os usuarios recebem a mesma instancia do
+   * modelo.
+   *
+   * @return true if the model is shared
+   *              se o modelo e compartilhado
+   */
+  boolean isShared() {
+    return m_shared != null;
+  }
+
+  /**
+   * Get the model for a new user: the shared instance, or a private copy
+   * made from the serialized bytes.
+   *
+   * PT-BR
+   *
+   * Retorna o modelo para um novo usuario: a instancia compartilhada, ou uma
+   * copia privada feita a partir dos bytes serializados.
+   *
+   * @return the model
+   *         o modelo
+   * @throws Exception if the private copy can't be made
+   *                   se a copia privada nao puder ser feita
+   */
+  WekaScoringModel get() throws Exception {
+    if (m_shared != null) {
+      return m_shared;
+    }
+
+    ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+        m_serialized));
+    WekaScoringModel copy;
+    try {
+      copy = (WekaScoringModel) ois.readObject();
+    } finally {
+      ois.close();
+    }
+    // transient settings are lost by the copy
+    // configuracoes transientes sao perdidas pela copia
+    copy.setNeighbourSearchRecall(m_neighbourSearchRecall);
+    copy.setLoadedSize(m_loadedSize);
+    return copy;
+  }
+
+  /**
+   * Get the shared instance of the model.
+   *
+   * PT-BR
+   *
+   * Retorna a instancia compartilhada do modelo.
+   *
+   * @return the shared model, or null if every user gets a private copy
+   *         o modelo compartilhado, ou null se cada usuario recebe uma copia
+   *         privada
+   */
+  WekaScoringModel getShared() {
+    return m_shared;
+  }
+}
@@ -0,0 +1,328 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+
+import weka.classifiers.rules.DecisionTable;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Discretize;
+
+/**
+ * Compiled engine for DecisionTable. The values of the features in the table
+ * (discretized with the table's cut points, or nominal) are encoded into one
+ * long, and the entries of the table are kept in an open addressing hash
+ * table of those longs with their normalized distributions alongside. A row
+ * is looked up without building an Instance, filtering it or hashing a
+ * DecisionTableHashKey.
+ *
+ * PT-BR
+ *
+ * Motor compilado para o DecisionTable. Os valores dos atributos da tabela
+ * (discretizados com os pontos de corte da tabela, ou nominais) sao
+ * codificados em um long, e as entradas da tabela sao guardadas em uma
+ * tabela hash de enderecamento aberto desses longs com as suas distribuicoes
+ * normalizadas ao lado. Uma linha e buscada sem construir uma Instance,
+ * filtra-la ou calcular o hash de uma DecisionTableHashKey.
+ */
+class WekaScoringTableEngine extends WekaScoringEngine {
+
+  /** marks an empty slot (encoded keys are never negative)
+   *  marca uma posicao vazia (chaves codificadas nunca sao negativas)
+   */
+  private static final long EMPTY = -1;
+
+  private final DecisionTable m_model;
+
+  // per feature: index of the attribute, cut points (null for a nominal
+  // attribute) and multiplier in the encoded key
+  // por atributo da tabela: indice do atributo, pontos de corte (null para
+  // um atributo nominal) e multiplicador na chave codificada
+  private final int[] m_attribute;
+  private final double[][] m_cutPoints;
+  private final long[] m_multiplier;
+
+  // hash table: encoded keys and the entries they map to
+  // tabela hash: chaves codificadas e as entradas para as quais apontam
+  private final long[] m_keys;
+  private final int[] m_entries;
+  private final int m_mask;
+
+  // the distribution of each entry, and the distribution for a row that is
+  // not in the table (null if the table falls back to IBk)
+  // a distribuicao de cada entrada, e a distribuicao para uma linha que nao
+  // esta na tabela (null se a tabela recorre ao IBk)
+  private final int m_width;
+  private final double[] m_distributions;
+  private final double[] m_default;
+
+  private WekaScoringTableEngine(DecisionTable model, int[] attribute,
+      double[][] cutPoints, long[] multiplier, long[] entryKeys,
+      double[] distributions, int width, double[] defaultDistribution) {
+    m_model = model;
+    m_attribute = attribute;
+    m_cutPoints = cutPoints;
+    m_multiplier = multiplier;
+    m_width = width;
+    m_distributions = distributions;
+    m_default = defaultDistribution;
+
+    int capacity = 16;
+    while (capacity < 2 * entryKeys.length) {
+      capacity *= 2;
+    }
+    m_mask = capacity - 1;
+    m_keys = new long[capacity];
+    m_entries = new int[capacity];
+    Arrays.fill(m_keys, EMPTY);
+    for (int e = 0; e < entryKeys.length; e++) {
+      int slot = slot(entryKeys[e]);
+      while (m_keys[slot] != EMPTY) {
+        slot = (slot + 1) & m_mask;
+      }
+      m_keys[slot] = entryKeys[e];
+      m_entries[slot] = e;
+    }
+  }
+
+  /**
+   * Compile a DecisionTable. Returns null for any other model, and for
+   * tables whose keys do not fit in a long.
+   *
+   * PT-BR
+   *
+   * Compila um DecisionTable. Retorna null para qualquer outro modelo, e
+   * para tabelas cujas chaves nao cabem em um long.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the model can't be read
+   *                   se a estrutura do modelo nao puder ser lida
+   */
+  static WekaScoringTableEngine compile(Object model, Instances header)
+      throws Exception {
+    if (model.getClass() != DecisionTable.class) {
+      return null;
+    }
+    DecisionTable table = (DecisionTable) model;
+    Hashtable<?, ?> entries = (Hashtable<?, ?>) getField(model, "m_entries"); //$NON-NLS-1$
+    int[] features = (int[]) getField(model, "m_decisionFeatures"); //$NON-NLS-1$
+    Filter discretize = (Filter) getField(model, "m_disTransform"); //$NON-NLS-1$
+    if (entries == null || features == null || discretize == null) {
+      return null;
+    }
+    Instances input = (Instances) getField(discretize, "m_InputFormat"); //$NON-NLS-1$
+    Instances output = discretize.getOutputFormat();
+    if (input == null || output == null
+        || input.numAttributes() != output.numAttributes()) {
+      return null;
+    }
+    // nominal class: supervised discretization; numeric class: 10 bins
+    // classe nominal: discretizacao supervisionada; classe numerica: 10
+    // intervalos
+    weka.filters.supervised.attribute.Discretize supervised = null;
+    Discretize unsupervised = null;
+    if (discretize instanceof weka.filters.supervised.attribute.Discretize) {
+      supervised = (weka.filters.supervised.attribute.Discretize) discretize;
+      if (supervised.getMakeBinary()) {
+        return null;
+      }
+    } else if (discretize instanceof Discretize) {
+      unsupervised = (Discretize) discretize;
+      if (unsupervised.getMakeBinary()) {
+        return null;
+      }
+    } else {
+      return null;
+    }
+    int classIndex = input.classIndex();
+    boolean nominalClass = ((Boolean) getField(model, "m_classIsNominal")) //$NON-NLS-1$
+        .booleanValue();
+
+    // the table keeps its features in the order of m_decisionFeatures (the
+    // order in which Remove is given them), the class among them
+    // a tabela guarda os seus atributos na ordem de m_decisionFeatures (a
+    // ordem em que sao passados ao Remove), a classe entre eles
+    int[] kept = features.clone();
+    int numFeatures = 0;
+    int[] attribute = new int[kept.length];
+    double[][] cutPoints = new double[kept.length][];
+    long[] multiplier = new long[kept.length];
+    int[] radix = new int[kept.length];
+    long range = 1;
+    for (int p = 0; p < kept.length; p++) {
+      int att = kept[p];
+      if (att == classIndex) {
+        continue;
+      }
+      Attribute in = input.attribute(att);
+      if (!output.attribute(att).isNominal()) {
+        return null;
+      }
+      int numValues;
+      if (in.isNominal()) {
+        numValues = in.numValues();
+      } else if (in.isNumeric()) {
+        double[] cuts = (supervised != null) ? supervised.getCutPoints(att)
+            : unsupervised.getCutPoints(att);
+        // no cut points: every value falls in the one bin
+        // sem pontos de corte: todos os valores caem no unico intervalo
+        cutPoints[numFeatures] = (cuts == null) ? new double[0] : cuts.clone();
+        numValues = cutPoints[numFeatures].length + 1;
+      } else {
+        return null;
+      }
+
+      // code 0 for a missing value, value + 1 otherwise
+      // codigo 0 para um valor ausente, valor + 1 caso contrario
+      if (range > Long.MAX_VALUE / (numValues + 1)) {
+        return null;
+      }
+      attribute[numFeatures] = att;
+      multiplier[numFeatures] = range;
+      radix[numFeatures] = numValues + 1;
+      range *= numValues + 1;
+      numFeatures++;
+    }
+    attribute = Arrays.copyOf(attribute, numFeatures);
+    cutPoints = Arrays.copyOf(cutPoints, numFeatures);
+    multiplier = Arrays.copyOf(multiplier, numFeatures);
+
+    int width = nominalClass ? input.classAttribute().numValues() : 1;
+    long[] entryKeys = new long[entries.size()];
+    double[] distributions = new double[entries.size() * width];
+    int e = 0;
+    for (Map.Entry<?, ?> entry : entries.entrySet()) {
+      double[] values = (double[]) getField(entry.getKey(), "attributes"); //$NON-NLS-1$
+      boolean[] missing = (boolean[]) getField(entry.getKey(), "missing"); //$NON-NLS-1$
+      if (values.length != kept.length) {
+        return null;
+      }
+      long key = 0;
+      int f = 0;
+      for (int p = 0; p < kept.length; p++) {
+        if (kept[p] == classIndex) {
+          continue;
+        }
+        if (!missing[p]) {
+          int code = (int) values[p] + 1;
+          if (code != values[p] + 1 || code < 1 || code >= radix[f]) {
+            return null;
+          }
+          key += code * multiplier[f];
+        }
+        f++;
+      }
+      entryKeys[e] = key;
+
+      // as DecisionTable.distributionForInstance()
+      // como DecisionTable.distributionForInstance()
+      double[] dist = (double[]) entry.getValue();
+      if (nominalClass) {
+        double[] normDist = dist.clone();
+        Utils.normalize(normDist);
+        System.arraycopy(normDist, 0, distributions, e * width, width);
+      } else {
+        distributions[e] = dist[0] / dist[1];
+      }
+      e++;
+    }
+
+    double[] defaultDistribution = null;
+    if (!table.getUseIBk()) {
+      defaultDistribution = nominalClass ? ((double[]) getField(model,
+          "m_classPriors")).clone() //$NON-NLS-1$
+          : new double[] { ((Double) getField(model, "m_majority")) //$NON-NLS-1$
+              .doubleValue() };
+    }
+    return new WekaScoringTableEngine(table, attribute, cutPoints,
+        multiplier, entryKeys, distributions, width, defaultDistribution);
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    long key = 0;
+    for (int f = 0; f < m_attribute.length; f++) {
+      double value = inst.value(m_attribute[f]);
+      if (Utils.isMissingValue(value)) {
+        continue;
+      }
+      key += (bin(f, value) + 1) * m_multiplier[f];
+    }
+
+    int slot = slot(key);
+    while (m_keys[slot] != EMPTY) {
+      if (m_keys[slot] == key) {
+        double[] dist = new double[m_width];
+        System.arraycopy(m_distributions, m_entries[slot] * m_width, dist, 0,
+            m_width);
+        return dist;
+      }
+      slot = (slot + 1) & m_mask;
+    }
+
+    if (m_default != null) {
+      return m_default.clone();
+    }
+    // the table's IBk (and its filters) are stateful
+    // o IBk da tabela (e os seus filtros) tem estado
+    synchronized (m_model) {
+      return m_model.distributionForInstance(inst);
+    }
+  }
+
+  /**
+   * The bin of a value, as Discretize.convertInstance() finds it: the first
+   * cut point that the value is not above.
+   *
+   * O intervalo de um valor, como Discretize.convertInstance() o encontra: o
+   * primeiro ponto de corte do qual o valor nao e maior.
+   */
+  private int bin(int feature, double value) {
+    double[] cuts = m_cutPoints[feature];
+    if (cuts == null) {
+      return (int) value;
+    }
+    int low = 0;
+    int high = cuts.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (value <= cuts[mid]) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return low;
+  }
+
+  private int slot(long key) {
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & m_mask;
+  }
+}
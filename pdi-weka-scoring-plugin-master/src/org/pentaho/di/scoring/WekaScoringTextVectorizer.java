@@ -0,0 +1,604 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Range;
+import weka.core.SparseInstance;
+import weka.core.stemmers.NullStemmer;
+import weka.core.stemmers.Stemmer;
+import weka.core.tokenizers.AlphabeticTokenizer;
+import weka.core.tokenizers.Tokenizer;
+import weka.core.tokenizers.WordTokenizer;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.StringToWordVector;
+
+/**
+ * A trained StringToWordVector filter compiled for scoring. The dictionary is
+ * held in an open addressing table from the characters of a term to its
+ * attribute index, and the text of a row is tokenized by scanning its
+ * characters and probing the table with each token in place, so no token
+ * strings are created unless a stemmer has to see them. The step hands the
+ * strings of a row straight to the vectorizer instead of storing them in a
+ * string attribute of the header, and gets back a SparseInstance of the word
+ * vector the filter would have output.
+ *
+ * PT-BR
+ *
+ * Um filtro StringToWordVector treinado compilado para pontuacao. O
+ * dicionario e mantido em uma tabela de enderecamento aberto dos caracteres
+ * de um termo para o indice do seu atributo, e o texto de uma linha e
+ * dividido em tokens percorrendo os seus caracteres e consultando a tabela
+ * com cada token no lugar, de modo que nenhuma String de token e criada a
+ * menos que um stemmer precise ve-la. O step (passo) entrega as Strings de
+ * uma linha diretamente ao vetorizador em vez de guarda-las em um atributo
+ * String do cabecalho, e recebe de volta uma SparseInstance do vetor de
+ * palavras que o filtro teria produzido.
+ */
+class WekaScoringTextVectorizer {
+
+  // tokenizers / tokenizadores
+  private static final int WORD = 0;
+  private static final int ALPHABETIC = 1;
+
+  /** header of the word vectors, which also marks them as vectorized
+   *  cabecalho dos vetores de palavras, que tambem os marca como vetorizados
+   */
+  private final WekaScoringPreprocessor.Transformed m_outputFormat;
+
+  /** per input attribute: true if its text is tokenized
+   *  por atributo de entrada: verdadeiro se o seu texto e dividido em tokens
+   */
+  private final boolean[] m_selected;
+
+  /** per input attribute: the output attribute it is copied to, or -1
+   *  por atributo de entrada: o atributo de saida para o qual e copiado, ou -1
+   */
+  private final int[] m_copy;
+
+  /** the number of attributes copied ahead of the words
+   *  o numero de atributos copiados antes das palavras
+   */
+  private final int m_firstWord;
+
+  // the dictionary: slots hold a term number + 1, or 0 when empty
+  // o dicionario: as posicoes guardam o numero de um termo + 1, ou 0 quando
+  // vazias
+  private final int[] m_slots;
+  private final char[][] m_terms;
+  private final int[] m_termIndex;
+
+  // the tokenizer and how its tokens become terms
+  // o tokenizador e como os seus tokens se tornam termos
+  private final int m_tokenizer;
+  private final boolean[] m_asciiDelimiter;
+  private final String m_delimiters;
+  private final boolean m_lowerCase;
+  private final boolean m_asciiLowerCase;
+  private final Stemmer m_stemmer;
+
+  // the values of the words
+  // os valores das palavras
+  private final boolean m_outputCounts;
+  private final boolean m_tfTransform;
+  private final double[] m_idf;
+  private final boolean m_normalize;
+  private final double m_avgDocLength;
+
+  /**
+   * The values of one row while its text is tokenized. Reused from row to
+   * row by the thread that owns it.
+   *
+   * Os valores de uma linha enquanto o seu texto e dividido em tokens.
+   * Reutilizado de linha em linha pela thread a qual pertence.
+   */
+  static class Document {
+    final double[] m_values;
+    final boolean[] m_present;
+    final int[] m_touched;
+    int m_count;
+
+    Document(int numOutputs) {
+      m_values = new double[numOutputs];
+      m_present = new boolean[numOutputs];
+      m_touched = new int[numOutputs];
+    }
+
+    void set(int index, double value) {
+      if (!m_present[index]) {
+        m_present[index] = true;
+        m_touched[m_count++] = index;
+      }
+      m_values[index] = value;
+    }
+  }
+
+  private WekaScoringTextVectorizer(StringToWordVector filter,
+      Instances input, Instances outputFormat, Map<?, ?> dictionary,
+      int tokenizer, String delimiters, Stemmer stemmer) throws Exception {
+    m_outputFormat = new WekaScoringPreprocessor.Transformed(outputFormat, 0,
+        this);
+    Range selected = (Range) WekaScoringEngine.getField(filter,
+        "m_SelectedRange"); //$NON-NLS-1$
+    m_selected = new boolean[input.numAttributes()];
+    m_copy = new int[input.numAttributes()];
+    int copies = 0;
+    for (int i = 0; i < m_selected.length; i++) {
+      m_selected[i] = selected.isInRange(i);
+      m_copy[i] = m_selected[i] ? -1 : copies++;
+    }
+    m_firstWord = copies;
+
+    int size = 16;
+    while (size < dictionary.size() * 2) {
+      size <<= 1;
+    }
+    m_slots = new int[size];
+    m_terms = new char[dictionary.size()][];
+    m_termIndex = new int[dictionary.size()];
+    int t = 0;
+    for (Map.Entry<?, ?> e : dictionary.entrySet()) {
+      String term = (String) e.getKey();
+      m_terms[t] = term.toCharArray();
+      m_termIndex[t] = ((Integer) e.getValue()).intValue();
+      int slot = hash(term, 0, term.length(), false) & (size - 1);
+      while (m_slots[slot] != 0) {
+        slot = (slot + 1) & (size - 1);
+      }
+      m_slots[slot] = ++t;
+    }
+
+    m_tokenizer = tokenizer;
+    m_delimiters = delimiters;
+    m_asciiDelimiter = new boolean[128];
+    if (delimiters != null) {
+      for (int i = 0; i < delimiters.length(); i++) {
+        if (delimiters.charAt(i) < 128) {
+          m_asciiDelimiter[delimiters.charAt(i)] = true;
+        }
+      }
+    }
+    m_lowerCase = filter.getLowerCaseTokens();
+    // String.toLowerCase() lowercases ASCII as expected except for the
+    // dotted and dotless i of the Turkic locales
+    // String.toLowerCase() converte ASCII como esperado exceto pelo i com e
+    // sem ponto das localidades turcas
+    String language = Locale.getDefault().getLanguage();
+    m_asciiLowerCase = !"tr".equals(language) && !"az".equals(language); //$NON-NLS-1$ //$NON-NLS-2$
+    m_stemmer = stemmer;
+
+    m_outputCounts = filter.getOutputWordCounts();
+    m_tfTransform = filter.getTFTransform();
+    if (filter.getIDFTransform()) {
+      int[] docsCounts = (int[]) WekaScoringEngine.getField(filter,
+          "m_DocsCounts"); //$NON-NLS-1$
+      double numInstances = ((Integer) WekaScoringEngine.getField(filter,
+          "m_NumInstances")).intValue(); //$NON-NLS-1$
+      m_idf = new double[outputFormat.numAttributes()];
+      for (int i = m_firstWord; i < m_idf.length; i++) {
+        m_idf[i] = Math.log(numInstances / docsCounts[i]);
+      }
+    } else {
+      m_idf = null;
+    }
+    m_normalize = filter.getNormalizeDocLength().getSelectedTag().getID()
+        != StringToWordVector.FILTER_NONE;
+    m_avgDocLength = ((Double) WekaScoringEngine.getField(filter,
+        "m_AvgDocLength")).doubleValue(); //$NON-NLS-1$
+  }
+
+  /**
+   * Compile a trained StringToWordVector filter. Returns null for any other
+   * filter, for a tokenizer other than WordTokenizer and AlphabeticTokenizer,
+   * or if attributes it copies hold strings or relations, since their values
+   * live in the header.
+   *
+   * PT-BR
+   *
+   * Compila um filtro StringToWordVector treinado. Retorna null para qualquer
+   * outro filtro, para um tokenizador diferente de WordTokenizer e
+   * AlphabeticTokenizer, ou se atributos que ele copia contem Strings ou
+   * relacoes, ja que os seus valores ficam no cabecalho.
+   *
+   * @param filter the trained filter
+   *               o filtro treinado
+   * @param header the header the step converts rows against (may be null)
+   *               o cabecalho com o qual o step (passo) converte as linhas
+   *               (pode ser null)
+   * @param outputFormat the header of the word vectors
+   *                     o cabecalho dos vetores de palavras
+   * @return the compiled vectorizer or null
+   *         o vetorizador compilado ou null
+   * @throws Exception if the state of the filter can't be read
+   *                   se o estado do filtro nao puder ser lido
+   */
+  static WekaScoringTextVectorizer compile(Filter filter, Instances header,
+      Instances outputFormat) throws Exception {
+    if (filter == null || filter.getClass() != StringToWordVector.class
+        || !filter.isFirstBatchDone()) {
+      return null;
+    }
+    StringToWordVector s2wv = (StringToWordVector) filter;
+    Instances input = (Instances) WekaScoringEngine.getField(filter,
+        "m_InputFormat"); //$NON-NLS-1$
+    Map<?, ?> dictionary = (Map<?, ?>) WekaScoringEngine.getField(filter,
+        "m_Dictionary"); //$NON-NLS-1$
+    Range selected = (Range) WekaScoringEngine.getField(filter,
+        "m_SelectedRange"); //$NON-NLS-1$
+    if (input == null || dictionary == null || selected == null
+        || (header != null && !header.equalHeaders(input))) {
+      return null;
+    }
+
+    int copies = 0;
+    for (int i = 0; i < input.numAttributes(); i++) {
+      if (!selected.isInRange(i)) {
+        if (input.attribute(i).isString()
+            || input.attribute(i).isRelationValued()) {
+          return null;
+        }
+        copies++;
+      }
+    }
+    if (outputFormat.numAttributes() != copies + dictionary.size()) {
+      return null;
+    }
+
+    Tokenizer tokenizer = s2wv.getTokenizer();
+    int kind;
+    String delimiters = null;
+    if (tokenizer.getClass() == WordTokenizer.class) {
+      // StringTokenizer only works on code points when its delimiters hold
+      // surrogates
+      // StringTokenizer so trabalha com code points quando os seus
+      // delimitadores contem surrogates
+      delimiters = ((WordTokenizer) tokenizer).getDelimiters();
+      for (int i = 0; i < delimiters.length(); i++) {
+        if (Character.isSurrogate(delimiters.charAt(i))) {
+          return null;
+        }
+      }
+      kind = WORD;
+    } else if (tokenizer.getClass() == AlphabeticTokenizer.class) {
+      kind = ALPHABETIC;
+    } else {
+      return null;
+    }
+    Stemmer stemmer = s2wv.getStemmer();
+    if (stemmer == null || stemmer.getClass() == NullStemmer.class) {
+      stemmer = null;
+    }
+
+    return new WekaScoringTextVectorizer(s2wv, input, outputFormat,
+        dictionary, kind, delimiters, stemmer);
+  }
+
+  /**
+   * Get the header that word vectors are built against.
+   *
+   * PT-BR
+   *
+   * Retorna o cabecalho com o qual os vetores de palavras sao construidos.
+   *
+   * @return the header of the word vectors
+   *         o cabecalho dos vetores de palavras
+   */
+  Instances getOutputFormat() {
+    return m_outputFormat;
+  }
+
+  /**
+   * Create an empty batch for word vectors.
+   *
+   * PT-BR
+   *
+   * Cria um lote vazio para vetores de palavras.
+   *
+   * @param capacity the expected number of instances
+   *                 o numero esperado de instancias
+   * @return the empty batch
+   *         o lote vazio
+   */
+  Instances newBatch(int capacity) {
+    return new WekaScoringPreprocessor.Transformed(m_outputFormat, capacity,
+        this);
+  }
+
+  /**
+   * Returns true if the supplied header holds word vectors of this
+   * vectorizer.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se o cabecalho fornecido contem vetores de palavras
+   * deste vetorizador.
+   *
+   * @param header the header to check
+   *               o cabecalho a verificar
+   * @return true for word vectors
+   *         verdadeiro para vetores de palavras
+   */
+  boolean isTransformed(Instances header) {
+    return header instanceof WekaScoringPreprocessor.Transformed
+        && ((WekaScoringPreprocessor.Transformed) header).m_preprocessor == this;
+  }
+
+  /**
+   * Create the values of a row, to be reused by one thread.
+   *
+   * PT-BR
+   *
+   * Cria os valores de uma linha, para serem reutilizados por uma thread.
+   *
+   * @return an empty document
+   *         um documento vazio
+   */
+  Document newDocument() {
+    return new Document(m_outputFormat.numAttributes());
+  }
+
+  /**
+   * Returns true if the text of the supplied input attribute is tokenized.
+   *
+   * PT-BR
+   *
+   * Retorna verdadeiro se o texto do atributo de entrada fornecido e
+   * dividido em tokens.
+   *
+   * @param input the index of the input attribute
+   *              o indice do atributo de entrada
+   * @return true if the attribute holds text
+   *         verdadeiro se o atributo contem texto
+   */
+  boolean isText(int input) {
+    return m_selected[input];
+  }
+
+  /**
+   * Set the value of an input attribute that is copied to the output.
+   *
+   * PT-BR
+   *
+   * Define o valor de um atributo de entrada que e copiado para a saida.
+   *
+   * @param doc the values of the row
+   *            os valores da linha
+   * @param input the index of the input attribute
+   *              o indice do atributo de entrada
+   * @param value the value
+   *              o valor
+   */
+  void setValue(Document doc, int input, double value) {
+    if (m_copy[input] >= 0 && value != 0) {
+      doc.set(m_copy[input], value);
+    }
+  }
+
+  /**
+   * Add the words of the text of an input attribute.
+   *
+   * PT-BR
+   *
+   * Adiciona as palavras do texto de um atributo de entrada.
+   *
+   * @param doc the values of the row
+   *            os valores da linha
+   * @param input the index of the input attribute
+   *              o indice do atributo de entrada
+   * @param text the text, or null if missing
+   *             o texto, ou null se ausente
+   */
+  void addText(Document doc, int input, String text) {
+    if (text == null || !m_selected[input]) {
+      return;
+    }
+    int n = text.length();
+    int pos = 0;
+    while (pos < n) {
+      while (pos < n && !isTokenChar(text.charAt(pos))) {
+        pos++;
+      }
+      int start = pos;
+      while (pos < n && isTokenChar(text.charAt(pos))) {
+        pos++;
+      }
+      if (pos > start) {
+        int index = lookup(text, start, pos);
+        if (index >= 0) {
+          doc.set(index, (m_outputCounts && doc.m_present[index]) ? doc
+              .m_values[index] + 1.0 : 1.0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Build the word vector of a row and clear the document for the next one.
+   *
+   * PT-BR
+   *
+   * Constroi o vetor de palavras de uma linha e limpa o documento para a
+   * proxima.
+   *
+   * @param doc the values of the row
+   *            os valores da linha
+   * @param weight the weight of the instance
+   *               o peso da instancia
+   * @return the word vector
+   *         o vetor de palavras
+   */
+  Instance toInstance(Document doc, double weight) {
+    Arrays.sort(doc.m_touched, 0, doc.m_count);
+    int count = 0;
+    double docLength = 0;
+    for (int k = 0; k < doc.m_count; k++) {
+      int index = doc.m_touched[k];
+      double value = doc.m_values[index];
+      doc.m_values[index] = 0;
+      doc.m_present[index] = false;
+      if (index >= m_firstWord) {
+        if (m_tfTransform) {
+          value = Math.log(value + 1.0);
+        }
+        if (m_idf != null) {
+          value *= m_idf[index];
+        }
+        docLength += value * value;
+      }
+      // zeros are left out of a sparse instance, as the filter's are
+      // zeros ficam fora de uma instancia esparsa, como as do filtro
+      if (value != 0) {
+        doc.m_touched[count++] = index;
+        doc.m_values[index] = value;
+      }
+    }
+    doc.m_count = 0;
+
+    int[] indices = new int[count];
+    double[] values = new double[count];
+    for (int k = 0; k < count; k++) {
+      indices[k] = doc.m_touched[k];
+      values[k] = doc.m_values[indices[k]];
+      doc.m_values[indices[k]] = 0;
+    }
+
+    if (m_normalize) {
+      docLength = Math.sqrt(docLength);
+      for (int k = 0; k < count; k++) {
+        if (indices[k] >= m_firstWord) {
+          values[k] = values[k] * m_avgDocLength / docLength;
+        }
+      }
+    }
+    Instance inst = new SparseInstance(weight, values, indices,
+        m_outputFormat.numAttributes());
+    inst.setDataset(m_outputFormat);
+    return inst;
+  }
+
+  /**
+   * Vectorize an instance built against the header the filter was trained
+   * with.
+   *
+   * PT-BR
+   *
+   * Vetoriza uma instancia construida com o cabecalho com o qual o filtro foi
+   * treinado.
+   *
+   * @param inst the instance to vectorize
+   *             a instancia para vetorizar
+   * @return the word vector
+   *         o vetor de palavras
+   */
+  Instance transform(Instance inst) {
+    Document doc = newDocument();
+    for (int i = 0; i < m_selected.length; i++) {
+      if (!m_selected[i]) {
+        setValue(doc, i, inst.value(i));
+      } else if (!inst.isMissing(i)) {
+        addText(doc, i, inst.stringValue(i));
+      }
+    }
+    return toInstance(doc, inst.weight());
+  }
+
+  private boolean isTokenChar(char c) {
+    if (m_tokenizer == ALPHABETIC) {
+      return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+    return (c < 128) ? !m_asciiDelimiter[c] : m_delimiters.indexOf(c) < 0;
+  }
+
+  /**
+   * The attribute index of a token, or -1 if it is not in the dictionary.
+   *
+   * O indice do atributo de um token, ou -1 se ele nao esta no dicionario.
+   */
+  private int lookup(String text, int start, int end) {
+    boolean lower = m_lowerCase;
+    if (m_stemmer != null || (lower && !isAsciiLowerCase(text, start, end))) {
+      // the token has to be a string, as the filter makes it
+      // o token precisa ser uma String, como o filtro o faz
+      String word = text.substring(start, end);
+      if (lower) {
+        word = word.toLowerCase();
+      }
+      if (m_stemmer != null) {
+        synchronized (m_stemmer) {
+          word = m_stemmer.stem(word);
+        }
+      }
+      text = word;
+      start = 0;
+      end = word.length();
+      lower = false;
+    }
+
+    int mask = m_slots.length - 1;
+    int slot = hash(text, start, end, lower) & mask;
+    int t;
+    while ((t = m_slots[slot]) != 0) {
+      if (matches(m_terms[t - 1], text, start, end, lower)) {
+        return m_termIndex[t - 1];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private boolean isAsciiLowerCase(String text, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c >= 128 || (c == 'I' && !m_asciiLowerCase)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static char lower(char c, boolean lower) {
+    return (lower && c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  private static int hash(String text, int start, int end, boolean lower) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + lower(text.charAt(i), lower);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean matches(char[] term, String text, int start,
+      int end, boolean lower) {
+    if (term.length != end - start) {
+      return false;
+    }
+    for (int i = 0; i < term.length; i++) {
+      if (term[i] != lower(text.charAt(start + i), lower)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
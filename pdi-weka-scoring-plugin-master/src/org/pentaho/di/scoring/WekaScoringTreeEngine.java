@@ -0,0 +1,822 @@
+/*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU General Public License, version 2 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/gpl-2.0.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU General Public License for more details.
+*
+*
+* Copyright 2006 - 2013 Pentaho Corporation.  All rights reserved.
+*/
+
+package org.pentaho.di.scoring;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.M5P;
+import weka.classifiers.trees.REPTree;
+import weka.classifiers.trees.RandomTree;
+import weka.classifiers.trees.j48.BinC45Split;
+import weka.classifiers.trees.j48.C45Split;
+import weka.classifiers.trees.j48.ClassifierSplitModel;
+import weka.classifiers.trees.j48.ClassifierTree;
+import weka.classifiers.trees.j48.Distribution;
+import weka.classifiers.trees.j48.NoSplit;
+import weka.classifiers.trees.m5.PreConstructedLinearModel;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+
+/**
+ * Compiled engine for J48, REPTree, RandomTree and M5P trees. The tree is laid
+ * out in breadth first order in parallel primitive arrays (the children of a
+ * node are stored next to each other), and the class distributions or linear
+ * models at the leaves are packed into a single array. Scoring a row is then a
+ * short loop over array indexes instead of a walk through the tree objects,
+ * with exactly the same split tests, missing value handling and arithmetic as
+ * the Weka classes. Several trees of the same kind can be packed into one
+ * engine, one after the other, for use by the ensemble engine.
+ *
+ * PT-BR
+ *
+ * Motor compilado para arvores J48, REPTree, RandomTree e M5P. A arvore e
+ * disposta em ordem de largura em matrizes primitivas paralelas (os filhos de
+ * um no sao armazenados lado a lado), e as distribuicoes de classe ou modelos
+ * lineares das folhas sao agrupados em uma unica matriz. Pontuar uma linha e
+ * entao um laco curto sobre indices de matrizes em vez de percorrer os
+ * objetos da arvore, com exatamente os mesmos testes de divisao, tratamento
+ * de valores ausentes e aritmetica das classes do Weka. Varias arvores do
+ * mesmo tipo podem ser agrupadas em um motor, uma apos a outra, para uso pelo
+ * motor de conjuntos.
+ */
+class WekaScoringTreeEngine extends WekaScoringEngine {
+
+  /** node types / tipos de no */
+  static final byte LEAF = 0;
+  /** numeric split, left if value <= split point (J48 tolerance) */
+  static final byte NUMERIC_LE_TOLERANCE = 1;
+  /** numeric split, left if value < split point (REPTree, RandomTree) */
+  static final byte NUMERIC_LT = 2;
+  /** numeric split, left if value <= split point (M5P) */
+  static final byte NUMERIC_LE = 3;
+  /** nominal split, one child per value */
+  static final byte NOMINAL = 4;
+  /** binary nominal split, left if value equals the split value */
+  static final byte NOMINAL_EQUALS = 5;
+
+  /** tree kinds / tipos de arvore */
+  static final int KIND_J48 = 0;
+  /** REPTree and RandomTree / REPTree e RandomTree */
+  static final int KIND_REPTREE = 1;
+  static final int KIND_M5P = 2;
+
+  /** result of leafOffset() when the row has a missing value on its path */
+  static final int MISSING = -2;
+
+  final int m_kind;
+  final int m_numClasses;
+
+  // index of the root node of each packed tree
+  // indice do no raiz de cada arvore agrupada
+  final int[] m_roots;
+
+  // per node arrays (read directly by the ensemble engine)
+  // matrizes por no (lidas diretamente pelo motor de conjuntos)
+  final byte[] m_splitType;
+  final int[] m_attribute;
+  final double[] m_splitPoint;
+  final int[] m_firstChild;
+  final int[] m_numChildren;
+  private final double[] m_missingWeight;
+  private final boolean[] m_empty;
+  final int[] m_valueOffset;
+
+  // leaf distributions (or linear model coefficients followed by the
+  // intercept for M5P)
+  // distribuicoes das folhas (ou coeficientes do modelo linear seguidos do
+  // intercepto para o M5P)
+  final double[] m_values;
+
+  // J48 classifies with the plain estimates even when it uses Laplace
+  // smoothed distributions
+  // O J48 classifica com as estimativas simples mesmo quando usa
+  // distribuicoes suavizadas por Laplace
+  private final double[] m_classifyValues;
+
+  // M5P preprocessing (stateful Weka filters, so used under a lock)
+  // pre-processamento do M5P (filtros Weka com estado, entao usados com
+  // bloqueio)
+  private final Filter[] m_filters;
+  private final int m_numCoefficients;
+
+  /**
+   * A node while the tree is being flattened
+   *
+   * Um no enquanto a arvore esta sendo achatada
+   */
+  private static class NodeSpec {
+    final Object m_source;
+    byte m_type = LEAF;
+    int m_attribute = -1;
+    double m_splitPoint;
+    int m_firstChild;
+    int m_numChildren;
+    double m_missingWeight;
+    boolean m_empty;
+    double[] m_values;
+    double[] m_classifyValues;
+
+    NodeSpec(Object source) {
+      m_source = source;
+    }
+  }
+
+  private WekaScoringTreeEngine(int kind, int numClasses, List<NodeSpec> nodes,
+      int[] roots, Filter[] filters, int numCoefficients) {
+    m_kind = kind;
+    m_numClasses = numClasses;
+    m_roots = roots;
+    m_filters = filters;
+    m_numCoefficients = numCoefficients;
+
+    int n = nodes.size();
+    m_splitType = new byte[n];
+    m_attribute = new int[n];
+    m_splitPoint = new double[n];
+    m_firstChild = new int[n];
+    m_numChildren = new int[n];
+    m_missingWeight = new double[n];
+    m_empty = new boolean[n];
+    m_valueOffset = new int[n];
+
+    int numValues = 0;
+    boolean separateClassify = false;
+    for (NodeSpec spec : nodes) {
+      if (spec.m_values != null) {
+        numValues += spec.m_values.length;
+      }
+      if (spec.m_classifyValues != null
+          && spec.m_classifyValues != spec.m_values) {
+        separateClassify = true;
+      }
+    }
+    m_values = new double[numValues];
+    m_classifyValues = separateClassify ? new double[numValues] : m_values;
+
+    int offset = 0;
+    for (int i = 0; i < n; i++) {
+      NodeSpec spec = nodes.get(i);
+      m_splitType[i] = spec.m_type;
+      m_attribute[i] = spec.m_attribute;
+      m_splitPoint[i] = spec.m_splitPoint;
+      m_firstChild[i] = spec.m_firstChild;
+      m_numChildren[i] = spec.m_numChildren;
+      m_missingWeight[i] = spec.m_missingWeight;
+      m_empty[i] = spec.m_empty;
+      if (spec.m_values == null) {
+        m_valueOffset[i] = -1;
+      } else {
+        m_valueOffset[i] = offset;
+        System.arraycopy(spec.m_values, 0, m_values, offset,
+            spec.m_values.length);
+        if (separateClassify) {
+          System.arraycopy(spec.m_classifyValues, 0, m_classifyValues,
+              offset, spec.m_classifyValues.length);
+        }
+        offset += spec.m_values.length;
+      }
+    }
+  }
+
+  /**
+   * Compile a J48, REPTree, RandomTree or M5P model. Returns null for any other
+   * model, or for trees built in a way this engine does not reproduce.
+   *
+   * PT-BR
+   *
+   * Compila um modelo J48, REPTree, RandomTree ou M5P. Retorna null para
+   * qualquer outro modelo, ou para arvores construidas de uma forma que este
+   * motor nao reproduz.
+   *
+   * @param model the Weka model
+   *              o modelo Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of the tree can't be read
+   *                   se a estrutura da arvore nao puder ser lida
+   */
+  static WekaScoringTreeEngine compile(Object model, Instances header)
+      throws Exception {
+    if (model instanceof M5P) {
+      return compileM5P((M5P) model);
+    }
+    return compileForest(new Object[] { model }, header);
+  }
+
+  /**
+   * Pack several J48, REPTree or RandomTree models into one engine. All trees
+   * must be of the same kind and predict the same number of classes; returns
+   * null otherwise.
+   *
+   * PT-BR
+   *
+   * Agrupa varios modelos J48, REPTree ou RandomTree em um motor. Todas as
+   * arvores devem ser do mesmo tipo e prever o mesmo numero de classes; caso
+   * contrario retorna null.
+   *
+   * @param models the Weka tree models
+   *               os modelos de arvore Weka
+   * @param header the header of the training data (may be null)
+   *               o cabecalho dos dados de treino (pode ser null)
+   * @return the compiled engine or null
+   *         o motor compilado ou null
+   * @throws Exception if the structure of a tree can't be read
+   *                   se a estrutura de uma arvore nao puder ser lida
+   */
+  static WekaScoringTreeEngine compileForest(Object[] models, Instances header)
+      throws Exception {
+    List<NodeSpec> nodes = new ArrayList<NodeSpec>();
+    int[] roots = new int[models.length];
+    int kind = -1;
+    int numClasses = -1;
+
+    for (int i = 0; i < models.length; i++) {
+      roots[i] = nodes.size();
+      int treeKind;
+      int treeClasses;
+      if (models[i] instanceof J48) {
+        treeKind = KIND_J48;
+        treeClasses = addJ48(nodes, (J48) models[i], header);
+      } else if (models[i] instanceof REPTree) {
+        treeKind = KIND_REPTREE;
+        treeClasses = addREPTree(nodes, (REPTree) models[i]);
+      } else if (models[i] instanceof RandomTree) {
+        treeKind = KIND_REPTREE;
+        treeClasses = addRandomTree(nodes, (RandomTree) models[i]);
+      } else {
+        return null;
+      }
+
+      if (treeClasses < 0 || (kind >= 0 && kind != treeKind)
+          || (numClasses >= 0 && numClasses != treeClasses)) {
+        return null;
+      }
+      kind = treeKind;
+      numClasses = treeClasses;
+    }
+    if (kind < 0) {
+      return null;
+    }
+
+    return new WekaScoringTreeEngine(kind, numClasses, nodes, roots, null, 0);
+  }
+
+  /**
+   * Append a J48 tree to the nodes, returning the number of classes or -1 if
+   * the tree can't be compiled.
+   *
+   * Adiciona uma arvore J48 aos nos, retornando o numero de classes ou -1 se
+   * a arvore nao puder ser compilada.
+   */
+  private static int addJ48(List<NodeSpec> nodes, J48 model, Instances header)
+      throws Exception {
+    Object root = getField(model, "m_root"); //$NON-NLS-1$
+    if (root == null) {
+      return -1;
+    }
+    if (header == null) {
+      // the tree keeps an empty copy of the training data, but not all
+      // versions of Weka keep its attributes
+      // a arvore guarda uma copia vazia dos dados de treino, mas nem todas as
+      // versoes do Weka guardam os seus atributos
+      header = (Instances) getField(root, "m_train"); //$NON-NLS-1$
+    }
+    if (header == null || header.classIndex() < 0) {
+      return -1;
+    }
+    boolean laplace = model.getUseLaplace();
+
+    int start = nodes.size();
+    nodes.add(new NodeSpec(root));
+    for (int i = start; i < nodes.size(); i++) {
+      NodeSpec spec = nodes.get(i);
+      if (spec.m_empty) {
+        // already resolved by the parent
+        // ja resolvido pelo pai
+        continue;
+      }
+
+      ClassifierTree tree = (ClassifierTree) spec.m_source;
+      ClassifierSplitModel split = (ClassifierSplitModel) getField(tree,
+          "m_localModel"); //$NON-NLS-1$
+      Distribution dist = split.distribution();
+
+      if (((Boolean) getField(tree, "m_isLeaf")).booleanValue()) { //$NON-NLS-1$
+        if (!(split instanceof NoSplit)) {
+          return -1;
+        }
+        spec.m_values = j48Probs(dist, -1, laplace);
+        spec.m_classifyValues = laplace ? j48Probs(dist, -1, false)
+            : spec.m_values;
+        continue;
+      }
+
+      if (split instanceof C45Split) {
+        C45Split c45 = (C45Split) split;
+        spec.m_attribute = c45.attIndex();
+        spec.m_splitPoint = c45.splitPoint();
+        spec.m_type = header.attribute(spec.m_attribute).isNominal() ? NOMINAL
+            : NUMERIC_LE_TOLERANCE;
+      } else if (split instanceof BinC45Split) {
+        BinC45Split bin = (BinC45Split) split;
+        spec.m_attribute = bin.attIndex();
+        spec.m_splitPoint = bin.splitPoint();
+        spec.m_type = header.attribute(spec.m_attribute).isNominal() ? NOMINAL_EQUALS
+            : NUMERIC_LE_TOLERANCE;
+      } else {
+        return -1;
+      }
+
+      ClassifierTree[] sons = (ClassifierTree[]) getField(tree, "m_sons"); //$NON-NLS-1$
+      spec.m_firstChild = nodes.size();
+      spec.m_numChildren = sons.length;
+      for (int j = 0; j < sons.length; j++) {
+        NodeSpec son = new NodeSpec(sons[j]);
+        son.m_missingWeight = dist.perBag(j) / dist.total();
+        if (((Boolean) getField(sons[j], "m_isEmpty")).booleanValue()) { //$NON-NLS-1$
+          // an empty son predicts the parent's distribution for its branch
+          // um filho vazio preve a distribuicao do pai para o seu ramo
+          son.m_empty = true;
+          son.m_values = j48Probs(dist, j, laplace);
+          son.m_classifyValues = laplace ? j48Probs(dist, j, false)
+              : son.m_values;
+        }
+        nodes.add(son);
+      }
+    }
+
+    return header.numClasses();
+  }
+
+  private static double[] j48Probs(Distribution dist, int subset,
+      boolean laplace) {
+    double[] probs = new double[dist.numClasses()];
+    for (int i = 0; i < probs.length; i++) {
+      if (subset < 0) {
+        probs[i] = laplace ? dist.laplaceProb(i) : dist.prob(i);
+      } else {
+        probs[i] = laplace ? dist.laplaceProb(i, subset) : dist.prob(i,
+            subset);
+      }
+    }
+    return probs;
+  }
+
+  private static int addREPTree(List<NodeSpec> nodes, REPTree model)
+      throws Exception {
+    if (getField(model, "m_zeroR") != null) { //$NON-NLS-1$
+      return -1;
+    }
+    Object root = getField(model, "m_Tree"); //$NON-NLS-1$
+    if (root == null) {
+      return -1;
+    }
+    Instances header = (Instances) getField(root, "m_Info"); //$NON-NLS-1$
+
+    return addSplitTree(nodes, root, header, "m_ClassProbs", false, false); //$NON-NLS-1$
+  }
+
+  private static int addRandomTree(List<NodeSpec> nodes, RandomTree model)
+      throws Exception {
+    if (getField(model, "m_zeroR") != null) { //$NON-NLS-1$
+      return -1;
+    }
+    Object root = getField(model, "m_Tree"); //$NON-NLS-1$
+    if (root == null) {
+      return -1;
+    }
+    Instances header = (Instances) getField(model, "m_Info"); //$NON-NLS-1$
+
+    return addSplitTree(nodes, root, header, "m_ClassDistribution", true, //$NON-NLS-1$
+        model.getAllowUnclassifiedInstances());
+  }
+
+  /**
+   * Append a REPTree or RandomTree tree (they share the same node layout) to
+   * the nodes, returning the number of classes.
+   *
+   * Adiciona uma arvore REPTree ou RandomTree (elas compartilham a mesma
+   * estrutura de nos) aos nos, retornando o numero de classes.
+   */
+  private static int addSplitTree(List<NodeSpec> nodes, Object root,
+      Instances header, String distField, boolean normalize,
+      boolean allowUnclassified) throws Exception {
+    int start = nodes.size();
+    nodes.add(new NodeSpec(root));
+    for (int i = start; i < nodes.size(); i++) {
+      NodeSpec spec = nodes.get(i);
+      Object tree = spec.m_source;
+
+      // may be null, in which case the parent's distribution is used
+      // pode ser null, caso em que a distribuicao do pai e usada
+      double[] dist = (double[]) getField(tree, distField);
+      if (dist == null) {
+        if (allowUnclassified) {
+          dist = new double[header.numClasses()];
+        }
+      } else if (normalize) {
+        dist = dist.clone();
+        Utils.normalize(dist);
+      }
+      spec.m_values = dist;
+      spec.m_classifyValues = dist;
+
+      int att = ((Integer) getField(tree, "m_Attribute")).intValue(); //$NON-NLS-1$
+      if (att < 0) {
+        continue;
+      }
+      spec.m_attribute = att;
+      spec.m_splitPoint = ((Double) getField(tree, "m_SplitPoint")) //$NON-NLS-1$
+          .doubleValue();
+      spec.m_type = header.attribute(att).isNominal() ? NOMINAL : NUMERIC_LT;
+
+      Object[] successors = (Object[]) getField(tree, "m_Successors"); //$NON-NLS-1$
+      double[] prop = (double[]) getField(tree, "m_Prop"); //$NON-NLS-1$
+      spec.m_firstChild = nodes.size();
+      spec.m_numChildren = successors.length;
+      for (int j = 0; j < successors.length; j++) {
+        NodeSpec successor = new NodeSpec(successors[j]);
+        successor.m_missingWeight = prop[j];
+        nodes.add(successor);
+      }
+    }
+
+    return header.numClasses();
+  }
+
+  private static WekaScoringTreeEngine compileM5P(M5P model) throws Exception {
+    if (((Boolean) getField(model, "m_generateRules")).booleanValue()) { //$NON-NLS-1$
+      return null;
+    }
+    FastVector ruleSet = (FastVector) getField(model, "m_ruleSet"); //$NON-NLS-1$
+    if (ruleSet == null || ruleSet.size() == 0) {
+      return null;
+    }
+    Object rule = ruleSet.elementAt(0);
+    if (!((Boolean) getField(rule, "m_useTree")).booleanValue()) { //$NON-NLS-1$
+      return null;
+    }
+    Object root = getField(rule, "m_topOfTree"); //$NON-NLS-1$
+    Filter[] filters = new Filter[] {
+        (Filter) getField(model, "m_replaceMissing"), //$NON-NLS-1$
+        (Filter) getField(model, "m_nominalToBinary"), //$NON-NLS-1$
+        (Filter) getField(model, "m_removeUseless") }; //$NON-NLS-1$
+
+    int numCoefficients = -1;
+    List<NodeSpec> nodes = new ArrayList<NodeSpec>();
+    nodes.add(new NodeSpec(root));
+    for (int i = 0; i < nodes.size(); i++) {
+      NodeSpec spec = nodes.get(i);
+      Object node = spec.m_source;
+
+      if (((Boolean) getField(node, "m_isLeaf")).booleanValue()) { //$NON-NLS-1$
+        PreConstructedLinearModel lm = (PreConstructedLinearModel) getField(
+            node, "m_nodeModel"); //$NON-NLS-1$
+        if (lm == null) {
+          return null;
+        }
+        double[] coeffs = lm.coefficients();
+        if (numCoefficients < 0) {
+          numCoefficients = coeffs.length;
+        } else if (numCoefficients != coeffs.length) {
+          return null;
+        }
+        spec.m_values = new double[coeffs.length + 1];
+        System.arraycopy(coeffs, 0, spec.m_values, 0, coeffs.length);
+        spec.m_values[coeffs.length] = lm.intercept();
+        spec.m_classifyValues = spec.m_values;
+        continue;
+      }
+
+      spec.m_type = NUMERIC_LE;
+      spec.m_attribute = ((Integer) getField(node, "m_splitAtt")).intValue(); //$NON-NLS-1$
+      spec.m_splitPoint = ((Double) getField(node, "m_splitValue")) //$NON-NLS-1$
+          .doubleValue();
+      spec.m_firstChild = nodes.size();
+      spec.m_numChildren = 2;
+      nodes.add(new NodeSpec(getField(node, "m_left"))); //$NON-NLS-1$
+      nodes.add(new NodeSpec(getField(node, "m_right"))); //$NON-NLS-1$
+    }
+
+    return new WekaScoringTreeEngine(KIND_M5P, 1, nodes, new int[] { 0 },
+        filters, numCoefficients);
+  }
+
+  /**
+   * Returns the number of nodes in the compiled tree(s).
+   *
+   * PT-BR
+   *
+   * Retorna o numero de nos da(s) arvore(s) compilada(s).
+   *
+   * @return the number of nodes
+   *         o numero de nos
+   */
+  int numNodes() {
+    return m_attribute.length;
+  }
+
+  /**
+   * Returns the number of trees packed into this engine.
+   *
+   * PT-BR
+   *
+   * Retorna o numero de arvores agrupadas neste motor.
+   *
+   * @return the number of trees
+   *         o numero de arvores
+   */
+  int numTrees() {
+    return m_roots.length;
+  }
+
+  /**
+   * Index of the child of a split node that a known value goes to.
+   *
+   * Indice do filho de um no de divisao para o qual vai um valor conhecido.
+   */
+  int child(int node, double value) {
+    int first = m_firstChild[node];
+    switch (m_splitType[node]) {
+    case NOMINAL:
+      int index = (int) value;
+      if (index < 0 || index >= m_numChildren[node]) {
+        throw new ArrayIndexOutOfBoundsException(index);
+      }
+      return first + index;
+    case NOMINAL_EQUALS:
+      return ((int) m_splitPoint[node] == (int) value) ? first : first + 1;
+    case NUMERIC_LE_TOLERANCE:
+      return Utils.smOrEq(value, m_splitPoint[node]) ? first : first + 1;
+    case NUMERIC_LT:
+      return (value < m_splitPoint[node]) ? first : first + 1;
+    default:
+      return (value <= m_splitPoint[node]) ? first : first + 1;
+    }
+  }
+
+  @Override
+  double[] distributionForInstance(Instance inst) throws Exception {
+    if (m_kind == KIND_M5P) {
+      return new double[] { m5pPrediction(inst) };
+    }
+    return treeDistribution(0, inst);
+  }
+
+  @Override
+  double classifyInstance(Instance inst) throws Exception {
+    if (m_kind == KIND_M5P) {
+      return super.classifyInstance(inst);
+    }
+    return classifyTree(0, inst);
+  }
+
+  /**
+   * Return the distribution predicted by one of the packed trees.
+   *
+   * PT-BR
+   *
+   * Retorna a distribuicao prevista por uma das arvores agrupadas.
+   *
+   * @param tree the index of the tree
+   *             o indice da arvore
+   * @param inst the Instance to be predicted
+   *             a Instance para ser prevista
+   * @return the distribution (may be null for REPTree and RandomTree, as in
+   *         Weka)
+   *         a distribuicao (pode ser null para REPTree e RandomTree, como no
+   *         Weka)
+   */
+  double[] treeDistribution(int tree, Instance inst) {
+    if (m_kind == KIND_J48) {
+      return j48Distribution(m_roots[tree], inst, 1.0, m_values);
+    }
+    return repTreeDistribution(m_roots[tree], inst);
+  }
+
+  /**
+   * Return the classification made by one of the packed trees.
+   *
+   * PT-BR
+   *
+   * Retorna a classificacao feita por uma das arvores agrupadas.
+   *
+   * @param tree the index of the tree
+   *             o indice da arvore
+   * @param inst the Instance to be classified
+   *             a Instance para ser classificada
+   * @return the prediction
+   *         a previsao
+   * @exception Exception if the tree predicts no distribution
+   *                      se a arvore nao prever uma distribuicao
+   */
+  double classifyTree(int tree, Instance inst) throws Exception {
+    if (m_kind != KIND_J48) {
+      double[] dist = treeDistribution(tree, inst);
+      if (dist == null) {
+        throw new Exception("Null distribution predicted"); //$NON-NLS-1$
+      }
+      return classify(dist, inst);
+    }
+
+    // same tie breaking as ClassifierTree.classifyInstance()
+    // mesmo desempate do ClassifierTree.classifyInstance()
+    double[] probs = j48Distribution(m_roots[tree], inst, 1.0,
+        m_classifyValues);
+    double maxProb = -1;
+    int maxIndex = 0;
+    for (int i = 0; i < probs.length; i++) {
+      if (Utils.gr(probs[i], maxProb)) {
+        maxIndex = i;
+        maxProb = probs[i];
+      }
+    }
+    return maxIndex;
+  }
+
+  /**
+   * Find the leaf of one of the packed trees that a row without missing values
+   * on its path ends up in, and return the offset of the distribution it
+   * predicts in m_values. Avoids allocating a distribution per tree when
+   * many trees are combined.
+   *
+   * PT-BR
+   *
+   * Encontra a folha de uma das arvores agrupadas onde termina uma linha sem
+   * valores ausentes no seu caminho, e retorna o deslocamento em m_values da
+   * distribuicao que ela preve. Evita alocar uma distribuicao por arvore
+   * quando muitas arvores sao combinadas.
+   *
+   * @param tree the index of the tree
+   *             o indice da arvore
+   * @param inst the Instance to be predicted
+   *             a Instance para ser prevista
+   * @return the offset of the distribution, -1 if the tree predicts none, or
+   *         MISSING if a missing value was met (use treeDistribution() then)
+   *         o deslocamento da distribuicao, -1 se a arvore nao prever
+   *         nenhuma, ou MISSING se um valor ausente foi encontrado (use entao
+   *         treeDistribution())
+   */
+  int leafOffset(int tree, Instance inst) {
+    int node = m_roots[tree];
+    int offset = -1;
+    while (true) {
+      if (m_valueOffset[node] >= 0) {
+        offset = m_valueOffset[node];
+      }
+      int att = m_attribute[node];
+      if (att < 0) {
+        return offset;
+      }
+      double value = inst.value(att);
+      if (Utils.isMissingValue(value)) {
+        return MISSING;
+      }
+      node = child(node, value);
+    }
+  }
+
+  /**
+   * J48: a missing value sends the instance down all non-empty branches with
+   * the branch weights multiplied along the path, as in
+   * ClassifierTree.getProbs().
+   *
+   * J48: um valor ausente envia a instancia por todos os ramos nao vazios
+   * com os pesos dos ramos multiplicados ao longo do caminho, como em
+   * ClassifierTree.getProbs().
+   */
+  private double[] j48Distribution(int node, Instance inst, double weight,
+      double[] values) {
+    while (true) {
+      int att = m_attribute[node];
+      if (att < 0) {
+        double[] probs = new double[m_numClasses];
+        int offset = m_valueOffset[node];
+        for (int i = 0; i < m_numClasses; i++) {
+          probs[i] = weight * values[offset + i];
+        }
+        return probs;
+      }
+
+      if (inst.isMissing(att)) {
+        double[] probs = new double[m_numClasses];
+        int first = m_firstChild[node];
+        for (int j = first; j < first + m_numChildren[node]; j++) {
+          if (m_empty[j]) {
+            continue;
+          }
+          double[] sub = j48Distribution(j, inst, m_missingWeight[j] * weight,
+              values);
+          for (int i = 0; i < m_numClasses; i++) {
+            probs[i] += sub[i];
+          }
+        }
+        return probs;
+      }
+
+      node = child(node, inst.value(att));
+    }
+  }
+
+  /**
+   * REPTree: a node without a distribution of its own falls back to the
+   * nearest ancestor that has one; a missing value combines the (unweighted)
+   * branch distributions using the branch proportions.
+   *
+   * REPTree: um no sem distribuicao propria usa a do ancestral mais proximo
+   * que possui uma; um valor ausente combina as distribuicoes dos ramos (sem
+   * peso) usando as proporcoes dos ramos.
+   */
+  private double[] repTreeDistribution(int node, Instance inst) {
+    int fallback = -1;
+    while (true) {
+      if (m_valueOffset[node] >= 0) {
+        fallback = node;
+      }
+
+      int att = m_attribute[node];
+      if (att < 0) {
+        break;
+      }
+
+      if (inst.isMissing(att)) {
+        double[] dist = new double[m_numClasses];
+        int first = m_firstChild[node];
+        for (int j = first; j < first + m_numChildren[node]; j++) {
+          double[] help = repTreeDistribution(j, inst);
+          if (help == null) {
+            continue;
+          }
+          for (int i = 0; i < help.length; i++) {
+            dist[i] += m_missingWeight[j] * help[i];
+          }
+        }
+        return dist;
+      }
+
+      node = child(node, inst.value(att));
+    }
+
+    if (fallback < 0) {
+      return null;
+    }
+    double[] dist = new double[m_numClasses];
+    System.arraycopy(m_values, m_valueOffset[fallback], dist, 0, m_numClasses);
+    return dist;
+  }
+
+  /**
+   * M5P: preprocess with the model's own filters, find the leaf and apply its
+   * (already smoothed) linear model.
+   *
+   * M5P: pre-processa com os filtros do proprio modelo, encontra a folha e
+   * aplica o seu modelo linear (ja suavizado).
+   */
+  private double m5pPrediction(Instance inst) throws Exception {
+    synchronized (m_filters) {
+      for (Filter f : m_filters) {
+        f.input(inst);
+        inst = f.output();
+      }
+    }
+
+    int node = 0;
+    while (m_attribute[node] >= 0) {
+      node = child(node, inst.value(m_attribute[node]));
+    }
+
+    int offset = m_valueOffset[node];
+    int classIndex = inst.classIndex();
+    double result = 0;
+    for (int i = 0; i < m_numCoefficients; i++) {
+      if (i == classIndex || inst.isMissing(i)) {
+        continue;
+      }
+      result += m_values[offset + i] * inst.value(i);
+    }
+    return result + m_values[offset + m_numCoefficients];
+  }
+}
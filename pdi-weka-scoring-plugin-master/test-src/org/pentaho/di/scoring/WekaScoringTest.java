@@ -19,8 +19,20 @@
 package org.pentaho.di.scoring;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
 import org.junit.Test;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
@@ -28,6 +40,60 @@ import org.pentaho.di.core.row.ValueMeta;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.variables.Variables;
 
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.BayesNet;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.bayes.NaiveBayesMultinomial;
+import weka.classifiers.bayes.net.search.local.K2;
+import weka.classifiers.functions.LinearRegression;
+import weka.classifiers.functions.Logistic;
+import weka.classifiers.functions.MultilayerPerceptron;
+import weka.classifiers.functions.SGD;
+import weka.classifiers.functions.SMO;
+import weka.classifiers.functions.SimpleLogistic;
+import weka.classifiers.functions.supportVector.PolyKernel;
+import weka.classifiers.functions.supportVector.RBFKernel;
+import weka.classifiers.lazy.IBk;
+import weka.classifiers.lazy.KStar;
+import weka.classifiers.meta.AdaBoostM1;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.classifiers.meta.Stacking;
+import weka.classifiers.meta.Vote;
+import weka.classifiers.rules.DecisionTable;
+import weka.classifiers.rules.JRip;
+import weka.classifiers.rules.OneR;
+import weka.classifiers.rules.PART;
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.REPTree;
+import weka.classifiers.trees.RandomForest;
+import weka.clusterers.AbstractClusterer;
+import weka.clusterers.Clusterer;
+import weka.clusterers.EM;
+import weka.clusterers.SimpleKMeans;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.Utils;
+import weka.core.pmml.PMMLFactory;
+import weka.core.pmml.PMMLModel;
+import weka.core.stemmers.LovinsStemmer;
+import weka.core.tokenizers.AlphabeticTokenizer;
+import weka.filters.Filter;
+import weka.filters.MultiFilter;
+import weka.filters.unsupervised.attribute.Discretize;
+import weka.filters.unsupervised.attribute.MakeIndicator;
+import weka.filters.unsupervised.attribute.NominalToBinary;
+import weka.filters.unsupervised.attribute.Normalize;
+import weka.filters.unsupervised.attribute.Remove;
+import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+import weka.filters.unsupervised.attribute.Standardize;
+import weka.filters.unsupervised.attribute.StringToWordVector;
+
 /**
  * Unit tests for WekaScoring
  * 
@@ -37,6 +103,9 @@ public class WekaScoringTest {
 
   public static String CLASSIFICATION_MODEL = "test-src/nbIris.model";
   public static String CLUSTERING_MODEL = "test-src/emIris.model";
+  public static String PEN_J48_MODEL = "tests/testfiles/blackbox/j48_pen.model";
+  public static String PEN_NB_MODEL = "tests/testfiles/blackbox/naiveBayes_pen.model";
+  public static String PEN_DATA = "tests/testfiles/blackbox/pendigits.csv";
 
   public static Object[][] ROWS = { { 5.1, 3.5, 1.4, 0.2, "Iris-setosa" },
       { 4.9, 3.0, 1.4, 0.2, "Iris-setosa" },
@@ -171,6 +240,8 @@ public class WekaScoringTest {
 
       Object[] rowPlusPreds = data.generatePrediction(rmi, outRowMeta, row,
           meta);
+      // the rows have room for the prediction
+      assertSame(row, rowPlusPreds);
       if (i < 2) {
         assertEquals(rowPlusPreds[4].toString(), "Iris-setosa");
       } else if (i < 4) {
@@ -179,6 +250,16 @@ public class WekaScoringTest {
         assertEquals(rowPlusPreds[4].toString(), "Iris-virginica");
       }
     }
+    assertEquals(ROWS.length, data.getRowsExtendedInPlace());
+    assertEquals(0, data.getRowsCopied());
+
+    // a row without room is copied
+    Object[] row = { 5.1, 3.5, 1.4, 0.2 };
+    Object[] rowPlusPreds = data.generatePrediction(rmi, outRowMeta, row,
+        meta);
+    assertTrue(rowPlusPreds != row && rowPlusPreds.length >= 5);
+    assertEquals(rowPlusPreds[4].toString(), "Iris-setosa");
+    assertEquals(1, data.getRowsCopied());
   }
 
   @Test
@@ -307,6 +388,1795 @@ public class WekaScoringTest {
     }
   }
 
+  @Test
+  public void testSharedModelRegistry() throws Exception {
+    String key = WekaScoringModelRegistry.keyForModelFile(
+        CLASSIFICATION_MODEL, new Variables());
+    Callable<WekaScoringModel> loader = new Callable<WekaScoringModel>() {
+      public WekaScoringModel call() throws Exception {
+        return WekaScoringData.loadSerializedModel(CLASSIFICATION_MODEL, null,
+            new Variables());
+      }
+    };
+
+    WekaScoringModel first = WekaScoringModelRegistry.acquire(key, loader);
+    WekaScoringModel second = WekaScoringModelRegistry.acquire(key, loader);
+
+    assertSame(first, second);
+    assertEquals(2, WekaScoringModelRegistry.getReferenceCount(key));
+
+    WekaScoringModelRegistry.release(key);
+    assertEquals(1, WekaScoringModelRegistry.getReferenceCount(key));
+    WekaScoringModelRegistry.release(key);
+    assertEquals(0, WekaScoringModelRegistry.getReferenceCount(key));
+
+    // a fresh load once the model has been unloaded
+    assertTrue(WekaScoringModelRegistry.acquire(key, loader) != first);
+    assertTrue(WekaScoringModelRegistry.isShared(key));
+    WekaScoringModelRegistry.release(key);
+  }
+
+  @Test
+  public void testUnshareableModelCopiedPerUser() throws Exception {
+    Instances header = penDigitsHeader();
+    Instances train = readPenDigits(header, 300, true);
+    Instances data = readPenDigits(header, 20, false);
+    KStar kStar = new KStar();
+    kStar.buildClassifier(train);
+    final WekaScoringModel scorer = WekaScoringModel.createScorer(kStar);
+    scorer.setHeader(header);
+    assertFalse(scorer.compile());
+    Callable<WekaScoringModel> loader = new Callable<WekaScoringModel>() {
+      public WekaScoringModel call() {
+        return scorer;
+      }
+    };
+
+    // no engine and no thread-safe guarantees: every user gets its own copy
+    String key = "test:kstar";
+    WekaScoringModel first = WekaScoringModelRegistry.acquire(key, loader);
+    WekaScoringModel second = WekaScoringModelRegistry.acquire(key, loader);
+    assertFalse(WekaScoringModelRegistry.isShared(key));
+    assertTrue(first != second);
+    assertTrue(first != scorer && second != scorer);
+    assertEquals(2, WekaScoringModelRegistry.getReferenceCount(key));
+    for (int i = 0; i < data.numInstances(); i++) {
+      double expected = kStar.classifyInstance(data.instance(i));
+      assertEquals(expected, first.classifyInstance(data.instance(i)), 0);
+      assertEquals(expected, second.classifyInstance(data.instance(i)), 0);
+    }
+    WekaScoringModelRegistry.release(key);
+    WekaScoringModelRegistry.release(key);
+    assertEquals(0, WekaScoringModelRegistry.getReferenceCount(key));
+
+    // the model cache holds its bytes and hands out copies as well
+    assertEquals(WekaScoringModelCache.estimateSize(scorer),
+        WekaScoringModelCache.estimateHeapSize(scorer));
+    WekaScoringModelCache cache = new WekaScoringModelCache(0, 0, 0);
+    assertTrue(cache.put("kstar", scorer, 10, 0));
+    first = cache.get("kstar");
+    assertTrue(first != scorer && first != cache.get("kstar"));
+    assertEquals(kStar.classifyInstance(data.instance(0)),
+        first.classifyInstance(data.instance(0)), 0);
+  }
+
+  @Test
+  public void testModelCacheEviction() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+    // measured while loading, and by serializing a model that wasn't loaded
+    assertEquals(new File(CLASSIFICATION_MODEL).length(),
+        WekaScoringModelCache.estimateSize(model));
+    WekaScoringModel unloaded = WekaScoringModel.createScorer(model
+        .getModel());
+    unloaded.setHeader(model.getHeader());
+    assertEquals(0, unloaded.getLoadedSize());
+    assertTrue(WekaScoringModelCache.estimateSize(unloaded) > 0);
+
+    // least recently used model goes first when the entry limit is hit
+    WekaScoringModelCache cache = new WekaScoringModelCache(2, 0, 0);
+    cache.put("a", model, 10, 5);
+    cache.put("b", model, 10, 5);
+    assertSame(model, cache.get("a"));
+    cache.put("c", model, 10, 5);
+    assertTrue(cache.get("b") == null);
+    assertSame(model, cache.get("a"));
+    assertEquals(1, cache.getEvictions());
+    assertEquals(3, cache.getLoads());
+    assertEquals(15, cache.getLoadTime());
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    // memory budget
+    cache = new WekaScoringModelCache(0, 25, 0);
+    cache.put("a", model, 10, 0);
+    cache.put("b", model, 10, 0);
+    cache.put("c", model, 10, 0);
+    assertEquals(2, cache.size());
+    assertEquals(20, cache.getCurrentBytes());
+    assertTrue(!cache.put("d", model, 30, 0));
+
+    // idle timeout
+    final long[] now = { 0 };
+    cache = new WekaScoringModelCache(0, 0, 1000) {
+      @Override
+      protected long currentTime() {
+        return now[0];
+      }
+    };
+    cache.put("a", model, 10, 0);
+    now[0] = 500;
+    cache.put("b", model, 10, 0);
+    now[0] = 1200;
+    assertTrue(cache.get("a") == null);
+    assertSame(model, cache.get("b"));
+    assertEquals(1, cache.getExpirations());
+
+    // a model held as an object graph takes more heap than its bytes
+    assertEquals(WekaScoringModelCache.estimateSize(model)
+        * WekaScoringModelCache.HEAP_BYTES_PER_SERIALIZED_BYTE,
+        WekaScoringModelCache.estimateHeapSize(model));
+
+    // one cache for all copies of a step, emptied by the last copy, drawing
+    // on the JVM-wide budget
+    String step = "trans/step";
+    cache = WekaScoringModelCache.acquire(step, 0,
+        WekaScoringModelCache.DEFAULT_BUDGET, 0);
+    assertSame(cache, WekaScoringModelCache.acquire(step, 0,
+        WekaScoringModelCache.DEFAULT_BUDGET, 0));
+    long used = WekaScoringModelCache.getDefaultBudgetUsed();
+    cache.put("a", model, 10, 0);
+    assertEquals(used + 10, WekaScoringModelCache.getDefaultBudgetUsed());
+    assertTrue(!cache.put("b", model,
+        WekaScoringModelCache.DEFAULT_BUDGET_BYTES + 1, 0));
+    assertFalse(WekaScoringModelCache.release(step));
+    assertSame(model, cache.get("a"));
+    assertTrue(WekaScoringModelCache.release(step));
+    assertEquals(0, cache.size());
+    assertEquals(used, WekaScoringModelCache.getDefaultBudgetUsed());
+  }
+
+  @Test
+  public void testModelPrefetcher() throws Exception {
+    WekaScoringModelPrefetcher prefetcher = new WekaScoringModelPrefetcher(
+        null, new Variables());
+    try {
+      prefetcher.prefetch(CLASSIFICATION_MODEL);
+      prefetcher.prefetch("test-src/doesNotExist.model");
+      assertTrue(prefetcher.isPending(CLASSIFICATION_MODEL));
+      assertEquals(2, prefetcher.getStarted());
+
+      WekaScoringModel model = prefetcher.take(CLASSIFICATION_MODEL);
+      assertTrue(model != null);
+      assertTrue(!prefetcher.isPending(CLASSIFICATION_MODEL));
+      assertTrue(prefetcher.take(CLASSIFICATION_MODEL) == null);
+
+      // a failed background load leaves loading to the caller
+      assertTrue(prefetcher.take("test-src/doesNotExist.model") == null);
+      assertEquals(1, prefetcher.getUsed());
+    } finally {
+      prefetcher.shutdown();
+    }
+  }
+
+  @Test
+  public void testModelContainerRoundTrip() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLASSIFICATION_MODEL, null, new Variables());
+
+    File container = File.createTempFile("nbIris",
+        WekaScoringModelContainer.FILE_EXTENSION);
+    container.deleteOnExit();
+    // small blocks so that the payload is inflated in parallel
+    WekaScoringModelContainer.write(model.getModel(), model.getHeader(), null,
+        new FileOutputStream(container), 512);
+
+    WekaScoringModel loaded = WekaScoringData.loadSerializedModel(
+        container.getPath(), null, new Variables());
+    assertEquals(model.getModel().getClass(), loaded.getModel().getClass());
+    assertTrue(model.getHeader().equalHeaders(loaded.getHeader()));
+
+    for (Object[] row : ROWS) {
+      double[] vals = new double[5];
+      for (int i = 0; i < 4; i++) {
+        vals[i] = ((Double) row[i]).doubleValue();
+      }
+      vals[4] = Double.NaN;
+      Instance inst = new DenseInstance(1.0, vals);
+      inst.setDataset(model.getHeader());
+      double[] expected = model.distributionForInstance(inst);
+      inst.setDataset(loaded.getHeader());
+      double[] actual = loaded.distributionForInstance(inst);
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals(expected[i], actual[i], 0);
+      }
+    }
+
+    // the registry key comes from the header block alone
+    assertEquals(
+        WekaScoringModelRegistry.keyForModelFile(container.getPath(),
+            new Variables()),
+        WekaScoringModelRegistry.keyForModelFile(container.getPath(),
+            new Variables()));
+
+    // clusterers keep their ignored attributes
+    WekaScoringModel clusterer = WekaScoringData.loadSerializedModel(
+        CLUSTERING_MODEL, null, new Variables());
+    ((WekaScoringClusterer) clusterer).setAttributesToIgnore(new int[] { 4 });
+    File clusterContainer = File.createTempFile("emIris",
+        WekaScoringModelContainer.FILE_EXTENSION);
+    clusterContainer.deleteOnExit();
+    WekaScoringData.saveSerializedModel(clusterer, clusterContainer);
+    WekaScoringClusterer loadedClusterer = (WekaScoringClusterer) WekaScoringData
+        .loadSerializedModel(clusterContainer.getPath(), null, new Variables());
+    assertEquals(1, loadedClusterer.getAttributesToIgnore().length);
+    assertEquals(4, loadedClusterer.getAttributesToIgnore()[0]);
+  }
+
+  /**
+   * Header for the pendigits data. The one stored with j48_pen.model was
+   * serialized by an older version of Weka and does not deserialize with its
+   * attributes.
+   */
+  private static Instances penDigitsHeader() {
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    for (int i = 1; i <= 16; i++) {
+      atts.add(new Attribute("input" + i));
+    }
+    ArrayList<String> digits = new ArrayList<String>();
+    for (int i = 0; i < 10; i++) {
+      digits.add(String.valueOf(i));
+    }
+    atts.add(new Attribute("class", digits));
+    Instances header = new Instances("pendigits", atts, 0);
+    header.setClassIndex(16);
+    return header;
+  }
+
+  /**
+   * Reads the pendigits rows into instances with the supplied header. Every
+   * seventh row has one of its inputs missing so that the missing value paths
+   * of the models are exercised too.
+   */
+  private static Instances readPenDigits(Instances header, int maxRows,
+      boolean withClass) throws Exception {
+    Instances data = new Instances(header, maxRows);
+    BufferedReader br = new BufferedReader(new FileReader(PEN_DATA));
+    try {
+      br.readLine(); // column names
+      String line;
+      while ((line = br.readLine()) != null && data.numInstances() < maxRows) {
+        String[] parts = line.split(",");
+        double[] vals = new double[header.numAttributes()];
+        for (int i = 0; i < 16; i++) {
+          vals[i] = Double.parseDouble(parts[i]);
+        }
+        if (data.numInstances() % 7 == 3) {
+          vals[data.numInstances() % 16] = Utils.missingValue();
+        }
+        vals[16] = withClass ? header.classAttribute().indexOfValue(parts[16])
+            : Utils.missingValue();
+        data.add(new DenseInstance(1.0, vals));
+      }
+    } finally {
+      br.close();
+    }
+    return data;
+  }
+
+  private static void assertSameDistributions(Object wekaModel,
+      WekaScoringModel scorer, Instances data) throws Exception {
+    assertSameDistributions(wekaModel, scorer, data, 0);
+  }
+
+  private static void assertSameDistributions(Object wekaModel,
+      WekaScoringModel scorer, Instances data, double tolerance)
+      throws Exception {
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance inst = data.instance(i);
+      double[] expected = ((Classifier) wekaModel)
+          .distributionForInstance(inst);
+      double[] actual = scorer.distributionForInstance(inst);
+      assertEquals(expected.length, actual.length);
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals(expected[j], actual[j], tolerance);
+      }
+      assertEquals(((Classifier) wekaModel)
+          .classifyInstance(inst), scorer.classifyInstance(inst), tolerance);
+    }
+  }
+
+  @Test
+  public void testCompiledTreeEngine() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        PEN_J48_MODEL, null, new Variables());
+    model.setHeader(penDigitsHeader());
+    assertTrue(model.compile());
+
+    Instances data = readPenDigits(model.getHeader(), 2000, false);
+    assertSameDistributions(model.getModel(), model, data);
+
+    // REPTree, including nodes that fall back to their parent's distribution
+    Instances train = readPenDigits(model.getHeader(), 1000, true);
+    REPTree rep = new REPTree();
+    rep.buildClassifier(train);
+    WekaScoringModel repScorer = WekaScoringModel.createScorer(rep);
+    repScorer.setHeader(model.getHeader());
+    assertTrue(repScorer.compile());
+    assertSameDistributions(rep, repScorer, data);
+  }
+
+  @Test
+  public void testCompiledEnsembleEngine() throws Exception {
+    Instances header = penDigitsHeader();
+    Instances train = readPenDigits(header, 1000, true);
+    Instances data = readPenDigits(header, 2000, false);
+
+    RandomForest forest = new RandomForest();
+    forest.setNumTrees(70);
+    forest.buildClassifier(train);
+    WekaScoringModel scorer = WekaScoringModel.createScorer(forest);
+    scorer.setHeader(header);
+    assertTrue(scorer.compile());
+    assertTrue(scorer.isBatchPredictor());
+    assertSameDistributions(forest, scorer, data);
+
+    // several blocks of trees scoring a batch in parallel
+    WekaScoringEnsembleEngine engine = WekaScoringEnsembleEngine.compile(
+        forest, header, 3);
+    assertEquals(3, engine.numBlocks());
+    double[][] batch = engine.distributionsForInstances(data);
+    for (int i = 0; i < data.numInstances(); i++) {
+      double[] expected = forest.distributionForInstance(data.instance(i));
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals(expected[j], batch[i][j], 0);
+      }
+    }
+
+    // bagged REPTrees
+    Bagging bagging = new Bagging();
+    bagging.setNumIterations(20);
+    bagging.buildClassifier(train);
+    scorer = WekaScoringModel.createScorer(bagging);
+    scorer.setHeader(header);
+    assertTrue(scorer.compile());
+    assertSameDistributions(bagging, scorer, data);
+  }
+
+  @Test
+  public void testCompiledBayesEngine() throws Exception {
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        PEN_NB_MODEL, null, new Variables());
+    model.setHeader(penDigitsHeader());
+    assertTrue(model.compile());
+    Instances data = readPenDigits(model.getHeader(), 2000, false);
+    for (int i = 0; i < data.numInstances(); i++) {
+      double[] dist = model.distributionForInstance(data.instance(i));
+      assertEquals(10, dist.length);
+      assertEquals(1.0, Utils.sum(dist), 1e-9);
+    }
+
+    // normal and kernel estimators, and supervised discretization
+    Instances train = readPenDigits(model.getHeader(), 1000, true);
+    for (int i = 0; i < 3; i++) {
+      NaiveBayes nb = new NaiveBayes();
+      nb.setUseKernelEstimator(i == 1);
+      nb.setUseSupervisedDiscretization(i == 2);
+      nb.buildClassifier(train);
+      WekaScoringModel scorer = WekaScoringModel.createScorer(nb);
+      scorer.setHeader(model.getHeader());
+      assertTrue(scorer.compile());
+      assertSameDistributions(nb, scorer, data, 1e-9);
+    }
+
+    // BayesNet with up to two parents per node (the training data has
+    // missing values, so rows are completed by the model's own filter)
+    BayesNet net = new BayesNet();
+    K2 search = new K2();
+    search.setMaxNrOfParents(2);
+    net.setSearchAlgorithm(search);
+    net.buildClassifier(train);
+    WekaScoringModel scorer = WekaScoringModel.createScorer(net);
+    scorer.setHeader(model.getHeader());
+    assertTrue(scorer.compile());
+    assertSameDistributions(net, scorer, data, 1e-9);
+  }
+
+  @Test
+  public void testCompiledLinearEngine() throws Exception {
+    // make the first input nominal so that nominal to binary is folded too
+    Instances header = penDigitsHeader();
+    Discretize discretize = new Discretize();
+    discretize.setAttributeIndices("1");
+    discretize.setBins(4);
+    discretize.setInputFormat(header);
+    Instances train = Filter.useFilter(readPenDigits(header, 1000, true),
+        discretize);
+    Instances data = Filter.useFilter(readPenDigits(header, 500, false),
+        discretize);
+    header = new Instances(train, 0);
+
+    SimpleLogistic simpleLogistic = new SimpleLogistic();
+    simpleLogistic.setNumBoostingIterations(20);
+    Classifier[] classifiers = { new Logistic(), simpleLogistic, new SMO() };
+    for (Classifier c : classifiers) {
+      c.buildClassifier(train);
+      WekaScoringModel scorer = WekaScoringModel.createScorer(c);
+      scorer.setHeader(header);
+      assertTrue(scorer.compile());
+      assertTrue(scorer.isBatchPredictor());
+      assertSameDistributions(c, scorer, data, 1e-9);
+
+      double[][] batch = scorer.distributionsForInstances(data);
+      for (int i = 0; i < data.numInstances(); i++) {
+        double[] expected = c.distributionForInstance(data.instance(i));
+        for (int j = 0; j < expected.length; j++) {
+          assertEquals(expected[j], batch[i][j], 1e-9);
+        }
+      }
+    }
+
+    // SGD needs a binary class
+    MakeIndicator indicator = new MakeIndicator();
+    indicator.setAttributeIndex("last");
+    indicator.setValueIndices("1");
+    indicator.setNumeric(false);
+    indicator.setInputFormat(train);
+    Instances binaryTrain = Filter.useFilter(train, indicator);
+    Instances binaryData = Filter.useFilter(data, indicator);
+    for (int loss = 0; loss < 2; loss++) {
+      SGD sgd = new SGD();
+      sgd.setLossFunction(new SelectedTag(loss == 0 ? SGD.HINGE : SGD.LOGLOSS,
+          SGD.TAGS_SELECTION));
+      sgd.buildClassifier(binaryTrain);
+      WekaScoringModel scorer = WekaScoringModel.createScorer(sgd);
+      scorer.setHeader(new Instances(binaryTrain, 0));
+      assertTrue(scorer.compile());
+      assertSameDistributions(sgd, scorer, binaryData, 1e-9);
+    }
+
+    // LinearRegression predicting the last input, with the digit as a
+    // (sometimes missing) nominal input
+    Instances regTrain = new Instances(train);
+    regTrain.setClassIndex(15);
+    Instances regData = new Instances(data);
+    regData.setClassIndex(15);
+    LinearRegression regression = new LinearRegression();
+    regression.buildClassifier(regTrain);
+    WekaScoringModel scorer = WekaScoringModel.createScorer(regression);
+    scorer.setHeader(new Instances(regTrain, 0));
+    assertTrue(scorer.compile());
+    assertSameDistributions(regression, scorer, regData, 1e-9);
+  }
+
+  @Test
+  public void testCompiledKernelAndNeuralEngines() throws Exception {
+    Instances header = penDigitsHeader();
+    Discretize discretize = new Discretize();
+    discretize.setAttributeIndices("1");
+    discretize.setBins(4);
+    discretize.setInputFormat(header);
+    Instances train = Filter.useFilter(readPenDigits(header, 600, true),
+        discretize);
+    Instances data = Filter.useFilter(readPenDigits(header, 500, false),
+        discretize);
+    header = new Instances(train, 0);
+
+    SMO rbf = new SMO();
+    rbf.setKernel(new RBFKernel());
+    SMO quadratic = new SMO();
+    PolyKernel poly = new PolyKernel();
+    poly.setExponent(2);
+    quadratic.setKernel(poly);
+    MultilayerPerceptron mlp = new MultilayerPerceptron();
+    mlp.setTrainingTime(50);
+    MultilayerPerceptron deep = new MultilayerPerceptron();
+    deep.setTrainingTime(50);
+    deep.setHiddenLayers("6,4");
+
+    Classifier[] classifiers = { rbf, quadratic, mlp, deep };
+    for (Classifier c : classifiers) {
+      c.buildClassifier(train);
+      WekaScoringModel scorer = WekaScoringModel.createScorer(c);
+      scorer.setHeader(header);
+      assertTrue(scorer.compile());
+      assertTrue(scorer.isBatchPredictor());
+      assertSameDistributions(c, scorer, data, 1e-9);
+
+      double[][] batch = scorer.distributionsForInstances(data);
+      for (int i = 0; i < data.numInstances(); i++) {
+        double[] expected = c.distributionForInstance(data.instance(i));
+        for (int j = 0; j < expected.length; j++) {
+          assertEquals(expected[j], batch[i][j], 1e-9);
+        }
+      }
+    }
+
+    // numeric class, predicting the last input
+    Instances regTrain = new Instances(train);
+    regTrain.setClassIndex(15);
+    Instances regData = new Instances(data);
+    regData.setClassIndex(15);
+    MultilayerPerceptron regression = new MultilayerPerceptron();
+    regression.setTrainingTime(50);
+    regression.buildClassifier(regTrain);
+    WekaScoringModel scorer = WekaScoringModel.createScorer(regression);
+    scorer.setHeader(new Instances(regTrain, 0));
+    assertTrue(scorer.compile());
+    assertSameDistributions(regression, scorer, regData, 1e-9);
+  }
+
+  @Test
+  public void testCompiledKMeansEngine() throws Exception {
+    Instances header = penDigitsHeader();
+    Discretize discretize = new Discretize();
+    discretize.setAttributeIndices("1");
+    discretize.setBins(4);
+    discretize.setInputFormat(header);
+    // the class is clustered as a nominal attribute, and is missing in the
+    // rows that are scored
+    Instances train = Filter.useFilter(readPenDigits(header, 600, true),
+        discretize);
+    train.setClassIndex(-1);
+    Instances data = Filter.useFilter(readPenDigits(header, 500, false),
+        discretize);
+    data.setClassIndex(-1);
+    header = new Instances(train, 0);
+
+    SimpleKMeans replacing = new SimpleKMeans();
+    replacing.setNumClusters(8);
+    SimpleKMeans missing = new SimpleKMeans();
+    missing.setNumClusters(8);
+    missing.setDontReplaceMissingValues(true);
+    SimpleKMeans raw = new SimpleKMeans();
+    raw.setNumClusters(5);
+    EuclideanDistance unnormalized = new EuclideanDistance();
+    unnormalized.setDontNormalize(true);
+    raw.setDistanceFunction(unnormalized);
+    raw.setDontReplaceMissingValues(true);
+
+    SimpleKMeans[] clusterers = { replacing, missing, raw };
+    for (SimpleKMeans c : clusterers) {
+      c.buildClusterer(train);
+      WekaScoringModel scorer = WekaScoringModel.createScorer(c);
+      scorer.setHeader(header);
+      assertTrue(scorer.compile());
+      assertTrue(scorer.isBatchPredictor());
+
+      double[][] batch = scorer.distributionsForInstances(data);
+      for (int i = 0; i < data.numInstances(); i++) {
+        Instance inst = data.instance(i);
+        int expected = c.clusterInstance(inst);
+        assertEquals(expected, scorer.classifyInstance(inst), 0);
+        assertEquals(1.0, scorer.distributionForInstance(inst)[expected], 0);
+        assertEquals(1.0, batch[i][expected], 0);
+      }
+    }
+
+    // the class attribute ignored by the clusterer
+    Remove remove = new Remove();
+    remove.setAttributeIndices("last");
+    remove.setInputFormat(train);
+    SimpleKMeans ignoring = new SimpleKMeans();
+    ignoring.setNumClusters(6);
+    ignoring.buildClusterer(Filter.useFilter(train, remove));
+    WekaScoringClusterer scorer = (WekaScoringClusterer) WekaScoringModel
+        .createScorer(ignoring);
+    scorer.setHeader(header);
+    scorer.setAttributesToIgnore(new int[] { 16 });
+    assertTrue(scorer.compile());
+    Instances reduced = Filter.useFilter(data, remove);
+    double[][] batch = scorer.distributionsForInstances(data);
+    for (int i = 0; i < data.numInstances(); i++) {
+      int expected = ignoring.clusterInstance(reduced.instance(i));
+      assertEquals(expected, scorer.classifyInstance(data.instance(i)), 0);
+      assertEquals(1.0, batch[i][expected], 0);
+    }
+  }
+
+  @Test
+  public void testCompiledEMEngine() throws Exception {
+    // the iris model ignores the class attribute
+    WekaScoringModel model = WekaScoringData.loadSerializedModel(
+        CLUSTERING_MODEL, null, new Variables());
+    assertTrue(model.compile());
+    assertTrue(model.isBatchPredictor());
+    EM iris = (EM) model.getModel();
+    Instances irisData = new Instances(model.getHeader(), ROWS.length);
+    for (Object[] row : ROWS) {
+      double[] vals = new double[5];
+      for (int i = 0; i < 4; i++) {
+        vals[i] = ((Double) row[i]).doubleValue();
+      }
+      vals[4] = irisData.attribute(4).indexOfValue((String) row[4]);
+      irisData.add(new DenseInstance(1.0, vals));
+    }
+    irisData.instance(1).setMissing(2);
+    Remove remove = new Remove();
+    remove.setAttributeIndices("last");
+    remove.setInputFormat(irisData);
+    Instances irisReduced = Filter.useFilter(irisData, remove);
+    double[][] batch = model.distributionsForInstances(irisData);
+    for (int i = 0; i < irisData.numInstances(); i++) {
+      double[] expected = iris.distributionForInstance(irisReduced
+          .instance(i));
+      double[] actual = model.distributionForInstance(irisData.instance(i));
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals(expected[j], actual[j], 1e-9);
+        assertEquals(expected[j], batch[i][j], 1e-9);
+      }
+      assertEquals(iris.clusterInstance(irisReduced.instance(i)),
+          model.classifyInstance(irisData.instance(i)), 0);
+    }
+
+    // numeric and nominal attributes, with missing values
+    Instances header = penDigitsHeader();
+    Discretize discretize = new Discretize();
+    discretize.setAttributeIndices("1");
+    discretize.setBins(4);
+    discretize.setInputFormat(header);
+    Instances train = Filter.useFilter(readPenDigits(header, 600, true),
+        discretize);
+    train.setClassIndex(-1);
+    Instances data = Filter.useFilter(readPenDigits(header, 500, false),
+        discretize);
+    data.setClassIndex(-1);
+
+    EM em = new EM();
+    em.setNumClusters(4);
+    em.setMaxIterations(20);
+    em.buildClusterer(train);
+    WekaScoringModel scorer = WekaScoringModel.createScorer(em);
+    scorer.setHeader(new Instances(train, 0));
+    assertTrue(scorer.compile());
+    batch = scorer.distributionsForInstances(data);
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance inst = data.instance(i);
+      double[] expected = em.distributionForInstance(inst);
+      double[] actual = scorer.distributionForInstance(inst);
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals(expected[j], actual[j], 1e-9);
+        assertEquals(expected[j], batch[i][j], 1e-9);
+      }
+      assertEquals(em.clusterInstance(inst), scorer.classifyInstance(inst), 0);
+    }
+  }
+
+  @Test
+  public void testCompiledNeighbourEngine() throws Exception {
+    Instances header = penDigitsHeader();
+    Discretize discretize = new Discretize();
+    discretize.setAttributeIndices("1");
+    discretize.setBins(4);
+    discretize.setInputFormat(header);
+    Instances train = Filter.useFilter(readPenDigits(header, 600, true),
+        discretize);
+    Instances data = Filter.useFilter(readPenDigits(header, 500, true),
+        discretize);
+    // values outside the training ranges, which IBk adds to its ranges
+    for (int i = 7; i < data.numInstances(); i += 50) {
+      data.instance(i).setValue(1 + i % 15, (i % 100 == 7) ? 150 : -20);
+    }
+
+    IBk nearest = new IBk();
+    IBk inverse = new IBk(5);
+    inverse.setDistanceWeighting(new SelectedTag(IBk.WEIGHT_INVERSE,
+        IBk.TAGS_WEIGHTING));
+    IBk similarity = new IBk(3);
+    similarity.setDistanceWeighting(new SelectedTag(IBk.WEIGHT_SIMILARITY,
+        IBk.TAGS_WEIGHTING));
+    IBk crossValidated = new IBk(5);
+    crossValidated.setCrossValidate(true);
+    IBk raw = new IBk(3);
+    EuclideanDistance unnormalized = new EuclideanDistance();
+    unnormalized.setDontNormalize(true);
+    raw.getNearestNeighbourSearchAlgorithm().setDistanceFunction(unnormalized);
+    IBk numeric = new IBk(3);
+
+    IBk[] classifiers = { nearest, inverse, similarity, crossValidated, raw,
+        numeric };
+    for (IBk c : classifiers) {
+      Instances t = new Instances(train);
+      Instances d = new Instances(data);
+      if (c == numeric) {
+        t.setClassIndex(15);
+        d.setClassIndex(15);
+      }
+      c.buildClassifier(t);
+      WekaScoringModel scorer = WekaScoringModel.createScorer(c);
+      scorer.setHeader(new Instances(t, 0));
+      assertTrue(scorer.compile());
+      assertTrue(scorer.isBatchPredictor());
+
+      // scored in the same order, so the ranges are widened in step
+      for (int i = 0; i < d.numInstances(); i++) {
+        Instance inst = d.instance(i);
+        double[] expected = c.distributionForInstance(inst);
+        double[] actual = scorer.distributionForInstance(inst);
+        for (int j = 0; j < expected.length; j++) {
+          assertEquals(expected[j], actual[j], 1e-12);
+        }
+      }
+      double[][] batch = scorer.distributionsForInstances(d);
+      for (int i = 0; i < d.numInstances(); i++) {
+        double[] expected = c.distributionForInstance(d.instance(i));
+        for (int j = 0; j < expected.length; j++) {
+          assertEquals(expected[j], batch[i][j], 1e-12);
+        }
+      }
+    }
+
+    // approximate search finds most of the same neighbours
+    IBk approximate = new IBk(3);
+    approximate.buildClassifier(train);
+    WekaScoringModel scorer = WekaScoringModel.createScorer(approximate);
+    scorer.setHeader(new Instances(train, 0));
+    assertTrue(scorer.searchesNeighbours());
+    scorer.setNeighbourSearchRecall(0.9);
+    assertEquals(0.9, scorer.getNeighbourSearchRecall(), 0);
+    assertTrue(scorer.compile());
+    double[][] batch = scorer.distributionsForInstances(data);
+    int agree = 0;
+    for (int i = 0; i < data.numInstances(); i++) {
+      if (Utils.maxIndex(batch[i]) == (int) approximate
+          .classifyInstance(data.instance(i))) {
+        agree++;
+      }
+    }
+    assertTrue(agree >= 0.85 * data.numInstances());
+
+    // only models that search for neighbours depend on the recall target,
+    // and models compiled with a target are registered separately
+    J48 tree = new J48();
+    tree.buildClassifier(train);
+    WekaScoringModel treeScorer = WekaScoringModel.createScorer(tree);
+    treeScorer.setHeader(new Instances(train, 0));
+    assertTrue(treeScorer.compile());
+    assertTrue(!treeScorer.searchesNeighbours());
+    assertEquals("file:ab", WekaScoringModelRegistry.keyWithRecall("file:ab",
+        0));
+    assertTrue(!WekaScoringModelRegistry.keyWithRecall("file:ab", 0.9)
+        .equals("file:ab"));
+  }
+
+  @Test
+  public void testCompiledRuleAndTableEngines() throws Exception {
+    Instances header = penDigitsHeader();
+    Discretize discretize = new Discretize();
+    discretize.setAttributeIndices("1");
+    discretize.setBins(4);
+    discretize.setInputFormat(header);
+    Instances train = Filter.useFilter(readPenDigits(header, 1000, true),
+        discretize);
+    Instances data = Filter.useFilter(readPenDigits(header, 2000, false),
+        discretize);
+    header = new Instances(train, 0);
+
+    JRip jrip = new JRip();
+    PART part = new PART();
+    PART binaryPart = new PART();
+    binaryPart.setBinarySplits(true);
+    OneR oneR = new OneR();
+    DecisionTable table = new DecisionTable();
+
+    Classifier[] classifiers = { jrip, part, binaryPart, oneR, table };
+    for (Classifier c : classifiers) {
+      c.buildClassifier(train);
+      WekaScoringModel scorer = WekaScoringModel.createScorer(c);
+      scorer.setHeader(header);
+      assertTrue(scorer.compile());
+      assertSameDistributions(c, scorer, data);
+    }
+
+    // a decision table predicting a numeric class
+    Instances numericTrain = new Instances(train);
+    numericTrain.setClassIndex(15);
+    Instances numericData = new Instances(data);
+    numericData.setClassIndex(15);
+    DecisionTable numeric = new DecisionTable();
+    numeric.buildClassifier(numericTrain);
+    WekaScoringModel scorer = WekaScoringModel.createScorer(numeric);
+    scorer.setHeader(new Instances(numericTrain, 0));
+    assertTrue(scorer.compile());
+    assertSameDistributions(numeric, scorer, numericData);
+  }
+
+  /**
+   * Wraps a model element in a PMML document over the pendigits fields. The
+   * mining schema replaces missing values of input1 and clamps input2, so
+   * those treatments are compared too.
+   */
+  private static String penDigitsPMML(String model) {
+    StringBuffer buff = new StringBuffer();
+    buff.append("<?xml version=\"1.0\"?>\n");
+    buff.append("<PMML version=\"3.2\" xmlns=\"http://www.dmg.org/PMML-3_2\">\n");
+    buff.append("<Header><Application name=\"test\" version=\"1\"/></Header>\n");
+    buff.append("<DataDictionary numberOfFields=\"17\">\n");
+    for (int i = 1; i <= 16; i++) {
+      buff.append("<DataField name=\"input" + i
+          + "\" optype=\"continuous\" dataType=\"double\"/>\n");
+    }
+    buff.append("<DataField name=\"class\" optype=\"categorical\" dataType=\"string\">");
+    for (int i = 0; i < 10; i++) {
+      buff.append("<Value value=\"" + i + "\"/>");
+    }
+    buff.append("</DataField>\n</DataDictionary>\n");
+    buff.append(model);
+    buff.append("</PMML>\n");
+    return buff.toString();
+  }
+
+  private static String penDigitsMiningSchema() {
+    StringBuffer buff = new StringBuffer("<MiningSchema>\n");
+    buff.append("<MiningField name=\"input1\" missingValueReplacement=\"50\" "
+        + "missingValueTreatment=\"asMean\"/>\n");
+    buff.append("<MiningField name=\"input2\" outliers=\"asExtremeValues\" "
+        + "lowValue=\"10\" highValue=\"90\"/>\n");
+    for (int i = 3; i <= 16; i++) {
+      buff.append("<MiningField name=\"input" + i + "\"/>\n");
+    }
+    buff.append("<MiningField name=\"class\" usageType=\"predicted\"/>\n");
+    buff.append("</MiningSchema>\n");
+    return buff.toString();
+  }
+
+  private static String penDigitsTreePMML() {
+    StringBuffer buff = new StringBuffer();
+    buff.append("<TreeModel functionName=\"classification\" "
+        + "missingValueStrategy=\"lastPrediction\">\n");
+    buff.append(penDigitsMiningSchema());
+    buff.append("<Node id=\"0\" score=\"0\" recordCount=\"100\"><True/>\n");
+    buff.append("<ScoreDistribution value=\"0\" recordCount=\"60\"/>");
+    buff.append("<ScoreDistribution value=\"1\" recordCount=\"40\"/>\n");
+    buff.append("<Node id=\"1\" score=\"1\">");
+    buff.append("<SimplePredicate field=\"input1\" operator=\"lessThan\" value=\"50\"/>\n");
+    buff.append("<ScoreDistribution value=\"1\" recordCount=\"30\"/>");
+    buff.append("<ScoreDistribution value=\"2\" recordCount=\"10\"/>\n");
+    buff.append("<Node id=\"2\" score=\"2\"><CompoundPredicate booleanOperator=\"and\">");
+    buff.append("<SimplePredicate field=\"input2\" operator=\"greaterOrEqual\" value=\"40\"/>");
+    buff.append("<SimplePredicate field=\"input3\" operator=\"lessOrEqual\" value=\"60\"/>");
+    buff.append("</CompoundPredicate>");
+    buff.append("<ScoreDistribution value=\"2\" recordCount=\"8\" confidence=\"0.75\"/>");
+    buff.append("<ScoreDistribution value=\"3\" recordCount=\"2\" confidence=\"0.25\"/>");
+    buff.append("</Node>\n");
+    buff.append("<Node id=\"3\" score=\"3\"><SimpleSetPredicate field=\"input4\" "
+        + "booleanOperator=\"isIn\"><Array n=\"6\" type=\"int\">0 10 20 30 40 50</Array>"
+        + "</SimpleSetPredicate></Node>\n");
+    buff.append("<Node id=\"4\" score=\"4\"><CompoundPredicate booleanOperator=\"xor\">");
+    buff.append("<SimplePredicate field=\"input5\" operator=\"greaterThan\" value=\"30\"/>");
+    buff.append("<SimplePredicate field=\"input6\" operator=\"isMissing\"/>");
+    buff.append("</CompoundPredicate></Node>\n");
+    buff.append("</Node>\n");
+    buff.append("<Node id=\"5\" score=\"5\"><CompoundPredicate booleanOperator=\"or\">");
+    buff.append("<SimplePredicate field=\"input7\" operator=\"notEqual\" value=\"100\"/>");
+    buff.append("<SimplePredicate field=\"input8\" operator=\"equal\" value=\"0\"/>");
+    buff.append("</CompoundPredicate>\n");
+    buff.append("<Node id=\"6\" score=\"6\"><SimplePredicate field=\"input9\" "
+        + "operator=\"lessThan\" value=\"70\"/></Node>\n");
+    buff.append("<Node id=\"7\" score=\"7\"><True/></Node>\n");
+    buff.append("</Node>\n");
+    buff.append("</Node>\n</TreeModel>\n");
+    return penDigitsPMML(buff.toString());
+  }
+
+  private static String penDigitsRegressionPMML(Random r) {
+    StringBuffer buff = new StringBuffer();
+    buff.append("<RegressionModel functionName=\"classification\" "
+        + "normalizationMethod=\"softmax\">\n");
+    buff.append(penDigitsMiningSchema());
+    for (int c = 0; c < 10; c++) {
+      buff.append("<RegressionTable targetCategory=\"" + c + "\" intercept=\""
+          + r.nextGaussian() + "\">\n");
+      for (int i = 1; i <= 16; i++) {
+        buff.append("<NumericPredictor name=\"input" + i + "\" coefficient=\""
+            + (r.nextGaussian() * 0.01) + "\""
+            + ((i == 3) ? " exponent=\"2\"" : "") + "/>\n");
+      }
+      buff.append("<PredictorTerm coefficient=\"" + (r.nextGaussian() * 0.0001)
+          + "\"><FieldRef field=\"input1\"/><FieldRef field=\"input2\"/>"
+          + "</PredictorTerm>\n");
+      buff.append("</RegressionTable>\n");
+    }
+    buff.append("</RegressionModel>\n");
+    return penDigitsPMML(buff.toString());
+  }
+
+  private static String penDigitsGeneralRegressionPMML(Random r) {
+    StringBuffer buff = new StringBuffer();
+    buff.append("<GeneralRegressionModel functionName=\"classification\" "
+        + "modelType=\"multinomialLogistic\">\n");
+    buff.append(penDigitsMiningSchema());
+    buff.append("<ParameterList>");
+    for (int i = 0; i <= 16; i++) {
+      buff.append("<Parameter name=\"p" + i + "\"/>");
+    }
+    buff.append("</ParameterList>\n<CovariateList>");
+    for (int i = 1; i <= 16; i++) {
+      buff.append("<Predictor name=\"input" + i + "\"/>");
+    }
+    buff.append("</CovariateList>\n<PPMatrix>");
+    for (int i = 1; i <= 16; i++) {
+      buff.append("<PPCell value=\"1\" predictorName=\"input" + i
+          + "\" parameterName=\"p" + i + "\"/>");
+    }
+    buff.append("</PPMatrix>\n<ParamMatrix>\n");
+    for (int c = 0; c < 9; c++) {
+      for (int i = 0; i <= 16; i++) {
+        buff.append("<PCell targetCategory=\"" + c + "\" parameterName=\"p" + i
+            + "\" beta=\"" + (r.nextGaussian() * 0.05) + "\"/>");
+      }
+      buff.append("\n");
+    }
+    buff.append("</ParamMatrix>\n</GeneralRegressionModel>\n");
+    return penDigitsPMML(buff.toString());
+  }
+
+  private static String penDigitsNeuralPMML(Random r) {
+    StringBuffer buff = new StringBuffer();
+    buff.append("<NeuralNetwork functionName=\"classification\" "
+        + "activationFunction=\"logistic\">\n");
+    buff.append(penDigitsMiningSchema());
+    buff.append("<NeuralInputs>\n");
+    for (int i = 1; i <= 16; i++) {
+      buff.append("<NeuralInput id=\"i" + i + "\"><DerivedField optype=\"continuous\" "
+          + "dataType=\"double\"><NormContinuous field=\"input" + i + "\">"
+          + "<LinearNorm orig=\"0\" norm=\"-1\"/><LinearNorm orig=\"100\" norm=\"1\"/>"
+          + "</NormContinuous></DerivedField></NeuralInput>\n");
+    }
+    buff.append("</NeuralInputs>\n<NeuralLayer>\n");
+    for (int h = 0; h < 6; h++) {
+      buff.append("<Neuron id=\"h" + h + "\" bias=\"" + r.nextGaussian() + "\">");
+      for (int i = 1; i <= 16; i++) {
+        buff.append("<Con from=\"i" + i + "\" weight=\"" + r.nextGaussian() + "\"/>");
+      }
+      buff.append("</Neuron>\n");
+    }
+    buff.append("</NeuralLayer>\n<NeuralLayer activationFunction=\"identity\" "
+        + "normalizationMethod=\"softmax\">\n");
+    for (int c = 0; c < 10; c++) {
+      buff.append("<Neuron id=\"o" + c + "\" bias=\"" + r.nextGaussian() + "\">");
+      for (int h = 0; h < 6; h++) {
+        buff.append("<Con from=\"h" + h + "\" weight=\"" + r.nextGaussian() + "\"/>");
+      }
+      buff.append("</Neuron>\n");
+    }
+    buff.append("</NeuralLayer>\n<NeuralOutputs>\n");
+    for (int c = 0; c < 10; c++) {
+      buff.append("<NeuralOutput outputNeuron=\"o" + c + "\"><DerivedField "
+          + "optype=\"categorical\" dataType=\"string\"><NormDiscrete "
+          + "field=\"class\" value=\"" + c + "\"/></DerivedField></NeuralOutput>\n");
+    }
+    buff.append("</NeuralOutputs>\n</NeuralNetwork>\n");
+    return penDigitsPMML(buff.toString());
+  }
+
+  @Test
+  public void testCompiledPMMLModels() throws Exception {
+    Random r = new Random(1);
+    String[] documents = { penDigitsTreePMML(), penDigitsRegressionPMML(r),
+        penDigitsGeneralRegressionPMML(r), penDigitsNeuralPMML(r) };
+    for (String document : documents) {
+      File pmml = File.createTempFile("penDigits", ".xml");
+      pmml.deleteOnExit();
+      FileOutputStream out = new FileOutputStream(pmml);
+      out.write(document.getBytes("UTF-8"));
+      out.close();
+
+      WekaScoringModel model = WekaScoringData.loadSerializedModel(
+          pmml.getPath(), null, new Variables());
+      assertTrue(model.getModel() instanceof WekaScoringPMMLClassifier);
+      assertTrue(model.compile());
+
+      PMMLModel interpreted = PMMLFactory.getPMMLModel(pmml, null);
+      assertTrue(model.getHeader().equalHeaders(
+          interpreted.getMiningSchema().getMiningSchemaAsInstances()));
+      Instances data = readPenDigits(model.getHeader(), 2000, false);
+      assertSameDistributions(interpreted, model, data);
+    }
+
+    // target metadata is left to Weka's consumer
+    String targets = penDigitsRegressionPMML(r).replace("</MiningSchema>",
+        "</MiningSchema><Targets><Target field=\"class\"/></Targets>");
+    assertTrue(WekaScoringPMMLCompiler.compile(new ByteArrayInputStream(
+        targets.getBytes("UTF-8"))) == null);
+  }
+
+  @Test
+  public void testCompiledMetaEngines() throws Exception {
+    Instances header = penDigitsHeader();
+    Instances train = readPenDigits(header, 1000, true);
+    Instances data = readPenDigits(header, 2000, false);
+
+    Classifier[] base = { new NaiveBayes(), new REPTree(), new Logistic() };
+    Vote average = new Vote();
+    average.setClassifiers(base);
+    Vote majority = new Vote();
+    majority.setClassifiers(new Classifier[] { new NaiveBayes(),
+        new REPTree(), new IBk(), new OneR() });
+    majority.setCombinationRule(new SelectedTag(Vote.MAJORITY_VOTING_RULE,
+        Vote.TAGS_RULES));
+    AdaBoostM1 boost = new AdaBoostM1();
+    boost.setClassifier(new REPTree());
+    Bagging bagging = new Bagging();
+    bagging.setClassifier(new NaiveBayes());
+    Stacking stacking = new Stacking();
+    stacking.setClassifiers(new Classifier[] { new NaiveBayes(),
+        new REPTree() });
+    stacking.setMetaClassifier(new NaiveBayes());
+
+    Classifier[] models = { average, majority, boost, bagging, stacking };
+    for (Classifier m : models) {
+      m.buildClassifier(train);
+      WekaScoringModel scorer = WekaScoringModel.createScorer(m);
+      scorer.setHeader(header);
+      assertTrue(scorer.compile());
+      assertTrue(scorer.isBatchPredictor());
+      assertSameDistributions(m, scorer, data, 1e-9);
+
+      // members evaluated in parallel over a batch
+      WekaScoringMetaEngine engine = (WekaScoringMetaEngine) WekaScoringEngine
+          .forModel(m, header);
+      assertTrue(engine.numMembers() > 1);
+      double[][] batch = engine.distributionsForInstances(data);
+      for (int i = 0; i < data.numInstances(); i++) {
+        double[] expected = m.distributionForInstance(data.instance(i));
+        for (int j = 0; j < expected.length; j++) {
+          assertEquals(expected[j], batch[i][j], 1e-9);
+        }
+      }
+
+      // label only, with rows that stop once their class is decided
+      double[][] labels = engine.labelDistributionsForInstances(data);
+      for (int i = 0; i < data.numInstances(); i++) {
+        double expected = m.classifyInstance(data.instance(i));
+        assertEquals(expected, WekaScoringEngine.classify(labels[i],
+            data.instance(i)), 0);
+      }
+    }
+
+    // bagged Naive Bayes members are compiled themselves
+    WekaScoringMetaEngine engine = (WekaScoringMetaEngine) WekaScoringEngine
+        .forModel(bagging, header);
+    assertEquals(engine.numMembers(), engine.numCompiledMembers());
+  }
+
+  @Test
+  public void testCompiledFilteredClassifier() throws Exception {
+    Instances header = penDigitsHeader();
+    Instances train = readPenDigits(header, 1000, true);
+    Instances data = readPenDigits(header, 2000, false);
+
+    MultiFilter normalized = new MultiFilter();
+    normalized.setFilters(new Filter[] { new ReplaceMissingValues(),
+        new Normalize() });
+    FilteredClassifier logistic = new FilteredClassifier();
+    logistic.setFilter(normalized);
+    logistic.setClassifier(new Logistic());
+
+    MultiFilter standardized = new MultiFilter();
+    standardized.setFilters(new Filter[] { new Standardize(),
+        new ReplaceMissingValues() });
+    FilteredClassifier bayes = new FilteredClassifier();
+    bayes.setFilter(standardized);
+    bayes.setClassifier(new NaiveBayes());
+
+    MultiFilter binned = new MultiFilter();
+    binned.setFilters(new Filter[] { new ReplaceMissingValues(),
+        new Discretize(), new NominalToBinary() });
+    FilteredClassifier tree = new FilteredClassifier();
+    tree.setFilter(binned);
+    tree.setClassifier(new J48());
+
+    FilteredClassifier[] models = { logistic, bayes, tree };
+    for (FilteredClassifier m : models) {
+      m.buildClassifier(train);
+      WekaScoringModel scorer = WekaScoringModel.createScorer(m);
+      scorer.setHeader(header);
+      assertTrue(scorer.compile());
+      assertSameDistributions(m, scorer, data, 1e-9);
+
+      WekaScoringPreprocessor preprocessor = scorer.getPreprocessor();
+      assertTrue(preprocessor != null);
+      assertTrue(WekaScoringEngine.forModel(m, header)
+          instanceof WekaScoringFilteredEngine);
+
+      // values filtered one at a time, as the step converts a row
+      Instances batch = preprocessor.newBatch(data.numInstances());
+      for (int i = 0; i < data.numInstances(); i++) {
+        Instance inst = data.instance(i);
+        double[] vals = new double[preprocessor.numOutputs()];
+        for (int j = 0; j < inst.numAttributes(); j++) {
+          preprocessor.transform(j, inst.value(j), vals);
+        }
+        Instance filtered = new DenseInstance(1.0, vals);
+        filtered.setDataset(preprocessor.getOutputFormat());
+        double[] expected = m.distributionForInstance(inst);
+        double[] actual = scorer.distributionForInstance(filtered);
+        for (int j = 0; j < expected.length; j++) {
+          assertEquals(expected[j], actual[j], 1e-9);
+        }
+        batch.add(filtered);
+      }
+      if (scorer.isBatchPredictor()) {
+        double[][] preds = scorer.distributionsForInstances(batch);
+        for (int i = 0; i < data.numInstances(); i++) {
+          double[] expected = m.distributionForInstance(data.instance(i));
+          for (int j = 0; j < expected.length; j++) {
+            assertEquals(expected[j], preds[i][j], 1e-9);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Builds documents of words drawn mostly from the vocabulary of their
+   * topic, in mixed case and with punctuation, plus their length. Every
+   * ninth document has no text.
+   */
+  private static Instances textDocuments(Instances header, int numDocs,
+      long seed) {
+    String[][] vocabulary = {
+        { "Goal", "match", "team", "league", "coach", "score", "win" },
+        { "market", "Stock", "price", "bank", "rate", "trade", "fund" },
+        { "the", "a", "of", "and", "is", "Report", "today" } };
+    Random r = new Random(seed);
+    Instances data = new Instances(header, numDocs);
+    for (int d = 0; d < numDocs; d++) {
+      int topic = r.nextInt(2);
+      StringBuilder text = new StringBuilder();
+      int words = 3 + r.nextInt(12);
+      for (int w = 0; w < words; w++) {
+        String[] v = vocabulary[(r.nextInt(4) == 0) ? 2
+            : (r.nextInt(5) == 0) ? 1 - topic : topic];
+        String word = v[r.nextInt(v.length)];
+        text.append(r.nextBoolean() ? word : word.toUpperCase());
+        text.append((r.nextInt(6) == 0) ? ", " : " ");
+      }
+      double[] vals = new double[3];
+      vals[0] = (d % 9 == 4) ? Utils.missingValue() : data.attribute(0)
+          .addStringValue(text.toString());
+      vals[1] = words;
+      vals[2] = topic;
+      data.add(new DenseInstance(1.0, vals));
+    }
+    return data;
+  }
+
+  @Test
+  public void testCompiledTextModels() throws Exception {
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    atts.add(new Attribute("text", (ArrayList<String>) null));
+    atts.add(new Attribute("length"));
+    ArrayList<String> topics = new ArrayList<String>();
+    topics.add("sport");
+    topics.add("finance");
+    atts.add(new Attribute("topic", topics));
+    Instances header = new Instances("news", atts, 0);
+    header.setClassIndex(2);
+    Instances train = textDocuments(header, 400, 1);
+    Instances data = textDocuments(header, 300, 2);
+
+    FilteredClassifier plain = new FilteredClassifier();
+    plain.setFilter(new StringToWordVector());
+    plain.setClassifier(new NaiveBayesMultinomial());
+
+    StringToWordVector weighted = new StringToWordVector();
+    weighted.setOutputWordCounts(true);
+    weighted.setTFTransform(true);
+    weighted.setIDFTransform(true);
+    weighted.setLowerCaseTokens(true);
+    weighted.setNormalizeDocLength(new SelectedTag(
+        StringToWordVector.FILTER_NORMALIZE_ALL,
+        StringToWordVector.TAGS_FILTER));
+    FilteredClassifier tfidf = new FilteredClassifier();
+    tfidf.setFilter(weighted);
+    tfidf.setClassifier(new NaiveBayes());
+
+    StringToWordVector stemmed = new StringToWordVector();
+    stemmed.setTokenizer(new AlphabeticTokenizer());
+    stemmed.setLowerCaseTokens(true);
+    stemmed.setStemmer(new LovinsStemmer());
+    FilteredClassifier tree = new FilteredClassifier();
+    tree.setFilter(stemmed);
+    tree.setClassifier(new J48());
+
+    FilteredClassifier[] models = { plain, tfidf, tree };
+    for (FilteredClassifier m : models) {
+      m.buildClassifier(train);
+      WekaScoringModel scorer = WekaScoringModel.createScorer(m);
+      scorer.setHeader(train.stringFreeStructure());
+      assertTrue(scorer.compile());
+      assertTrue(scorer.getTextVectorizer() != null);
+      assertSameDistributions(m, scorer, data, 1e-9);
+
+      // rows scored by the step, with the text never stored in the header
+      WekaScoringMeta meta = new WekaScoringMeta();
+      meta.setModel(scorer);
+      meta.setOutputProbabilities(true);
+      RowMetaInterface rmi = new RowMeta();
+      ValueMetaInterface vmi = new ValueMeta();
+      vmi.setName("text");
+      vmi.setType(ValueMetaInterface.TYPE_STRING);
+      rmi.addValueMeta(vmi);
+      vmi = new ValueMeta();
+      vmi.setName("length");
+      vmi.setType(ValueMetaInterface.TYPE_NUMBER);
+      rmi.addValueMeta(vmi);
+      RowMetaInterface outRowMeta = rmi.clone();
+      meta.getFields(outRowMeta, null, null, null, new Variables());
+
+      int headerStrings = scorer.getHeader().attribute(0).numValues();
+      WekaScoringData step = new WekaScoringData();
+      step.setModel(scorer);
+      step.setOutputRowMeta(outRowMeta);
+      step.mapIncomingRowMetaData(scorer.getHeader(), rmi, false, null);
+      for (int i = 0; i < data.numInstances(); i++) {
+        Instance inst = data.instance(i);
+        Object[] row = { inst.isMissing(0) ? null : inst.stringValue(0),
+            new Double(inst.value(1)) };
+        Object[] preds = step.generatePrediction(rmi, outRowMeta, row, meta);
+        double[] expected = m.distributionForInstance(inst);
+        for (int j = 0; j < expected.length; j++) {
+          assertEquals(expected[j], ((Number) preds[2 + j]).doubleValue(),
+              1e-9);
+        }
+      }
+      assertEquals(headerStrings, scorer.getHeader().attribute(0).numValues());
+    }
+  }
+
+  @Test
+  public void testSparseConversionOfWideRows() throws Exception {
+    int numInputs = 1500;
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    for (int i = 0; i < numInputs; i++) {
+      atts.add(new Attribute("a" + i));
+    }
+    ArrayList<String> labels = new ArrayList<String>();
+    labels.add("x");
+    labels.add("y");
+    atts.add(new Attribute("class", labels));
+    Instances header = new Instances("wide", atts, 0);
+    header.setClassIndex(numInputs);
+
+    // a few active inputs per row, with the class following the first ten
+    // inputs
+    Random r = new Random(3);
+    Instances train = new Instances(header, 300);
+    for (int n = 0; n < 300; n++) {
+      double[] vals = new double[numInputs + 1];
+      for (int k = 0; k < 15; k++) {
+        vals[r.nextInt(numInputs)] = 1 + r.nextInt(5);
+      }
+      double low = 0;
+      for (int i = 0; i < 10; i++) {
+        low += vals[i];
+      }
+      vals[numInputs] = (low > 0) ? 0 : 1;
+      train.add(new DenseInstance(1.0, vals));
+    }
+    J48 tree = new J48();
+    tree.buildClassifier(train);
+    WekaScoringModel scorer = WekaScoringModel.createScorer(tree);
+    scorer.setHeader(header);
+    assertTrue(scorer.compile());
+
+    // every tenth input has no incoming field
+    WekaScoringMeta meta = new WekaScoringMeta();
+    meta.setModel(scorer);
+    meta.setOutputProbabilities(true);
+    RowMetaInterface rmi = new RowMeta();
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    for (int i = 0; i < numInputs; i++) {
+      if (i % 10 != 7) {
+        ValueMetaInterface vmi = new ValueMeta();
+        vmi.setName("a" + i);
+        vmi.setType(ValueMetaInterface.TYPE_NUMBER);
+        rmi.addValueMeta(vmi);
+        fields.add(i);
+      }
+    }
+    RowMetaInterface outRowMeta = rmi.clone();
+    meta.getFields(outRowMeta, null, null, null, new Variables());
+    WekaScoringData step = new WekaScoringData();
+    step.setModel(scorer);
+    step.setOutputRowMeta(outRowMeta);
+    step.mapIncomingRowMetaData(header, rmi, false, null);
+
+    // a block of sparse rows, then a block of dense ones
+    for (int n = 0; n < 4 * WekaScoringData.DENSITY_SAMPLE; n++) {
+      boolean dense = n >= 2 * WekaScoringData.DENSITY_SAMPLE;
+      Object[] row = new Object[fields.size()];
+      double[] vals = new double[numInputs + 1];
+      for (int f = 0; f < row.length; f++) {
+        double v = (dense || r.nextInt(100) == 0) ? 1 + r.nextInt(5) : 0;
+        row[f] = new Double(v);
+        vals[fields.get(f)] = v;
+      }
+      for (int i = 7; i < numInputs; i += 10) {
+        vals[i] = Utils.missingValue();
+      }
+      vals[numInputs] = Utils.missingValue();
+      Instance inst = new DenseInstance(1.0, vals);
+      inst.setDataset(header);
+
+      Object[] preds = step.generatePrediction(rmi, outRowMeta, row, meta);
+      double[] expected = tree.distributionForInstance(inst);
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals(expected[j], ((Number) preds[row.length + j])
+            .doubleValue(), 1e-9);
+      }
+      if (n == 2 * WekaScoringData.DENSITY_SAMPLE - 1) {
+        assertTrue(step.isSparseConversion());
+      }
+    }
+    assertTrue(!step.isSparseConversion());
+  }
+
+  @Test
+  public void testFieldConverters() throws Exception {
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    atts.add(new Attribute("number"));
+    atts.add(new Attribute("integer"));
+    atts.add(new Attribute("flag"));
+    ArrayList<String> colours = new ArrayList<String>();
+    colours.add("red");
+    colours.add("green");
+    atts.add(new Attribute("colour", colours));
+    atts.add(new Attribute("unmapped"));
+    atts.add(new Attribute("mismatch"));
+    Instances header = new Instances("fields", atts, 0);
+
+    String[] names = { "number", "integer", "flag", "colour", "mismatch" };
+    int[] types = { ValueMetaInterface.TYPE_NUMBER,
+        ValueMetaInterface.TYPE_INTEGER, ValueMetaInterface.TYPE_BOOLEAN,
+        ValueMetaInterface.TYPE_STRING, ValueMetaInterface.TYPE_STRING };
+    RowMetaInterface rmi = new RowMeta();
+    for (int i = 0; i < names.length; i++) {
+      ValueMetaInterface vmi = new ValueMeta();
+      vmi.setName(names[i]);
+      vmi.setType(types[i]);
+      rmi.addValueMeta(vmi);
+    }
+    WekaScoringConverter[] converters = WekaScoringConverter.compile(header,
+        rmi, WekaScoringData.findMappings(header, rmi));
+    assertTrue(converters[0] instanceof WekaScoringConverter.NativeNumber);
+    assertTrue(converters[1] instanceof WekaScoringConverter.NativeInteger);
+    assertTrue(converters[2] instanceof WekaScoringConverter.NativeBoolean);
+    assertTrue(converters[3] instanceof WekaScoringConverter.Nominal);
+    assertTrue(!converters[4].isMapped());
+    assertTrue(!converters[5].isMapped());
+
+    Object[] row = { new Double(2.5), new Long(7), Boolean.TRUE, "green",
+        "x" };
+    double[] expected = { 2.5, 7, 1, 1 };
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], converters[i].value(row), 0);
+    }
+    assertTrue(Utils.isMissingValue(converters[4].value(row)));
+    assertTrue(Utils.isMissingValue(converters[5].value(row)));
+
+    // nulls, empty strings and unseen labels are missing
+    Object[] empty = { null, null, null, "", "x" };
+    Object[] unseen = { null, null, Boolean.FALSE, "blue", "x" };
+    for (int i = 0; i < 4; i++) {
+      assertTrue(Utils.isMissingValue(converters[i].value(empty)));
+    }
+    assertEquals(0, converters[2].value(unseen), 0);
+    assertTrue(Utils.isMissingValue(converters[3].value(unseen)));
+  }
+
+  @Test
+  public void testNominalDictionaries() throws Exception {
+    ArrayList<String> labels = new ArrayList<String>();
+    for (int i = 0; i < 40; i++) {
+      labels.add("label" + i);
+    }
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    atts.add(new Attribute("native", labels));
+    atts.add(new Attribute("binary", labels));
+    Instances header = new Instances("nominal", atts, 0);
+
+    RowMetaInterface rmi = new RowMeta();
+    ValueMetaInterface nativeMeta = new ValueMeta();
+    nativeMeta.setName("native");
+    nativeMeta.setType(ValueMetaInterface.TYPE_STRING);
+    rmi.addValueMeta(nativeMeta);
+    ValueMetaInterface binaryMeta = new ValueMeta();
+    binaryMeta.setName("binary");
+    binaryMeta.setType(ValueMetaInterface.TYPE_STRING);
+    binaryMeta.setStorageType(ValueMetaInterface.STORAGE_TYPE_BINARY_STRING);
+    ValueMetaInterface storageMeta = new ValueMeta();
+    storageMeta.setName("binary");
+    storageMeta.setType(ValueMetaInterface.TYPE_STRING);
+    binaryMeta.setStorageMetadata(storageMeta);
+    rmi.addValueMeta(binaryMeta);
+
+    WekaScoringConverter[] converters = WekaScoringConverter.compile(header,
+        rmi, WekaScoringData.findMappings(header, rmi));
+    assertTrue(converters[0] instanceof WekaScoringConverter.NativeNominal);
+    assertTrue(converters[1] instanceof WekaScoringConverter.BinaryNominal);
+
+    // every label, twice in a row to go through the last value
+    byte[] buffer = new byte[16];
+    for (int i = 0; i < labels.size(); i++) {
+      byte[] bytes = labels.get(i).getBytes();
+      for (int k = 0; k < 2; k++) {
+        // a fresh String each time, the same bytes twice
+        Object[] row = { new String(labels.get(i)), bytes };
+        assertEquals(i, converters[0].value(row), 0);
+        assertEquals(i, converters[1].value(row), 0);
+      }
+      System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+      Object[] reused = { labels.get(i),
+          Arrays.copyOf(buffer, bytes.length) };
+      assertEquals(i, converters[1].value(reused), 0);
+    }
+
+    // unseen, empty and null values are missing, and don't stick
+    Object[][] missing = { { "label40", "label40".getBytes() },
+        { "", new byte[0] }, { null, null }, { "Label1", "Label1".getBytes() } };
+    for (Object[] row : missing) {
+      for (int k = 0; k < 2; k++) {
+        assertTrue(Utils.isMissingValue(converters[0].value(row)));
+        assertTrue(Utils.isMissingValue(converters[1].value(row)));
+      }
+    }
+    Object[] row = { "label3", "label3".getBytes() };
+    assertEquals(3, converters[0].value(row), 0);
+    assertEquals(3, converters[1].value(row), 0);
+
+    // a String in a binary field is still looked up by its text
+    Object[] decoded = { "label5", "label5" };
+    assertEquals(5, converters[1].value(decoded), 0);
+  }
+
+  @Test
+  public void testBinaryNumberParsing() throws Exception {
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    atts.add(new Attribute("number"));
+    atts.add(new Attribute("integer"));
+    Instances header = new Instances("binary", atts, 0);
+
+    String[] names = { "number", "integer" };
+    int[] types = { ValueMetaInterface.TYPE_NUMBER,
+        ValueMetaInterface.TYPE_INTEGER };
+    RowMetaInterface rmi = new RowMeta();
+    for (int i = 0; i < names.length; i++) {
+      ValueMetaInterface vmi = new ValueMeta();
+      vmi.setName(names[i]);
+      vmi.setType(types[i]);
+      vmi.setStorageType(ValueMetaInterface.STORAGE_TYPE_BINARY_STRING);
+      ValueMetaInterface storageMeta = new ValueMeta();
+      storageMeta.setName(names[i]);
+      storageMeta.setType(ValueMetaInterface.TYPE_STRING);
+      vmi.setStorageMetadata(storageMeta);
+      rmi.addValueMeta(vmi);
+    }
+    WekaScoringConverter[] converters = WekaScoringConverter.compile(header,
+        rmi, WekaScoringData.findMappings(header, rmi));
+    assertTrue(converters[0] instanceof WekaScoringConverter.BinaryNumber);
+    assertTrue(converters[1] instanceof WekaScoringConverter.BinaryNumber);
+
+    // plain decimals are parsed exactly as the meta data would
+    Random r = new Random(1);
+    for (int i = 0; i < 20000; i++) {
+      String text = (r.nextBoolean() ? "-" : "")
+          + Math.abs(r.nextLong() % 10000000L) + "."
+          + Math.abs(r.nextLong() % 100000000L);
+      Object[] row = { text.getBytes(), null };
+      assertEquals(Double.parseDouble(text), converters[0].value(row), 0);
+    }
+    String[] plain = { "0", "-0.0", "007", ".5", "5.", "0.000001",
+        "123456789012345", "0.0000000000000000000001" };
+    for (String text : plain) {
+      Object[] row = { text.getBytes(), null };
+      assertEquals(Double.parseDouble(text), converters[0].value(row), 0);
+    }
+
+    // anything else goes through the meta data
+    String[] other = { "1e3", " 7 ", "+5", "3.14159265358979323846",
+        "12345678901234567890", "0.00000000000000000000001" };
+    for (String text : other) {
+      Object[] row = { text.getBytes(), null };
+      assertEquals(Double.parseDouble(text.trim()), converters[0].value(row),
+          0);
+    }
+    String[] unparseable = { "", "-", ".", "1.2.3", "1,234", "abc" };
+    for (String text : unparseable) {
+      Object[] row = { text.getBytes(), text.getBytes() };
+      assertTrue(Utils.isMissingValue(converters[0].value(row)));
+      assertTrue(Utils.isMissingValue(converters[1].value(row)));
+    }
+
+    // integers have no decimal point
+    Object[] row = { null, "-42".getBytes() };
+    assertEquals(-42, converters[1].value(row), 0);
+    row[1] = "12.5".getBytes();
+    assertTrue(Utils.isMissingValue(converters[1].value(row)));
+    row[1] = "-0".getBytes();
+    assertEquals(0, converters[1].value(row), 0);
+    assertTrue(Utils.isMissingValue(converters[0].value(row)));
+  }
+
+  @Test
+  public void testOutputWriters() throws Exception {
+    ArrayList<String> labels = new ArrayList<String>();
+    labels.add("yes");
+    labels.add("no");
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    atts.add(new Attribute("x"));
+    atts.add(new Attribute("class", labels));
+    Instances header = new Instances("writers", atts, 0);
+    header.setClassIndex(1);
+
+    WekaScoringModel classifier = WekaScoringModel.createScorer(new J48());
+    classifier.setHeader(header);
+    Object[] row = new Object[3];
+    WekaScoringOutputWriter writer = WekaScoringOutputWriter.create(
+        classifier, false);
+    assertTrue(writer instanceof WekaScoringOutputWriter.ClassLabel);
+    writer.write(new double[] { 0.2, 0.8 }, row, 1);
+    assertSame("no", row[1]);
+    writer.write(new double[] { 0, 0 }, row, 1);
+    assertEquals("WekaScoringData.Message.UnableToPredict", row[1]);
+    writer.writeLabel(0, row, 1);
+    assertSame("yes", row[1]);
+    writer.writeLabel(Utils.missingValue(), row, 1);
+    assertEquals("WekaScoringData.Message.UnableToPredict", row[1]);
+
+    writer = WekaScoringOutputWriter.create(classifier, true);
+    writer.write(new double[] { 0.2, 0.8 }, row, 1);
+    assertEquals(0.2, ((Double) row[1]).doubleValue(), 0);
+    assertEquals(0.8, ((Double) row[2]).doubleValue(), 0);
+
+    header.setClassIndex(0);
+    WekaScoringModel regression = WekaScoringModel.createScorer(new J48());
+    regression.setHeader(header);
+    writer = WekaScoringOutputWriter.create(regression, true);
+    row[2] = null;
+    writer.write(new double[] { 4.5 }, row, 1);
+    assertEquals(4.5, ((Double) row[1]).doubleValue(), 0);
+    assertTrue(row[2] == null);
+
+    header.setClassIndex(-1);
+    WekaScoringModel clusterer = WekaScoringModel
+        .createScorer(new SimpleKMeans());
+    clusterer.setHeader(header);
+    writer = WekaScoringOutputWriter.create(clusterer, false);
+    assertTrue(writer instanceof WekaScoringOutputWriter.ClusterIndex);
+    writer.write(new double[] { 0, 1, 0 }, row, 1);
+    Object first = row[1];
+    assertEquals(1.0, ((Double) first).doubleValue(), 0);
+    writer.write(new double[] { 0, 0.3, 0.7 }, row, 1);
+    assertEquals(2.0, ((Double) row[1]).doubleValue(), 0);
+    writer.write(new double[] { 0.1, 0.9, 0 }, row, 1);
+    assertSame(first, row[1]);
+    writer.write(new double[] { 0, 0, 0 }, row, 1);
+    assertEquals("WekaScoringData.Message.UnableToPredictCluster", row[1]);
+    writer.writeLabel(1, row, 1);
+    assertSame(first, row[1]);
+    writer.writeLabel(5, row, 1);
+    assertEquals(5.0, ((Double) row[1]).doubleValue(), 0);
+  }
+
+  @Test
+  public void testLabelOnlyPredictions() throws Exception {
+    Instances header = penDigitsHeader();
+    Instances train = readPenDigits(header, 1000, true);
+    Instances data = readPenDigits(header, 1000, false);
+
+    // the labels of a tree, a batch predicting forest and a model without
+    // an engine, as Weka classifies the rows
+    J48 tree = new J48();
+    tree.buildClassifier(train);
+    RandomForest forest = new RandomForest();
+    forest.setNumTrees(20);
+    forest.buildClassifier(train);
+    OneR oneR = new OneR();
+    oneR.buildClassifier(train);
+    Classifier[] classifiers = { tree, forest, oneR };
+    for (Classifier c : classifiers) {
+      WekaScoringModel scorer = WekaScoringModel.createScorer(c);
+      scorer.setHeader(header);
+      scorer.compile();
+      double[] batch = scorer.isBatchPredictor() ? scorer
+          .classifyInstances(data) : null;
+      for (int i = 0; i < data.numInstances(); i++) {
+        double expected = c.classifyInstance(data.instance(i));
+        assertEquals(expected, scorer.classifyInstance(data.instance(i)), 0);
+        if (batch != null) {
+          assertEquals(expected, batch[i], 0);
+        }
+      }
+    }
+
+    // the clusters of k-means, in a batch
+    Instances clusterData = new Instances(data);
+    clusterData.setClassIndex(-1);
+    SimpleKMeans kMeans = new SimpleKMeans();
+    kMeans.setNumClusters(6);
+    Instances clusterTrain = new Instances(train);
+    clusterTrain.setClassIndex(-1);
+    kMeans.buildClusterer(clusterTrain);
+    WekaScoringModel scorer = WekaScoringModel.createScorer(kMeans);
+    scorer.setHeader(new Instances(clusterTrain, 0));
+    assertTrue(scorer.compile());
+    double[] batch = scorer.classifyInstances(clusterData);
+    for (int i = 0; i < clusterData.numInstances(); i++) {
+      assertEquals(kMeans.clusterInstance(clusterData.instance(i)), batch[i],
+          0);
+    }
+
+    // without an engine, the label is decided from the distribution like a
+    // batch: the first of tied classes, and a missing value for an instance
+    // that can't be clustered
+    Classifier lastOfTies = new AbstractClassifier() {
+      public void buildClassifier(Instances insts) {
+      }
+
+      public double[] distributionForInstance(Instance inst) {
+        return new double[] { 0, 0.5, 0, 0.5, 0, 0, 0, 0, 0, 0 };
+      }
+
+      public double classifyInstance(Instance inst) {
+        return 3;
+      }
+    };
+    scorer = WekaScoringModel.createScorer(lastOfTies);
+    scorer.setHeader(header);
+    assertFalse(scorer.compile());
+    assertEquals(1, scorer.classifyInstance(data.instance(0)), 0);
+    Clusterer unable = new AbstractClusterer() {
+      public void buildClusterer(Instances insts) {
+      }
+
+      public int numberOfClusters() {
+        return 2;
+      }
+
+      public double[] distributionForInstance(Instance inst) {
+        return new double[2];
+      }
+    };
+    scorer = WekaScoringModel.createScorer(unable);
+    scorer.setHeader(new Instances(clusterTrain, 0));
+    assertFalse(scorer.compile());
+    assertTrue(Utils.isMissingValue(scorer.classifyInstance(clusterData
+        .instance(0))));
+  }
+
+  @Test
+  public void testBatchBufferedRows() throws Exception {
+    Instances header = penDigitsHeader();
+    Instances train = readPenDigits(header, 1000, true);
+    Instances data = readPenDigits(header, 350, false);
+    RandomForest forest = new RandomForest();
+    forest.setNumTrees(20);
+    forest.buildClassifier(train);
+    WekaScoringModel scorer = WekaScoringModel.createScorer(forest);
+    scorer.setHeader(header);
+    assertTrue(scorer.compile());
+    assertTrue(scorer.isBatchPredictor());
+
+    // input4 has no incoming field
+    WekaScoringMeta meta = new WekaScoringMeta();
+    meta.setModel(scorer);
+    meta.setOutputProbabilities(true);
+    RowMetaInterface rmi = new RowMeta();
+    for (int i = 1; i <= 16; i++) {
+      if (i != 4) {
+        ValueMetaInterface vmi = new ValueMeta();
+        vmi.setName("input" + i);
+        vmi.setType(ValueMetaInterface.TYPE_NUMBER);
+        rmi.addValueMeta(vmi);
+      }
+    }
+    RowMetaInterface outRowMeta = rmi.clone();
+    meta.getFields(outRowMeta, null, null, null, new Variables());
+    WekaScoringData step = new WekaScoringData();
+    step.setModel(scorer);
+    step.setOutputRowMeta(outRowMeta);
+    step.setBatchScoringSize(150);
+    step.mapIncomingRowMetaData(header, rmi, false, null);
+
+    // batches of different sizes reuse the buffer, the last one for labels
+    int[] batchSizes = { 100, 150, 60, 40 };
+    int next = 0;
+    for (int b = 0; b < batchSizes.length; b++) {
+      boolean probs = b < batchSizes.length - 1;
+      meta.setOutputProbabilities(probs);
+      int first = next;
+      for (int n = 0; n < batchSizes[b]; n++) {
+        Instance inst = data.instance(next++);
+        Object[] row = new Object[rmi.size()];
+        for (int i = 0, f = 0; i < 16; i++) {
+          if (i != 3) {
+            row[f++] = inst.isMissing(i) ? null : new Double(inst.value(i));
+          }
+        }
+        step.bufferRow(rmi, row);
+        inst.setMissing(3);
+      }
+      assertEquals(batchSizes[b], step.getBufferedRows());
+
+      Object[][] preds = step.generatePredictions(rmi, outRowMeta, meta);
+      assertEquals(0, step.getBufferedRows());
+      assertEquals(batchSizes[b], preds.length);
+      for (int n = 0; n < preds.length; n++) {
+        Instance inst = data.instance(first + n);
+        if (probs) {
+          double[] expected = forest.distributionForInstance(inst);
+          for (int j = 0; j < expected.length; j++) {
+            assertEquals(expected[j], ((Number) preds[n][rmi.size() + j])
+                .doubleValue(), 1e-9);
+          }
+        } else {
+          double expected = forest.classifyInstance(inst);
+          assertEquals(header.classAttribute().value((int) expected),
+              preds[n][rmi.size()]);
+        }
+      }
+    }
+    assertEquals(0, step.generatePredictions(rmi, outRowMeta, meta).length);
+  }
+
+  @Test
+  public void testIncrementalNeighbourModelScoredRowByRow() throws Exception {
+    Instances header = penDigitsHeader();
+    Instances all = readPenDigits(header, 350, true);
+    Instances train = new Instances(all, 0, 300);
+    IBk ibk = new IBk(3);
+    ibk.buildClassifier(train);
+    IBk reference = new IBk(3);
+    reference.buildClassifier(train);
+    WekaScoringModel scorer = WekaScoringModel.createScorer(ibk);
+    scorer.setHeader(header);
+    assertTrue(scorer.compile());
+    assertTrue(scorer.isBatchPredictor());
+
+    WekaScoringMeta meta = new WekaScoringMeta();
+    meta.setModel(scorer);
+    meta.setOutputProbabilities(true);
+    RowMetaInterface rmi = new RowMeta();
+    for (int i = 0; i < header.numAttributes(); i++) {
+      ValueMetaInterface vmi = new ValueMeta();
+      vmi.setName(header.attribute(i).name());
+      vmi.setType(i == 16 ? ValueMetaInterface.TYPE_STRING
+          : ValueMetaInterface.TYPE_NUMBER);
+      rmi.addValueMeta(vmi);
+    }
+    RowMetaInterface outRowMeta = rmi.clone();
+    meta.getFields(outRowMeta, null, null, null, new Variables());
+    WekaScoringData step = new WekaScoringData();
+    step.setModel(scorer);
+    step.setOutputRowMeta(outRowMeta);
+    step.mapIncomingRowMetaData(header, rmi, true, null);
+    assertTrue(step.isBatchScoring(meta));
+
+    // an incremental update sends every row through generatePrediction()
+    meta.setUpdateIncrementalModel(true);
+    assertFalse(step.isBatchScoring(meta));
+    for (int n = 300; n < all.numInstances(); n++) {
+      Instance inst = all.instance(n);
+      Object[] row = new Object[rmi.size()];
+      for (int i = 0; i < 16; i++) {
+        row[i] = inst.isMissing(i) ? null : new Double(inst.value(i));
+      }
+      row[16] = inst.stringValue(16);
+      Object[] preds = step.generatePrediction(rmi, outRowMeta, row, meta);
+
+      double[] expected = reference.distributionForInstance(inst);
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals(expected[j], ((Number) preds[rmi.size() + j])
+            .doubleValue(), 1e-12);
+      }
+      reference.updateClassifier(inst);
+      assertEquals(n + 1, ibk.getNumTraining());
+    }
+  }
+
   public static void main(String[] args) {
     try {
       WekaScoringTest test = new WekaScoringTest();
@@ -318,6 +2188,32 @@ public class WekaScoringTest {
       test.testGenerateClassLabelsWithClassificationModel();
       test.testGenerateClassProbsWithClassificationModel();
       test.testGenerateClusterLabelsWithClusterModel();
+      test.testSharedModelRegistry();
+      test.testUnshareableModelCopiedPerUser();
+      test.testModelCacheEviction();
+      test.testModelPrefetcher();
+      test.testModelContainerRoundTrip();
+      test.testCompiledTreeEngine();
+      test.testCompiledEnsembleEngine();
+      test.testCompiledBayesEngine();
+      test.testCompiledLinearEngine();
+      test.testCompiledKernelAndNeuralEngines();
+      test.testCompiledKMeansEngine();
+      test.testCompiledEMEngine();
+      test.testCompiledNeighbourEngine();
+      test.testCompiledRuleAndTableEngines();
+      test.testCompiledPMMLModels();
+      test.testCompiledMetaEngines();
+      test.testCompiledFilteredClassifier();
+      test.testCompiledTextModels();
+      test.testSparseConversionOfWideRows();
+      test.testFieldConverters();
+      test.testNominalDictionaries();
+      test.testBinaryNumberParsing();
+      test.testOutputWriters();
+      test.testLabelOnlyPredictions();
+      test.testBatchBufferedRows();
+      test.testIncrementalNeighbourModelScoredRowByRow();
     } catch (Exception ex) {
       ex.printStackTrace();
     }